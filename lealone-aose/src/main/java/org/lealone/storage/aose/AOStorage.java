@@ -15,6 +15,9 @@ import org.lealone.storage.StorageBase;
 import org.lealone.storage.StorageMap;
 import org.lealone.storage.StorageSetting;
 import org.lealone.storage.aose.btree.BTreeMap;
+import org.lealone.storage.aose.btree.PartitionedBTreeMap;
+import org.lealone.storage.aose.btree.chunk.ChunkCompactionService;
+import org.lealone.storage.aose.btree.page.PageCache;
 import org.lealone.storage.fs.FilePath;
 import org.lealone.storage.fs.FileUtils;
 import org.lealone.storage.type.StorageDataType;
@@ -27,10 +30,20 @@ public class AOStorage extends StorageBase {
     public static final String SUFFIX_AO_FILE = ".db";
     public static final int SUFFIX_AO_FILE_LENGTH = SUFFIX_AO_FILE.length();
 
+    private final PageCache pageCache;
+    private final ChunkCompactionService chunkCompactionService;
+
     AOStorage(Map<String, Object> config) {
         super(config);
-        if (config.containsKey(StorageSetting.IN_MEMORY.name()))
+        if (config.containsKey(StorageSetting.IN_MEMORY.name())) {
+            pageCache = null;
+            chunkCompactionService = null;
             return;
+        }
+        pageCache = createPageCache();
+        // 默认每秒最多重写32M，为0时不限速
+        chunkCompactionService = new ChunkCompactionService(
+                getSize(StorageSetting.COMPACT_RATE_LIMIT.name(), 32 * 1024 * 1024));
         String storagePath = getStoragePath();
         DataUtils.checkNotNull(storagePath, "storage path");
         if (!FileUtils.exists(storagePath))
@@ -44,6 +57,46 @@ public class AOStorage extends StorageBase {
         }
     }
 
+    // 默认32M，为0时不使用共享的page缓存
+    private PageCache createPageCache() {
+        long size = getSize(StorageSetting.PAGE_CACHE_SIZE.name(), 32 * 1024 * 1024);
+        return size > 0 ? new PageCache(size) : null;
+    }
+
+    // 字节数，可以带k或m后缀
+    private long getSize(String key, long defaultValue) {
+        long size = defaultValue;
+        Object value = config.get(key);
+        if (value instanceof Number) {
+            size = ((Number) value).longValue();
+        } else if (value != null) {
+            String str = value.toString().trim().toLowerCase();
+            if (str.endsWith("k"))
+                size = Long.parseLong(str.substring(0, str.length() - 1).trim()) * 1024;
+            else if (str.endsWith("m"))
+                size = Long.parseLong(str.substring(0, str.length() - 1).trim()) * 1024 * 1024;
+            else
+                size = Long.parseLong(str);
+        }
+        return size;
+    }
+
+    public PageCache getPageCache() {
+        return pageCache;
+    }
+
+    public ChunkCompactionService getChunkCompactionService() {
+        return chunkCompactionService;
+    }
+
+    @Override
+    public void closeImmediately() {
+        // 先关闭所有的map，再停止后台的chunk整理线程
+        super.closeImmediately();
+        if (chunkCompactionService != null)
+            chunkCompactionService.close();
+    }
+
     @Override
     protected InputStream getInputStream(String mapName, FilePath file) {
         return openBTreeMap(mapName).getInputStream(file);
@@ -67,13 +120,45 @@ public class AOStorage extends StorageBase {
 
     public <K, V> StorageMap<K, V> openMap(String name, String mapType, StorageDataType keyType,
             StorageDataType valueType, Map<String, String> parameters) {
+        // 已经按分区保存的map不管指定什么类型都按分区打开
+        if (maps.get(name) instanceof PartitionedBTreeMap || !isInMemory(parameters)
+                && PartitionedBTreeMap.isPartitioned(this, name)) {
+            return openPartitionedBTreeMap(name, keyType, valueType, parameters);
+        }
         if (mapType == null || mapType.equalsIgnoreCase("BTreeMap")) {
             return openBTreeMap(name, keyType, valueType, parameters);
+        } else if (mapType.equalsIgnoreCase(PartitionedBTreeMap.MAP_TYPE)) {
+            return openPartitionedBTreeMap(name, keyType, valueType, parameters);
         } else {
             throw DataUtils.newIllegalArgumentException("Unknow map type: {0}", mapType);
         }
     }
 
+    private boolean isInMemory(Map<String, String> parameters) {
+        return config.containsKey(StorageSetting.IN_MEMORY.name()) || parameters != null
+                && parameters.containsKey(StorageSetting.IN_MEMORY.name());
+    }
+
+    @SuppressWarnings("unchecked")
+    public <K, V> PartitionedBTreeMap<K, V> openPartitionedBTreeMap(String name,
+            StorageDataType keyType, StorageDataType valueType, Map<String, String> parameters) {
+        StorageMap<?, ?> map = maps.get(name);
+        if (map == null) {
+            synchronized (this) {
+                map = maps.get(name);
+                if (map == null) {
+                    CaseInsensitiveMap<Object> c = new CaseInsensitiveMap<>(config);
+                    if (parameters != null)
+                        c.putAll(parameters);
+                    map = new PartitionedBTreeMap<>(name, keyType, valueType, c, this);
+                    maps.put(name, map);
+                }
+            }
+        }
+        checkMapType(map, PartitionedBTreeMap.class);
+        return (PartitionedBTreeMap<K, V>) map;
+    }
+
     public <K, V> BTreeMap<K, V> openBTreeMap(String name) {
         return openBTreeMap(name, null, null, null);
     }
@@ -94,6 +179,15 @@ public class AOStorage extends StorageBase {
                 }
             }
         }
+        checkMapType(map, BTreeMap.class);
         return (BTreeMap<K, V>) map;
     }
+
+    // 同名的map已经按另一种类型打开了
+    private static void checkMapType(StorageMap<?, ?> map, Class<?> mapClass) {
+        if (!mapClass.isInstance(map)) {
+            throw DataUtils.newIllegalArgumentException("Map {0} is already opened as {1}, not {2}",
+                    map.getName(), map.getClass().getSimpleName(), mapClass.getSimpleName());
+        }
+    }
 }
@@ -5,9 +5,15 @@
  */
 package org.lealone.storage.aose.btree;
 
+import java.util.function.Predicate;
+
 import org.lealone.storage.CursorParameters;
 import org.lealone.storage.StorageMapCursor;
 import org.lealone.storage.aose.btree.page.Page;
+import org.lealone.storage.page.ColumnBatch;
+import org.lealone.storage.page.ColumnStats;
+import org.lealone.storage.page.ColumnStatsFilter;
+import org.lealone.storage.page.ColumnVector;
 import org.lealone.storage.page.IPage;
 
 /**
@@ -27,6 +33,7 @@ public class BTreeCursor<K, V> implements StorageMapCursor<K, V> {
 
     private K key;
     private V value;
+    private Page checkedPage; // 只用统计信息跳过page时，已经检查过的page不用再检查
 
     public BTreeCursor(BTreeMap<K, ?> map, CursorParameters<K> parameters) {
         this.map = map;
@@ -65,6 +72,63 @@ public class BTreeCursor<K, V> implements StorageMapCursor<K, V> {
         return false;
     }
 
+    @Override
+    @SuppressWarnings("unchecked")
+    public ColumnBatch nextBatch(Predicate<? super V> filter, ColumnStatsFilter statsFilter) {
+        if (!hasNext())
+            return null;
+        Page p = pos.page;
+        if (!p.hasColumnPages())
+            return null;
+        boolean vectorRequired = statsFilter == null || statsFilter.isVectorRequired();
+        if (!vectorRequired) {
+            if (p == checkedPage)
+                return null;
+            checkedPage = p;
+        }
+        int start = pos.index;
+        int end = p.getKeyCount();
+        for (int i = start; i < end; i++) {
+            if (!filter.test((V) p.getValue(i)))
+                return null;
+        }
+        // 这些记录都是其他事务修改前就写到硬盘的，统计信息是准确的，不满足条件时不用读列page
+        if (statsFilter != null) {
+            ColumnStats[] stats = p.getColumnStats();
+            if (stats != null && !statsFilter.mightMatch(stats)) {
+                pos.index = end;
+                key = (K) p.getKey(end - 1);
+                value = null;
+                return ColumnBatch.skip(p, start, end);
+            }
+        }
+        if (!vectorRequired)
+            return null;
+        ColumnVector[] vectors = new ColumnVector[map.getValueType().getColumnCount()];
+        int[] columnIndexes = parameters.allColumns ? null : parameters.columnIndexes;
+        if (columnIndexes == null) {
+            for (int col = 0; col < vectors.length; col++) {
+                if ((vectors[col] = readColumnVector(p, col, end)) == null)
+                    return null;
+            }
+        } else {
+            for (int col : columnIndexes) {
+                if (col >= vectors.length || (vectors[col] = readColumnVector(p, col, end)) == null)
+                    return null;
+            }
+        }
+        pos.index = end;
+        key = (K) p.getKey(end - 1);
+        value = null;
+        return new ColumnBatch(p, start, end, vectors);
+    }
+
+    // page在读列page的过程中被修改了，得到的列向量跟记录数不一样
+    private static ColumnVector readColumnVector(Page p, int columnIndex, int rowCount) {
+        ColumnVector v = p.getColumnVector(columnIndex);
+        return v != null && v.size() == rowCount ? v : null;
+    }
+
     private boolean hasNext() {
         while (pos != null) {
             if (pos.index < pos.page.getKeyCount()) {
@@ -7,6 +7,7 @@ package org.lealone.storage.aose.btree;
 
 import java.io.InputStream;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.Map;
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.ReentrantLock;
@@ -23,6 +24,7 @@ import org.lealone.storage.StorageSetting;
 import org.lealone.storage.aose.AOStorage;
 import org.lealone.storage.aose.btree.chunk.Chunk;
 import org.lealone.storage.aose.btree.chunk.ChunkManager;
+import org.lealone.storage.aose.btree.page.BulkLoader;
 import org.lealone.storage.aose.btree.page.LeafPage;
 import org.lealone.storage.aose.btree.page.Page;
 import org.lealone.storage.aose.btree.page.PageOperations.Append;
@@ -59,6 +61,9 @@ public class BTreeMap<K, V> extends StorageMapBase<K, V> {
     // 只允许通过成员方法访问这个特殊的字段
     private final AtomicLong size = new AtomicLong(0);
     private final ReentrantLock lock = new ReentrantLock();
+    // bulkLoad期间有写操作时不能再替换root page
+    private volatile boolean bulkLoading;
+    private volatile boolean writtenDuringBulkLoad;
 
     private final boolean readOnly;
     private final boolean inMemory;
@@ -374,6 +379,11 @@ public class BTreeMap<K, V> extends StorageMapBase<K, V> {
         }
     }
 
+    // 后台整理chunk时也要加锁，避免和save、gc并发执行
+    ReentrantLock getLock() {
+        return lock;
+    }
+
     private void closeMap() {
         storage.closeMap(name);
     }
@@ -486,6 +496,11 @@ public class BTreeMap<K, V> extends StorageMapBase<K, V> {
         return btreeStorage.getMemorySpaceUsed();
     }
 
+    @Override
+    public long getSavedBytes() {
+        return inMemory ? 0 : btreeStorage.getSavedBytes();
+    }
+
     @Override
     public boolean hasUnsavedChanges() {
         return getRootPage().getPos() == 0;
@@ -541,6 +556,57 @@ public class BTreeMap<K, V> extends StorageMapBase<K, V> {
         }
     }
 
+    // 其他线程可以同时写这个map，只要从开始加载到替换root page期间有写操作(包括删除不存在的key)就放弃加载，
+    // 调用者要在加载前先让新的写操作能写到这个map中，然后在entries第一次被访问时再读取数据
+    @Override
+    public boolean bulkLoad(Iterator<? extends Map.Entry<K, V>> entries) {
+        lock.lock();
+        try {
+            checkWrite();
+            writtenDuringBulkLoad = false;
+            bulkLoading = true;
+            if (!isEmpty())
+                return false;
+            BulkLoader loader = new BulkLoader(this);
+            Page root = loader.load(entries);
+            if (root == null)
+                return !writtenDuringBulkLoad;
+            // 空map的写操作都要先锁住root page，锁住之后检查和替换root page期间就不会有写操作了，
+            // 等待的写操作会发现root page变了然后重试
+            PageOperationHandler poHandler = getPageOperationHandler(false);
+            while (!rootRef.tryLock(poHandler, false))
+                Thread.yield();
+            try {
+                if (writtenDuringBulkLoad || !isEmpty())
+                    return false;
+                // 旧的root page是空的leaf page，如果已经保存过了要标记为删除
+                Page oldRoot = getRootPage();
+                oldRoot.markDirty();
+                BTreeGC bgc = btreeStorage.getBTreeGC();
+                bgc.addUsedMemory(-rootRef.getPageInfo().getTotalMemory());
+                bgc.addUsedMemory(loader.getUsedMemory());
+                newRoot(root);
+                size.set(loader.getCount());
+                setMaxKey(lastKey());
+            } finally {
+                rootRef.unlock();
+            }
+            // 所有的page都写到一个新的chunk
+            if (!inMemory)
+                btreeStorage.executeSave(false);
+            return true;
+        } finally {
+            bulkLoading = false;
+            lock.unlock();
+        }
+    }
+
+    // 写操作加锁成功后调用
+    public void beforeWrite() {
+        if (bulkLoading)
+            writtenDuringBulkLoad = true;
+    }
+
     //////////////////// 以下是同步和异步API的实现 ////////////////////////////////
 
     @Override
@@ -6,22 +6,33 @@
 package org.lealone.storage.aose.btree;
 
 import java.io.File;
+import java.io.IOException;
 import java.io.InputStream;
 import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.locks.ReentrantLock;
 
 import org.lealone.common.compress.CompressDeflate;
-import org.lealone.common.compress.CompressLZF;
+import org.lealone.common.compress.CompressTool;
 import org.lealone.common.compress.Compressor;
+import org.lealone.common.compress.DictionaryTrainer;
 import org.lealone.common.exceptions.DbException;
 import org.lealone.common.util.DataUtils;
 import org.lealone.db.Constants;
 import org.lealone.db.DataBuffer;
 import org.lealone.db.DbSetting;
+import org.lealone.db.api.ErrorCode;
 import org.lealone.storage.StorageSetting;
+import org.lealone.storage.aose.AOStorage;
 import org.lealone.storage.aose.btree.chunk.Chunk;
+import org.lealone.storage.aose.btree.chunk.ChunkCompactionService;
 import org.lealone.storage.aose.btree.chunk.ChunkCompactor;
 import org.lealone.storage.aose.btree.chunk.ChunkManager;
 import org.lealone.storage.aose.btree.page.Page;
+import org.lealone.storage.aose.btree.page.PageCache;
 import org.lealone.storage.aose.btree.page.PageInfo;
 import org.lealone.storage.aose.btree.page.PageUtils;
 import org.lealone.storage.fs.FilePath;
@@ -42,19 +53,38 @@ public class BTreeStorage {
     private final int pageSize;
     private final int minFillRate;
     private final int maxChunkSize;
+    private final boolean mmapRead;
 
     private final BTreeGC bgc;
 
+    // 所有map共享的page缓存，为null时不使用
+    private final PageCache pageCache;
+    private final ChunkCompactionService compactionService;
+    private final PageCache.Stats pageCacheStats = new PageCache.Stats();
+
+    private static final String DICTIONARY_FILE_NAME = "compress.dict";
+    private static final int MAX_DICTIONARY_SIZE = 8 * 1024;
+    private static final int MAX_DICTIONARY_SAMPLE_BYTES = 128 * 1024;
+
     /**
-     * The compression level for new pages (0 for disabled, 1 for fast, 2 for high).
+     * The compression level for new pages (0 for disabled, 1 for fast, 2 for high),
+     * or the id of the compression algorithm registered in CompressTool, for example 3 for LZ4.
      * Even if disabled, the storage may contain (old) compressed pages.
      */
     private final int compressionLevel;
-    private Compressor compressorFast;
-    private Compressor compressorHigh;
+    // 下标是压缩算法的id，读page时按page中记录的压缩算法解压
+    private final Compressor[] compressors = new Compressor[128];
+
+    // 使用预置字典的Deflate，字典训练好之后保存在map的目录中，不会再变
+    private final boolean useDictionary;
+    private volatile CompressDeflate dictionaryCompressor;
+    private DictionaryTrainer dictionaryTrainer;
 
     private boolean closed;
 
+    // 调用save时写到chunk文件的总字节数，不包括后台重写chunk的
+    private volatile long savedBytes;
+
     /**
      * Create and open the storage.
      * 
@@ -82,18 +112,34 @@ public class BTreeStorage {
         if (maxChunkSize > Chunk.MAX_SIZE)
             maxChunkSize = Chunk.MAX_SIZE;
         this.maxChunkSize = maxChunkSize;
+        mmapRead = Boolean.parseBoolean(String.valueOf(map.getConfig(StorageSetting.MMAP_READ.name())));
 
         chunkManager = new ChunkManager(this);
         if (map.isInMemory()) {
             mapBaseDir = null;
+            pageCache = null;
+            compactionService = null;
+            useDictionary = false;
             return;
         }
+        pageCache = ((AOStorage) map.getStorage()).getPageCache();
+        compactionService = ((AOStorage) map.getStorage()).getChunkCompactionService();
         mapBaseDir = map.getStorage().getStoragePath() + File.separator + map.getName();
         if (!FileUtils.exists(mapBaseDir))
             FileUtils.createDirectories(mapBaseDir);
         else {
             chunkManager.init(mapBaseDir);
         }
+        // 就算不再使用字典了，也要用它读老的page
+        readDictionary();
+        // 字典是明文保存的，加密的map不使用字典
+        useDictionary = compressionLevel == Compressor.DEFLATE
+                && Boolean.parseBoolean(
+                        String.valueOf(map.getConfig(StorageSetting.COMPRESS_DICTIONARY.name())))
+                && map.getConfig(StorageSetting.ENCRYPTION_KEY.name()) == null
+                && map.getConfig("encryptionKey") == null;
+        if (useDictionary && dictionaryCompressor == null)
+            dictionaryTrainer = new DictionaryTrainer(MAX_DICTIONARY_SAMPLE_BYTES);
     }
 
     private int getIntValue(String key, int defaultValue) {
@@ -122,14 +168,20 @@ public class BTreeStorage {
             return Compressor.NO;
         else {
             String str = value.toString().trim().toUpperCase();
-            if (str.equals("NO"))
+            if (str.isEmpty() || str.equals("FALSE"))
                 return Compressor.NO;
-            else if (str.equals("LZF"))
+            else if (str.equals("TRUE"))
                 return Compressor.LZF;
-            else if (str.equals("DEFLATE"))
-                return Compressor.DEFLATE;
-            else
-                return Integer.parseInt(str);
+            else if (Character.isDigit(str.charAt(0))) {
+                int algorithm = Integer.parseInt(str);
+                // page中只用7位记录压缩算法的id，并且必须是CompressTool中注册过的
+                if (algorithm >= compressors.length)
+                    throw DbException.get(ErrorCode.UNSUPPORTED_COMPRESSION_ALGORITHM_1, str);
+                if (algorithm > Compressor.DEFLATE)
+                    CompressTool.getCompressor(algorithm);
+                return algorithm;
+            } else
+                return CompressTool.getCompressAlgorithm(str);
         }
     }
 
@@ -160,10 +212,55 @@ public class BTreeStorage {
         map.markDirty(key);
     }
 
+    /**
+     * 删除不再使用的chunk，然后返回需要重写的chunk，由后台的ChunkCompactionService调用
+     */
+    public List<Chunk> collectRewritableChunks() {
+        ReentrantLock lock = map.getLock();
+        lock.lock();
+        try {
+            synchronized (this) {
+                if (closed)
+                    return Collections.emptyList();
+                return new ChunkCompactor(this, chunkManager).collectRewritableChunks();
+            }
+        } catch (IllegalStateException e) {
+            throw panic(e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 重写这些chunk中未被删除的page，由后台的ChunkCompactionService调用
+     *
+     * @return 重写的字节数
+     */
+    public long rewriteChunks(List<Chunk> chunks) {
+        ReentrantLock lock = map.getLock();
+        lock.lock();
+        try {
+            synchronized (this) {
+                if (closed || map.isReadOnly())
+                    return 0;
+                return new ChunkCompactor(this, chunkManager).rewrite(chunks);
+            }
+        } catch (IllegalStateException e) {
+            throw panic(e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
     public PageInfo readPage(long pos) {
         if (pos == 0) {
             throw DataUtils.newIllegalStateException(DataUtils.ERROR_FILE_CORRUPT, "Position 0");
         }
+        if (pageCache != null) {
+            ByteBuffer buff = pageCache.get(pageCacheStats, pos);
+            if (buff != null)
+                return readPage(pos, buff, buff.limit());
+        }
         Chunk c = chunkManager.getChunk(pos);
         long filePos = Chunk.getFilePos(PageUtils.getPageOffset(pos));
         int pageLength = c.getPageLength(pos);
@@ -171,8 +268,17 @@ public class BTreeStorage {
             throw DataUtils.newIllegalStateException(DataUtils.ERROR_FILE_CORRUPT,
                     "Illegal page length {0} reading at {1} ", pageLength, filePos);
         }
+        if (mmapRead && chunkManager.isSealed(c)) {
+            ByteBuffer buff = c.readMappedPage(filePos, pageLength);
+            if (buff != null)
+                return readPage(pos, buff, pageLength);
+        }
         ByteBuffer buff = c.fileStorage.readFully(filePos, pageLength);
-        return readPage(pos, buff, pageLength);
+        PageInfo pInfo = readPage(pos, buff, pageLength);
+        // 先解析成功再放入缓存
+        if (pageCache != null)
+            pageCache.put(pageCacheStats, pos, buff);
+        return pInfo;
     }
 
     public PageInfo readPage(long pos, ByteBuffer buff, int pageLength) {
@@ -191,6 +297,26 @@ public class BTreeStorage {
         return pInfo;
     }
 
+    public PageCache.Stats getPageCacheStats() {
+        return pageCacheStats;
+    }
+
+    // page被删除后就不会再读了，及早从共享缓存中清除
+    public void removeCachedPage(long pos) {
+        if (pageCache != null)
+            pageCache.remove(pageCacheStats, pos);
+    }
+
+    public void removeCachedChunk(int chunkId) {
+        if (pageCache != null)
+            pageCache.removeChunk(pageCacheStats, chunkId);
+    }
+
+    private void removeCachedPages() {
+        if (pageCache != null)
+            pageCache.removeMap(pageCacheStats);
+    }
+
     public BTreeGC getBTreeGC() {
         return bgc;
     }
@@ -200,17 +326,91 @@ public class BTreeStorage {
     }
 
     public Compressor getCompressorFast() {
-        if (compressorFast == null) {
-            compressorFast = new CompressLZF();
-        }
-        return compressorFast;
+        return getCompressor(Compressor.LZF);
     }
 
     public Compressor getCompressorHigh() {
-        if (compressorHigh == null) {
-            compressorHigh = new CompressDeflate();
+        return getCompressor(Compressor.DEFLATE);
+    }
+
+    public Compressor getCompressor(int algorithm) {
+        // 压缩算法的id是从page中读出来的，不合法说明文件已经损坏
+        if (algorithm <= Compressor.NO || algorithm >= compressors.length) {
+            throw DataUtils.newIllegalStateException(DataUtils.ERROR_FILE_CORRUPT,
+                    "Invalid compression algorithm {0}", algorithm);
         }
-        return compressorHigh;
+        Compressor compressor = compressors[algorithm];
+        if (compressor == null) {
+            try {
+                compressor = CompressTool.getCompressor(algorithm);
+            } catch (DbException e) {
+                throw DataUtils.newIllegalStateException(DataUtils.ERROR_FILE_CORRUPT,
+                        "Unknown compression algorithm {0}", algorithm, e);
+            }
+            compressors[algorithm] = compressor;
+        }
+        return compressor;
+    }
+
+    public Compressor getDictionaryCompressor() {
+        CompressDeflate compressor = dictionaryCompressor;
+        if (compressor == null) {
+            throw DataUtils.newIllegalStateException(DataUtils.ERROR_FILE_CORRUPT,
+                    "Compression dictionary {0} not found", DICTIONARY_FILE_NAME);
+        }
+        return compressor;
+    }
+
+    /**
+     * 返回写page时使用的带字典的压缩器，如果字典还没有训练好，就把这个page当成样本，返回null
+     */
+    public Compressor getDictionaryCompressor(byte[] page, int len) {
+        if (!useDictionary)
+            return null;
+        if (dictionaryCompressor == null && dictionaryTrainer != null
+                && dictionaryTrainer.addSample(page, len)) {
+            byte[] dictionary = dictionaryTrainer.train(MAX_DICTIONARY_SIZE);
+            dictionaryTrainer = null;
+            if (dictionary.length > 0) {
+                writeDictionary(dictionary);
+                dictionaryCompressor = createDictionaryCompressor(dictionary);
+            }
+        }
+        return dictionaryCompressor;
+    }
+
+    private static CompressDeflate createDictionaryCompressor(byte[] dictionary) {
+        CompressDeflate compressor = new CompressDeflate();
+        compressor.setDictionary(dictionary);
+        return compressor;
+    }
+
+    private void readDictionary() {
+        String fileName = mapBaseDir + File.separator + DICTIONARY_FILE_NAME;
+        if (!FileUtils.exists(fileName))
+            return;
+        try (FileChannel channel = FileUtils.open(fileName, "r")) {
+            ByteBuffer buff = ByteBuffer.allocate((int) channel.size());
+            FileUtils.readFully(channel, buff);
+            dictionaryCompressor = createDictionaryCompressor(buff.array());
+        } catch (IOException e) {
+            throw DataUtils.newIllegalStateException(DataUtils.ERROR_READING_FAILED,
+                    "Failed to read {0}", fileName, e);
+        }
+    }
+
+    // 先写到临时文件再改名，使用字典的page写到chunk文件之前字典一定已经保存好了
+    private void writeDictionary(byte[] dictionary) {
+        String fileName = mapBaseDir + File.separator + DICTIONARY_FILE_NAME;
+        String tempFileName = fileName + ".tmp";
+        try (FileChannel channel = FileUtils.open(tempFileName, "rw")) {
+            channel.truncate(0);
+            FileUtils.writeFully(channel, ByteBuffer.wrap(dictionary));
+            channel.force(true);
+        } catch (IOException e) {
+            throw panic(DataUtils.ERROR_WRITING_FAILED, "Failed to write {0}", fileName, e);
+        }
+        FileUtils.moveAtomicReplace(tempFileName, fileName);
     }
 
     public int getPageSize() {
@@ -247,11 +447,16 @@ public class BTreeStorage {
         return bgc.getUsedMemory();
     }
 
+    public long getSavedBytes() {
+        return savedBytes;
+    }
+
     synchronized void clear() {
         if (map.isInMemory())
             return;
         bgc.close();
         chunkManager.close();
+        removeCachedPages();
     }
 
     /**
@@ -298,6 +503,9 @@ public class BTreeStorage {
             closed = true;
         } finally {
             bgc.close();
+            removeCachedPages();
+            if (compactionService != null)
+                compactionService.remove(this);
         }
     }
 
@@ -328,9 +536,10 @@ public class BTreeStorage {
                     "This storage is read-only");
         }
         try {
-            executeSave(true, dirtyMemory);
-            if (compact)
-                new ChunkCompactor(this, chunkManager).executeCompact();
+            savedBytes += executeSave(true, dirtyMemory);
+            // 由后台线程重写chunk，不阻塞checkpoint
+            if (compact && compactionService != null)
+                compactionService.schedule(this);
         } catch (IllegalStateException e) {
             throw panic(e);
         }
@@ -340,7 +549,8 @@ public class BTreeStorage {
         executeSave(appendModeEnabled, collectDirtyMemory(null));
     }
 
-    private synchronized void executeSave(boolean appendModeEnabled, int dirtyMemory) {
+    // 返回写到chunk文件的字节数
+    private synchronized long executeSave(boolean appendModeEnabled, int dirtyMemory) {
         DataBuffer chunkBody = DataBuffer.getOrCreate(dirtyMemory);
         boolean appendMode = false;
         try {
@@ -355,15 +565,19 @@ public class BTreeStorage {
                 c.fileStorage = getFileStorage(c.fileName);
             }
             c.mapSize = map.size();
+            long writeBytes = c.fileStorage.getWriteBytes();
 
+            // 保存期间还会有page被标记删除，它们的新page不一定在这次保存的范围内，所以先取快照
+            HashSet<Long> removedPages = new HashSet<>(chunkManager.getRemovedPages());
             PageInfo pInfo = map.getRootPageRef().getPageInfo();
             long pos = pInfo.page.writeUnsavedRecursive(pInfo, c, chunkBody);
             c.rootPagePos = pos;
-            c.write(chunkBody, appendMode, chunkManager);
+            c.write(chunkBody, appendMode, removedPages);
             if (!appendMode) {
                 chunkManager.addChunk(c);
                 chunkManager.setLastChunk(c);
             }
+            return c.fileStorage.getWriteBytes() - writeBytes;
         } catch (IllegalStateException e) {
             throw panic(e);
         } finally {
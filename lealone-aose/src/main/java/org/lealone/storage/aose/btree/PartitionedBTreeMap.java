@@ -0,0 +1,1277 @@
+/*
+ * Copyright Lealone Database Group.
+ * Licensed under the Server Side Public License, v 1.
+ * Initial Developer: zhh
+ */
+package org.lealone.storage.aose.btree;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.StampedLock;
+import java.util.function.Predicate;
+
+import org.lealone.common.util.DataUtils;
+import org.lealone.db.DataBuffer;
+import org.lealone.db.async.AsyncHandler;
+import org.lealone.db.async.AsyncResult;
+import org.lealone.db.session.Session;
+import org.lealone.db.value.ValueLong;
+import org.lealone.storage.CursorParameters;
+import org.lealone.storage.StorageMapBase;
+import org.lealone.storage.StorageMapCursor;
+import org.lealone.storage.StorageSetting;
+import org.lealone.storage.aose.AOStorage;
+import org.lealone.storage.aose.btree.page.Page;
+import org.lealone.storage.fs.FileUtils;
+import org.lealone.storage.page.ColumnBatch;
+import org.lealone.storage.page.ColumnStatsFilter;
+import org.lealone.storage.page.IPage;
+import org.lealone.storage.type.StorageDataType;
+import org.lealone.transaction.TransactionEngine;
+
+/**
+ * 按key的范围分成多个分区的BTreeMap.
+ *
+ * <p>
+ * 每个分区都是一个独立的BTreeMap，有自己的root page和chunk文件，都放在这个map的目录下，
+ * 所以不同分区的写操作不会竞争同一棵btree的page，checkpoint和GC也是按分区进行的。
+ * 分区的边界保存在map目录中的partitions文件里。
+ *
+ * <p>
+ * 每次save之后，记录数超过maxPartitionSize的分区从中间切成两个，
+ * 相邻两个分区的记录数加起来不到maxPartitionSize的四分之一时合并成一个。
+ * 切分和合并时先在不加锁的情况下把老分区的记录复制到新的分区，这期间写过的key会记录下来，
+ * 然后拿到老分区的写锁，只把这些key重放到新的分区中就能替换老的分区，所以写操作只需要等待很短的时间。
+ * 读操作和游标会继续读老的分区，老的分区等到没有读操作和游标使用它时才删除。
+ *
+ * <p>
+ * 每个分区也可以单独扫描，见{@link #partitionCursors(CursorParameters)}，不同分区的游标可以交给不同的线程并行执行。
+ *
+ * @param <K> the key class
+ * @param <V> the value class
+ */
+public class PartitionedBTreeMap<K, V> extends StorageMapBase<K, V> {
+
+    public static final String MAP_TYPE = "PartitionedBTreeMap";
+
+    private static final String PARTITIONS_FILE_NAME = "partitions";
+    private static final String PARTITION_NAME_PREFIX = "p";
+    private static final long WRITE_LOCK_TIMEOUT_MILLIS = 10;
+
+    private static class Partition<K, V> {
+
+        final int id;
+        final K firstKey; // 分区中所有的key都大于等于它，第一个分区是null
+        final BTreeMap<K, V> map;
+        final StampedLock lock = new StampedLock();
+        // 写操作在完成时才释放读锁，可能不是同一个线程，所以不能用ReentrantReadWriteLock
+        final Lock readLock = lock.asReadLock();
+        volatile boolean retired;
+        // 切分或合并的线程在等待写锁，新的写操作要先让它拿到写锁
+        volatile boolean writeLockWaiting;
+        // 正在使用这个分区的读操作和游标的个数，变成-1表示分区已经删除了
+        final AtomicInteger refCount = new AtomicInteger();
+        // 切分或合并期间写过的key，不为null时写操作要把key加进来
+        volatile Set<Object> changedKeys;
+
+        Partition(int id, K firstKey, BTreeMap<K, V> map) {
+            this.id = id;
+            this.firstKey = firstKey;
+            this.map = map;
+        }
+
+        boolean acquire() {
+            while (true) {
+                int count = refCount.get();
+                if (count < 0)
+                    return false;
+                if (refCount.compareAndSet(count, count + 1))
+                    return true;
+            }
+        }
+
+        void release() {
+            refCount.decrementAndGet();
+        }
+    }
+
+    private final boolean inMemory;
+    private final Map<String, Object> config;
+    private final String mapBaseDir;
+    private final long maxPartitionSize;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final ArrayList<Partition<K, V>> retiredPartitions = new ArrayList<>();
+
+    // 按firstKey排好序，只会整体替换
+    private volatile List<Partition<K, V>> partitions;
+    private int nextPartitionId;
+    private volatile boolean closed;
+    private volatile long savedBytes;
+
+    public PartitionedBTreeMap(String name, StorageDataType keyType, StorageDataType valueType,
+            Map<String, Object> config, AOStorage aoStorage) {
+        super(name, keyType, valueType, aoStorage);
+        DataUtils.checkNotNull(config, "config");
+        inMemory = config.containsKey(StorageSetting.IN_MEMORY.name());
+        this.config = config;
+        // 默认每个分区最多100万条记录
+        Object size = config.get(StorageSetting.MAX_PARTITION_SIZE.name());
+        maxPartitionSize = size == null ? 1000000
+                : Math.max(2, Long.parseLong(size.toString().trim()));
+        if (inMemory) {
+            mapBaseDir = null;
+            partitions = Collections.singletonList(new Partition<>(0, null, openPartitionMap(0)));
+            nextPartitionId = 1;
+        } else {
+            mapBaseDir = getMapBaseDir(aoStorage, name);
+            if (FileUtils.exists(mapBaseDir + File.separator + PARTITIONS_FILE_NAME)) {
+                readPartitions();
+            } else {
+                if (!FileUtils.exists(mapBaseDir))
+                    FileUtils.createDirectories(mapBaseDir);
+                List<Partition<K, V>> list = Collections
+                        .singletonList(new Partition<>(0, null, openPartitionMap(0)));
+                nextPartitionId = 1;
+                writePartitions(list);
+                partitions = list;
+            }
+            deleteUnusedPartitions();
+        }
+        setMaxKey(lastKey());
+    }
+
+    private static String getMapBaseDir(AOStorage aoStorage, String name) {
+        return aoStorage.getStoragePath() + File.separator + name;
+    }
+
+    /**
+     * 判断map是不是已经按分区保存了，打开map时没有指定map类型也能用正确的方式打开
+     *
+     * @param aoStorage the storage
+     * @param name the map name
+     * @return true if the map is a partitioned map
+     */
+    public static boolean isPartitioned(AOStorage aoStorage, String name) {
+        if (aoStorage.getStoragePath() == null)
+            return false;
+        return FileUtils
+                .exists(getMapBaseDir(aoStorage, name) + File.separator + PARTITIONS_FILE_NAME);
+    }
+
+    private String getPartitionMapName(int id) {
+        return name + File.separator + PARTITION_NAME_PREFIX + id;
+    }
+
+    private BTreeMap<K, V> openPartitionMap(int id) {
+        return new BTreeMap<>(getPartitionMapName(id), keyType, valueType, config,
+                (AOStorage) storage);
+    }
+
+    private void readPartitions() {
+        String fileName = mapBaseDir + File.separator + PARTITIONS_FILE_NAME;
+        ByteBuffer buff;
+        try (FileChannel channel = FileUtils.open(fileName, "r")) {
+            buff = ByteBuffer.allocate((int) channel.size());
+            FileUtils.readFully(channel, buff);
+            buff.flip();
+        } catch (IOException e) {
+            throw DataUtils.newIllegalStateException(DataUtils.ERROR_READING_FAILED,
+                    "Failed to read {0}", fileName, e);
+        }
+        nextPartitionId = buff.getInt();
+        int count = buff.getInt();
+        ArrayList<Partition<K, V>> list = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            int id = buff.getInt();
+            @SuppressWarnings("unchecked")
+            K firstKey = i == 0 ? null : (K) keyType.read(buff);
+            list.add(new Partition<>(id, firstKey, openPartitionMap(id)));
+        }
+        partitions = Collections.unmodifiableList(list);
+    }
+
+    // 先写到临时文件再改名，切分和合并的过程中出错时，老的分区文件还是完整的
+    private void writePartitions(List<Partition<K, V>> list) {
+        if (inMemory)
+            return;
+        DataBuffer buff = DataBuffer.create(null, 256, false);
+        buff.putInt(nextPartitionId);
+        buff.putInt(list.size());
+        for (int i = 0, size = list.size(); i < size; i++) {
+            Partition<K, V> p = list.get(i);
+            buff.putInt(p.id);
+            if (i > 0)
+                keyType.write(buff, p.firstKey);
+        }
+        String fileName = mapBaseDir + File.separator + PARTITIONS_FILE_NAME;
+        String tempFileName = fileName + ".tmp";
+        try (FileChannel channel = FileUtils.open(tempFileName, "rw")) {
+            channel.truncate(0);
+            FileUtils.writeFully(channel, buff.getAndFlipBuffer());
+            channel.force(true);
+        } catch (IOException e) {
+            throw DataUtils.newIllegalStateException(DataUtils.ERROR_WRITING_FAILED,
+                    "Failed to write {0}", fileName, e);
+        }
+        FileUtils.moveAtomicReplace(tempFileName, fileName);
+    }
+
+    // 切分或合并时没有写完partitions文件就退出了，那些不在partitions文件中的分区目录可以删除
+    private void deleteUnusedPartitions() {
+        HashSet<String> used = new HashSet<>();
+        for (Partition<K, V> p : partitions)
+            used.add(PARTITION_NAME_PREFIX + p.id);
+        for (String path : FileUtils.newDirectoryStream(mapBaseDir)) {
+            String fileName = FileUtils.getName(path);
+            if (fileName.startsWith(PARTITION_NAME_PREFIX) && FileUtils.isDirectory(path)
+                    && !used.contains(fileName)) {
+                FileUtils.deleteRecursive(path, true);
+            }
+        }
+    }
+
+    public int getPartitionCount() {
+        return partitions.size();
+    }
+
+    private static <K, V> int getPartitionIndex(List<Partition<K, V>> list, Object key,
+            StorageDataType keyType) {
+        if (key == null)
+            return 0;
+        // 找到最后一个firstKey <= key的分区
+        int low = 1, high = list.size() - 1, index = 0;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            if (keyType.compare(list.get(mid).firstKey, key) <= 0) {
+                index = mid;
+                low = mid + 1;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return index;
+    }
+
+    private Partition<K, V> getPartition(Object key) {
+        List<Partition<K, V>> list = partitions;
+        return list.get(getPartitionIndex(list, key, keyType));
+    }
+
+    // 已经删除的分区肯定不在最新的分区列表中了，重新找一次就能找到替换它的分区
+    private Partition<K, V> acquirePartition(Object key) {
+        while (true) {
+            Partition<K, V> p = getPartition(key);
+            if (p.acquire())
+                return p;
+        }
+    }
+
+    // 拿到当前所有分区的引用，用完之后要调用releasePartitions
+    private List<Partition<K, V>> acquirePartitions() {
+        while (true) {
+            List<Partition<K, V>> list = partitions;
+            int i = 0, size = list.size();
+            while (i < size && list.get(i).acquire())
+                i++;
+            if (i == size)
+                return list;
+            while (--i >= 0)
+                list.get(i).release();
+        }
+    }
+
+    private static void releasePartitions(List<? extends Partition<?, ?>> list) {
+        for (Partition<?, ?> p : list)
+            p.release();
+    }
+
+    // 拿到key所在分区的读锁，分区正在切分或合并时最多等待重放写过的key的时间，完成后到新的分区中执行写操作
+    private Partition<K, V> lockPartition(Object key) {
+        while (true) {
+            Partition<K, V> p = getPartition(key);
+            p.readLock.lock();
+            if (!p.retired && !p.writeLockWaiting) {
+                Set<Object> keys = p.changedKeys;
+                if (keys != null && key != null)
+                    keys.add(key);
+                return p;
+            }
+            p.readLock.unlock();
+            if (p.writeLockWaiting)
+                Thread.yield();
+        }
+    }
+
+    private static <R> AsyncHandler<AsyncResult<R>> unlockOnDone(Partition<?, ?> p,
+            AsyncHandler<AsyncResult<R>> handler) {
+        return ar -> {
+            p.readLock.unlock();
+            handler.handle(ar);
+        };
+    }
+
+    @Override
+    public V get(K key) {
+        Partition<K, V> p = acquirePartition(key);
+        try {
+            return p.map.get(key);
+        } finally {
+            p.release();
+        }
+    }
+
+    @Override
+    public Object[] getObjects(K key, int[] columnIndexes) {
+        Partition<K, V> p = acquirePartition(key);
+        try {
+            return p.map.getObjects(key, columnIndexes);
+        } finally {
+            p.release();
+        }
+    }
+
+    @Override
+    public K firstKey() {
+        List<Partition<K, V>> list = acquirePartitions();
+        try {
+            for (Partition<K, V> p : list) {
+                K k = p.map.firstKey();
+                if (k != null)
+                    return k;
+            }
+            return null;
+        } finally {
+            releasePartitions(list);
+        }
+    }
+
+    @Override
+    public K lastKey() {
+        List<Partition<K, V>> list = acquirePartitions();
+        try {
+            for (int i = list.size() - 1; i >= 0; i--) {
+                K k = list.get(i).map.lastKey();
+                if (k != null)
+                    return k;
+            }
+            return null;
+        } finally {
+            releasePartitions(list);
+        }
+    }
+
+    @Override
+    public K lowerKey(K key) {
+        return getMinMax(key, true, true);
+    }
+
+    @Override
+    public K floorKey(K key) {
+        return getMinMax(key, true, false);
+    }
+
+    @Override
+    public K higherKey(K key) {
+        return getMinMax(key, false, true);
+    }
+
+    @Override
+    public K ceilingKey(K key) {
+        return getMinMax(key, false, false);
+    }
+
+    // 先在key所在的分区中找，找不到时再找前面分区的lastKey或后面分区的firstKey
+    private K getMinMax(K key, boolean min, boolean excluding) {
+        List<Partition<K, V>> list = acquirePartitions();
+        try {
+            return getMinMax(list, key, min, excluding);
+        } finally {
+            releasePartitions(list);
+        }
+    }
+
+    private K getMinMax(List<Partition<K, V>> list, K key, boolean min, boolean excluding) {
+        int index = getPartitionIndex(list, key, keyType);
+        BTreeMap<K, V> map = list.get(index).map;
+        K k;
+        if (min)
+            k = excluding ? map.lowerKey(key) : map.floorKey(key);
+        else
+            k = excluding ? map.higherKey(key) : map.ceilingKey(key);
+        if (k != null)
+            return k;
+        if (min) {
+            for (int i = index - 1; i >= 0; i--) {
+                if ((k = list.get(i).map.lastKey()) != null)
+                    return k;
+            }
+        } else {
+            for (int i = index + 1, size = list.size(); i < size; i++) {
+                if ((k = list.get(i).map.firstKey()) != null)
+                    return k;
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public boolean areValuesEqual(Object a, Object b) {
+        if (a == b) {
+            return true;
+        } else if (a == null || b == null) {
+            return false;
+        }
+        return valueType.compare(a, b) == 0;
+    }
+
+    @Override
+    public long size() {
+        List<Partition<K, V>> list = acquirePartitions();
+        try {
+            long size = 0;
+            for (Partition<K, V> p : list)
+                size += p.map.size();
+            return size;
+        } finally {
+            releasePartitions(list);
+        }
+    }
+
+    @Override
+    public void decrementSize() {
+        // 不知道是哪个分区，分区的size由BTreeMap自己维护
+    }
+
+    @Override
+    public boolean containsKey(K key) {
+        return get(key) != null;
+    }
+
+    @Override
+    public boolean isEmpty() {
+        List<Partition<K, V>> list = acquirePartitions();
+        try {
+            return isEmpty(list);
+        } finally {
+            releasePartitions(list);
+        }
+    }
+
+    private static boolean isEmpty(List<? extends Partition<?, ?>> list) {
+        for (Partition<?, ?> p : list) {
+            if (!p.map.isEmpty())
+                return false;
+        }
+        return true;
+    }
+
+    @Override
+    public boolean isInMemory() {
+        return inMemory;
+    }
+
+    @Override
+    public StorageMapCursor<K, V> cursor(CursorParameters<K> parameters) {
+        return new PartitionedCursor(parameters);
+    }
+
+    /**
+     * 为跟[from, to]有重叠的每个分区各创建一个游标，按key的顺序返回，
+     * 每个游标只返回自己分区中的记录，可以交给不同的线程并行扫描。
+     * 游标在遍历完或调用close()之前，它所在的分区就算已经被切分或合并了也不会删除。
+     *
+     * @param parameters the cursor parameters
+     * @return the cursors of the partitions
+     */
+    public List<StorageMapCursor<K, V>> partitionCursors(CursorParameters<K> parameters) {
+        while (true) {
+            List<Partition<K, V>> list = partitions;
+            int start = getPartitionIndex(list, parameters.from, keyType);
+            int end = parameters.to == null ? list.size() - 1
+                    : getPartitionIndex(list, parameters.to, keyType);
+            ArrayList<StorageMapCursor<K, V>> cursors = new ArrayList<>(end - start + 1);
+            for (int i = start; i <= end; i++) {
+                Partition<K, V> p = list.get(i);
+                if (!p.acquire())
+                    break;
+                cursors.add(new PartitionCursor(p, parameters));
+            }
+            if (cursors.size() == end - start + 1)
+                return cursors;
+            for (StorageMapCursor<K, V> c : cursors)
+                c.close();
+        }
+    }
+
+    // 不用加分区的写锁，清空之后的分区在save时会合并
+    @Override
+    public void clear() {
+        lock.lock();
+        try {
+            for (Partition<K, V> p : partitions)
+                p.map.clear();
+            maxKey.set(0);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void remove() {
+        lock.lock();
+        try {
+            for (Partition<K, V> p : partitions)
+                p.map.remove();
+            removeRetiredPartitions(true);
+            closed = true;
+            storage.closeMap(name);
+            if (!inMemory)
+                FileUtils.deleteRecursive(mapBaseDir, true);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public boolean isClosed() {
+        return closed;
+    }
+
+    @Override
+    public void close() {
+        lock.lock();
+        try {
+            if (closed)
+                return;
+            closed = true;
+            storage.closeMap(name);
+            for (Partition<K, V> p : partitions)
+                p.map.close();
+            for (Partition<K, V> p : retiredPartitions)
+                p.map.close();
+            retiredPartitions.clear();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void save() {
+        save(0);
+    }
+
+    // 每个分区按自己的脏页大小保存
+    @Override
+    public void save(long dirtyMemory) {
+        if (inMemory)
+            return;
+        lock.lock();
+        try {
+            if (closed)
+                return;
+            // 分区会合并和切分，所以每次保存时累加各个分区写入的字节数
+            for (Partition<K, V> p : partitions) {
+                long bytes = p.map.getSavedBytes();
+                p.map.save();
+                savedBytes += p.map.getSavedBytes() - bytes;
+            }
+            removeRetiredPartitions(false);
+            rebalance();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public boolean needGc() {
+        for (Partition<K, V> p : partitions) {
+            if (p.map.needGc())
+                return true;
+        }
+        return false;
+    }
+
+    @Override
+    public void gc(TransactionEngine te) {
+        for (Partition<K, V> p : partitions)
+            p.map.gc(te);
+    }
+
+    @Override
+    public void fullGc(TransactionEngine te) {
+        for (Partition<K, V> p : partitions)
+            p.map.fullGc(te);
+    }
+
+    @Override
+    public long collectDirtyMemory(TransactionEngine te, AtomicLong usedMemory) {
+        long dirtyMemory = 0;
+        for (Partition<K, V> p : partitions)
+            dirtyMemory += p.map.collectDirtyMemory(te, usedMemory);
+        return dirtyMemory;
+    }
+
+    @Override
+    public void markDirty(Object key) {
+        getPartition(key).map.markDirty(key);
+    }
+
+    @Override
+    public long getDiskSpaceUsed() {
+        long total = 0;
+        for (Partition<K, V> p : partitions)
+            total += p.map.getDiskSpaceUsed();
+        return total;
+    }
+
+    @Override
+    public long getMemorySpaceUsed() {
+        long total = 0;
+        for (Partition<K, V> p : partitions)
+            total += p.map.getMemorySpaceUsed();
+        return total;
+    }
+
+    @Override
+    public long getSavedBytes() {
+        return savedBytes;
+    }
+
+    @Override
+    public boolean hasUnsavedChanges() {
+        for (Partition<K, V> p : partitions) {
+            if (p.map.hasUnsavedChanges())
+                return true;
+        }
+        return false;
+    }
+
+    @Override
+    public void repair() {
+        for (Partition<K, V> p : partitions)
+            p.map.repair();
+    }
+
+    // 直接按maxPartitionSize的一半切分成多个新的分区，不用等到save时再切分。
+    // 加载新分区时不加锁，替换之前才拿到所有老分区的写锁，
+    // 如果这期间有写操作写到了老的分区就放弃，调用者会改成逐条写入
+    @Override
+    public boolean bulkLoad(Iterator<? extends Map.Entry<K, V>> entries) {
+        lock.lock();
+        try {
+            if (closed || !isEmpty())
+                return false;
+            EntryIterator it = new EntryIterator(entries);
+            if (!it.hasMore())
+                return true;
+            List<Partition<K, V>> oldList = partitions;
+            ArrayList<Partition<K, V>> list = new ArrayList<>();
+            long[] stamps = new long[oldList.size()];
+            boolean replaced = false;
+            try {
+                long limit = Math.max(1, maxPartitionSize / 2);
+                while (it.hasMore()) {
+                    int id = nextPartitionId++;
+                    K firstKey = list.isEmpty() ? null : it.peekKey();
+                    BTreeMap<K, V> map = openPartitionMap(id);
+                    list.add(new Partition<>(id, firstKey, map));
+                    it.reset(null, limit);
+                    map.bulkLoad(it);
+                }
+                for (int i = 0; i < stamps.length; i++) {
+                    stamps[i] = tryWriteLock(oldList.get(i));
+                    if (stamps[i] == 0)
+                        return false;
+                }
+                if (!isEmpty(oldList))
+                    return false;
+                writePartitions(list);
+                partitions = Collections.unmodifiableList(list);
+                for (Partition<K, V> p : oldList)
+                    retire(p);
+                replaced = true;
+                setMaxKey(lastKey());
+                return true;
+            } finally {
+                for (int i = 0; i < stamps.length; i++) {
+                    if (stamps[i] != 0)
+                        oldList.get(i).lock.unlockWrite(stamps[i]);
+                }
+                if (!replaced) {
+                    for (Partition<K, V> p : list)
+                        removeQuietly(p.map);
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void retire(Partition<K, V> p) {
+        p.retired = true;
+        retiredPartitions.add(p);
+    }
+
+    // 退役的分区要等到没有读操作和游标在使用时才删除
+    private void removeRetiredPartitions(boolean all) {
+        for (Iterator<Partition<K, V>> it = retiredPartitions.iterator(); it.hasNext();) {
+            Partition<K, V> p = it.next();
+            if (all)
+                p.refCount.set(-1);
+            else if (!p.refCount.compareAndSet(0, -1))
+                continue;
+            p.map.remove();
+            it.remove();
+        }
+    }
+
+    private void rebalance() {
+        for (Partition<K, V> p : partitions) {
+            if (p.map.size() > maxPartitionSize)
+                split(p);
+        }
+        long mergeSize = maxPartitionSize / 4;
+        for (int i = 0; i + 1 < partitions.size();) {
+            List<Partition<K, V>> list = partitions;
+            Partition<K, V> a = list.get(i);
+            Partition<K, V> b = list.get(i + 1);
+            if (a.map.size() + b.map.size() < mergeSize && merge(a, b))
+                continue;
+            i++;
+        }
+    }
+
+    // 用root page中间的key切分，不需要遍历整个分区。
+    // node page只有一个key时左右两边也都有记录，leaf page至少要有两个key
+    private K getSplitKey(BTreeMap<K, V> map) {
+        Page root = map.getRootPage();
+        int keyCount = root.getKeyCount();
+        if (keyCount < (root.isNode() ? 1 : 2))
+            return null;
+        @SuppressWarnings("unchecked")
+        K key = (K) root.getKey(keyCount / 2);
+        return key;
+    }
+
+    private void split(Partition<K, V> p) {
+        K splitKey = getSplitKey(p.map);
+        if (splitKey == null)
+            return;
+        if (!startTracking(p))
+            return;
+        BTreeMap<K, V> left = null, right = null;
+        boolean replaced = false;
+        try {
+            int leftId = nextPartitionId++;
+            int rightId = nextPartitionId++;
+            left = openPartitionMap(leftId);
+            right = openPartitionMap(rightId);
+            EntryIterator it = new EntryIterator(entries(p.map));
+            it.reset(splitKey, Long.MAX_VALUE);
+            left.bulkLoad(it);
+            it.reset(null, Long.MAX_VALUE);
+            right.bulkLoad(it);
+
+            long stamp = tryWriteLock(p);
+            if (stamp == 0)
+                return;
+            try {
+                for (Object key : p.changedKeys) {
+                    replay(p.map, keyType.compare(key, splitKey) < 0 ? left : right, key);
+                }
+                ArrayList<Partition<K, V>> list = new ArrayList<>(partitions);
+                int index = list.indexOf(p);
+                list.set(index, new Partition<>(leftId, p.firstKey, left));
+                list.add(index + 1, new Partition<>(rightId, splitKey, right));
+                replacePartitions(list, p, null);
+                replaced = true;
+            } finally {
+                p.changedKeys = null;
+                p.lock.unlockWrite(stamp);
+            }
+        } finally {
+            p.changedKeys = null;
+            if (!replaced) {
+                removeQuietly(left);
+                removeQuietly(right);
+            }
+        }
+    }
+
+    private boolean merge(Partition<K, V> a, Partition<K, V> b) {
+        if (!startTracking(a))
+            return false;
+        if (!startTracking(b)) {
+            a.changedKeys = null;
+            return false;
+        }
+        BTreeMap<K, V> map = null;
+        boolean replaced = false;
+        try {
+            int id = nextPartitionId++;
+            map = openPartitionMap(id);
+            // b中的key都比a中的大，直接接在a的后面
+            map.bulkLoad(concat(entries(a.map), entries(b.map)));
+
+            long stampA = tryWriteLock(a);
+            if (stampA == 0)
+                return false;
+            long stampB = tryWriteLock(b);
+            if (stampB == 0) {
+                a.lock.unlockWrite(stampA);
+                return false;
+            }
+            try {
+                for (Object key : a.changedKeys)
+                    replay(a.map, map, key);
+                for (Object key : b.changedKeys)
+                    replay(b.map, map, key);
+                ArrayList<Partition<K, V>> list = new ArrayList<>(partitions);
+                int index = list.indexOf(a);
+                list.remove(index + 1);
+                list.set(index, new Partition<>(id, a.firstKey, map));
+                replacePartitions(list, a, b);
+                replaced = true;
+                return true;
+            } finally {
+                b.lock.unlockWrite(stampB);
+                a.lock.unlockWrite(stampA);
+            }
+        } finally {
+            a.changedKeys = null;
+            b.changedKeys = null;
+            if (!replaced)
+                removeQuietly(map);
+        }
+    }
+
+    // 短暂地拿一下写锁，之前开始的写操作都已经完成，之后的写操作都会记录它们写过的key
+    private boolean startTracking(Partition<K, V> p) {
+        long stamp = tryWriteLock(p);
+        if (stamp == 0)
+            return false;
+        p.changedKeys = new ConcurrentSkipListSet<>(keyType::compare);
+        p.lock.unlockWrite(stamp);
+        return true;
+    }
+
+    // 写操作在异步完成时才释放读锁，可能要由当前线程来完成，所以不能一直等，
+    // 等待期间新的写操作也会等待，正在执行的写操作很快就能完成，拿不到写锁就等下次save时再切分或合并
+    private static long tryWriteLock(Partition<?, ?> p) {
+        p.writeLockWaiting = true;
+        try {
+            return p.lock.tryWriteLock(WRITE_LOCK_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return 0;
+        } finally {
+            p.writeLockWaiting = false;
+        }
+    }
+
+    // 复制记录的过程中key被写过，以老分区中最新的值为准
+    @SuppressWarnings("unchecked")
+    private static <K, V> void replay(BTreeMap<K, V> from, BTreeMap<K, V> to, Object key) {
+        K k = (K) key;
+        V v = from.get(k);
+        if (v == null)
+            to.remove(k);
+        else
+            to.put(k, v);
+        to.markDirty(k);
+    }
+
+    // 在释放老分区的写锁之前调用，等待中的写操作拿到锁后就能看到新的分区
+    private void replacePartitions(List<Partition<K, V>> list, Partition<K, V> old1,
+            Partition<K, V> old2) {
+        writePartitions(list);
+        partitions = Collections.unmodifiableList(list);
+        retire(old1);
+        if (old2 != null)
+            retire(old2);
+    }
+
+    private static void removeQuietly(BTreeMap<?, ?> map) {
+        if (map != null) {
+            try {
+                map.remove();
+            } catch (Throwable t) {
+                // ignore
+            }
+        }
+    }
+
+    private static <K, V> Iterator<Map.Entry<K, V>> entries(BTreeMap<K, V> map) {
+        StorageMapCursor<K, V> cursor = map.cursor(new CursorParameters<>(null, null, null, true));
+        return new Iterator<Map.Entry<K, V>>() {
+            private Boolean hasNext;
+
+            @Override
+            public boolean hasNext() {
+                if (hasNext == null)
+                    hasNext = cursor.next();
+                return hasNext;
+            }
+
+            @Override
+            public Map.Entry<K, V> next() {
+                if (!hasNext())
+                    throw new NoSuchElementException();
+                hasNext = null;
+                return new AbstractMap.SimpleImmutableEntry<>(cursor.getKey(), cursor.getValue());
+            }
+        };
+    }
+
+    private static <E> Iterator<E> concat(Iterator<E> first, Iterator<E> second) {
+        return new Iterator<E>() {
+            @Override
+            public boolean hasNext() {
+                return first.hasNext() || second.hasNext();
+            }
+
+            @Override
+            public E next() {
+                return first.hasNext() ? first.next() : second.next();
+            }
+        };
+    }
+
+    // 把一个有序的迭代器按key的上界或者记录数切成几段，每一段可以加载到不同的分区
+    private class EntryIterator implements Iterator<Map.Entry<K, V>> {
+
+        private final Iterator<? extends Map.Entry<K, V>> source;
+        private Map.Entry<K, V> next;
+        private K end; // 不包含
+        private long remaining;
+
+        EntryIterator(Iterator<? extends Map.Entry<K, V>> source) {
+            this.source = source;
+        }
+
+        void reset(K end, long limit) {
+            this.end = end;
+            this.remaining = limit;
+        }
+
+        boolean hasMore() {
+            if (next == null && source.hasNext())
+                next = source.next();
+            return next != null;
+        }
+
+        K peekKey() {
+            return hasMore() ? next.getKey() : null;
+        }
+
+        @Override
+        public boolean hasNext() {
+            if (remaining <= 0 || !hasMore())
+                return false;
+            return end == null || keyType.compare(next.getKey(), end) < 0;
+        }
+
+        @Override
+        public Map.Entry<K, V> next() {
+            if (!hasNext())
+                throw new NoSuchElementException();
+            Map.Entry<K, V> e = next;
+            next = null;
+            remaining--;
+            return e;
+        }
+    }
+
+    // 按顺序遍历所有分区，每到一个新分区时都用最新的分区列表重新定位
+    private class PartitionedCursor implements StorageMapCursor<K, V> {
+
+        private final CursorParameters<K> parameters;
+        private List<Partition<K, V>> list;
+        private int index;
+        private Partition<K, V> partition; // 遍历完或close之后为null
+        private StorageMapCursor<K, V> cursor;
+
+        PartitionedCursor(CursorParameters<K> parameters) {
+            this.parameters = parameters;
+            open(parameters.from, parameters);
+        }
+
+        private void open(K from, CursorParameters<K> parameters) {
+            while (true) {
+                list = partitions;
+                index = getPartitionIndex(list, from, keyType);
+                partition = list.get(index);
+                if (partition.acquire())
+                    break;
+            }
+            cursor = partition.map.cursor(parameters);
+        }
+
+        @Override
+        public K getKey() {
+            return cursor.getKey();
+        }
+
+        @Override
+        public V getValue() {
+            return cursor.getValue();
+        }
+
+        @Override
+        public IPage getPage() {
+            return cursor.getPage();
+        }
+
+        @Override
+        public boolean next() {
+            while (partition != null) {
+                if (cursor.next())
+                    return true;
+                close();
+                if (index + 1 >= list.size())
+                    return false;
+                K from = list.get(index + 1).firstKey;
+                if (parameters.to != null && keyType.compare(from, parameters.to) > 0)
+                    return false;
+                open(from, parameters.copy(from, parameters.to));
+            }
+            return false;
+        }
+
+        // 当前分区没有记录了会返回null，调用者接着调用next()时会转到下一个分区
+        @Override
+        public ColumnBatch nextBatch(Predicate<? super V> filter, ColumnStatsFilter statsFilter) {
+            return partition == null ? null : cursor.nextBatch(filter, statsFilter);
+        }
+
+        @Override
+        public void close() {
+            if (partition != null) {
+                partition.release();
+                partition = null;
+            }
+        }
+    }
+
+    // 只遍历一个分区，调用者已经拿到了分区的引用
+    private class PartitionCursor implements StorageMapCursor<K, V> {
+
+        private Partition<K, V> partition; // 遍历完或close之后为null
+        private final StorageMapCursor<K, V> cursor;
+
+        PartitionCursor(Partition<K, V> partition, CursorParameters<K> parameters) {
+            this.partition = partition;
+            cursor = partition.map.cursor(parameters);
+        }
+
+        @Override
+        public K getKey() {
+            return cursor.getKey();
+        }
+
+        @Override
+        public V getValue() {
+            return cursor.getValue();
+        }
+
+        @Override
+        public IPage getPage() {
+            return cursor.getPage();
+        }
+
+        @Override
+        public boolean next() {
+            if (partition == null)
+                return false;
+            if (cursor.next())
+                return true;
+            close();
+            return false;
+        }
+
+        @Override
+        public ColumnBatch nextBatch(Predicate<? super V> filter, ColumnStatsFilter statsFilter) {
+            return partition == null ? null : cursor.nextBatch(filter, statsFilter);
+        }
+
+        @Override
+        public void close() {
+            if (partition != null) {
+                partition.release();
+                partition = null;
+            }
+        }
+    }
+
+    //////////////////// 以下是同步和异步API的实现 ////////////////////////////////
+
+    @Override
+    public V put(K key, V value) {
+        Partition<K, V> p = lockPartition(key);
+        try {
+            return p.map.put(key, value);
+        } finally {
+            p.readLock.unlock();
+        }
+    }
+
+    @Override
+    public void put(K key, V value, AsyncHandler<AsyncResult<V>> handler) {
+        put(null, key, value, handler);
+    }
+
+    @Override
+    public void put(Session session, K key, V value, AsyncHandler<AsyncResult<V>> handler) {
+        Partition<K, V> p = lockPartition(key);
+        try {
+            p.map.put(session, key, value, unlockOnDone(p, handler));
+        } catch (Throwable t) {
+            p.readLock.unlock();
+            throw t;
+        }
+    }
+
+    @Override
+    public V putIfAbsent(K key, V value) {
+        Partition<K, V> p = lockPartition(key);
+        try {
+            return p.map.putIfAbsent(key, value);
+        } finally {
+            p.readLock.unlock();
+        }
+    }
+
+    @Override
+    public void putIfAbsent(K key, V value, AsyncHandler<AsyncResult<V>> handler) {
+        putIfAbsent(null, key, value, handler);
+    }
+
+    @Override
+    public void putIfAbsent(Session session, K key, V value, AsyncHandler<AsyncResult<V>> handler) {
+        Partition<K, V> p = lockPartition(key);
+        try {
+            p.map.putIfAbsent(session, key, value, unlockOnDone(p, handler));
+        } catch (Throwable t) {
+            p.readLock.unlock();
+            throw t;
+        }
+    }
+
+    @Override
+    public boolean replace(K key, V oldValue, V newValue) {
+        Partition<K, V> p = lockPartition(key);
+        try {
+            return p.map.replace(key, oldValue, newValue);
+        } finally {
+            p.readLock.unlock();
+        }
+    }
+
+    @Override
+    public void replace(K key, V oldValue, V newValue, AsyncHandler<AsyncResult<Boolean>> handler) {
+        replace(null, key, oldValue, newValue, handler);
+    }
+
+    @Override
+    public void replace(Session session, K key, V oldValue, V newValue,
+            AsyncHandler<AsyncResult<Boolean>> handler) {
+        Partition<K, V> p = lockPartition(key);
+        try {
+            p.map.replace(session, key, oldValue, newValue, unlockOnDone(p, handler));
+        } catch (Throwable t) {
+            p.readLock.unlock();
+            throw t;
+        }
+    }
+
+    // 在这里生成key，再放到key所在的分区中，通常都是最后一个分区
+    @SuppressWarnings("unchecked")
+    private K nextKey() {
+        long k = incrementAndGetMaxKey();
+        if (keyType == ValueLong.type)
+            return (K) Long.valueOf(k);
+        else
+            return (K) ValueLong.get(k);
+    }
+
+    @Override
+    public K append(V value) {
+        K key = nextKey();
+        put(key, value);
+        return key;
+    }
+
+    @Override
+    public void append(V value, AsyncHandler<AsyncResult<K>> handler) {
+        append(null, value, handler);
+    }
+
+    @Override
+    public void append(Session session, V value, AsyncHandler<AsyncResult<K>> handler) {
+        K key = nextKey();
+        put(session, key, value, ar -> {
+            if (ar.isSucceeded())
+                handler.handle(new AsyncResult<>(key));
+            else
+                handler.handle(new AsyncResult<>(ar.getCause()));
+        });
+    }
+
+    @Override
+    public V remove(K key) {
+        Partition<K, V> p = lockPartition(key);
+        try {
+            return p.map.remove(key);
+        } finally {
+            p.readLock.unlock();
+        }
+    }
+
+    @Override
+    public void remove(K key, AsyncHandler<AsyncResult<V>> handler) {
+        remove(null, key, handler);
+    }
+
+    @Override
+    public void remove(Session session, K key, AsyncHandler<AsyncResult<V>> handler) {
+        Partition<K, V> p = lockPartition(key);
+        try {
+            p.map.remove(session, key, unlockOnDone(p, handler));
+        } catch (Throwable t) {
+            p.readLock.unlock();
+            throw t;
+        }
+    }
+
+    @Override
+    public int hashCode() {
+        return name.hashCode();
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        return this == o;
+    }
+
+    @Override
+    public String toString() {
+        return name;
+    }
+}
@@ -6,9 +6,11 @@
 package org.lealone.storage.aose.btree.chunk;
 
 import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Map.Entry;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 
 import org.lealone.common.util.DataUtils;
@@ -84,6 +86,10 @@ public class Chunk {
     public String fileName;
     public long mapSize;
 
+    // 已经不再写入的chunk文件可以整个映射到内存，为null时表示还没有映射或者不能映射
+    private volatile MappedByteBuffer mappedBuffer;
+    private boolean mappable = true;
+
     private int removedPageOffset;
     private int removedPageCount;
     private HashSet<Long> removedPages;
@@ -102,6 +108,48 @@ public class Chunk {
         return length.intValue();
     }
 
+    /**
+     * Read a page as a slice of the memory mapped chunk file, without copying it to the heap.
+     * <p>
+     * Only chunks that are not written any more can be mapped.
+     *
+     * @param filePos the position of the page in the file
+     * @param pageLength the page length
+     * @return the page buffer, or null if the file can not be mapped
+     */
+    public ByteBuffer readMappedPage(long filePos, int pageLength) {
+        MappedByteBuffer mapped = mappedBuffer;
+        if (mapped == null) {
+            mapped = map();
+            if (mapped == null)
+                return null;
+        }
+        if (filePos + pageLength > mapped.capacity())
+            return null;
+        ByteBuffer buff = mapped.duplicate();
+        buff.position((int) filePos);
+        buff.limit((int) filePos + pageLength);
+        return buff.slice();
+    }
+
+    private synchronized MappedByteBuffer map() {
+        if (mappedBuffer == null && mappable) {
+            mappedBuffer = fileStorage.map(0, fileStorage.size());
+            if (mappedBuffer == null)
+                mappable = false;
+        }
+        return mappedBuffer;
+    }
+
+    public boolean isMapped() {
+        return mappedBuffer != null;
+    }
+
+    // 由GC负责释放映射的内存
+    public void unmap() {
+        mappedBuffer = null;
+    }
+
     /**
      * Calculate the fill rate in %. 
      * <p>
@@ -174,19 +222,18 @@ public class Chunk {
         return removedPages;
     }
 
-    private void writeRemovedPages(DataBuffer buff, ChunkManager chunkManager) {
+    // newRemovedPages是开始保存前标记删除的page，它们的新page都在这次保存的范围内
+    private void writeRemovedPages(DataBuffer buff, Set<Long> newRemovedPages) {
         // 使用老的removedPageOffset读
-        HashSet<Long> oldRemovedPages = getRemovedPages();
-        HashSet<Long> newRemovedPages = new HashSet<>(chunkManager.getRemovedPages());
+        HashSet<Long> removedPages = new HashSet<>(getRemovedPages());
+        removedPages.addAll(newRemovedPages);
         // 更新removedPageOffset
         removedPageOffset = getOffset() + buff.position();
-        removedPageCount = oldRemovedPages.size() + newRemovedPages.size();
-        for (long pos : oldRemovedPages) {
-            buff.putLong(pos);
-        }
-        for (long pos : newRemovedPages) {
+        removedPageCount = removedPages.size();
+        for (long pos : removedPages) {
             buff.putLong(pos);
         }
+        this.removedPages = removedPages;
     }
 
     public void read(BTreeStorage btreeStorage) {
@@ -292,9 +339,9 @@ public class Chunk {
         return buff;
     }
 
-    public void write(DataBuffer body, boolean appendMode, ChunkManager chunkManager) {
+    public void write(DataBuffer body, boolean appendMode, Set<Long> newRemovedPages) {
         writePagePositions(body);
-        writeRemovedPages(body, chunkManager);
+        writeRemovedPages(body, newRemovedPages);
 
         ByteBuffer buffer = body.getAndFlipBuffer();
         int blockCount = MathUtils.roundUpInt(buffer.limit(), BLOCK_SIZE) / BLOCK_SIZE;
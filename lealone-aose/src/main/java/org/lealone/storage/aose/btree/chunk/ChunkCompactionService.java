@@ -0,0 +1,186 @@
+/*
+ * Copyright Lealone Database Group.
+ * Licensed under the Server Side Public License, v 1.
+ * Initial Developer: zhh
+ */
+package org.lealone.storage.aose.btree.chunk;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.concurrent.PriorityBlockingQueue;
+
+import org.lealone.common.logging.Logger;
+import org.lealone.common.logging.LoggerFactory;
+import org.lealone.storage.aose.btree.BTreeStorage;
+
+/**
+ * 在后台线程中整理同一个AOStorage下所有BTreeMap的chunk文件，不会阻塞checkpoint。
+ *
+ * <p>
+ * 保存map后只是通知它有page被删除了，由后台线程找出填充率(存活的page占比)不超过MinFillRate的chunk，
+ * 然后按填充率从小到大放到优先级队列中，每次优先重写浪费空间最多的chunk，并且按限定的速率重写。
+ */
+public class ChunkCompactionService implements Runnable {
+
+    private static final Logger logger = LoggerFactory.getLogger(ChunkCompactionService.class);
+
+    // 每秒最多重写的字节数，小于等于0时不限速
+    private final long rateLimit;
+    private final LinkedHashSet<BTreeStorage> pendingStorages = new LinkedHashSet<>();
+    private final PriorityBlockingQueue<CompactTask> tasks = new PriorityBlockingQueue<>();
+
+    // AOStorage关闭后还可能被重新使用，所以关闭时只是停止当前的线程，需要时再启动新的线程
+    private volatile Thread thread;
+
+    public ChunkCompactionService(long rateLimit) {
+        this.rateLimit = rateLimit;
+    }
+
+    public long getRateLimit() {
+        return rateLimit;
+    }
+
+    public int getTaskCount() {
+        return tasks.size();
+    }
+
+    /**
+     * 通知后台线程这个map有page被删除了，需要重新计算它的chunk的填充率
+     */
+    public synchronized void schedule(BTreeStorage btreeStorage) {
+        pendingStorages.add(btreeStorage);
+        if (thread == null) {
+            thread = new Thread(this, "ChunkCompactionService");
+            thread.setDaemon(true);
+            thread.start();
+        }
+        notifyAll();
+    }
+
+    public synchronized void remove(BTreeStorage btreeStorage) {
+        pendingStorages.remove(btreeStorage);
+        tasks.removeIf(t -> t.btreeStorage == btreeStorage);
+    }
+
+    public void close() {
+        Thread t;
+        synchronized (this) {
+            t = thread;
+            if (t == null)
+                return;
+            thread = null;
+            pendingStorages.clear();
+            tasks.clear();
+            notifyAll();
+        }
+        if (t != Thread.currentThread()) {
+            try {
+                t.join();
+            } catch (InterruptedException e) {
+            }
+        }
+    }
+
+    @Override
+    public void run() {
+        while (isRunning()) {
+            try {
+                List<BTreeStorage> storages = awaitPendingStorages();
+                for (BTreeStorage s : storages)
+                    collectTasks(s);
+                compact();
+            } catch (Throwable t) {
+                logger.error("Failed to compact chunks", t);
+            }
+        }
+    }
+
+    private synchronized List<BTreeStorage> awaitPendingStorages() throws InterruptedException {
+        if (pendingStorages.isEmpty() && tasks.isEmpty() && isRunning())
+            wait();
+        ArrayList<BTreeStorage> storages = new ArrayList<>(pendingStorages);
+        pendingStorages.clear();
+        return storages;
+    }
+
+    // chunk的填充率可能已经变了，所以先删除这个map原有的任务
+    private void collectTasks(BTreeStorage btreeStorage) {
+        tasks.removeIf(t -> t.btreeStorage == btreeStorage);
+        for (Chunk c : btreeStorage.collectRewritableChunks()) {
+            if (!isRunning())
+                return;
+            tasks.add(new CompactTask(btreeStorage, c));
+        }
+    }
+
+    private void compact() throws InterruptedException {
+        CompactTask head = tasks.poll();
+        if (head == null)
+            return;
+        // 同一个map中的chunk一起重写，重写后的总长度不超过一秒钟的限定速率和chunk的最大容量
+        long maxBytes = rateLimit > 0 ? Math.min(rateLimit, Chunk.MAX_SIZE) : Chunk.MAX_SIZE;
+        ArrayList<CompactTask> sameStorageTasks = new ArrayList<>();
+        for (CompactTask t : tasks) {
+            if (t.btreeStorage == head.btreeStorage)
+                sameStorageTasks.add(t);
+        }
+        Collections.sort(sameStorageTasks);
+        ArrayList<Chunk> chunks = new ArrayList<>();
+        chunks.add(head.chunk);
+        long bytes = head.liveLength;
+        for (CompactTask t : sameStorageTasks) {
+            if (bytes + t.liveLength > maxBytes)
+                break;
+            if (tasks.remove(t)) {
+                chunks.add(t.chunk);
+                bytes += t.liveLength;
+            }
+        }
+        long start = System.currentTimeMillis();
+        long rewrittenBytes = head.btreeStorage.rewriteChunks(chunks);
+        throttle(rewrittenBytes, System.currentTimeMillis() - start);
+    }
+
+    // 按限定的速率算出重写这些字节应该花的时间，如果重写得太快就等待剩下的时间
+    private void throttle(long bytes, long elapsed) throws InterruptedException {
+        if (rateLimit <= 0 || bytes <= 0)
+            return;
+        long expected = bytes * 1000 / rateLimit;
+        long end = System.currentTimeMillis() + expected - elapsed;
+        synchronized (this) {
+            long wait;
+            while (isRunning() && (wait = end - System.currentTimeMillis()) > 0)
+                wait(wait);
+        }
+    }
+
+    private boolean isRunning() {
+        return thread == Thread.currentThread();
+    }
+
+    private static class CompactTask implements Comparable<CompactTask> {
+
+        final BTreeStorage btreeStorage;
+        final Chunk chunk;
+        final int fillRate;
+        final long liveLength;
+
+        CompactTask(BTreeStorage btreeStorage, Chunk chunk) {
+            this.btreeStorage = btreeStorage;
+            this.chunk = chunk;
+            this.fillRate = chunk.getFillRate();
+            this.liveLength = chunk.sumOfLivePageLength;
+        }
+
+        // 填充率越小越优先，填充率相同时需要重写的字节数越少越优先
+        @Override
+        public int compareTo(CompactTask o) {
+            int comp = Integer.compare(fillRate, o.fillRate);
+            if (comp == 0)
+                comp = Long.compare(liveLength, o.liveLength);
+            return comp;
+        }
+    }
+}
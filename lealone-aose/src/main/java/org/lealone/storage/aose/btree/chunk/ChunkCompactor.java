@@ -21,6 +21,8 @@ import org.lealone.storage.aose.btree.page.PageUtils;
  * Chunks with a low number of live items are re-written.
  * <p>
  * If the current fill rate is higher than the minimum fill rate, nothing is done.
+ * <p>
+ * It is driven by the {@link ChunkCompactionService} in a background thread.
  */
 public class ChunkCompactor {
 
@@ -32,10 +34,13 @@ public class ChunkCompactor {
         this.chunkManager = chunkManager;
     }
 
-    public void executeCompact() {
-        HashSet<Long> removedPages = chunkManager.getAllRemovedPages();
+    /**
+     * 删除不再使用的chunk，然后返回填充率不超过MinFillRate的chunk，最后一个chunk还会追加写入所以不包含它
+     */
+    public List<Chunk> collectRewritableChunks() {
+        HashSet<Long> removedPages = chunkManager.getSavedRemovedPages();
         if (removedPages.isEmpty())
-            return;
+            return Collections.emptyList();
 
         // 读取被删除了至少一个page的chunk的元数据
         List<Chunk> chunks = readChunks(removedPages);
@@ -47,8 +52,66 @@ public class ChunkCompactor {
             chunks.removeAll(unusedChunks);
         }
 
-        // 看看哪些chunk中未被删除的page占比<=MinFillRate，然后重写它们到一个新的chunk中
-        rewrite(chunks, removedPages);
+        // minFillRate <= 0时相当于禁用rewrite了，removedPages为空说明没有page被删除了
+        if (btreeStorage.getMinFillRate() <= 0 || removedPages.isEmpty())
+            return Collections.emptyList();
+        return getRewritableChunks(chunks);
+    }
+
+    /**
+     * 把这些chunk中未被删除的page重写到最后一个chunk中，然后删除它们
+     *
+     * @return 重写的字节数
+     */
+    public long rewrite(List<Chunk> chunks) {
+        HashSet<Long> removedPages = chunkManager.getSavedRemovedPages();
+        // 在后台线程加入队列后chunk可能已经被删除了，被删除的page也可能变多了
+        List<Chunk> old = new ArrayList<>(chunks.size());
+        for (Chunk c : chunks) {
+            if (chunkManager.containsChunk(c) && chunkManager.isSealed(c))
+                old.add(c);
+        }
+        if (old.isEmpty())
+            return 0;
+        List<Chunk> unusedChunks = findUnusedChunks(old, removedPages);
+        if (!unusedChunks.isEmpty()) {
+            removeUnusedChunks(unusedChunks, removedPages);
+            old.removeAll(unusedChunks);
+        }
+        long bytes = 0;
+        boolean saveIfNeeded = false;
+        ArrayList<Long> nodePages = new ArrayList<>();
+        for (Chunk c : old) {
+            bytes += c.sumOfLivePageLength;
+            for (Entry<Long, Integer> e : c.pagePositionToLengthMap.entrySet()) {
+                long pos = e.getKey();
+                if (!removedPages.contains(pos)) {
+                    if (PageUtils.isNodePage(pos)) {
+                        chunkManager.addRemovedPage(pos);
+                        nodePages.add(pos);
+                    } else {
+                        // 直接标记为脏页即可，不用更新元素
+                        btreeStorage.markDirtyLeafPage(pos);
+                        saveIfNeeded = true;
+                        if (Page.ASSERT) {
+                            if (!chunkManager.getRemovedPages().contains(pos)) {
+                                DbException.throwInternalError("not dirty: " + pos);
+                            }
+                        }
+                    }
+                }
+            }
+        }
+        if (saveIfNeeded) {
+            btreeStorage.executeSave(true);
+            removeUnusedChunks(old, removedPages);
+        } else {
+            // 只剩下node page，它们的leaf page都已经保存到后面的chunk中了，所以也被后面的node page替代了，
+            // 标记为删除后这些chunk就不再使用了
+            removedPages.addAll(nodePages);
+            removeUnusedChunks(findUnusedChunks(old, removedPages), removedPages);
+        }
+        return bytes;
     }
 
     private List<Chunk> readChunks(HashSet<Long> removedPages) {
@@ -88,73 +151,21 @@ public class ChunkCompactor {
         }
         if (size > removedPages.size()) {
             if (chunkManager.getLastChunk() != null) {
-                removedPages = chunkManager.getAllRemovedPages();
+                removedPages = chunkManager.getSavedRemovedPages();
                 chunkManager.getLastChunk().updateRemovedPages(removedPages);
             }
         }
     }
 
-    private void rewrite(List<Chunk> chunks, HashSet<Long> removedPages) {
-        // minFillRate <= 0时相当于禁用rewrite了，removedPages为空说明没有page被删除了
-        if (btreeStorage.getMinFillRate() <= 0 || removedPages.isEmpty())
-            return;
-
-        List<Chunk> old = getRewritableChunks(chunks);
-        boolean saveIfNeeded = false;
-        for (Chunk c : old) {
-            for (Entry<Long, Integer> e : c.pagePositionToLengthMap.entrySet()) {
-                long pos = e.getKey();
-                if (!removedPages.contains(pos)) {
-                    if (PageUtils.isNodePage(pos)) {
-                        chunkManager.addRemovedPage(pos);
-                    } else {
-                        // 直接标记为脏页即可，不用更新元素
-                        btreeStorage.markDirtyLeafPage(pos);
-                        saveIfNeeded = true;
-                        if (Page.ASSERT) {
-                            if (!chunkManager.getRemovedPages().contains(pos)) {
-                                DbException.throwInternalError("not dirty: " + pos);
-                            }
-                        }
-                    }
-                }
-            }
-        }
-        if (saveIfNeeded) {
-            btreeStorage.executeSave(false);
-            removeUnusedChunks(old, removedPages);
-        }
-    }
-
-    // 按chunk的FillRate从小到大排序，然后选一批chunk出来重写，并且这批chunk重写后的总长度不能超过一个chunk的容量
+    // 由ChunkCompactionService按chunk的FillRate从小到大排序，然后选一批chunk出来重写
     private List<Chunk> getRewritableChunks(List<Chunk> chunks) {
         int minFillRate = btreeStorage.getMinFillRate();
         List<Chunk> old = new ArrayList<>();
         for (Chunk c : chunks) {
-            if (c.getFillRate() > minFillRate)
+            if (c.getFillRate() > minFillRate || !chunkManager.isSealed(c))
                 continue;
             old.add(c);
         }
-        if (old.isEmpty())
-            return old;
-
-        Collections.sort(old, (o1, o2) -> {
-            long comp = o1.getFillRate() - o2.getFillRate();
-            if (comp == 0) {
-                comp = o1.sumOfLivePageLength - o2.sumOfLivePageLength;
-            }
-            return Long.signum(comp);
-        });
-
-        long bytes = 0;
-        int index = 0;
-        int size = old.size();
-        long maxBytesToWrite = Chunk.MAX_SIZE;
-        for (; index < size; index++) {
-            bytes += old.get(index).sumOfLivePageLength;
-            if (bytes > maxBytesToWrite) // 不能超过chunk的最大容量
-                break;
-        }
-        return index == size ? old : old.subList(0, index + 1);
+        return old;
     }
 }
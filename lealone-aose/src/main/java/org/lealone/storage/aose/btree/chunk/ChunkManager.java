@@ -81,6 +81,11 @@ public class ChunkManager {
         this.lastChunk = lastChunk;
     }
 
+    // 只有最后一个chunk还会追加写入，其他chunk都是只读的
+    public boolean isSealed(Chunk c) {
+        return c != lastChunk;
+    }
+
     public String getChunkFileName(int chunkId) {
         String f = idToChunkFileNameMap.get(chunkId);
         if (f == null)
@@ -99,6 +104,7 @@ public class ChunkManager {
 
     public synchronized void close() {
         for (Chunk c : chunks.values()) {
+            c.unmap();
             if (c.fileStorage != null)
                 c.fileStorage.close();
         }
@@ -136,6 +142,11 @@ public class ChunkManager {
         return c;
     }
 
+    // chunk可能已经被删除了，chunk id也可能被复用了
+    boolean containsChunk(Chunk c) {
+        return chunks.get(c.id) == c;
+    }
+
     public Chunk createChunk() {
         int id = chunkIds.nextClearBit(1);
         chunkIds.set(id);
@@ -152,12 +163,14 @@ public class ChunkManager {
     }
 
     synchronized void removeUnusedChunk(Chunk c) {
+        c.unmap();
         c.fileStorage.close();
         c.fileStorage.delete();
         chunkIds.clear(c.id);
         chunks.remove(c.id);
         idToChunkFileNameMap.remove(c.id);
         removedPages.removeAll(c.pagePositionToLengthMap.keySet());
+        btreeStorage.removeCachedChunk(c.id);
         if (c == lastChunk)
             lastChunk = null;
     }
@@ -165,6 +178,9 @@ public class ChunkManager {
     List<Chunk> readChunks(HashSet<Integer> chunkIds) {
         ArrayList<Chunk> list = new ArrayList<>(chunkIds.size());
         for (int id : chunkIds) {
+            // chunk文件已经被删除了
+            if (!idToChunkFileNameMap.containsKey(id))
+                continue;
             if (!chunks.containsKey(id)) {
                 readChunk(id);
             }
@@ -187,17 +203,18 @@ public class ChunkManager {
 
     public void addRemovedPage(long pos) {
         removedPages.add(pos);
+        btreeStorage.removeCachedPage(pos);
     }
 
     public Set<Long> getRemovedPages() {
         return removedPages;
     }
 
-    public HashSet<Long> getAllRemovedPages() {
-        HashSet<Long> removedPages = new HashSet<>(this.removedPages);
-        if (lastChunk != null)
-            removedPages.addAll(lastChunk.getRemovedPages());
-        return removedPages;
+    // 刚标记删除的page对应的新page可能还没有保存，只有已经写到最后一个chunk中的才能用来删除和重写chunk
+    public HashSet<Long> getSavedRemovedPages() {
+        if (lastChunk == null)
+            return new HashSet<>();
+        return new HashSet<>(lastChunk.getRemovedPages());
     }
 
     public Set<Integer> getAllChunkIds() {
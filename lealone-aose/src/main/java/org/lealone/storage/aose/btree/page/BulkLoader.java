@@ -0,0 +1,179 @@
+/*
+ * Copyright Lealone Database Group.
+ * Licensed under the Server Side Public License, v 1.
+ * Initial Developer: zhh
+ */
+package org.lealone.storage.aose.btree.page;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.Map;
+
+import org.lealone.common.util.DataUtils;
+import org.lealone.storage.aose.btree.BTreeMap;
+import org.lealone.storage.aose.btree.BTreeStorage;
+import org.lealone.storage.type.StorageDataType;
+
+/**
+ * 用排好序的记录自下而上构建一棵新的btree。
+ *
+ * <p>
+ * 先把记录一个接一个放到leaf page中，直到page的内存大小达到pageSize，
+ * 然后每一层都用同样的方式把下一层的page放到node page中，直到只剩一个root page。
+ * 跟一条条put相比不需要查找和切割page，并且除了每一层的最后一个page外都是满的。
+ */
+public class BulkLoader {
+
+    private final BTreeMap<?, ?> map;
+    private final BTreeStorage bs;
+    private final StorageDataType keyType;
+    private final StorageDataType valueType;
+    private final int pageSize;
+
+    private long count;
+    private int usedMemory;
+
+    public BulkLoader(BTreeMap<?, ?> map) {
+        this.map = map;
+        bs = map.getBTreeStorage();
+        keyType = map.getKeyType();
+        valueType = map.getValueType();
+        pageSize = bs.getPageSize();
+    }
+
+    /**
+     * Get the number of entries loaded.
+     *
+     * @return the number of entries
+     */
+    public long getCount() {
+        return count;
+    }
+
+    /**
+     * Get the memory used by all the new pages.
+     *
+     * @return the estimated number of bytes
+     */
+    public int getUsedMemory() {
+        return usedMemory;
+    }
+
+    /**
+     * 构建所有的page，返回root page，还没有加到map中。
+     *
+     * @param entries the entries sorted by key, the keys must be unique
+     * @return the root page, or null if there are no entries
+     */
+    public Page load(Iterator<? extends Map.Entry<?, ?>> entries) {
+        ArrayList<ChildPage> level = loadLeafPages(entries);
+        if (level.isEmpty())
+            return null;
+        while (level.size() > 1) {
+            level = loadNodePages(level);
+        }
+        // root page要换成map的rootRef，子page标记脏页时才能一直标记到root page
+        Page root = level.get(0).ref.getPage();
+        PageReference rootRef = map.getRootPageRef();
+        root.setRef(rootRef);
+        for (int i = 0, len = root.getRawChildPageCount(); i < len; i++) {
+            root.getChildPageReference(i).setParentRef(rootRef);
+        }
+        return root;
+    }
+
+    private ArrayList<ChildPage> loadLeafPages(Iterator<? extends Map.Entry<?, ?>> entries) {
+        ArrayList<ChildPage> leafPages = new ArrayList<>();
+        ArrayList<Object> keys = new ArrayList<>();
+        ArrayList<Object> values = new ArrayList<>();
+        int memory = PageUtils.PAGE_MEMORY;
+        Object lastKey = null;
+        while (entries.hasNext()) {
+            Map.Entry<?, ?> e = entries.next();
+            Object key = e.getKey();
+            Object value = e.getValue();
+            DataUtils.checkNotNull(value, "value");
+            if (lastKey != null && keyType.compare(lastKey, key) >= 0) {
+                throw DataUtils.newIllegalArgumentException(
+                        "The keys are not sorted or not unique: {0} >= {1}", lastKey, key);
+            }
+            int mem = keyType.getMemory(key) + valueType.getMemory(value);
+            if (!keys.isEmpty() && memory + mem > pageSize) {
+                leafPages.add(createLeafPage(keys, values, memory));
+                keys.clear();
+                values.clear();
+                memory = PageUtils.PAGE_MEMORY;
+            }
+            keys.add(key);
+            values.add(value);
+            memory += mem;
+            lastKey = key;
+            count++;
+        }
+        if (!keys.isEmpty())
+            leafPages.add(createLeafPage(keys, values, memory));
+        return leafPages;
+    }
+
+    private ChildPage createLeafPage(ArrayList<Object> keys, ArrayList<Object> values, int memory) {
+        LeafPage p = LeafPage.create(map, keys.toArray(), values.toArray(), memory);
+        return new ChildPage(createRef(p), keys.get(0));
+    }
+
+    // 右边子page的第一个key就是node page中对应的key
+    private ArrayList<ChildPage> loadNodePages(ArrayList<ChildPage> children) {
+        ArrayList<ChildPage> nodePages = new ArrayList<>();
+        int size = children.size();
+        int start = 0;
+        int memory = PageUtils.PAGE_MEMORY + PageUtils.PAGE_MEMORY_CHILD;
+        for (int i = 1; i < size; i++) {
+            int mem = keyType.getMemory(children.get(i).firstKey) + PageUtils.PAGE_MEMORY_CHILD;
+            // 至少有两个子page，并且不能只给最后一个node page留下一个子page
+            if (i - start > 1 && memory + mem > pageSize && size - i > 1) {
+                nodePages.add(createNodePage(children, start, i, memory));
+                start = i;
+                memory = PageUtils.PAGE_MEMORY + PageUtils.PAGE_MEMORY_CHILD;
+            } else {
+                memory += mem;
+            }
+        }
+        nodePages.add(createNodePage(children, start, size, memory));
+        return nodePages;
+    }
+
+    private ChildPage createNodePage(ArrayList<ChildPage> children, int start, int end, int memory) {
+        int len = end - start;
+        Object[] keys = new Object[len - 1];
+        PageReference[] refs = new PageReference[len];
+        for (int i = 0; i < len; i++) {
+            ChildPage child = children.get(start + i);
+            if (i > 0)
+                keys[i - 1] = child.firstKey;
+            refs[i] = child.ref;
+        }
+        NodePage p = NodePage.create(map, keys, refs, memory);
+        PageReference ref = createRef(p);
+        for (PageReference r : refs) {
+            r.setParentRef(ref);
+        }
+        return new ChildPage(ref, children.get(start).firstKey);
+    }
+
+    private PageReference createRef(Page p) {
+        PageReference ref = new PageReference(bs, p);
+        p.setRef(ref);
+        usedMemory += p.getMemory();
+        return ref;
+    }
+
+    private static class ChildPage {
+
+        final PageReference ref;
+        final Object firstKey; // 子树中最小的key
+
+        ChildPage(PageReference ref, Object firstKey) {
+            this.ref = ref;
+            this.firstKey = firstKey;
+        }
+    }
+}
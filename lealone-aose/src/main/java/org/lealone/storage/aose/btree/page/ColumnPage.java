@@ -8,15 +8,21 @@ package org.lealone.storage.aose.btree.page;
 import java.nio.ByteBuffer;
 import java.util.concurrent.atomic.AtomicInteger;
 
+import org.lealone.common.util.DataUtils;
 import org.lealone.db.DataBuffer;
 import org.lealone.storage.aose.btree.BTreeMap;
 import org.lealone.storage.aose.btree.chunk.Chunk;
+import org.lealone.storage.page.ColumnEncoding;
+import org.lealone.storage.page.ColumnStats;
+import org.lealone.storage.page.ColumnVector;
 import org.lealone.storage.type.StorageDataType;
 
 public class ColumnPage extends Page {
 
     private final AtomicInteger memory = new AtomicInteger(0);
     private ByteBuffer buff;
+    private boolean encoded;
+    private ColumnStats stats; // 只在write时统计
 
     ColumnPage(BTreeMap<?, ?> map) {
         super(map);
@@ -34,7 +40,8 @@ public class ColumnPage extends Page {
         checkPageLength(chunkId, pageLength, expectedPageLength);
 
         readCheckValue(buff, chunkId, offset, pageLength);
-        buff.get(); // page type;
+        int type = buff.get();
+        encoded = (type & PageUtils.PAGE_COLUMN_ENCODED) != 0;
         int compressType = buff.get();
 
         // 解压完之后就结束了，因为还不知道具体的行，所以延迟对列进行反序列化
@@ -46,9 +53,20 @@ public class ColumnPage extends Page {
         int memory = 0;
         ByteBuffer buff = this.buff.slice(); // 要支持多线程同时读，所以直接用slice
         StorageDataType valueType = map.getValueType();
-        for (int row = 0, rowCount = values.length; row < rowCount; row++) {
-            valueType.readColumn(buff, values[row], columnIndex);
-            memory += valueType.getMemory(values[row], columnIndex);
+        if (encoded) {
+            ColumnVector vector = ColumnEncoding.decode(buff, values.length);
+            if (vector == null)
+                throw DataUtils.newIllegalStateException(DataUtils.ERROR_FILE_CORRUPT,
+                        "Invalid encoded column page, column index {0}", columnIndex);
+            for (int row = 0, rowCount = values.length; row < rowCount; row++) {
+                valueType.setColumn(values[row], vector.getValue(row), columnIndex);
+                memory += valueType.getMemory(values[row], columnIndex);
+            }
+        } else {
+            for (int row = 0, rowCount = values.length; row < rowCount; row++) {
+                valueType.readColumn(buff, values[row], columnIndex);
+                memory += valueType.getMemory(values[row], columnIndex);
+            }
         }
         if (this.memory.compareAndSet(0, memory)) {
             // buff内存大小在getOrReadPage中加了，这里只加列占用的内存大小
@@ -56,6 +74,17 @@ public class ColumnPage extends Page {
         }
     }
 
+    // 不创建Value对象，直接从buff中解码出列向量，也不缓存，所以不需要计算内存
+    ColumnVector readColumnVector(int rowCount) {
+        ByteBuffer buff = this.buff.slice();
+        return encoded ? ColumnEncoding.decode(buff, rowCount) : ColumnVector.read(buff, rowCount);
+    }
+
+    // 调用write之后才有，列中的值不支持统计时是null
+    ColumnStats getStats() {
+        return stats;
+    }
+
     long write(Chunk chunk, DataBuffer buff, Object[] values, int columnIndex) {
         PageInfo pInfoOld = getRef().getPageInfo();
         beforeWrite(pInfoOld);
@@ -66,6 +95,7 @@ public class ColumnPage extends Page {
         StorageDataType valueType = map.getValueType();
         int checkPos = buff.position();
         buff.putShort((short) 0);
+        int typePos = buff.position();
         buff.put((byte) type);
         int compressTypePos = buff.position();
         int compressType = 0;
@@ -74,6 +104,17 @@ public class ColumnPage extends Page {
         for (int row = 0, rowCount = values.length; row < rowCount; row++) {
             valueType.writeColumn(buff, values[row], columnIndex);
         }
+        // 只有多个字段的记录才是用DataBuffer.writeValue写入的，能按列统计和重新编码
+        if (valueType.getColumnCount() > 1) {
+            ByteBuffer plain = buff.getBuffer().duplicate();
+            plain.position(compressStart).limit(buff.position());
+            ColumnVector vector = ColumnVector.read(plain.slice(), values.length);
+            if (vector != null) {
+                stats = ColumnStats.create(vector);
+                if (ColumnEncoding.encode(buff, compressStart, vector) > 0)
+                    buff.putByte(typePos, (byte) (type | PageUtils.PAGE_COLUMN_ENCODED));
+            }
+        }
         compressPage(buff, compressStart, compressType, compressTypePos);
         int pageLength = buff.position() - start;
         buff.putInt(start, pageLength);
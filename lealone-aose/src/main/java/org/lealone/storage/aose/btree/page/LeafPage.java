@@ -11,12 +11,15 @@ import org.lealone.common.util.DataUtils;
 import org.lealone.db.DataBuffer;
 import org.lealone.storage.aose.btree.BTreeMap;
 import org.lealone.storage.aose.btree.chunk.Chunk;
+import org.lealone.storage.page.ColumnStats;
+import org.lealone.storage.page.ColumnVector;
 import org.lealone.storage.type.StorageDataType;
 
 public class LeafPage extends LocalPage {
 
     private Object[] values;
     private PageReference[] columnPages;
+    private ColumnStats[] columnStats; // 跟columnPages一样，修改记录后就没用了
     private boolean isAllColumnPagesRead;
 
     public LeafPage(BTreeMap<?, ?> map) {
@@ -56,6 +59,25 @@ public class LeafPage extends LocalPage {
         return values[index];
     }
 
+    @Override
+    public boolean hasColumnPages() {
+        return columnPages != null;
+    }
+
+    @Override
+    public ColumnVector getColumnVector(int columnIndex) {
+        PageReference[] columnPages = this.columnPages; // 修改记录时会变成null
+        if (columnPages == null || columnIndex < 0 || columnIndex >= columnPages.length)
+            return null;
+        ColumnPage page = (ColumnPage) columnPages[columnIndex].getOrReadPage();
+        return page.readColumnVector(keys.length);
+    }
+
+    @Override
+    public ColumnStats[] getColumnStats() {
+        return columnPages != null ? columnStats : null;
+    }
+
     private void readAllColumnPages() {
         for (int columnIndex = 0, len = columnPages.length; columnIndex < len; columnIndex++) {
             readColumnPage(columnIndex);
@@ -84,6 +106,7 @@ public class LeafPage extends LocalPage {
                 }
             }
             columnPages = null;
+            columnStats = null;
         }
     }
 
@@ -203,6 +226,13 @@ public class LeafPage extends LocalPage {
             long pos = buff.getLong();
             columnPages[i] = new PageReference(map.getBTreeStorage(), pos);
         }
+        if ((type & PageUtils.PAGE_HAS_COLUMN_STATS) != 0) {
+            columnStats = new ColumnStats[columnCount];
+            for (int i = 0; i < columnCount; i++) {
+                if (buff.get() != 0)
+                    columnStats[i] = ColumnStats.read(buff);
+            }
+        }
         buff = expandPage(buff, type, start, pageLength);
 
         map.getKeyType().read(buff, keys, keyLength);
@@ -252,20 +282,43 @@ public class LeafPage extends LocalPage {
     }
 
     private long writeColumnStorage(PageInfo pInfoOld, Chunk chunk, DataBuffer buff) {
+        StorageDataType valueType = map.getValueType();
+        int columnCount = valueType.getColumnCount();
+        // 先写列page，这样leaf page中可以直接记录它们的位置和每一列的统计信息
+        long[] posArray = new long[columnCount];
+        ColumnStats[] statsArray = new ColumnStats[columnCount];
+        boolean hasStats = false;
+        for (int col = 0; col < columnCount; col++) {
+            ColumnPage page = new ColumnPage(map);
+            page.setRef(new PageReference(map.getBTreeStorage(), 0));
+            posArray[col] = page.write(chunk, buff, values, col);
+            statsArray[col] = page.getStats();
+            if (statsArray[col] != null)
+                hasStats = true;
+        }
+
         int start = buff.position();
         int keyLength = keys.length;
         int type = PageUtils.PAGE_TYPE_LEAF;
         buff.putInt(0); // 回填pageLength
         buff.put((byte) map.getPageStorageMode().ordinal());
-        StorageDataType valueType = map.getValueType();
-        int columnCount = valueType.getColumnCount();
         int checkPos = buff.position();
         buff.putShort((short) 0).putVarInt(keyLength).putVarInt(columnCount);
         int typePos = buff.position();
-        buff.put((byte) type);
-        int columnPageStartPos = buff.position();
+        int typeWithFlags = hasStats ? type | PageUtils.PAGE_HAS_COLUMN_STATS : type;
+        buff.put((byte) typeWithFlags);
         for (int i = 0; i < columnCount; i++) {
-            buff.putLong(0);
+            buff.putLong(posArray[i]);
+        }
+        if (hasStats) {
+            for (int i = 0; i < columnCount; i++) {
+                if (statsArray[i] == null) {
+                    buff.put((byte) 0);
+                } else {
+                    buff.put((byte) 1);
+                    statsArray[i].write(buff);
+                }
+            }
         }
         int compressStart = buff.position();
         map.getKeyType().write(buff, keys, keyLength);
@@ -273,26 +326,13 @@ public class LeafPage extends LocalPage {
             valueType.writeMeta(buff, values[row]);
         }
         buff.putInt(0); // replicationHostIds
-        compressPage(buff, compressStart, type, typePos);
+        compressPage(buff, compressStart, typeWithFlags, typePos);
 
         int pageLength = buff.position() - start;
         buff.putInt(start, pageLength);
 
         writeCheckValue(buff, chunk, start, pageLength, checkPos);
 
-        long[] posArray = new long[columnCount];
-        for (int col = 0; col < columnCount; col++) {
-            ColumnPage page = new ColumnPage(map);
-            page.setRef(new PageReference(map.getBTreeStorage(), 0));
-            posArray[col] = page.write(chunk, buff, values, col);
-        }
-        int oldPos = buff.position();
-        buff.position(columnPageStartPos);
-        for (int i = 0; i < columnCount; i++) {
-            buff.putLong(posArray[i]);
-        }
-        buff.position(oldPos);
-
         return updateChunkAndPage(pInfoOld, chunk, start, pageLength, type);
     }
 
@@ -334,7 +374,7 @@ public class LeafPage extends LocalPage {
         return create(map, new Object[0], new Object[0], PageUtils.PAGE_MEMORY);
     }
 
-    private static LeafPage create(BTreeMap<?, ?> map, Object[] keys, Object[] values, int memory) {
+    static LeafPage create(BTreeMap<?, ?> map, Object[] keys, Object[] values, int memory) {
         LeafPage p = new LeafPage(map);
         // the position is 0
         p.keys = keys;
@@ -101,6 +101,11 @@ public class Page implements IPage {
         throw ie();
     }
 
+    // 只有从硬盘读出来之后没有修改过的列存储leaf page才有列page
+    public boolean hasColumnPages() {
+        return false;
+    }
+
     public PageReference[] getChildren() {
         throw ie();
     }
@@ -301,23 +306,37 @@ public class Page implements IPage {
             BTreeStorage storage = map.getBTreeStorage();
             int compressionLevel = storage.getCompressionLevel();
             if (compressionLevel > 0) {
+                byte[] exp = new byte[expLen];
+                buff.position(compressStart).get(exp);
                 Compressor compressor;
                 int compressType;
-                if (compressionLevel == 1) {
+                int codec = -1; // LZF和不带字典的Deflate使用老的格式，其他的压缩算法需要在压缩数据前记录算法id
+                if (compressionLevel == Compressor.LZF) {
                     compressor = storage.getCompressorFast();
                     compressType = PageUtils.PAGE_COMPRESSED;
+                } else if (compressionLevel == Compressor.DEFLATE) {
+                    compressor = storage.getDictionaryCompressor(exp, expLen);
+                    if (compressor != null) {
+                        compressType = PageUtils.PAGE_COMPRESSED_CODEC;
+                        codec = Compressor.DEFLATE | PageUtils.CODEC_DICTIONARY;
+                    } else {
+                        compressor = storage.getCompressorHigh();
+                        compressType = PageUtils.PAGE_COMPRESSED_HIGH;
+                    }
                 } else {
-                    compressor = storage.getCompressorHigh();
-                    compressType = PageUtils.PAGE_COMPRESSED_HIGH;
+                    compressor = storage.getCompressor(compressionLevel);
+                    compressType = PageUtils.PAGE_COMPRESSED_CODEC;
+                    codec = compressionLevel;
                 }
-                byte[] exp = new byte[expLen];
-                buff.position(compressStart).get(exp);
                 byte[] comp = new byte[expLen * 2];
                 int compLen = compressor.compress(exp, expLen, comp, 0);
-                int plus = DataUtils.getVarIntLen(compLen - expLen);
+                int plus = DataUtils.getVarIntLen(compLen - expLen) + (codec < 0 ? 0 : 1);
                 if (compLen + plus < expLen) {
                     buff.position(typePos).put((byte) (type + compressType));
-                    buff.position(compressStart).putVarInt(expLen - compLen).put(comp, 0, compLen);
+                    buff.position(compressStart);
+                    if (codec >= 0)
+                        buff.put((byte) codec);
+                    buff.putVarInt(expLen - compLen).put(comp, 0, compLen);
                 }
             }
         }
@@ -326,11 +345,18 @@ public class Page implements IPage {
     ByteBuffer expandPage(ByteBuffer buff, int type, int start, int pageLength) {
         boolean compressed = (type & PageUtils.PAGE_COMPRESSED) != 0;
         if (compressed) {
+            BTreeStorage storage = map.getBTreeStorage();
             Compressor compressor;
-            if ((type & PageUtils.PAGE_COMPRESSED_HIGH) == PageUtils.PAGE_COMPRESSED_HIGH) {
-                compressor = map.getBTreeStorage().getCompressorHigh();
+            if ((type & PageUtils.PAGE_COMPRESSED_CODEC) == PageUtils.PAGE_COMPRESSED_CODEC) {
+                int codec = buff.get() & 0xFF;
+                if ((codec & PageUtils.CODEC_DICTIONARY) != 0)
+                    compressor = storage.getDictionaryCompressor();
+                else
+                    compressor = storage.getCompressor(codec);
+            } else if ((type & PageUtils.PAGE_COMPRESSED_HIGH) == PageUtils.PAGE_COMPRESSED_HIGH) {
+                compressor = storage.getCompressorHigh();
             } else {
-                compressor = map.getBTreeStorage().getCompressorFast();
+                compressor = storage.getCompressorFast();
             }
             int lenAdd = DataUtils.readVarInt(buff);
             int compLen = pageLength + start - buff.position();
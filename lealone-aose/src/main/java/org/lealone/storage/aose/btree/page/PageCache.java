@@ -0,0 +1,294 @@
+/*
+ * Copyright Lealone Database Group.
+ * Licensed under the Server Side Public License, v 1.
+ * Initial Developer: zhh
+ */
+package org.lealone.storage.aose.btree.page;
+
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 同一个AOStorage下的所有BTreeMap共享的page缓存，缓存的是从chunk文件中读出来的page原始字节。
+ *
+ * <p>
+ * 使用2Q算法淘汰，新读入的page先放到A1in队列(FIFO)，只有被淘汰后又很快被再次读取的page才会进入Am队列(LRU)，
+ * 所以全表扫描只会在A1in队列中循环，不会把Am队列中的热点page挤出去。
+ */
+public class PageCache {
+
+    private static final int SEGMENT_COUNT = 16;
+    private static final AtomicInteger nextMapId = new AtomicInteger();
+
+    public static int nextMapId() {
+        return nextMapId.incrementAndGet();
+    }
+
+    private final Segment[] segments;
+    private final long maxMemory;
+
+    public PageCache(long maxMemory) {
+        this.maxMemory = maxMemory;
+        long segmentMaxMemory = Math.max(1, maxMemory / SEGMENT_COUNT);
+        segments = new Segment[SEGMENT_COUNT];
+        for (int i = 0; i < SEGMENT_COUNT; i++)
+            segments[i] = new Segment(segmentMaxMemory);
+    }
+
+    public long getMaxMemory() {
+        return maxMemory;
+    }
+
+    public long getUsedMemory() {
+        long used = 0;
+        for (Segment s : segments)
+            used += s.usedMemory;
+        return used;
+    }
+
+    private Segment getSegment(Key key) {
+        return segments[(key.hashCode() & 0x7fffffff) % SEGMENT_COUNT];
+    }
+
+    public ByteBuffer get(Stats stats, long pos) {
+        Key key = new Key(stats.mapId, pos);
+        ByteBuffer buff = getSegment(key).get(key);
+        if (buff != null)
+            stats.hits.incrementAndGet();
+        else
+            stats.misses.incrementAndGet();
+        return buff;
+    }
+
+    public void put(Stats stats, long pos, ByteBuffer buff) {
+        Key key = new Key(stats.mapId, pos);
+        getSegment(key).put(key, new CachedPage(stats, buff));
+    }
+
+    public void remove(Stats stats, long pos) {
+        Key key = new Key(stats.mapId, pos);
+        getSegment(key).remove(key);
+    }
+
+    // chunk id会被复用，删除chunk文件时要把它的page都从缓存中清除
+    public void removeChunk(Stats stats, int chunkId) {
+        for (Segment s : segments)
+            s.removeIf(stats.mapId, chunkId);
+    }
+
+    public void removeMap(Stats stats) {
+        for (Segment s : segments)
+            s.removeIf(stats.mapId, -1);
+    }
+
+    private static class Key {
+
+        final int mapId;
+        final long pos;
+
+        Key(int mapId, long pos) {
+            this.mapId = mapId;
+            this.pos = pos;
+        }
+
+        @Override
+        public int hashCode() {
+            return mapId * 31 + Long.hashCode(pos);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o)
+                return true;
+            if (!(o instanceof Key))
+                return false;
+            Key k = (Key) o;
+            return mapId == k.mapId && pos == k.pos;
+        }
+    }
+
+    private static class CachedPage {
+
+        final Stats stats;
+        final ByteBuffer buff;
+
+        CachedPage(Stats stats, ByteBuffer buff) {
+            this.stats = stats;
+            this.buff = buff;
+        }
+
+        int getMemory() {
+            return buff.limit();
+        }
+    }
+
+    private static class Segment {
+
+        private final long maxMemory;
+        private final long maxA1inMemory; // A1in队列最多占1/4
+
+        private final LinkedHashMap<Key, CachedPage> a1in = new LinkedHashMap<>();
+        private final LinkedHashMap<Key, CachedPage> am = new LinkedHashMap<>(16, 0.75f, true);
+        // 只记录刚被A1in淘汰的key，不保存page
+        private final LinkedHashMap<Key, Boolean> a1out = new LinkedHashMap<>();
+
+        private volatile long usedMemory;
+        private long a1inMemory;
+
+        Segment(long maxMemory) {
+            this.maxMemory = maxMemory;
+            this.maxA1inMemory = Math.max(1, maxMemory / 4);
+        }
+
+        synchronized ByteBuffer get(Key key) {
+            CachedPage e = am.get(key); // 会移到LRU队列的尾部
+            if (e == null)
+                e = a1in.get(key); // 在A1in队列中命中时不调整位置
+            return e == null ? null : e.buff;
+        }
+
+        synchronized void put(Key key, CachedPage e) {
+            if (a1in.containsKey(key) || am.containsKey(key))
+                return;
+            int memory = e.getMemory();
+            if (memory > maxMemory)
+                return;
+            if (a1out.remove(key) != null) {
+                am.put(key, e);
+            } else {
+                a1in.put(key, e);
+                a1inMemory += memory;
+            }
+            usedMemory += memory;
+            e.stats.usedMemory.addAndGet(memory);
+            evict();
+        }
+
+        private void evict() {
+            while (usedMemory > maxMemory) {
+                if (a1inMemory > maxA1inMemory || am.isEmpty()) {
+                    Iterator<Map.Entry<Key, CachedPage>> it = a1in.entrySet().iterator();
+                    if (!it.hasNext())
+                        break;
+                    Map.Entry<Key, CachedPage> head = it.next();
+                    it.remove();
+                    a1inMemory -= head.getValue().getMemory();
+                    release(head.getValue());
+                    a1out.put(head.getKey(), Boolean.TRUE);
+                    trimA1out();
+                } else {
+                    Iterator<CachedPage> it = am.values().iterator();
+                    CachedPage head = it.next();
+                    it.remove();
+                    release(head);
+                }
+            }
+        }
+
+        // A1out最多记录缓存中page个数一半的key
+        private void trimA1out() {
+            int max = Math.max(16, (a1in.size() + am.size()) / 2);
+            Iterator<Key> it = a1out.keySet().iterator();
+            while (a1out.size() > max && it.hasNext()) {
+                it.next();
+                it.remove();
+            }
+        }
+
+        private void release(CachedPage e) {
+            int memory = e.getMemory();
+            usedMemory -= memory;
+            e.stats.usedMemory.addAndGet(-memory);
+            e.stats.evictions.incrementAndGet();
+        }
+
+        synchronized void remove(Key key) {
+            a1out.remove(key);
+            CachedPage e = a1in.remove(key);
+            if (e != null) {
+                a1inMemory -= e.getMemory();
+            } else {
+                e = am.remove(key);
+            }
+            if (e != null) {
+                usedMemory -= e.getMemory();
+                e.stats.usedMemory.addAndGet(-e.getMemory());
+            }
+        }
+
+        // chunkId为-1时删除map的所有page
+        synchronized void removeIf(int mapId, int chunkId) {
+            removeIf(a1in, mapId, chunkId, true);
+            removeIf(am, mapId, chunkId, false);
+            a1out.keySet().removeIf(k -> matches(k, mapId, chunkId));
+        }
+
+        private void removeIf(LinkedHashMap<Key, CachedPage> queue, int mapId, int chunkId,
+                boolean isA1in) {
+            Iterator<Map.Entry<Key, CachedPage>> it = queue.entrySet().iterator();
+            while (it.hasNext()) {
+                Map.Entry<Key, CachedPage> e = it.next();
+                if (matches(e.getKey(), mapId, chunkId)) {
+                    it.remove();
+                    int memory = e.getValue().getMemory();
+                    if (isA1in)
+                        a1inMemory -= memory;
+                    usedMemory -= memory;
+                    e.getValue().stats.usedMemory.addAndGet(-memory);
+                }
+            }
+        }
+
+        private static boolean matches(Key k, int mapId, int chunkId) {
+            return k.mapId == mapId && (chunkId < 0 || PageUtils.getPageChunkId(k.pos) == chunkId);
+        }
+    }
+
+    /**
+     * 每个BTreeMap在共享缓存中的统计信息
+     */
+    public static class Stats {
+
+        private final int mapId;
+        private final AtomicLong hits = new AtomicLong();
+        private final AtomicLong misses = new AtomicLong();
+        private final AtomicLong evictions = new AtomicLong();
+        private final AtomicLong usedMemory = new AtomicLong();
+
+        public Stats() {
+            mapId = nextMapId();
+        }
+
+        public long getHits() {
+            return hits.get();
+        }
+
+        public long getMisses() {
+            return misses.get();
+        }
+
+        public long getEvictions() {
+            return evictions.get();
+        }
+
+        public long getUsedMemory() {
+            return usedMemory.get();
+        }
+
+        public double getHitRate() {
+            long h = hits.get();
+            long total = h + misses.get();
+            return total == 0 ? 0 : (double) h / total;
+        }
+
+        @Override
+        public String toString() {
+            return "PageCache.Stats[hits=" + hits + ", misses=" + misses + ", evictions=" + evictions
+                    + ", usedMemory=" + usedMemory + "]";
+        }
+    }
+}
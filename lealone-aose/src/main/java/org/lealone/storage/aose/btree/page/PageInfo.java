@@ -51,8 +51,9 @@ public class PageInfo {
         return page == null ? 0 : page.getMemory();
     }
 
+    // 从映射的chunk文件中读到的page不占用堆内存
     public int getBuffMemory() {
-        return buff == null ? 0 : buff.limit();
+        return buff == null || buff.isDirect() ? 0 : buff.limit();
     }
 
     public int getTotalMemory() {
@@ -89,6 +89,7 @@ public abstract class PageOperations {
                     pRef.unlock();
                     return PageOperationResult.RETRY;
                 }
+                map.beforeWrite();
                 writeLocal(poHandler);
                 return PageOperationResult.SUCCEEDED;
             } else {
@@ -6,6 +6,7 @@
 package org.lealone.storage.aose.btree.page;
 
 import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
 import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
 
 import org.lealone.common.exceptions.DbException;
@@ -265,13 +266,29 @@ public class PageReference {
     }
 
     // 不改变page，只是改变pos
+    // 一直往同一个page追加记录时，它会被连续切分很多次，切分链很深，所以用循环代替递归，避免栈溢出
     public void markDirtyPage() {
+        ArrayDeque<PageReference> refs = null;
+        PageReference ref = this;
+        while (ref != null) {
+            PageInfo splitted = ref.markDirtyPage0();
+            if (splitted != null) {
+                if (refs == null)
+                    refs = new ArrayDeque<>();
+                refs.push(splitted.getRightRef());
+                ref = splitted.getLeftRef();
+            } else {
+                ref = refs == null ? null : refs.poll();
+            }
+        }
+    }
+
+    // 已经切分了就返回切分后的PageInfo，由调用者接着标记左右两个page
+    private PageInfo markDirtyPage0() {
         while (true) {
             PageInfo pInfoOld = this.pInfo;
             if (pInfoOld.isSplitted()) {
-                pInfoOld.getLeftRef().markDirtyPage();
-                pInfoOld.getRightRef().markDirtyPage();
-                break;
+                return pInfoOld;
             }
             PageInfo pInfoNew = pInfoOld.copy(0);
             pInfoNew.buff = null; // 废弃了
@@ -284,11 +301,11 @@ public class PageReference {
                     addRemovedPage(pInfoOld.getPos());
                     bs.getBTreeGC().addUsedMemory(-pInfoOld.getBuffMemory());
                 }
-                return;
+                return null;
             } else if (getPageInfo().getPos() != 0) { // 刷脏页线程刚写完，需要重试
                 continue;
             } else {
-                return; // 如果pos为0就不需要试了
+                return null; // 如果pos为0就不需要试了
             }
         }
     }
@@ -22,6 +22,18 @@ public class PageUtils {
      */
     public static final int PAGE_TYPE_COLUMN = 2;
 
+    /**
+     * The bit mask in the page type byte of a column page, if the values are
+     * encoded with ColumnEncoding.
+     */
+    public static final int PAGE_COLUMN_ENCODED = 16;
+
+    /**
+     * The bit mask in the page type byte of a column storage leaf page, if the
+     * statistics of each column are stored after the positions of the column pages.
+     */
+    public static final int PAGE_HAS_COLUMN_STATS = 32;
+
     /**
      * The bit mask for compressed pages (compression level fast).
      */
@@ -32,6 +44,18 @@ public class PageUtils {
      */
     public static final int PAGE_COMPRESSED_HIGH = 2 + 4;
 
+    /**
+     * The bit mask for compressed pages, the compression algorithm is stored
+     * in the byte before the compressed data.
+     */
+    public static final int PAGE_COMPRESSED_CODEC = 2 + 8;
+
+    /**
+     * The bit mask of the compression algorithm byte, if the page is compressed
+     * with the dictionary of the map.
+     */
+    public static final int CODEC_DICTIONARY = 0x80;
+
     /**
      * The estimated number of bytes used per page object.
      */
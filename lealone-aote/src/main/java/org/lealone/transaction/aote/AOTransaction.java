@@ -252,14 +252,13 @@ public class AOTransaction implements Transaction {
     private void writeRedoLog(boolean asyncCommit) {
         checkNotClosed();
         if (logSyncService.needSync() && undoLog.isNotEmpty()) {
-            long logId = logSyncService.nextLogId();
             RedoLogRecord r = createLocalTransactionRedoLogRecord();
             if (lobTask != null)
                 r = new LobSave(lobTask, r);
             if (asyncCommit) {
-                logSyncService.asyncWrite(this, r, logId);
+                logSyncService.asyncWrite(this, r);
             } else {
-                logSyncService.syncWrite(this, r, logId);
+                logSyncService.syncWrite(this, r);
             }
         } else {
             if (lobTask != null)
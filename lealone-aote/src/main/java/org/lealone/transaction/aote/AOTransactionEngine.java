@@ -10,12 +10,17 @@ import java.lang.management.MemoryUsage;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.Map;
-import java.util.Map.Entry;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ConcurrentSkipListMap;
 import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
@@ -23,6 +28,7 @@ import java.util.concurrent.atomic.AtomicLong;
 
 import org.lealone.common.logging.Logger;
 import org.lealone.common.logging.LoggerFactory;
+import org.lealone.common.util.LatencyHistogram;
 import org.lealone.common.util.MapUtils;
 import org.lealone.common.util.ShutdownHookUtils;
 import org.lealone.db.MemoryManager;
@@ -57,8 +63,11 @@ public class AOTransactionEngine extends TransactionEngineBase implements Storag
     private final ConcurrentSkipListMap<Long, AOTransaction> currentTransactions //
             = new ConcurrentSkipListMap<>();
 
-    private final ConcurrentHashMap<TransactionalValue, TransactionalValue.OldValue> tValues //
-            = new ConcurrentHashMap<>();
+    // 按提交的先后顺序记录旧版本链的链头，旧版本链跟记录放在一起，读的时候不需要查这个队列
+    private final ConcurrentLinkedQueue<OldValue> oldValues = new ConcurrentLinkedQueue<>();
+    // 上一次gc时最老的可重复读事务的tid，没有可重复读事务时是当时最大的事务id，
+    // 之后开始的事务的tid只会更大，所以提交时用它来截断旧版本链是安全的
+    private volatile long minRepeatableReadTransactionId;
 
     private final AtomicLong lastTransactionId = new AtomicLong();
     // repeatable read 事务数
@@ -79,6 +88,13 @@ public class AOTransactionEngine extends TransactionEngineBase implements Storag
         return logSyncService;
     }
 
+    @Override
+    public Map<String, LatencyHistogram> getLatencyHistograms() {
+        if (logSyncService == null)
+            return Collections.emptyMap();
+        return logSyncService.getLatencyHistograms();
+    }
+
     AOTransaction removeTransaction(long tid) {
         AOTransaction t = currentTransactions.remove(tid);
         if (t != null && t.isRepeatableRead())
@@ -99,7 +115,7 @@ public class AOTransactionEngine extends TransactionEngineBase implements Storag
     void removeStorageMap(AOTransaction transaction, String mapName) {
         if (maps.remove(mapName) != null) {
             RedoLogRecord r = RedoLogRecord.createDroppedMapRedoLogRecord(mapName);
-            logSyncService.syncWrite(transaction, r, logSyncService.nextLogId());
+            logSyncService.syncWrite(transaction, r);
         }
     }
 
@@ -191,6 +207,7 @@ public class AOTransactionEngine extends TransactionEngineBase implements Storag
                 // 当成周期性任务在调度器中执行时不用等它结束，执行一次checkpoint再close
                 checkpointService.executeCheckpoint();
                 checkpointService.close();
+                checkpointService.shutdownSaveExecutor();
             }
         }
         if (checkpointService.isRunning) {
@@ -278,18 +295,12 @@ public class AOTransactionEngine extends TransactionEngineBase implements Storag
         }
     }
 
-    void addTransactionalValue(TransactionalValue tv, TransactionalValue.OldValue ov) {
-        tValues.put(tv, ov);
-    }
-
-    TransactionalValue.OldValue getOldValue(TransactionalValue tv) {
-        return tValues.get(tv);
+    void addOldValue(OldValue head) {
+        oldValues.add(head);
     }
 
-    private void removeTValues() {
-        for (Entry<TransactionalValue, OldValue> e : tValues.entrySet()) {
-            tValues.remove(e.getKey(), e.getValue()); // 如果不是原来的就不删除
-        }
+    long getMinRepeatableReadTransactionId() {
+        return minRepeatableReadTransactionId;
     }
 
     @Override
@@ -346,7 +357,7 @@ public class AOTransactionEngine extends TransactionEngineBase implements Storag
 
     private void gc() {
         gcMaps();
-        gcTValues();
+        gcOldValues();
         executeGcTasks();
     }
 
@@ -364,35 +375,22 @@ public class AOTransactionEngine extends TransactionEngineBase implements Storag
         }
     }
 
-    private void gcTValues() {
-        if (tValues.isEmpty())
-            return;
-        if (!containsRepeatableReadTransactions()) {
-            removeTValues();
+    // 只检查队列头部那些tid比最老的可重复读事务还小的链头，不用扫描所有的旧版本链
+    private void gcOldValues() {
+        if (oldValues.isEmpty())
             return;
-        }
-        long minTid = Long.MAX_VALUE;
-        for (AOTransaction t : currentTransactions.values()) {
-            if (t.isRepeatableRead() && t.getTransactionId() < minTid)
-                minTid = t.getTransactionId();
-        }
-        if (minTid != Long.MAX_VALUE) {
-            for (Entry<TransactionalValue, OldValue> e : tValues.entrySet()) {
-                OldValue oldValue = e.getValue();
-                if (oldValue != null && oldValue.tid < minTid) {
-                    tValues.remove(e.getKey(), oldValue); // 如果不是原来的就不删除
-                    continue;
-                }
-                while (oldValue != null) {
-                    if (oldValue.tid < minTid) {
-                        oldValue.next = null;
-                        break;
-                    }
-                    oldValue = oldValue.next;
-                }
+        long minTid = lastTransactionId.get();
+        if (containsRepeatableReadTransactions()) {
+            for (AOTransaction t : currentTransactions.values()) {
+                if (t.isRepeatableRead() && t.getTransactionId() < minTid)
+                    minTid = t.getTransactionId();
             }
-        } else {
-            removeTValues();
+        }
+        minRepeatableReadTransactionId = minTid;
+        OldValue head;
+        while ((head = oldValues.peek()) != null && head.tid < minTid) {
+            oldValues.poll();
+            head.owner.removeOldValues(head);
         }
     }
 
@@ -412,6 +410,17 @@ public class AOTransactionEngine extends TransactionEngineBase implements Storag
         private final long dirtyPageCacheSize;
         private final long checkpointPeriod;
         private final long loopInterval;
+        // 不同的map可以并发保存，为1时在checkpoint线程中依次保存
+        private final int saveThreads;
+        private ExecutorService saveExecutor;
+
+        // 以下是最近一次checkpoint的统计信息
+        private volatile long checkpointCount;
+        private volatile long lastCheckpointDuration; // 单位毫秒
+        private volatile long lastCheckpointDirtyMemory;
+        private volatile int lastCheckpointMapCount;
+        private volatile long lastCheckpointSavedBytes; // 实际写到磁盘的字节数
+        private final AtomicLong savedBytes = new AtomicLong(); // 多个线程并发保存map时累加
 
         private volatile long lastSavedAt = System.currentTimeMillis();
         private volatile boolean isClosed;
@@ -431,6 +440,10 @@ public class AOTransactionEngine extends TransactionEngineBase implements Storag
             if (checkpointPeriod < loopInterval)
                 loopInterval = checkpointPeriod;
             this.loopInterval = loopInterval;
+            // 默认最多4个线程
+            int saveThreads = MapUtils.getInt(config, "checkpoint_save_threads",
+                    Math.min(4, Runtime.getRuntime().availableProcessors()));
+            this.saveThreads = Math.max(1, saveThreads);
         }
 
         void close() {
@@ -460,7 +473,7 @@ public class AOTransactionEngine extends TransactionEngineBase implements Storag
                 executeCheckpoint = dirtyMemory.get() > dirtyPageCacheSize;
             }
             if (executeCheckpoint) {
-                long logId = logSyncService.nextLogId();
+                long logId = logSyncService.nextCheckpointId();
                 // 1.先切换redo log chunk文件
                 addPendingCheckpoint(logId, false, force);
             }
@@ -468,17 +481,33 @@ public class AOTransactionEngine extends TransactionEngineBase implements Storag
 
         private void save(long logId, boolean force) {
             long now = System.currentTimeMillis();
+            savedBytes.set(0);
             try {
+                ArrayList<StorageMap<?, ?>> saveMaps = new ArrayList<>();
+                long dirtyMemory = 0;
                 for (StorageMap<?, ?> map : maps.values()) {
                     if (map.isClosed())
                         continue;
-                    Long dirtyMemory = dirtyMaps.get(map.getName());
-                    if (dirtyMemory != null)
-                        map.save(dirtyMemory.longValue());
-                    else if (force || map.hasUnsavedChanges())
-                        map.save();
+                    Long dm = dirtyMaps.get(map.getName());
+                    if (dm != null) {
+                        dirtyMemory += dm.longValue();
+                        saveMaps.add(map);
+                    } else if (force || map.hasUnsavedChanges()) {
+                        saveMaps.add(map);
+                    }
+                }
+                if (saveThreads <= 1 || saveMaps.size() <= 1) {
+                    for (StorageMap<?, ?> map : saveMaps)
+                        save(map, dirtyMaps.get(map.getName()));
+                } else {
+                    saveConcurrently(saveMaps);
                 }
                 lastSavedAt = now;
+                checkpointCount++;
+                lastCheckpointDuration = System.currentTimeMillis() - now;
+                lastCheckpointDirtyMemory = dirtyMemory;
+                lastCheckpointMapCount = saveMaps.size();
+                lastCheckpointSavedBytes = savedBytes.get();
                 // 2. 最后再把checkpoint对应的redo log放到最后那个chunk文件
                 addPendingCheckpoint(logId, true, force);
             } catch (Throwable t) {
@@ -487,6 +516,92 @@ public class AOTransactionEngine extends TransactionEngineBase implements Storag
             }
         }
 
+        private void save(StorageMap<?, ?> map, Long dirtyMemory) {
+            long bytes = map.getSavedBytes();
+            if (dirtyMemory != null)
+                map.save(dirtyMemory.longValue());
+            else
+                map.save();
+            savedBytes.addAndGet(map.getSavedBytes() - bytes);
+        }
+
+        // 每个map有自己的chunk文件，所以不同的map可以并发保存，但是要等所有的map都保存完才算完成checkpoint
+        private synchronized void saveConcurrently(ArrayList<StorageMap<?, ?>> saveMaps)
+                throws Throwable {
+            if (saveExecutor == null) {
+                AtomicInteger threadId = new AtomicInteger();
+                saveExecutor = Executors.newFixedThreadPool(saveThreads, r -> {
+                    Thread t = new Thread(r, "CheckpointSaveThread-" + threadId.incrementAndGet());
+                    t.setDaemon(true);
+                    return t;
+                });
+            }
+            ArrayList<Future<?>> futures = new ArrayList<>(saveMaps.size());
+            for (StorageMap<?, ?> map : saveMaps) {
+                Long dirtyMemory = dirtyMaps.get(map.getName());
+                futures.add(saveExecutor.submit(() -> save(map, dirtyMemory)));
+            }
+            Throwable exception = null;
+            for (Future<?> f : futures) {
+                try {
+                    f.get();
+                } catch (ExecutionException e) {
+                    if (exception == null)
+                        exception = e.getCause();
+                } catch (Exception e) {
+                    if (exception == null)
+                        exception = e;
+                }
+            }
+            if (exception != null)
+                throw exception;
+        }
+
+        synchronized void shutdownSaveExecutor() {
+            if (saveExecutor != null) {
+                saveExecutor.shutdown();
+                saveExecutor = null;
+            }
+        }
+
+        public long getCheckpointCount() {
+            return checkpointCount;
+        }
+
+        public long getLastCheckpointDuration() {
+            return lastCheckpointDuration;
+        }
+
+        public long getLastCheckpointDirtyMemory() {
+            return lastCheckpointDirtyMemory;
+        }
+
+        public int getLastCheckpointMapCount() {
+            return lastCheckpointMapCount;
+        }
+
+        public long getLastCheckpointSavedBytes() {
+            return lastCheckpointSavedBytes;
+        }
+
+        // 每秒写到磁盘的字节数，按保存map时实际写入chunk文件的字节数计算
+        public long getLastCheckpointBytesPerSecond() {
+            long duration = lastCheckpointDuration;
+            return lastCheckpointSavedBytes * 1000 / Math.max(1, duration);
+        }
+
+        @Override
+        public Map<String, Long> getStatistics() {
+            LinkedHashMap<String, Long> statistics = new LinkedHashMap<>();
+            statistics.put("CHECKPOINT_COUNT", checkpointCount);
+            statistics.put("LAST_DURATION_MILLIS", lastCheckpointDuration);
+            statistics.put("LAST_MAP_COUNT", (long) lastCheckpointMapCount);
+            statistics.put("LAST_DIRTY_MEMORY", lastCheckpointDirtyMemory);
+            statistics.put("LAST_SAVED_BYTES", lastCheckpointSavedBytes);
+            statistics.put("LAST_BYTES_PER_SECOND", getLastCheckpointBytesPerSecond());
+            return statistics;
+        }
+
         @Override
         public void run() {
             isRunning = true;
@@ -505,6 +620,7 @@ public class AOTransactionEngine extends TransactionEngineBase implements Storag
                 await();
                 gcPendingCheckpoints();
             }
+            shutdownSaveExecutor();
             isRunning = false;
             MemoryManager.setGlobalMemoryListener(null);
             latch.countDown();
@@ -531,10 +647,9 @@ public class AOTransactionEngine extends TransactionEngineBase implements Storag
                     return; // 前一个检查点第一阶段没有完成就不生成第二个检查点
                 }
                 if (!forceCheckpointTasks.isEmpty()) {
-                    ArrayList<Runnable> tasks = new ArrayList<>(forceCheckpointTasks);
-                    forceCheckpointTasks.removeAll(tasks);
-                    for (Runnable task : tasks)
-                        task.run();
+                    // 多个强制检查点合并成一个就够了，连续执行时后一个会在前一个还没有完成时又加入新的检查点
+                    forceCheckpointTasks.clear();
+                    checkpoint(true);
                 } else {
                     checkpoint(false);
                 }
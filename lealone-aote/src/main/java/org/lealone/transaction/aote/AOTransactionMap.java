@@ -5,6 +5,9 @@
  */
 package org.lealone.transaction.aote;
 
+import java.util.AbstractMap;
+import java.util.Iterator;
+import java.util.Map;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.atomic.AtomicBoolean;
 
@@ -19,6 +22,8 @@ import org.lealone.storage.CursorParameters;
 import org.lealone.storage.Storage;
 import org.lealone.storage.StorageMap;
 import org.lealone.storage.StorageMapCursor;
+import org.lealone.storage.page.ColumnBatch;
+import org.lealone.storage.page.ColumnStatsFilter;
 import org.lealone.storage.page.IPage;
 import org.lealone.storage.type.StorageDataType;
 import org.lealone.transaction.Transaction;
@@ -289,6 +294,14 @@ public class AOTransactionMap<K, V> implements TransactionMap<K, V> {
                 return cursor.getPage();
             }
 
+            @Override
+            public ColumnBatch nextBatchWithStats(ColumnStatsFilter statsFilter) {
+                // 只有已经提交、没有被锁住并且当前事务看到的就是最新值的记录才能直接用列page中的值，
+                // 可重复读的事务可能还要看旧值
+                return cursor.nextBatch(tv -> tv.getTransaction() == null && tv.getValue() != null
+                        && tv.getValue(transaction) == tv.getValue(), statsFilter);
+            }
+
             @Override
             @SuppressWarnings("unchecked")
             public boolean next() {
@@ -365,6 +378,24 @@ public class AOTransactionMap<K, V> implements TransactionMap<K, V> {
         map.repair();
     }
 
+    // 跟关闭undo log时的addIfAbsent一样直接写入已经提交的值，只在建索引这类没有并发读写的场景使用
+    @Override
+    public boolean bulkLoad(Iterator<? extends Map.Entry<K, V>> entries) {
+        return map.bulkLoad(new Iterator<Map.Entry<K, TransactionalValue>>() {
+            @Override
+            public boolean hasNext() {
+                return entries.hasNext();
+            }
+
+            @Override
+            public Map.Entry<K, TransactionalValue> next() {
+                Map.Entry<K, V> e = entries.next();
+                return new AbstractMap.SimpleImmutableEntry<>(e.getKey(),
+                        TransactionalValue.createCommitted(e.getValue()));
+            }
+        });
+    }
+
     @Override
     public void gc(TransactionEngine te) {
         map.gc(te);
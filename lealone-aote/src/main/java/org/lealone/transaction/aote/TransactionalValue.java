@@ -18,13 +18,16 @@ import org.lealone.transaction.aote.lock.InsertRowLock;
 import org.lealone.transaction.aote.lock.RowLock;
 
 //每个表的每一条记录都对应这个类的一个实例，所以不能随意在这个类中加新的字段
+//(开启指针压缩时对象头12字节加3个引用字段刚好是24字节，跟只有2个引用字段时占用的内存一样)
 public class TransactionalValue implements ITransactionalValue {
 
+    // 可重复读事务需要的旧版本链，按tid从大到小排列，链头的tid是最后一次提交的时间戳
     public static class OldValue {
         final long tid;
         final Object value;
         OldValue next;
         boolean useLast;
+        TransactionalValue owner; // 只有链头才设置，用于回收
 
         public OldValue(long tid, Object value) {
             this.tid = tid;
@@ -38,10 +41,14 @@ public class TransactionalValue implements ITransactionalValue {
     private static final AtomicReferenceFieldUpdater<TransactionalValue, RowLock> rowLockUpdater = //
             AtomicReferenceFieldUpdater.newUpdater(TransactionalValue.class, RowLock.class, "rowLock");
 
+    private static final AtomicReferenceFieldUpdater<TransactionalValue, OldValue> oldValuesUpdater = //
+            AtomicReferenceFieldUpdater.newUpdater(TransactionalValue.class, OldValue.class, "oldValues");
+
     private static final RowLock NULL = new RowLock();
 
     private volatile RowLock rowLock = NULL;
     private Object value;
+    private volatile OldValue oldValues;
 
     public TransactionalValue(Object value) {
         this.value = value;
@@ -110,7 +117,7 @@ public class TransactionalValue implements ITransactionalValue {
             if (t != null && t.commitTimestamp > 0 && tid >= t.commitTimestamp) {
                 return value;
             }
-            OldValue oldValue = transaction.transactionEngine.getOldValue(this);
+            OldValue oldValue = oldValues;
             if (oldValue != null) {
                 if (tid >= oldValue.tid) {
                     if (t != null && rowLock.getOldValue() != null)
@@ -187,10 +194,10 @@ public class TransactionalValue implements ITransactionalValue {
         if (te.containsRepeatableReadTransactions()) {
             if (isInsert) {
                 OldValue v = new OldValue(t.commitTimestamp, value);
-                te.addTransactionalValue(this, v);
+                addOldValue(te, v);
             } else {
                 long maxTid = te.getMaxRepeatableReadTransactionId();
-                OldValue old = te.getOldValue(this);
+                OldValue old = oldValues;
                 // 如果现有的版本已经足够给所有的可重复读事务使用了，那就不再加了
                 if (old != null && old.tid > maxTid) {
                     old.useLast = true;
@@ -207,11 +214,35 @@ public class TransactionalValue implements ITransactionalValue {
                 } else {
                     v.next = old;
                 }
-                te.addTransactionalValue(this, v);
+                if (old != null)
+                    trimOldValues(old, te.getMinRepeatableReadTransactionId());
+                addOldValue(te, v);
             }
         }
     }
 
+    private void addOldValue(AOTransactionEngine te, OldValue v) {
+        v.owner = this;
+        oldValues = v;
+        te.addOldValue(v);
+    }
+
+    // 最老的可重复读事务都能读到的版本之后的版本已经没用了
+    private static void trimOldValues(OldValue oldValue, long minTid) {
+        while (oldValue != null) {
+            if (oldValue.tid < minTid) {
+                oldValue.next = null;
+                break;
+            }
+            oldValue = oldValue.next;
+        }
+    }
+
+    // 所有可重复读事务都能读到最新的值了，如果链头已经变了就不删除
+    void removeOldValues(OldValue head) {
+        oldValuesUpdater.compareAndSet(this, head, null);
+    }
+
     public boolean isCommitted() {
         AOTransaction t = rowLock.getTransaction();
         return t == null || t.isCommitted();
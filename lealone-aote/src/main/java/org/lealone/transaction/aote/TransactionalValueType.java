@@ -8,6 +8,7 @@ package org.lealone.transaction.aote;
 import java.nio.ByteBuffer;
 
 import org.lealone.db.DataBuffer;
+import org.lealone.db.value.Value;
 import org.lealone.db.value.ValueArray;
 import org.lealone.storage.type.StorageDataType;
 
@@ -91,6 +92,12 @@ public class TransactionalValueType implements StorageDataType {
         valueType.readColumn(buff, v.getValue(), columnIndex);
     }
 
+    @Override
+    public void setColumn(Object obj, Value value, int columnIndex) {
+        TransactionalValue v = (TransactionalValue) obj;
+        valueType.setColumn(v.getValue(), value, columnIndex);
+    }
+
     @Override
     public void setColumns(Object oldObj, Object newObj, int[] columnIndexes) {
         valueType.setColumns(oldObj, newObj, columnIndexes);
@@ -14,5 +14,8 @@ class InstantLogSyncService extends LogSyncService {
     InstantLogSyncService(Map<String, String> config) {
         super(config);
         syncIntervalMillis = MapUtils.getLong(config, "log_sync_service_loop_interval", 100);
+        // 默认最多等1毫秒，为0时关闭组提交
+        maxGroupCommitDelayNanos = MapUtils.getLong(config, "group_commit_max_delay_micros", 1000)
+                * 1000;
     }
 }
@@ -5,15 +5,18 @@
  */
 package org.lealone.transaction.aote.log;
 
+import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import org.lealone.common.exceptions.DbException;
 import org.lealone.common.logging.Logger;
 import org.lealone.common.logging.LoggerFactory;
+import org.lealone.common.util.LatencyHistogram;
 import org.lealone.common.util.MapUtils;
 import org.lealone.db.RunMode;
 import org.lealone.transaction.PendingTransaction;
@@ -28,9 +31,10 @@ public abstract class LogSyncService extends Thread {
     public static final String LOG_SYNC_TYPE_INSTANT = "instant";
     public static final String LOG_SYNC_TYPE_NO_SYNC = "no_sync";
 
-    private final Semaphore haveWork = new Semaphore(1);
-    private final AtomicLong asyncLogQueueSize = new AtomicLong();
     private final AtomicLong lastLogId = new AtomicLong();
+    // 事务拿logId和加入等待队列要一起完成，检查点拿logId时要等正在加入等待队列的事务，
+    // 这样写检查点时，logId比它小的记录一定都已经在等待队列中了
+    private final ReentrantReadWriteLock logIdLock = new ReentrantReadWriteLock();
 
     private final TransactionHandler[] waitingHandlers;
 
@@ -38,12 +42,22 @@ public abstract class LogSyncService extends Thread {
     private final int redoLogRecordSyncThreshold;
     private final RedoLog redoLog;
 
+    // 每个redo log流一个，流0在当前线程中同步，其他的流在streamThreads中同步
+    private LogSyncStream[] streams;
+    private Thread[] streamThreads;
+
     private volatile boolean running = true;
-    private volatile boolean waiting;
 
-    protected volatile long lastSyncedAt = System.currentTimeMillis();
     protected long syncIntervalMillis;
 
+    // 组提交最多等多久，为0时不等，只有instant sync才需要
+    protected long maxGroupCommitDelayNanos;
+
+    // 事务提交后等待redo log同步完成的时间，每次写redo log并fsync的时间，以及组提交每次最多等待的时间
+    private final LatencyHistogram commitLatency = new LatencyHistogram();
+    private final LatencyHistogram syncLatency = new LatencyHistogram();
+    private final LatencyHistogram groupCommitDelay = new LatencyHistogram();
+
     public LogSyncService(Map<String, String> config) {
         setName(getClass().getSimpleName());
         setDaemon(RunMode.isEmbedded(config));
@@ -58,12 +72,41 @@ public abstract class LogSyncService extends Thread {
         return redoLog;
     }
 
-    public long nextLogId() {
-        return lastLogId.incrementAndGet();
+    // 检查点的logId，logId比它小的记录都要写在检查点之前
+    public long nextCheckpointId() {
+        logIdLock.writeLock().lock();
+        try {
+            return lastLogId.incrementAndGet();
+        } finally {
+            logIdLock.writeLock().unlock();
+        }
+    }
+
+    // 恢复时用redo log中最大的logId初始化，重启后写的记录的logId才会比已有的记录大
+    void initLastLogId(long logId) {
+        if (logId > lastLogId.get())
+            lastLogId.set(logId);
+    }
+
+    AtomicLong getAsyncLogQueueSize(int streamId) {
+        return streams[streamId].asyncLogQueueSize;
     }
 
-    public AtomicLong getAsyncLogQueueSize() {
-        return asyncLogQueueSize;
+    // 事务所在的流上次同步的时间
+    protected long getLastSyncedAt(AOTransaction t) {
+        return streams[redoLog.getStreamId(t.getTransactionHandler())].lastSyncedAt;
+    }
+
+    public Map<String, LatencyHistogram> getLatencyHistograms() {
+        LinkedHashMap<String, LatencyHistogram> histograms = new LinkedHashMap<>(3);
+        histograms.put("COMMIT", commitLatency);
+        histograms.put("LOG_SYNC", syncLatency);
+        histograms.put("GROUP_COMMIT_DELAY", groupCommitDelay);
+        return histograms;
+    }
+
+    void recordCommitLatency(long nanos) {
+        commitLatency.record(nanos);
     }
 
     public TransactionHandler[] getWaitingHandlers() {
@@ -78,78 +121,59 @@ public abstract class LogSyncService extends Thread {
         return false;
     }
 
+    // 要在RedoLog.init之后调用，此时才知道有几个流
+    @Override
+    public synchronized void start() {
+        int streamCount = redoLog.getStreamCount();
+        streams = new LogSyncStream[streamCount];
+        for (int i = 0; i < streamCount; i++) {
+            streams[i] = new LogSyncStream(i);
+        }
+        streamThreads = new Thread[needSync() ? streamCount - 1 : 0];
+        for (int i = 0; i < streamThreads.length; i++) {
+            Thread t = new Thread(streams[i + 1], getName() + "-" + (i + 1));
+            t.setDaemon(isDaemon());
+            t.start();
+            streamThreads[i] = t;
+        }
+        super.start();
+    }
+
     @Override
     public void run() {
-        while (running) {
-            long syncStarted = System.currentTimeMillis();
-            sync();
-            lastSyncedAt = syncStarted;
-            if (!isPeriodic()) {
-                // 如果是instant sync，只要一有redo log就接着马上同步，无需等待
-                if (asyncLogQueueSize.get() > 0)
-                    continue;
-            } else if (asyncLogQueueSize.get() > redoLogRecordSyncThreshold) {
-                // 如果是periodic sync，只要redo log达到阈值也接着马上同步，无需等待
-                continue;
-            }
-            long now = System.currentTimeMillis();
-            long sleep = syncStarted + syncIntervalMillis - now;
-            if (sleep < 0)
-                continue;
-            waiting = true;
+        streams[0].run();
+        for (Thread t : streamThreads) {
             try {
-                haveWork.tryAcquire(sleep, TimeUnit.MILLISECONDS);
-                haveWork.drainPermits();
+                t.join();
             } catch (InterruptedException e) {
-                throw new AssertionError();
-            } finally {
-                waiting = false;
             }
         }
-        // 结束前最后sync一次
-        sync();
-        // 放在最后，让线程退出后再关闭
+        // 放在最后，让所有流的线程退出后再关闭
         redoLog.close();
     }
 
-    private void sync() {
-        try {
-            redoLog.save();
-        } catch (Exception e) {
-            logger.error("Failed to sync redo log", e);
-        }
-    }
-
-    private void wakeUp() {
-        if (waiting)
-            haveWork.release();
-    }
-
+    // 检查点每个流都要写
     public void asyncWakeUp() {
-        asyncLogQueueSize.getAndIncrement();
-        wakeUp();
+        for (LogSyncStream stream : streams) {
+            stream.asyncLogQueueSize.getAndIncrement();
+            stream.wakeUp();
+        }
     }
 
     public void close() {
         running = false;
-        wakeUp();
-    }
-
-    public void asyncWrite(AOTransaction t, RedoLogRecord r, long logId) {
-        asyncWrite(new PendingTransaction(t, r, logId));
+        for (LogSyncStream stream : streams) {
+            stream.wakeUp();
+        }
     }
 
-    protected void asyncWrite(PendingTransaction pt) {
-        TransactionHandler handler = pt.getTransactionHandler();
-        handler.addTransaction(pt);
-        waitingHandlers[handler.getHandlerId()] = handler;
-        asyncLogQueueSize.getAndIncrement();
-        wakeUp();
+    public void asyncWrite(AOTransaction t, RedoLogRecord r) {
+        addPendingTransaction(t, r, false, null);
     }
 
-    public void syncWrite(AOTransaction t, RedoLogRecord r, long logId) {
+    public void syncWrite(AOTransaction t, RedoLogRecord r) {
         CountDownLatch latch = new CountDownLatch(1);
-        addRedoLogRecord(t, r, logId, latch);
+        addPendingTransaction(t, r, true, latch);
         try {
             latch.await();
         } catch (InterruptedException e) {
@@ -157,16 +181,156 @@ public abstract class LogSyncService extends Thread {
         }
     }
 
-    public void addRedoLogRecord(AOTransaction t, RedoLogRecord r, long logId) {
-        addRedoLogRecord(t, r, logId, null);
+    public void addRedoLogRecord(AOTransaction t, RedoLogRecord r) {
+        addPendingTransaction(t, r, true, null);
+    }
+
+    protected PendingTransaction addPendingTransaction(AOTransaction t, RedoLogRecord r,
+            boolean completed, CountDownLatch latch) {
+        TransactionHandler handler = t.getTransactionHandler();
+        PendingTransaction pt;
+        logIdLock.readLock().lock();
+        try {
+            pt = new PendingTransaction(t, r, lastLogId.incrementAndGet());
+            pt.setCompleted(completed);
+            pt.setLatch(latch);
+            handler.addTransaction(pt);
+            waitingHandlers[handler.getHandlerId()] = handler;
+        } finally {
+            logIdLock.readLock().unlock();
+        }
+        LogSyncStream stream = streams[redoLog.getStreamId(handler)];
+        stream.onArrival();
+        stream.asyncLogQueueSize.getAndIncrement();
+        stream.wakeUp();
+        return pt;
+    }
+
+    // 每个流有自己的chunk文件、等待队列和同步线程，不同流的写入和fsync可以并行
+    //
+    // instant sync使用自适应的组提交: 统计fsync的平均耗时和相邻两次提交的平均间隔，
+    // 如果一次fsync期间预计还会有新的提交到达，就先等一会儿，攒够一次fsync期间预计到达的提交数再同步，
+    // 最多等一次fsync的时间(不超过maxGroupCommitDelayNanos)。负载低时不等待，跟原来一样马上同步。
+    private class LogSyncStream implements Runnable {
+
+        // 空闲很久之后的第一个提交不能把平均间隔拉得太大
+        private static final long MAX_ARRIVAL_INTERVAL_NANOS = 10 * 1000 * 1000;
+        private static final long MAX_GROUP_COMMIT_SIZE = 1024;
+
+        private final int streamId;
+        private final Semaphore haveWork = new Semaphore(1);
+        private final AtomicLong asyncLogQueueSize = new AtomicLong();
+        private volatile boolean waiting;
+        private volatile long lastSyncedAt = System.currentTimeMillis();
+
+        // 以下字段都是统计用的指数移动平均值，多个调度线程并发更新时偶尔丢一次也没关系
+        private volatile long avgSyncNanos;
+        private volatile long avgArrivalNanos = MAX_ARRIVAL_INTERVAL_NANOS;
+        private volatile long lastArrivalAt;
+        private volatile long groupCommitSize; // 组提交等待期间攒够这么多就马上同步
+        private volatile boolean groupCommitWaiting;
+
+        LogSyncStream(int streamId) {
+            this.streamId = streamId;
+        }
+
+        @Override
+        public void run() {
+            while (running) {
+                if (!isPeriodic())
+                    waitForGroupCommit();
+                long syncStarted = System.currentTimeMillis();
+                sync();
+                lastSyncedAt = syncStarted;
+                if (!isPeriodic()) {
+                    // 如果是instant sync，只要一有redo log就接着马上同步，无需等待
+                    if (asyncLogQueueSize.get() > 0)
+                        continue;
+                } else if (asyncLogQueueSize.get() > redoLogRecordSyncThreshold) {
+                    // 如果是periodic sync，只要redo log达到阈值也接着马上同步，无需等待
+                    continue;
+                }
+                long now = System.currentTimeMillis();
+                long sleep = syncStarted + syncIntervalMillis - now;
+                if (sleep < 0)
+                    continue;
+                waiting = true;
+                try {
+                    haveWork.tryAcquire(sleep, TimeUnit.MILLISECONDS);
+                    haveWork.drainPermits();
+                } catch (InterruptedException e) {
+                    throw new AssertionError();
+                } finally {
+                    waiting = false;
+                }
+            }
+            // 结束前最后sync一次
+            sync();
+        }
+
+        private void sync() {
+            long queueSize = asyncLogQueueSize.get();
+            long start = System.nanoTime();
+            try {
+                redoLog.save(streamId);
+            } catch (Exception e) {
+                logger.error("Failed to sync redo log", e);
+            }
+            if (queueSize > 0) {
+                long nanos = System.nanoTime() - start;
+                syncLatency.record(nanos);
+                avgSyncNanos = avgSyncNanos == 0 ? nanos : ewma(avgSyncNanos, nanos);
+            }
+        }
+
+        private void waitForGroupCommit() {
+            long queueSize = asyncLogQueueSize.get();
+            long syncNanos = avgSyncNanos;
+            long arrivalNanos = Math.max(avgArrivalNanos, 1);
+            // 没有要同步的记录，或者一次fsync期间预计不会有新的提交，都不用等
+            if (maxGroupCommitDelayNanos <= 0 || queueSize <= 0 || arrivalNanos >= syncNanos)
+                return;
+            long size = Math.min(syncNanos / arrivalNanos, MAX_GROUP_COMMIT_SIZE);
+            if (queueSize >= size)
+                return;
+            long delay = Math.min((size - queueSize) * arrivalNanos,
+                    Math.min(syncNanos, maxGroupCommitDelayNanos));
+            groupCommitSize = size;
+            groupCommitWaiting = true;
+            groupCommitDelay.record(delay);
+            try {
+                haveWork.drainPermits();
+                if (asyncLogQueueSize.get() < size)
+                    haveWork.tryAcquire(delay, TimeUnit.NANOSECONDS);
+            } catch (InterruptedException e) {
+                throw new AssertionError();
+            } finally {
+                groupCommitWaiting = false;
+            }
+        }
+
+        private void onArrival() {
+            if (maxGroupCommitDelayNanos <= 0)
+                return;
+            long now = System.nanoTime();
+            long last = lastArrivalAt;
+            lastArrivalAt = now;
+            if (last != 0)
+                avgArrivalNanos = ewma(avgArrivalNanos,
+                        Math.min(now - last, MAX_ARRIVAL_INTERVAL_NANOS));
+        }
+
+        private void wakeUp() {
+            if (waiting)
+                haveWork.release();
+            else if (groupCommitWaiting && asyncLogQueueSize.get() >= groupCommitSize)
+                haveWork.release();
+        }
     }
 
-    private void addRedoLogRecord(AOTransaction t, RedoLogRecord r, long logId,
-            CountDownLatch latch) {
-        PendingTransaction pt = new PendingTransaction(t, r, logId);
-        pt.setCompleted(true);
-        pt.setLatch(latch);
-        asyncWrite(pt);
+    // 新的值占1/8
+    private static long ewma(long avg, long value) {
+        return avg - (avg >> 3) + (value >> 3);
     }
 
     public static LogSyncService create(Map<String, String> config) {
@@ -33,18 +33,18 @@ class NoLogSyncService extends LogSyncService {
     }
 
     @Override
-    public void asyncWrite(AOTransaction t, RedoLogRecord r, long logId) {
+    public void asyncWrite(AOTransaction t, RedoLogRecord r) {
         t.onSynced();
         t.asyncCommitComplete();
     }
 
     @Override
-    public void syncWrite(AOTransaction t, RedoLogRecord r, long logId) {
+    public void syncWrite(AOTransaction t, RedoLogRecord r) {
         t.onSynced();
     }
 
     @Override
-    public void addRedoLogRecord(AOTransaction t, RedoLogRecord r, long logId) {
+    public void addRedoLogRecord(AOTransaction t, RedoLogRecord r) {
     }
 
 }
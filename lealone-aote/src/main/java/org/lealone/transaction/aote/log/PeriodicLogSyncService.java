@@ -26,37 +26,35 @@ class PeriodicLogSyncService extends LogSyncService {
         return true;
     }
 
-    private boolean waitForSyncToCatchUp() {
+    private boolean waitForSyncToCatchUp(AOTransaction t) {
         // 如果当前时间是第10毫秒，上次同步时间是在第5毫秒，同步间隔是10毫秒，说时当前时间还是同步周期内，就不用阻塞了
         // 如果当前时间是第16毫秒，超过了同步周期，需要阻塞
-        return System.currentTimeMillis() > lastSyncedAt + blockWhenSyncLagsMillis;
+        return System.currentTimeMillis() > getLastSyncedAt(t) + blockWhenSyncLagsMillis;
     }
 
     @Override
-    public void asyncWrite(AOTransaction t, RedoLogRecord r, long logId) {
-        PendingTransaction pt = new PendingTransaction(t, r, logId);
+    public void asyncWrite(AOTransaction t, RedoLogRecord r) {
         // 如果在同步周期内，可以提前通知异步提交完成了
-        if (!waitForSyncToCatchUp()) {
+        if (!waitForSyncToCatchUp(t)) {
             t.onSynced(); // 不能直接pt.setSynced(true);
-            asyncWrite(pt);
+            PendingTransaction pt = addPendingTransaction(t, r, false, null);
             pt.setCompleted(true);
             t.asyncCommitComplete();
         } else {
-            asyncWrite(pt);
+            addPendingTransaction(t, r, false, null);
         }
     }
 
     @Override
-    public void syncWrite(AOTransaction t, RedoLogRecord r, long logId) {
+    public void syncWrite(AOTransaction t, RedoLogRecord r) {
         // 如果在同步周期内，不用等
-        if (!waitForSyncToCatchUp()) {
-            PendingTransaction pt = new PendingTransaction(t, r, logId);
+        if (!waitForSyncToCatchUp(t)) {
             t.onSynced();
-            asyncWrite(pt);
+            PendingTransaction pt = addPendingTransaction(t, r, false, null);
             pt.setCompleted(true);
             // 同步调用无需t.asyncCommitComplete();
         } else {
-            super.syncWrite(t, r, logId);
+            super.syncWrite(t, r);
         }
     }
 }
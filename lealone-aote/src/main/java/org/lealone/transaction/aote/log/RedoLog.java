@@ -10,27 +10,58 @@ import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import org.lealone.common.exceptions.DbException;
+import org.lealone.common.logging.Logger;
+import org.lealone.common.logging.LoggerFactory;
 import org.lealone.common.util.MapUtils;
 import org.lealone.storage.StorageMap;
 import org.lealone.storage.StorageSetting;
 import org.lealone.storage.fs.FilePath;
 import org.lealone.storage.fs.FileUtils;
 import org.lealone.storage.type.StorageDataType;
+import org.lealone.transaction.TransactionHandler;
 import org.lealone.transaction.aote.AOTransactionEngine.CheckpointServiceImpl;
 import org.lealone.transaction.aote.TransactionalValue;
 import org.lealone.transaction.aote.TransactionalValueType;
+import org.lealone.transaction.aote.log.RedoLogRecord.CheckpointRLR;
 
+// redo log可以分成多个流，每个流有自己的chunk文件和同步线程，调度器提交的事务按handlerId分配到各个流。
+// 流0的chunk文件直接放在redo log目录中，跟只有一个流时一样，其他的流放在stream_N子目录中。
+// 只有检查点需要所有的流都处理，恢复时各个流的记录按logId合并后再redo。
+//
+// 恢复时chunk文件通过内存映射读取，按map建索引时只记录key/value在映射区中的位置，不复制字节。
+// 打开map时才能知道key/value的类型，记录多的map由redo线程并发解码，
+// 调用者按原来的顺序执行put/remove，同一个key的修改不会乱序。
 public class RedoLog {
 
+    private static final Logger logger = LoggerFactory.getLogger(RedoLog.class);
+
+    static final String STREAM_DIR_PREFIX = "stream_";
+    private static final int REDO_BATCH_SIZE = 8 * 1024; // 每批解码的记录数
+
     // key: mapName, value: map key/value ByteBuffer list
     private final HashMap<String, List<ByteBuffer>> pendingRedoLog = new HashMap<>();
     private final Map<String, String> config;
     private final LogSyncService logSyncService;
+    private final String storagePath;
+    private final int writeStreamCount; // 写事务的流的个数
+
+    private final int redoThreads;
 
-    private RedoLogChunk currentChunk;
+    private RedoLogChunk[] chunks; // 每个流当前的chunk
+    private ExecutorService redoExecutor;
+    private int pendingMapCount;
+    private int redoingMapCount; // 正在redo的map个数，它们的key/value还在使用chunk文件的映射区
+    private boolean pendingRedoLogCopied;
 
     RedoLog(Map<String, String> config, LogSyncService logSyncService) {
         this.config = config;
@@ -38,15 +69,51 @@ public class RedoLog {
 
         String baseDir = config.get("base_dir");
         String logDir = MapUtils.getString(config, "redo_log_dir", "redo_log");
-        String storagePath = baseDir + File.separator + logDir;
+        storagePath = baseDir + File.separator + logDir;
         config.put(StorageSetting.STORAGE_PATH.name(), storagePath);
 
         if (!FileUtils.exists(storagePath))
             FileUtils.createDirectories(storagePath);
+
+        // 最多每个调度器一个流，PendingCheckpoint用一个long记录哪些流已经处理过了，所以不能超过64
+        int streamCount = MapUtils.getInt(config, "redo_log_streams", 1);
+        int handlerCount = MapUtils.getSchedulerCount(config) + 1;
+        writeStreamCount = Math.max(1, Math.min(streamCount, Math.min(handlerCount, 64)));
+
+        // 默认最多4个线程
+        int redoThreads = MapUtils.getInt(config, "redo_threads",
+                Math.min(4, Runtime.getRuntime().availableProcessors()));
+        this.redoThreads = Math.max(1, redoThreads);
+    }
+
+    private String getStreamPath(int streamId) {
+        if (streamId == 0)
+            return storagePath;
+        return storagePath + File.separator + STREAM_DIR_PREFIX + streamId;
+    }
+
+    // 之前用更多的流写过的redo log也要读出来，多出来的流以后不再写事务，
+    // 只参与检查点，它们的chunk文件会在检查点之后被归档
+    private int getStreamCountOnDisk() {
+        int count = 1;
+        int prefixLength = STREAM_DIR_PREFIX.length();
+        for (FilePath fp : FilePath.get(storagePath).newDirectoryStream()) {
+            String name = fp.getName();
+            if (name.startsWith(STREAM_DIR_PREFIX) && fp.isDirectory()
+                    && !getAllChunkIds(fp.toString()).isEmpty()) {
+                count = Math.max(count, Integer.parseInt(name.substring(prefixLength)) + 1);
+            }
+        }
+        return Math.min(count, 64);
     }
 
-    private List<Integer> getAllChunkIds() {
-        return getAllChunkIds(config.get(StorageSetting.STORAGE_PATH.name()));
+    public int getStreamCount() {
+        return chunks.length;
+    }
+
+    // 同一个调度器的事务总是写到同一个流
+    int getStreamId(TransactionHandler handler) {
+        return handler.getHandlerId() % writeStreamCount;
     }
 
     static List<Integer> getAllChunkIds(String dirStr) {
@@ -65,63 +132,320 @@ public class RedoLog {
     }
 
     public void init() {
-        List<Integer> ids = getAllChunkIds();
+        long start = System.currentTimeMillis();
+        int streamCount = Math.max(writeStreamCount, getStreamCountOnDisk());
+        chunks = new RedoLogChunk[streamCount];
+        ArrayList<LinkedList<RedoLogRecord>> streams = new ArrayList<>(streamCount);
+        if (streamCount == 1 || redoThreads == 1) {
+            for (int streamId = 0; streamId < streamCount; streamId++)
+                streams.add(readStream(streamId));
+        } else {
+            // 每个流的chunk文件是独立的，可以并发读取
+            ArrayList<Future<LinkedList<RedoLogRecord>>> futures = new ArrayList<>(streamCount);
+            for (int streamId = 0; streamId < streamCount; streamId++) {
+                int id = streamId;
+                futures.add(getRedoExecutor().submit(() -> readStream(id)));
+            }
+            for (Future<LinkedList<RedoLogRecord>> f : futures)
+                streams.add(await(f));
+        }
+        long checkpointId = getLastSavedCheckpointId(streams);
+        logSyncService.initLastLogId(getMaxLogId(streams));
+        int recordCount = 0;
+        for (int i = 0; i < streamCount; i++) {
+            LinkedList<RedoLogRecord> records = getRedoLogRecords(streams.get(i), checkpointId);
+            recordCount += records.size();
+            streams.set(i, records);
+        }
+        merge(streams);
+        pendingMapCount = pendingRedoLog.size();
+        if (recordCount > 0) {
+            logger.info("Read redo log: {} records, {} maps, {} streams, {} ms", recordCount,
+                    pendingMapCount, streamCount, System.currentTimeMillis() - start);
+        }
+        if (pendingMapCount == 0)
+            shutdownRedoExecutor();
+    }
+
+    private LinkedList<RedoLogRecord> readStream(int streamId) {
+        String path = getStreamPath(streamId);
+        if (!FileUtils.exists(path))
+            FileUtils.createDirectories(path);
+        LinkedList<RedoLogRecord> records = new LinkedList<>();
+        List<Integer> ids = getAllChunkIds(path);
         if (ids.isEmpty()) {
-            currentChunk = new RedoLogChunk(0, config, logSyncService);
+            chunks[streamId] = new RedoLogChunk(0, streamId, path, config, logSyncService);
         } else {
             int lastId = ids.get(ids.size() - 1);
             for (int id : ids) {
                 RedoLogChunk chunk = null;
                 try {
-                    chunk = new RedoLogChunk(id, config, logSyncService);
-                    for (RedoLogRecord r : chunk.readRedoLogRecords()) {
-                        r.initPendingRedoLog(pendingRedoLog);
-                    }
+                    chunk = new RedoLogChunk(id, streamId, path, config, logSyncService);
+                    records.addAll(chunk.readRedoLogRecords());
                 } finally {
                     // 注意一定要关闭，否则对应的chunk文件将无法删除，
                     // 内部会打开一个FileStorage，不会因为没有引用到了而自动关闭
                     if (id == lastId)
-                        currentChunk = chunk;
+                        chunks[streamId] = chunk;
                     else if (chunk != null)
-                        chunk.close();
+                        chunk.closeFileStorage();
                 }
             }
         }
+        chunks[streamId].openForWrite();
+        return records;
+    }
+
+    // 所有的map都已经保存到了最后一个已经保存的检查点，只要有一个流写了TYPE_CHECKPOINT_SAVED就算
+    private static long getLastSavedCheckpointId(ArrayList<LinkedList<RedoLogRecord>> streams) {
+        long checkpointId = -1;
+        for (LinkedList<RedoLogRecord> records : streams) {
+            for (RedoLogRecord r : records) {
+                if (r.isCheckpoint()) {
+                    CheckpointRLR cp = (CheckpointRLR) r;
+                    if (cp.isSaved() && !cp.isLegacy())
+                        checkpointId = Math.max(checkpointId, cp.getCheckpointId());
+                }
+            }
+        }
+        return checkpointId;
+    }
+
+    private static long getMaxLogId(ArrayList<LinkedList<RedoLogRecord>> streams) {
+        long maxLogId = 0;
+        for (LinkedList<RedoLogRecord> records : streams) {
+            for (RedoLogRecord r : records)
+                maxLogId = Math.max(maxLogId, r.getLogId());
+        }
+        return maxLogId;
+    }
+
+    // logId比已保存的检查点小的记录都已经保存到map中了，不管它们在检查点的前面还是后面都要丢弃，
+    // 按位置丢弃的话，写在检查点之后的旧记录会覆盖检查点保存的新数据(老版本的检查点之前的记录也丢弃)
+    private static LinkedList<RedoLogRecord> getRedoLogRecords(LinkedList<RedoLogRecord> records,
+            long checkpointId) {
+        LinkedList<RedoLogRecord> list = new LinkedList<>();
+        for (RedoLogRecord r : records) {
+            if (r.isCheckpoint()) {
+                if (((CheckpointRLR) r).isLegacy())
+                    list.clear();
+            } else if (r.getLogId() > checkpointId) {
+                list.add(r);
+            }
+        }
+        return list;
+    }
+
+    // 同一个key的修改可能在不同的流中，按logId合并后logId小的先redo，只有一个流时保持原来的顺序，
+    // 合并的同时按map建索引，不再生成合并后的记录列表
+    private void merge(ArrayList<LinkedList<RedoLogRecord>> streams) {
+        if (streams.size() == 1) {
+            for (RedoLogRecord r : streams.get(0))
+                r.initPendingRedoLog(pendingRedoLog);
+            return;
+        }
+        while (true) {
+            LinkedList<RedoLogRecord> min = null;
+            for (LinkedList<RedoLogRecord> records : streams) {
+                if (!records.isEmpty() && (min == null
+                        || records.getFirst().getLogId() < min.getFirst().getLogId()))
+                    min = records;
+            }
+            if (min == null)
+                break;
+            min.removeFirst().initPendingRedoLog(pendingRedoLog);
+        }
     }
 
     // 第一次打开底层存储的map时调用这个方法，重新执行一次上次已经成功并且在检查点之后的事务操作
-    @SuppressWarnings("unchecked")
     public <K> void redo(StorageMap<K, TransactionalValue> map) {
-        List<ByteBuffer> pendingKeyValues = pendingRedoLog.remove(map.getName());
+        List<ByteBuffer> pendingKeyValues;
+        int pendingMaps;
+        synchronized (pendingRedoLog) {
+            pendingKeyValues = pendingRedoLog.remove(map.getName());
+            pendingMaps = pendingRedoLog.size();
+            if (pendingKeyValues != null)
+                redoingMapCount++;
+        }
+        try {
+            redo(map, pendingKeyValues, pendingMaps);
+        } finally {
+            if (pendingKeyValues != null) {
+                synchronized (pendingRedoLog) {
+                    redoingMapCount--;
+                    pendingRedoLog.notifyAll();
+                }
+            }
+        }
+        if (pendingKeyValues != null && pendingMaps == 0)
+            shutdownRedoExecutor();
+    }
+
+    @SuppressWarnings("unchecked")
+    private <K> void redo(StorageMap<K, TransactionalValue> map, List<ByteBuffer> pendingKeyValues,
+            int pendingMaps) {
         if (pendingKeyValues != null && !pendingKeyValues.isEmpty()) {
+            long start = System.currentTimeMillis();
             StorageDataType kt = map.getKeyType();
             StorageDataType vt = ((TransactionalValueType) map.getValueType()).valueType;
-            for (ByteBuffer kv : pendingKeyValues) {
-                K key = (K) kt.read(kv);
-                if (kv.get() == 0)
-                    map.remove(key);
-                else {
-                    Object value = vt.read(kv);
-                    TransactionalValue tv = TransactionalValue.createCommitted(value);
-                    map.put(key, tv);
+            int size = pendingKeyValues.size();
+            if (redoThreads == 1 || size <= REDO_BATCH_SIZE) {
+                for (ByteBuffer kv : pendingKeyValues) {
+                    K key = (K) kt.read(kv);
+                    if (kv.get() == 0)
+                        map.remove(key);
+                    else {
+                        Object value = vt.read(kv);
+                        TransactionalValue tv = TransactionalValue.createCommitted(value);
+                        map.put(key, tv);
+                    }
                 }
+            } else {
+                redoConcurrently(map, kt, vt, pendingKeyValues);
             }
+            if (size > REDO_BATCH_SIZE) {
+                logger.info("Redo map {}: {} records, {} ms, {}/{} maps remaining", map.getName(),
+                        size, System.currentTimeMillis() - start, pendingMaps, pendingMapCount);
+            }
+        }
+    }
+
+    // pendingRedoLog中的key/value是chunk文件映射区的一部分，第一次归档chunk文件之前，
+    // 把还没有打开的map的key/value复制出来，因为归档时chunk文件会被截断，放到回收目录的文件之后也会被重写。
+    // 正在redo的map也在使用映射区，要等它们完成
+    void copyPendingRedoLog() {
+        synchronized (pendingRedoLog) {
+            if (pendingRedoLogCopied)
+                return;
+            while (redoingMapCount > 0) {
+                try {
+                    pendingRedoLog.wait();
+                } catch (InterruptedException e) {
+                    throw DbException.convert(e);
+                }
+            }
+            for (List<ByteBuffer> keyValues : pendingRedoLog.values()) {
+                for (int i = 0, size = keyValues.size(); i < size; i++) {
+                    ByteBuffer kv = keyValues.get(i);
+                    ByteBuffer copy = ByteBuffer.allocate(kv.remaining());
+                    copy.put(kv.duplicate()).flip();
+                    keyValues.set(i, copy);
+                }
+            }
+            pendingRedoLogCopied = true;
+        }
+    }
+
+    // 解码下一批的同时执行当前这一批
+    private <K> void redoConcurrently(StorageMap<K, TransactionalValue> map, StorageDataType kt,
+            StorageDataType vt, List<ByteBuffer> keyValues) {
+        int size = keyValues.size();
+        RedoBatch next = decodeConcurrently(kt, vt, keyValues, 0);
+        while (next != null) {
+            RedoBatch batch = next;
+            next = batch.end < size ? decodeConcurrently(kt, vt, keyValues, batch.end) : null;
+            for (Future<?> f : batch.futures)
+                await(f);
+            batch.apply(map);
+        }
+    }
+
+    private RedoBatch decodeConcurrently(StorageDataType kt, StorageDataType vt,
+            List<ByteBuffer> keyValues, int start) {
+        int end = Math.min(start + REDO_BATCH_SIZE, keyValues.size());
+        RedoBatch batch = new RedoBatch(start, end);
+        int step = (end - start + redoThreads - 1) / redoThreads;
+        for (int from = start; from < end; from += step) {
+            int to = Math.min(from + step, end);
+            int f = from;
+            batch.futures.add(getRedoExecutor().submit(() -> batch.decode(kt, vt, keyValues, f, to)));
+        }
+        return batch;
+    }
+
+    private static class RedoBatch {
+
+        final int start;
+        final int end;
+        final Object[] keys;
+        final TransactionalValue[] values; // 为null时删除key
+        final ArrayList<Future<?>> futures = new ArrayList<>();
+
+        RedoBatch(int start, int end) {
+            this.start = start;
+            this.end = end;
+            keys = new Object[end - start];
+            values = new TransactionalValue[end - start];
+        }
+
+        // 写时格式参照UndoLogRecord.writeForRedo()
+        void decode(StorageDataType kt, StorageDataType vt, List<ByteBuffer> keyValues, int from,
+                int to) {
+            for (int i = from; i < to; i++) {
+                ByteBuffer kv = keyValues.get(i);
+                keys[i - start] = kt.read(kv);
+                if (kv.get() != 0)
+                    values[i - start] = TransactionalValue.createCommitted(vt.read(kv));
+            }
+        }
+
+        @SuppressWarnings("unchecked")
+        <K> void apply(StorageMap<K, TransactionalValue> map) {
+            for (int i = 0, len = keys.length; i < len; i++) {
+                if (values[i] == null)
+                    map.remove((K) keys[i]);
+                else
+                    map.put((K) keys[i], values[i]);
+            }
+        }
+    }
+
+    private synchronized ExecutorService getRedoExecutor() {
+        if (redoExecutor == null) {
+            AtomicInteger threadId = new AtomicInteger();
+            redoExecutor = Executors.newFixedThreadPool(redoThreads, r -> {
+                Thread t = new Thread(r, "RedoThread-" + threadId.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            });
+        }
+        return redoExecutor;
+    }
+
+    private synchronized void shutdownRedoExecutor() {
+        if (redoExecutor != null) {
+            redoExecutor.shutdown();
+            redoExecutor = null;
+        }
+    }
+
+    private static <T> T await(Future<T> f) {
+        try {
+            return f.get();
+        } catch (ExecutionException e) {
+            throw DbException.convert(e.getCause());
+        } catch (InterruptedException e) {
+            throw DbException.convert(e);
         }
     }
 
     void close() {
-        currentChunk.close();
+        for (RedoLogChunk chunk : chunks)
+            chunk.close();
+        shutdownRedoExecutor();
     }
 
-    void save() {
-        currentChunk.save();
+    void save(int streamId) {
+        chunks[streamId].save();
     }
 
     public void ignoreCheckpoint() {
-        currentChunk.ignoreCheckpoint();
+        for (RedoLogChunk chunk : chunks)
+            chunk.ignoreCheckpoint();
     }
 
     public void setCheckpointService(CheckpointServiceImpl checkpointService) {
-        currentChunk.setCheckpointService(checkpointService);
+        for (RedoLogChunk chunk : chunks)
+            chunk.setCheckpointService(checkpointService);
     }
 }
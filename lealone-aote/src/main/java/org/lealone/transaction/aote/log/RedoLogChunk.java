@@ -10,14 +10,16 @@ import java.nio.ByteBuffer;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
 
 import org.lealone.common.logging.Logger;
 import org.lealone.common.logging.LoggerFactory;
 import org.lealone.common.util.MapUtils;
 import org.lealone.db.Constants;
 import org.lealone.db.DataBuffer;
-import org.lealone.storage.StorageSetting;
+import org.lealone.storage.fs.FilePath;
 import org.lealone.storage.fs.FileStorage;
 import org.lealone.storage.fs.FileUtils;
 import org.lealone.transaction.PendingTransaction;
@@ -26,14 +28,21 @@ import org.lealone.transaction.aote.AOTransactionEngine.CheckpointServiceImpl;
 import org.lealone.transaction.aote.log.RedoLogRecord.CheckpointRLR;
 import org.lealone.transaction.aote.log.RedoLogRecord.PendingCheckpoint;
 
+// chunk文件的格式:
+// 第一个块是文件头: magic、版本号和generation，其余的块是一个个帧，每个帧从块的边界开始，
+// 帧头是: 长度、CRC32校验和、generation，后面跟着一次write写入的完整记录，不足一个块的部分不写。
+// 新的chunk文件预先用0填充到logChunkSize，写记录时文件大小不会变，只需要fdatasync，
+// 检查点之后不再需要的chunk文件先放到回收目录，下次切换chunk时重写文件头后直接使用。
+// 回收的文件里还有上一次的帧，因为generation不同所以读的时候会被忽略，
+// 帧的长度、generation或校验和不对就说明到了末尾(包括写了一半的帧)，之后的内容都会被覆盖。
+// 老版本的chunk文件没有文件头，只读不写。
 class RedoLogChunk {
 
     private static final Logger logger = LoggerFactory.getLogger(RedoLogChunk.class);
 
     static final String CHUNK_FILE_NAME_PREFIX = "redoLog" + Constants.NAME_SEPARATOR;
 
-    private static String getChunkFileName(Map<String, String> config, int id) {
-        String storagePath = config.get(StorageSetting.STORAGE_PATH.name());
+    private static String getChunkFileName(String storagePath, int id) {
         return storagePath + File.separator + CHUNK_FILE_NAME_PREFIX + id;
     }
 
@@ -41,8 +50,14 @@ class RedoLogChunk {
         return archiveDir + File.separator + CHUNK_FILE_NAME_PREFIX + id;
     }
 
-    private static String getArchiveDir(Map<String, String> config) {
-        String storagePath = config.get(StorageSetting.STORAGE_PATH.name());
+    private static String getRecycleDir(String storagePath) {
+        String recycleDir = storagePath + File.separator + "recycled";
+        if (!FileUtils.exists(recycleDir))
+            FileUtils.createDirectories(recycleDir);
+        return recycleDir;
+    }
+
+    private static String getArchiveDir(Map<String, String> config, String storagePath) {
         String archiveDir = storagePath + File.separator
                 + MapUtils.getString(config, "archive_dir", "archives");
         if (!FileUtils.exists(archiveDir))
@@ -50,77 +65,192 @@ class RedoLogChunk {
         return archiveDir;
     }
 
+    private static final int MAGIC = 0x52444C47; // RDLG
+    private static final int FORMAT_VERSION = 1;
+    private static final int BLOCK_SIZE = 4096;
+    private static final int FRAME_HEADER_SIZE = 16;
+    private static final int PREALLOCATE_BUFF_SIZE = 1024 * 1024;
+
     private static final int BUFF_SIZE = 16 * 1024;
-    private DataBuffer buff = DataBuffer.create(BUFF_SIZE);
+    private DataBuffer buff = createBuffer();
+
+    // 前面留出帧头的位置
+    private static DataBuffer createBuffer() {
+        DataBuffer buff = DataBuffer.create(BUFF_SIZE);
+        buff.position(FRAME_HEADER_SIZE);
+        return buff;
+    }
 
-    private DataBuffer checkpointBuff = DataBuffer.create(11); // 1+10,可变long最多需要10个字节
     private FileStorage checkpointChunk;
     private int checkpointChunkId;
+    private long checkpointChunkPos;
 
     private CheckpointServiceImpl checkpointService;
 
     private int id;
     private FileStorage fileStorage;
+    private final int streamId;
+    private final String storagePath;
     private final Map<String, String> config;
     private final LogSyncService logSyncService;
     private long pos;
+    private long generation; // 为0时说明还没有写文件头
+    private boolean legacy; // 老版本的格式
 
     private final int archiveMaxFiles;
     private final String archiveDir;
+    private final int recycleMaxFiles;
+    private final String recycleDir;
 
     private final long logChunkSize;
 
-    RedoLogChunk(int id, Map<String, String> config, LogSyncService logSyncService) {
+    RedoLogChunk(int id, int streamId, String storagePath, Map<String, String> config,
+            LogSyncService logSyncService) {
         this.id = id;
+        this.streamId = streamId;
+        this.storagePath = storagePath;
         this.config = config;
         this.logSyncService = logSyncService;
-        fileStorage = getFileStorage(id, config);
-        pos = fileStorage.size();
+        fileStorage = getFileStorage(id);
+        readFileHeader();
 
         // 按每小时执行一次checkpoint算，一天24小时，保留3天的归档文件
         archiveMaxFiles = MapUtils.getInt(config, "archive_max_files", 24 * 3);
-        archiveDir = getArchiveDir(config);
+        archiveDir = getArchiveDir(config, storagePath);
+        // 回收目录满了之后再归档
+        recycleMaxFiles = MapUtils.getInt(config, "recycle_max_files", 4);
+        recycleDir = getRecycleDir(storagePath);
 
         logChunkSize = MapUtils.getLong(config, "log_chunk_size", 32 * 1024 * 1024); // 默认32M
     }
 
-    private static FileStorage getFileStorage(int id, Map<String, String> config) {
-        String chunkFileName = getChunkFileName(config, id);
+    private void readFileHeader() {
+        long size = fileStorage.size();
+        pos = size;
+        if (size <= 0)
+            return;
+        ByteBuffer header = fileStorage.readFully(0, (int) Math.min(size, FRAME_HEADER_SIZE));
+        if (header.remaining() == FRAME_HEADER_SIZE && header.getInt() == MAGIC) {
+            header.getInt(); // FORMAT_VERSION
+            generation = header.getLong();
+            pos = BLOCK_SIZE; // 读完记录后才知道写到哪了
+        } else {
+            legacy = true;
+        }
+    }
+
+    // 写文件头，然后预分配空间
+    private void writeFileHeader() {
+        long g;
+        do {
+            g = ThreadLocalRandom.current().nextLong();
+        } while (g == 0 || g == generation);
+        ByteBuffer header = ByteBuffer.allocate(BLOCK_SIZE);
+        header.putInt(MAGIC).putInt(FORMAT_VERSION).putLong(g);
+        header.clear();
+        fileStorage.writeFully(0, header);
+        long size = Math.max(fileStorage.size(), BLOCK_SIZE);
+        if (size < logChunkSize) {
+            ByteBuffer zeros = ByteBuffer.allocate(PREALLOCATE_BUFF_SIZE);
+            while (size < logChunkSize) {
+                zeros.clear();
+                zeros.limit((int) Math.min(PREALLOCATE_BUFF_SIZE, logChunkSize - size));
+                fileStorage.writeFully(size, zeros);
+                size += zeros.limit();
+            }
+        }
+        fileStorage.sync();
+        generation = g;
+        pos = BLOCK_SIZE;
+    }
+
+    // 在恢复完之后调用，当前chunk文件是老版本的格式时切换到新的chunk文件
+    void openForWrite() {
+        if (legacy)
+            nextChunk(true);
+        else if (generation == 0)
+            writeFileHeader();
+    }
+
+    private FileStorage getFileStorage(int id) {
+        String chunkFileName = getChunkFileName(storagePath, id);
         return FileStorage.open(chunkFileName, config);
     }
 
+    // 读出所有的记录，包括检查点，由RedoLog决定从哪里开始redo
     // 第一次打开时只有一个线程读，所以用LinkedList即可
+    // 记录直接引用映射区中的字节，关闭文件后映射区依然有效，由GC负责释放
     LinkedList<RedoLogRecord> readRedoLogRecords() {
         LinkedList<RedoLogRecord> list = new LinkedList<>();
-        if (pos <= 0)
+        long size = fileStorage.size();
+        if (size <= 0 || !legacy && generation == 0)
+            return list;
+        ByteBuffer buffer = fileStorage.map(0, size);
+        if (buffer == null) // 加密的文件不能映射
+            buffer = fileStorage.readFully(0, (int) size);
+        if (legacy) {
+            while (buffer.remaining() > 0) {
+                list.add(RedoLogRecord.read(buffer));
+            }
             return list;
-        ByteBuffer buffer = fileStorage.readFully(0, (int) pos);
-        while (buffer.remaining() > 0) {
-            RedoLogRecord r = RedoLogRecord.read(buffer);
-            if (r.isCheckpoint())
-                list = new LinkedList<>();// 丢弃之前的
-            list.add(r);
         }
+        long p = BLOCK_SIZE;
+        CRC32 crc = new CRC32();
+        while (p + FRAME_HEADER_SIZE <= size) {
+            buffer.position((int) p);
+            int length = buffer.getInt();
+            int checksum = buffer.getInt();
+            long g = buffer.getLong();
+            if (length <= 0 || g != generation || p + FRAME_HEADER_SIZE + length > size)
+                break;
+            ByteBuffer frame = RedoLogRecord.slice(buffer, length);
+            crc.reset();
+            crc.update(frame.duplicate());
+            if ((int) crc.getValue() != checksum)
+                break;
+            while (frame.remaining() > 0) {
+                list.add(RedoLogRecord.read(frame));
+            }
+            p = align(p + FRAME_HEADER_SIZE + length);
+        }
+        pos = p;
         return list;
     }
 
+    private static long align(long p) {
+        return (p + BLOCK_SIZE - 1) / BLOCK_SIZE * BLOCK_SIZE;
+    }
+
+    // 启动时读完之前的chunk文件后直接关闭，此时还没有要写的记录
+    void closeFileStorage() {
+        fileStorage.close();
+    }
+
     void close() {
         save();
         fileStorage.close();
     }
 
+    // 只写分配给当前流的调度器提交的事务，检查点每个流都要写
+    private boolean isOwnHandler(TransactionHandler handler) {
+        return logSyncService.getRedoLog().getStreamId(handler) == streamId;
+    }
+
     void save() {
         TransactionHandler[] waitingHandlers = logSyncService.getWaitingHandlers();
         int waitingQueueSize = waitingHandlers.length;
-        AtomicLong logQueueSize = logSyncService.getAsyncLogQueueSize();
+        AtomicLong logQueueSize = logSyncService.getAsyncLogQueueSize(streamId);
         long chunkLength = 0;
         while (logQueueSize.get() > 0) {
+            // 先取检查点再收集等待队列中的记录，logId比检查点小的记录此时一定都在等待队列中了
+            PendingCheckpoint pendingCheckpoint = nextPendingCheckpoint(
+                    checkpointService.getCheckpoint());
             PendingTransaction[] lastPts = new PendingTransaction[waitingQueueSize];
             PendingTransaction[] pts = new PendingTransaction[waitingQueueSize];
             for (int i = 0; i < waitingQueueSize; i++) {
                 lastPts[i] = null;
                 TransactionHandler handler = waitingHandlers[i];
-                if (handler == null) {
+                if (handler == null || !isOwnHandler(handler)) {
                     continue;
                 }
                 PendingTransaction pt = handler.getTransaction();
@@ -133,15 +263,13 @@ class RedoLogChunk {
                     break;
                 }
             }
-            PendingCheckpoint pendingCheckpoint = nextPendingCheckpoint(
-                    checkpointService.getCheckpoint());
             PendingTransaction pt = nextPendingTransaction(pts);
             while (pt != null || pendingCheckpoint != null) {
                 if (pt != null) {
                     if (pendingCheckpoint == null
                             || pt.getLogId() < pendingCheckpoint.getCheckpointId()) {
                         RedoLogRecord r = (RedoLogRecord) pt.getRedoLogRecord();
-                        r.write(buff);
+                        r.write(buff, pt.getLogId());
                         if (buff.position() > BUFF_SIZE)
                             chunkLength += write(buff);
                         logQueueSize.decrementAndGet();
@@ -157,43 +285,58 @@ class RedoLogChunk {
 
                 }
                 if (pendingCheckpoint != null) {
-                    if (!checkpoint(pendingCheckpoint))
-                        chunkLength = 0;
+                    checkpoint(pendingCheckpoint); // 内部已经sync过了
+                    chunkLength = 0;
+                    // 检查点之前的事务要先提交，保存map时才会包含它们的修改
+                    wakeUpHandlers(waitingHandlers, lastPts);
+                    if (pendingCheckpoint.setSynced(streamId,
+                            logSyncService.getRedoLog().getStreamCount()))
+                        checkpointService.wakeUp();
                     logQueueSize.decrementAndGet();
-                    pendingCheckpoint = nextPendingCheckpoint(pendingCheckpoint.getNext());
+                    // 下一个检查点要等下一轮重新收集等待队列中的记录后再写
+                    pendingCheckpoint = null;
                 }
             }
             chunkLength += write(buff);
 
             if (chunkLength > 0 && !logSyncService.isPeriodic()) {
                 chunkLength = 0;
-                fileStorage.sync();
-            }
-            for (int i = 0; i < waitingQueueSize; i++) {
-                TransactionHandler handler = waitingHandlers[i];
-                if (handler == null || lastPts[i] == null) { // 没有同步过任何RedoLogRecord
-                    continue;
-                }
-                if (!logSyncService.isPeriodic()) {
-                    pt = handler.getTransaction();
-                    while (pt != null) {
-                        pt.setSynced(true);
-                        if (pt == lastPts[i])
-                            break;
-                        pt = pt.getNext();
-                    }
-                }
-                handler.wakeUp();
+                fileStorage.syncData();
             }
+            wakeUpHandlers(waitingHandlers, lastPts);
             // 避免占用太多内存
             if (buff.capacity() > BUFF_SIZE * 3)
-                buff = DataBuffer.create(BUFF_SIZE);
+                buff = createBuffer();
 
-            if (pos > logChunkSize)
+            if (pos >= logChunkSize)
                 nextChunk(true);
         }
         if (chunkLength > 0 && logSyncService.isPeriodic()) {
-            fileStorage.sync();
+            fileStorage.syncData();
+        }
+    }
+
+    // 已经sync过的记录对应的事务可以提交了
+    private void wakeUpHandlers(TransactionHandler[] waitingHandlers, PendingTransaction[] lastPts) {
+        for (int i = 0; i < lastPts.length; i++) {
+            TransactionHandler handler = waitingHandlers[i];
+            if (handler == null || lastPts[i] == null || !isOwnHandler(handler)) { // 没有同步过任何RedoLogRecord
+                continue;
+            }
+            if (!logSyncService.isPeriodic()) {
+                long now = System.nanoTime();
+                PendingTransaction pt = handler.getTransaction();
+                while (pt != null) {
+                    if (!pt.isSynced())
+                        logSyncService.recordCommitLatency(now - pt.getCreateTime());
+                    pt.setSynced(true);
+                    if (pt == lastPts[i])
+                        break;
+                    pt = pt.getNext();
+                }
+            }
+            lastPts[i] = null;
+            handler.wakeUp();
         }
     }
 
@@ -220,7 +363,7 @@ class RedoLogChunk {
 
     private PendingCheckpoint nextPendingCheckpoint(PendingCheckpoint pc) {
         while (pc != null) {
-            if (pc.isSynced()) {
+            if (pc.isSynced(streamId)) {
                 pc = pc.getNext();
                 continue;
             }
@@ -229,14 +372,24 @@ class RedoLogChunk {
         return null;
     }
 
+    // 一次写一个帧，下一个帧从下一个块开始，即使这个块写了一半也不会影响已经写好的帧
     private int write(DataBuffer buff) {
-        int length = buff.position();
+        int length = buff.position() - FRAME_HEADER_SIZE;
         if (length > 0) {
-            fileStorage.writeFully(pos, buff.getAndFlipBuffer());
-            pos += length;
+            ByteBuffer frame = buff.getAndFlipBuffer();
+            CRC32 crc = new CRC32();
+            frame.position(FRAME_HEADER_SIZE);
+            crc.update(frame);
+            frame.position(0);
+            frame.putInt(0, length);
+            frame.putInt(4, (int) crc.getValue());
+            frame.putLong(8, generation);
+            fileStorage.writeFully(pos, frame);
+            pos = align(pos + FRAME_HEADER_SIZE + length);
             buff.clear(); // flip后要clear，避免grow时导致OOM问题
+            buff.position(FRAME_HEADER_SIZE);
         }
-        return length;
+        return Math.max(length, 0);
     }
 
     // 写满一个RedoLogChunk后不必创建新的RedoLogChunk实例，创建FileStorage实例即可
@@ -247,39 +400,89 @@ class RedoLogChunk {
         ++id;
         if (id < 0)
             id = 0; // log chunk id用完之后从0开始
-        fileStorage = getFileStorage(id, config);
-        pos = 0;
+        String chunkFileName = getChunkFileName(storagePath, id);
+        String recycledFileName = getRecycledFileName();
+        if (recycledFileName != null) {
+            // 先在回收目录中重写文件头，这样就算中途崩溃了，旧的记录也不会被当成新chunk的记录
+            try {
+                fileStorage = FileStorage.open(recycledFileName, config);
+                generation = 0;
+                writeFileHeader();
+                fileStorage.close();
+                FileUtils.move(recycledFileName, chunkFileName);
+                fileStorage = getFileStorage(id);
+                return;
+            } catch (Exception e) {
+                logger.warn("Failed to reuse file " + recycledFileName, e);
+                fileStorage.close();
+                FileUtils.delete(recycledFileName);
+            }
+        }
+        fileStorage = getFileStorage(id);
+        generation = 0;
+        writeFileHeader();
+    }
+
+    private String getRecycledFileName() {
+        for (FilePath fp : FilePath.get(recycleDir).newDirectoryStream()) {
+            if (fp.getName().startsWith(CHUNK_FILE_NAME_PREFIX))
+                return fp.toString();
+        }
+        return null;
+    }
+
+    private int getRecycledFileCount() {
+        return RedoLog.getAllChunkIds(recycleDir).size();
     }
 
-    private boolean checkpoint(PendingCheckpoint pendingCheckpoint) {
+    // 检查点分两个阶段，每个流都要处理完一个阶段，checkpoint服务才能继续:
+    // 1. 把检查点之前的记录和TYPE_CHECKPOINT_BEGIN写到当前chunk文件，然后切换到新的chunk文件
+    // 2. 所有的map都保存后，先在新的chunk文件中写入TYPE_CHECKPOINT_SAVED并sync，再归档第一阶段的chunk文件
+    // 恢复时只要找到最大的已保存的检查点，logId比它小的记录都已经保存到map中了，不用再redo，
+    // 所以写TYPE_CHECKPOINT_BEGIN之前要写完logId比检查点小的记录，并且让这些事务先提交。
+    // TYPE_CHECKPOINT_SAVED必须在归档之前写到磁盘，否则崩溃后找不到已保存的检查点，归档的记录也读不到了
+    private void checkpoint(PendingCheckpoint pendingCheckpoint) {
         CheckpointRLR cp = pendingCheckpoint.getCheckpoint();
+        cp.write(buff, 0);
+        write(buff);
+        fileStorage.syncData();
         if (cp.isSaved()) {
-            cp.write(checkpointBuff);
-            checkpointChunk.writeFully(checkpointChunk.size(), checkpointBuff.getAndFlipBuffer());
-            checkpointBuff.clear();
-            checkpointChunk.sync();
-            checkpointChunk.close();
-            archiveOldChunkFiles();
-            checkpointChunk = null;
-            checkpointChunkId = 0;
+            if (checkpointChunk != null) {
+                archiveOldChunkFiles();
+                checkpointChunk = null;
+                checkpointChunkId = 0;
+            }
         } else {
-            write(buff);
+            if (checkpointChunk != null) // 上一个检查点没有完成
+                checkpointChunk.close();
             checkpointChunk = fileStorage;
             checkpointChunkId = id;
+            checkpointChunkPos = pos;
             nextChunk(false);
         }
-        pendingCheckpoint.setSynced(true);
-        checkpointService.wakeUp();
-        return cp.isSaved();
     }
 
+    // 先放到回收目录，回收目录满了再归档，归档的文件截掉预分配的部分
     private void archiveOldChunkFiles() {
+        logSyncService.getRedoLog().copyPendingRedoLog();
         try {
+            int recycledFileCount = getRecycledFileCount();
             for (int i = 0; i <= checkpointChunkId; i++) {
-                String chunkFileName = getChunkFileName(config, i);
-                String archiveFileName = getArchiveFileName(archiveDir, i);
-                if (FileUtils.exists(chunkFileName))
-                    FileUtils.move(chunkFileName, archiveFileName);
+                boolean recycle = recycledFileCount < recycleMaxFiles;
+                if (i == checkpointChunkId) {
+                    if (!recycle)
+                        checkpointChunk.truncate(checkpointChunkPos);
+                    checkpointChunk.close();
+                }
+                String chunkFileName = getChunkFileName(storagePath, i);
+                if (!FileUtils.exists(chunkFileName))
+                    continue;
+                if (recycle) {
+                    FileUtils.move(chunkFileName, getArchiveFileName(recycleDir, i));
+                    recycledFileCount++;
+                } else {
+                    FileUtils.move(chunkFileName, getArchiveFileName(archiveDir, i));
+                }
             }
         } catch (Exception e) {
             logger.error("Failed to archive files", e);
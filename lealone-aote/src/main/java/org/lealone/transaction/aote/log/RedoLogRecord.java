@@ -6,9 +6,10 @@
 package org.lealone.transaction.aote.log;
 
 import java.nio.ByteBuffer;
-import java.util.LinkedList;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.lealone.common.exceptions.DbException;
 import org.lealone.common.util.DataUtils;
@@ -19,9 +20,19 @@ import org.lealone.transaction.aote.AOTransactionEngine;
 
 public abstract class RedoLogRecord {
 
-    private static byte TYPE_CHECKPOINT = 0;
-    private static byte TYPE_DROPPED_MAP = 1;
+    private static byte TYPE_CHECKPOINT = 0; // 老版本的检查点，之前的记录都不需要redo了
+    private static byte TYPE_DROPPED_MAP = 1; // 老版本的格式，没有logId
     private static byte TYPE_LOCAL_TRANSACTION = 2;
+    private static byte TYPE_DROPPED_MAP_WITH_LOG_ID = 3;
+    private static byte TYPE_CHECKPOINT_BEGIN = 4; // 检查点的第一阶段，写在切换前的chunk文件的最后
+    private static byte TYPE_CHECKPOINT_SAVED = 5; // 检查点的第二阶段，写在切换后的chunk文件中
+
+    // 多个redo log流在恢复时按logId合并，老版本的记录是0
+    protected long logId;
+
+    public long getLogId() {
+        return logId;
+    }
 
     public void initPendingRedoLog(Map<String, List<ByteBuffer>> pendingRedoLog) {
     }
@@ -30,14 +41,14 @@ public abstract class RedoLogRecord {
         return false;
     }
 
-    abstract void write(DataBuffer buff);
+    abstract void write(DataBuffer buff, long logId);
 
     static RedoLogRecord read(ByteBuffer buff) {
         int type = buff.get();
-        if (type == TYPE_CHECKPOINT) {
-            return CheckpointRLR.read(buff);
-        } else if (type == TYPE_DROPPED_MAP) {
-            return DroppedMapRLR.read(buff);
+        if (type == TYPE_CHECKPOINT || type == TYPE_CHECKPOINT_BEGIN || type == TYPE_CHECKPOINT_SAVED) {
+            return CheckpointRLR.read(buff, type);
+        } else if (type == TYPE_DROPPED_MAP || type == TYPE_DROPPED_MAP_WITH_LOG_ID) {
+            return DroppedMapRLR.read(buff, type);
         } else if (type == TYPE_LOCAL_TRANSACTION) {
             return LocalTransactionRLR.read(buff);
         } else {
@@ -45,6 +56,14 @@ public abstract class RedoLogRecord {
         }
     }
 
+    // 恢复时不复制字节，只引用chunk文件的映射区中的一段
+    static ByteBuffer slice(ByteBuffer buff, int len) {
+        ByteBuffer slice = buff.slice();
+        slice.limit(len);
+        buff.position(buff.position() + len);
+        return slice;
+    }
+
     public static CheckpointRLR createCheckpoint(long checkpointId, boolean saved) {
         return new CheckpointRLR(checkpointId, saved);
     }
@@ -61,7 +80,8 @@ public abstract class RedoLogRecord {
     public static class PendingCheckpoint extends LinkableBase<PendingCheckpoint> {
 
         private final CheckpointRLR checkpoint;
-        private boolean synced;
+        private final AtomicLong syncedStreams = new AtomicLong(); // 已经处理过这个检查点的流
+        private volatile boolean synced;
         private boolean force;
 
         public PendingCheckpoint(CheckpointRLR checkpoint, boolean force) {
@@ -91,16 +111,37 @@ public abstract class RedoLogRecord {
         public void setSynced(boolean synced) {
             this.synced = synced;
         }
+
+        boolean isSynced(int streamId) {
+            return synced || (syncedStreams.get() & (1L << streamId)) != 0;
+        }
+
+        // 每个流处理完之后调用，所有的流都处理完才算同步完成，此时返回true
+        boolean setSynced(int streamId, int streamCount) {
+            long all = streamCount >= 64 ? -1L : (1L << streamCount) - 1;
+            long v = syncedStreams.accumulateAndGet(1L << streamId, (a, b) -> a | b);
+            if ((v & all) == all) {
+                synced = true;
+                return true;
+            }
+            return false;
+        }
     }
 
     static class CheckpointRLR extends RedoLogRecord {
 
         private final long checkpointId;
         private final boolean saved;
+        private final boolean legacy;
 
         CheckpointRLR(long checkpointId, boolean saved) {
+            this(checkpointId, saved, false);
+        }
+
+        private CheckpointRLR(long checkpointId, boolean saved, boolean legacy) {
             this.checkpointId = checkpointId;
             this.saved = saved;
+            this.legacy = legacy;
         }
 
         public long getCheckpointId() {
@@ -116,20 +157,24 @@ public abstract class RedoLogRecord {
             return saved;
         }
 
-        @Override
-        public void initPendingRedoLog(Map<String, List<ByteBuffer>> pendingRedoLog) {
-            pendingRedoLog.clear();
+        // 老版本的检查点没有checkpointId，之前的记录都不需要redo了
+        public boolean isLegacy() {
+            return legacy;
         }
 
         @Override
-        public void write(DataBuffer buff) {
-            buff.put(TYPE_CHECKPOINT);
-            buff.putVarLong(0); // checkpointId兼容老版本
+        public void write(DataBuffer buff, long logId) {
+            buff.put(saved ? TYPE_CHECKPOINT_SAVED : TYPE_CHECKPOINT_BEGIN);
+            buff.putVarLong(checkpointId);
         }
 
-        public static RedoLogRecord read(ByteBuffer buff) {
-            DataUtils.readVarLong(buff); // checkpointId兼容老版本
-            return new CheckpointRLR(0, true);
+        public static RedoLogRecord read(ByteBuffer buff, int type) {
+            long checkpointId = DataUtils.readVarLong(buff);
+            if (type == TYPE_CHECKPOINT)
+                return new CheckpointRLR(0, true, true);
+            CheckpointRLR r = new CheckpointRLR(checkpointId, type == TYPE_CHECKPOINT_SAVED, false);
+            r.logId = checkpointId;
+            return r;
         }
     }
 
@@ -146,20 +191,24 @@ public abstract class RedoLogRecord {
         public void initPendingRedoLog(Map<String, List<ByteBuffer>> pendingRedoLog) {
             List<ByteBuffer> logs = pendingRedoLog.get(mapName);
             if (logs != null) {
-                logs = new LinkedList<>();
+                logs = new ArrayList<>();
                 pendingRedoLog.put(mapName, logs);
             }
         }
 
         @Override
-        public void write(DataBuffer buff) {
-            buff.put(TYPE_DROPPED_MAP);
+        public void write(DataBuffer buff, long logId) {
+            buff.put(TYPE_DROPPED_MAP_WITH_LOG_ID);
+            buff.putVarLong(logId);
             ValueString.type.write(buff, mapName);
         }
 
-        public static RedoLogRecord read(ByteBuffer buff) {
+        public static RedoLogRecord read(ByteBuffer buff, int type) {
+            long logId = type == TYPE_DROPPED_MAP_WITH_LOG_ID ? DataUtils.readVarLong(buff) : 0;
             String mapName = ValueString.type.read(buff);
-            return new DroppedMapRLR(mapName);
+            DroppedMapRLR r = new DroppedMapRLR(mapName);
+            r.logId = logId;
+            return r;
         }
     }
 
@@ -193,24 +242,21 @@ public abstract class RedoLogRecord {
                 String mapName = ValueString.type.read(buff);
                 List<ByteBuffer> keyValues = pendingRedoLog.get(mapName);
                 if (keyValues == null) {
-                    keyValues = new LinkedList<>();
+                    keyValues = new ArrayList<>();
                     pendingRedoLog.put(mapName, keyValues);
                 }
-                int len = buff.getInt();
-                byte[] keyValue = new byte[len];
-                buff.get(keyValue);
-                keyValues.add(ByteBuffer.wrap(keyValue));
+                keyValues.add(slice(buff, buff.getInt()));
             }
         }
 
         @Override
-        public void write(DataBuffer buff) {
-            write(buff, TYPE_LOCAL_TRANSACTION);
+        public void write(DataBuffer buff, long logId) {
+            write(buff, TYPE_LOCAL_TRANSACTION, logId);
         }
 
-        public void write(DataBuffer buff, byte type) {
+        public void write(DataBuffer buff, byte type, long logId) {
             buff.put(type);
-            buff.putVarLong(0); // transactionId兼容老版本
+            buff.putVarLong(logId); // 老版本在这里写的是transactionId，一直是0
             writeOperations(buff);
             release();
         }
@@ -221,9 +267,7 @@ public abstract class RedoLogRecord {
         }
 
         public static ByteBuffer readOperations(ByteBuffer buff) {
-            byte[] bytes = new byte[buff.getInt()];
-            buff.get(bytes);
-            return ByteBuffer.wrap(bytes);
+            return slice(buff, buff.getInt());
         }
     }
 
@@ -238,9 +282,11 @@ public abstract class RedoLogRecord {
         }
 
         public static LocalTransactionRLR read(ByteBuffer buff) {
-            DataUtils.readVarLong(buff); // transactionId兼容老版本
+            long logId = DataUtils.readVarLong(buff);
             ByteBuffer operations = readOperations(buff);
-            return new LocalTransactionRLR(operations);
+            LocalTransactionRLR r = new LocalTransactionRLR(operations);
+            r.logId = logId;
+            return r;
         }
     }
 
@@ -283,9 +329,9 @@ public abstract class RedoLogRecord {
         }
 
         @Override
-        void write(DataBuffer buff) {
+        void write(DataBuffer buff, long logId) {
             lobTask.run();
-            r.write(buff);
+            r.write(buff, logId);
         }
     }
 }
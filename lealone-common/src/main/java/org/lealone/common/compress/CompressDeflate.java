@@ -28,6 +28,21 @@ public class CompressDeflate implements Compressor {
 
     private int level = Deflater.DEFAULT_COMPRESSION;
     private int strategy = Deflater.DEFAULT_STRATEGY;
+    private byte[] dictionary;
+
+    /**
+     * Use a preset dictionary. Small inputs that look like the dictionary compress much better,
+     * the same dictionary must be used to expand the data again.
+     *
+     * @param dictionary the dictionary, or null
+     */
+    public void setDictionary(byte[] dictionary) {
+        this.dictionary = dictionary;
+    }
+
+    public byte[] getDictionary() {
+        return dictionary;
+    }
 
     @Override
     public int getAlgorithm() {
@@ -60,6 +75,8 @@ public class CompressDeflate implements Compressor {
     public int compress(byte[] in, int inLen, byte[] out, int outPos) {
         Deflater deflater = new Deflater(level);
         deflater.setStrategy(strategy);
+        if (dictionary != null)
+            deflater.setDictionary(dictionary);
         deflater.setInput(in, 0, inLen);
         deflater.finish();
         int compressed = deflater.deflate(out, outPos, out.length - outPos);
@@ -82,6 +99,10 @@ public class CompressDeflate implements Compressor {
         decompresser.finished();
         try {
             int len = decompresser.inflate(out, outPos, outLen);
+            if (len == 0 && decompresser.needsDictionary() && dictionary != null) {
+                decompresser.setDictionary(dictionary);
+                len = decompresser.inflate(out, outPos, outLen);
+            }
             if (len != outLen) {
                 throw new DataFormatException(len + " " + outLen);
             }
@@ -0,0 +1,203 @@
+/*
+ * Copyright Lealone Database Group.
+ * Licensed under the Server Side Public License, v 1.
+ * Initial Developer: zhh
+ */
+package org.lealone.common.compress;
+
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+
+import org.lealone.common.exceptions.DbException;
+import org.lealone.db.api.ErrorCode;
+
+/**
+ * A pure Java implementation of the LZ4 block format.
+ * <p>
+ * Each sequence is a token (high 4 bits: literal length, low 4 bits: match length - 4),
+ * optional extra literal length bytes, the literals, a 2 byte little-endian offset
+ * and optional extra match length bytes. The last sequence only contains literals.
+ * <p>
+ * It compresses a bit better than LZF on small repetitive pages because the
+ * back-reference window is 64 KB instead of 8 KB, and it expands faster.
+ */
+public final class CompressLZ4 implements Compressor {
+
+    private static final int MIN_MATCH = 4;
+
+    // 最后5个字节必须是literal，最后一个match必须从倒数第12个字节之前开始
+    private static final int LAST_LITERALS = 5;
+    private static final int MF_LIMIT = 12;
+
+    private static final int MAX_DISTANCE = (1 << 16) - 1;
+
+    private static final int HASH_LOG = 12;
+    private static final int HASH_SIZE = 1 << HASH_LOG;
+
+    // 没有匹配时逐渐加大步长，不可压缩的数据也能很快跳过
+    private static final int SKIP_TRIGGER = 6;
+
+    private static final int RUN_MASK = 15;
+    private static final int ML_MASK = 15;
+
+    /**
+     * Hash table for matching byte sequences (reused for performance).
+     */
+    private int[] cachedHashTable;
+
+    @Override
+    public int getAlgorithm() {
+        return Compressor.LZ4;
+    }
+
+    @Override
+    public void setOptions(String options) {
+        // nothing to do
+    }
+
+    private static int readInt(byte[] in, int pos) {
+        return (in[pos] & 255) | ((in[pos + 1] & 255) << 8) | ((in[pos + 2] & 255) << 16)
+                | ((in[pos + 3] & 255) << 24);
+    }
+
+    private static int hash(int v) {
+        return (v * -1640531535) >>> (32 - HASH_LOG);
+    }
+
+    @Override
+    public int compress(byte[] in, int inLen, byte[] out, int outPos) {
+        int anchor = 0;
+        if (inLen >= MF_LIMIT + 1) {
+            if (cachedHashTable == null)
+                cachedHashTable = new int[HASH_SIZE];
+            int[] hashTab = cachedHashTable;
+            Arrays.fill(hashTab, -1);
+            int matchLimit = inLen - MF_LIMIT;
+            int literalLimit = inLen - LAST_LITERALS;
+            int inPos = 0;
+            while (inPos < matchLimit) {
+                int v = readInt(in, inPos);
+                int h = hash(v);
+                int ref = hashTab[h];
+                hashTab[h] = inPos;
+                if (ref < 0 || inPos - ref > MAX_DISTANCE || readInt(in, ref) != v) {
+                    inPos += 1 + ((inPos - anchor) >>> SKIP_TRIGGER);
+                    continue;
+                }
+                // 向前扩展
+                while (inPos > anchor && ref > 0 && in[inPos - 1] == in[ref - 1]) {
+                    inPos--;
+                    ref--;
+                }
+                // 向后扩展
+                int matchLen = MIN_MATCH;
+                while (inPos + matchLen < literalLimit && in[ref + matchLen] == in[inPos + matchLen])
+                    matchLen++;
+                outPos = writeSequence(in, anchor, inPos - anchor, inPos - ref, matchLen, out, outPos);
+                inPos += matchLen;
+                anchor = inPos;
+                if (inPos - 2 < matchLimit)
+                    hashTab[hash(readInt(in, inPos - 2))] = inPos - 2;
+            }
+        }
+        return writeLastLiterals(in, anchor, inLen - anchor, out, outPos);
+    }
+
+    private static int writeLength(int len, byte[] out, int outPos) {
+        while (len >= 255) {
+            out[outPos++] = (byte) 255;
+            len -= 255;
+        }
+        out[outPos++] = (byte) len;
+        return outPos;
+    }
+
+    private static int writeSequence(byte[] in, int literalPos, int literalLen, int offset,
+            int matchLen, byte[] out, int outPos) {
+        int tokenPos = outPos++;
+        int token;
+        if (literalLen >= RUN_MASK) {
+            token = RUN_MASK << 4;
+            outPos = writeLength(literalLen - RUN_MASK, out, outPos);
+        } else {
+            token = literalLen << 4;
+        }
+        System.arraycopy(in, literalPos, out, outPos, literalLen);
+        outPos += literalLen;
+        out[outPos++] = (byte) offset;
+        out[outPos++] = (byte) (offset >>> 8);
+        int ml = matchLen - MIN_MATCH;
+        if (ml >= ML_MASK) {
+            token |= ML_MASK;
+            outPos = writeLength(ml - ML_MASK, out, outPos);
+        } else {
+            token |= ml;
+        }
+        out[tokenPos] = (byte) token;
+        return outPos;
+    }
+
+    private static int writeLastLiterals(byte[] in, int literalPos, int literalLen, byte[] out,
+            int outPos) {
+        if (literalLen >= RUN_MASK) {
+            out[outPos++] = (byte) (RUN_MASK << 4);
+            outPos = writeLength(literalLen - RUN_MASK, out, outPos);
+        } else {
+            out[outPos++] = (byte) (literalLen << 4);
+        }
+        System.arraycopy(in, literalPos, out, outPos, literalLen);
+        return outPos + literalLen;
+    }
+
+    @Override
+    public void expand(byte[] in, int inPos, int inLen, byte[] out, int outPos, int outLen) {
+        int inEnd = inPos + inLen;
+        int outEnd = outPos + outLen;
+        try {
+            while (inPos < inEnd) {
+                int token = in[inPos++] & 255;
+                int literalLen = token >>> 4;
+                if (literalLen == RUN_MASK) {
+                    int b;
+                    do {
+                        b = in[inPos++] & 255;
+                        literalLen += b;
+                    } while (b == 255);
+                }
+                System.arraycopy(in, inPos, out, outPos, literalLen);
+                inPos += literalLen;
+                outPos += literalLen;
+                if (inPos >= inEnd)
+                    break;
+
+                int offset = (in[inPos++] & 255) | ((in[inPos++] & 255) << 8);
+                int matchLen = token & ML_MASK;
+                if (matchLen == ML_MASK) {
+                    int b;
+                    do {
+                        b = in[inPos++] & 255;
+                        matchLen += b;
+                    } while (b == 255);
+                }
+                matchLen += MIN_MATCH;
+                int ref = outPos - offset;
+                if (offset <= 0 || ref < 0 || outPos + matchLen > outEnd)
+                    throw new DataFormatException("offset " + offset + " at " + outPos);
+                if (offset >= matchLen) {
+                    System.arraycopy(out, ref, out, outPos, matchLen);
+                    outPos += matchLen;
+                } else {
+                    // 重叠的match只能逐个字节复制
+                    for (int i = 0; i < matchLen; i++)
+                        out[outPos++] = out[ref++];
+                }
+            }
+            if (outPos != outEnd)
+                throw new DataFormatException(outPos + " " + outEnd);
+        } catch (DataFormatException e) {
+            throw DbException.get(ErrorCode.COMPRESSION_ERROR, e);
+        } catch (ArrayIndexOutOfBoundsException e) {
+            throw DbException.get(ErrorCode.COMPRESSION_ERROR, e);
+        }
+    }
+}
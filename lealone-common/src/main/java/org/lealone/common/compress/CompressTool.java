@@ -8,6 +8,8 @@ package org.lealone.common.compress;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
 import java.util.zip.DeflaterOutputStream;
 import java.util.zip.GZIPInputStream;
 import java.util.zip.GZIPOutputStream;
@@ -28,6 +30,35 @@ import org.lealone.db.api.ErrorCode;
 public class CompressTool {
 
     private static final int MAX_BUFFER_SIZE = 3 * Constants.IO_BUFFER_SIZE_COMPRESS;
+
+    // 可以注册新的压缩算法，algorithm会写到压缩后的数据中，注册后就不能再修改了
+    private static final ConcurrentHashMap<String, Integer> algorithms = new ConcurrentHashMap<>();
+    private static final ConcurrentHashMap<Integer, Supplier<Compressor>> compressors //
+            = new ConcurrentHashMap<>();
+
+    static {
+        registerCompressor("NO", Compressor.NO, CompressNo::new);
+        registerCompressor("LZF", Compressor.LZF, CompressLZF::new);
+        registerCompressor("DEFLATE", Compressor.DEFLATE, CompressDeflate::new);
+        registerCompressor("LZ4", Compressor.LZ4, CompressLZ4::new);
+    }
+
+    /**
+     * Register a compression algorithm.
+     *
+     * @param name the algorithm name, as used in settings and the COMPRESS function
+     * @param algorithm the algorithm id, stored with the compressed data (0..127)
+     * @param factory creates new compressor instances
+     */
+    public static void registerCompressor(String name, int algorithm, Supplier<Compressor> factory) {
+        if (algorithm < 0 || algorithm > 127)
+            throw DbException.get(ErrorCode.UNSUPPORTED_COMPRESSION_ALGORITHM_1, "" + algorithm);
+        name = StringUtils.toUpperEnglish(name);
+        Integer old = algorithms.putIfAbsent(name, algorithm);
+        if (old != null && old.intValue() != algorithm)
+            throw DbException.get(ErrorCode.UNSUPPORTED_COMPRESSION_ALGORITHM_1, name);
+        compressors.putIfAbsent(algorithm, factory);
+    }
     private byte[] cachedBuffer;
 
     private CompressTool() {
@@ -60,7 +91,7 @@ public class CompressTool {
      * supplied, LZF is used
      *
      * @param in the byte array with the original data
-     * @param algorithm the algorithm (LZF, DEFLATE)
+     * @param algorithm the algorithm (LZF, DEFLATE, LZ4)
      * @return the compressed data
      */
     public byte[] compress(byte[] in, String algorithm) {
@@ -239,28 +270,23 @@ public class CompressTool {
      */
     public static int getCompressAlgorithm(String algorithm) {
         algorithm = StringUtils.toUpperEnglish(algorithm);
-        if ("NO".equals(algorithm)) {
-            return Compressor.NO;
-        } else if ("LZF".equals(algorithm)) {
-            return Compressor.LZF;
-        } else if ("DEFLATE".equals(algorithm)) {
-            return Compressor.DEFLATE;
-        } else {
+        Integer a = algorithms.get(algorithm);
+        if (a == null)
             throw DbException.get(ErrorCode.UNSUPPORTED_COMPRESSION_ALGORITHM_1, algorithm);
-        }
+        return a.intValue();
     }
 
-    private static Compressor getCompressor(int algorithm) {
-        switch (algorithm) {
-        case Compressor.NO:
-            return new CompressNo();
-        case Compressor.LZF:
-            return new CompressLZF();
-        case Compressor.DEFLATE:
-            return new CompressDeflate();
-        default:
+    /**
+     * Create a new compressor instance of the registered algorithm.
+     *
+     * @param algorithm the algorithm id
+     * @return the new compressor
+     */
+    public static Compressor getCompressor(int algorithm) {
+        Supplier<Compressor> factory = compressors.get(algorithm);
+        if (factory == null)
             throw DbException.get(ErrorCode.UNSUPPORTED_COMPRESSION_ALGORITHM_1, "" + algorithm);
-        }
+        return factory.get();
     }
 
     /**
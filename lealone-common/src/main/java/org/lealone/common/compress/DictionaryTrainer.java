@@ -0,0 +1,109 @@
+/*
+ * Copyright Lealone Database Group.
+ * Licensed under the Server Side Public License, v 1.
+ * Initial Developer: zhh
+ */
+package org.lealone.common.compress;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+
+/**
+ * 从一批样本中训练出一个预置字典，给CompressDeflate压缩很小但内容相似的数据用。
+ *
+ * <p>
+ * 把样本切成固定长度的段，每个段的分数是它包含的k-gram在多少个其他样本中也出现过，
+ * 然后选分数最高的那些段拼成字典，分数越高的段放得越靠后，这样deflate可以用更短的距离引用它们。
+ */
+public class DictionaryTrainer {
+
+    private static final int GRAM_LENGTH = 6;
+    private static final int SEGMENT_LENGTH = 32;
+
+    private final ArrayList<byte[]> samples = new ArrayList<>();
+    private final int maxSampleBytes;
+    private int sampleBytes;
+
+    public DictionaryTrainer(int maxSampleBytes) {
+        this.maxSampleBytes = maxSampleBytes;
+    }
+
+    /**
+     * Add a sample, only the first len bytes are used.
+     *
+     * @return true if enough samples are collected
+     */
+    public boolean addSample(byte[] sample, int len) {
+        if (sampleBytes < maxSampleBytes && len >= SEGMENT_LENGTH) {
+            byte[] b = new byte[len];
+            System.arraycopy(sample, 0, b, 0, len);
+            samples.add(b);
+            sampleBytes += len;
+        }
+        return sampleBytes >= maxSampleBytes;
+    }
+
+    public byte[] train(int maxDictionarySize) {
+        return train(samples, maxDictionarySize);
+    }
+
+    // 6个字节刚好能放到一个long中，不会有冲突
+    private static long gram(byte[] b, int pos) {
+        long v = 0;
+        for (int i = 0; i < GRAM_LENGTH; i++)
+            v = (v << 8) | (b[pos + i] & 255);
+        return v;
+    }
+
+    public static byte[] train(List<byte[]> samples, int maxDictionarySize) {
+        // 统计每个k-gram在多少个样本中出现
+        HashMap<Long, Integer> frequencies = new HashMap<>();
+        for (byte[] sample : samples) {
+            HashSet<Long> seen = new HashSet<>();
+            for (int i = 0; i + GRAM_LENGTH <= sample.length; i++) {
+                Long g = gram(sample, i);
+                if (seen.add(g))
+                    frequencies.merge(g, 1, Integer::sum);
+            }
+        }
+
+        ArrayList<long[]> segments = new ArrayList<>(); // {score, sampleIndex, start}
+        for (int s = 0; s < samples.size(); s++) {
+            byte[] sample = samples.get(s);
+            for (int start = 0; start + SEGMENT_LENGTH <= sample.length; start += SEGMENT_LENGTH) {
+                long score = 0;
+                for (int i = start; i + GRAM_LENGTH <= start + SEGMENT_LENGTH; i++)
+                    score += frequencies.get(gram(sample, i)) - 1; // 只在自己的样本中出现的没有用
+                if (score > 0)
+                    segments.add(new long[] { score, s, start });
+            }
+        }
+        segments.sort((a, b) -> Long.compare(b[0], a[0]));
+
+        // 内容相同的段只要一个
+        ArrayList<long[]> selected = new ArrayList<>();
+        HashSet<String> contents = new HashSet<>();
+        int size = 0;
+        for (long[] seg : segments) {
+            if (size + SEGMENT_LENGTH > maxDictionarySize)
+                break;
+            byte[] sample = samples.get((int) seg[1]);
+            String content = new String(sample, (int) seg[2], SEGMENT_LENGTH,
+                    StandardCharsets.ISO_8859_1);
+            if (contents.add(content)) {
+                selected.add(seg);
+                size += SEGMENT_LENGTH;
+            }
+        }
+        byte[] dictionary = new byte[size];
+        int pos = size;
+        for (long[] seg : selected) {
+            pos -= SEGMENT_LENGTH;
+            System.arraycopy(samples.get((int) seg[1]), (int) seg[2], dictionary, pos, SEGMENT_LENGTH);
+        }
+        return dictionary;
+    }
+}
@@ -0,0 +1,51 @@
+/*
+ * Copyright Lealone Database Group.
+ * Licensed under the Server Side Public License, v 1.
+ * Initial Developer: zhh
+ */
+package org.lealone.common.util;
+
+// 用HyperLogLog估算不重复值的个数，只占4K内存，标准误差大约是1.6%。
+// 调用者传入的hash值要足够分散，可以先用mix打散。
+public class HyperLogLog {
+
+    private static final int P = 12;
+    private static final int M = 1 << P;
+    private static final double ALPHA = 0.7213 / (1 + 1.079 / M);
+
+    private final byte[] registers = new byte[M];
+
+    public void add(long hash) {
+        int index = (int) (hash >>> (64 - P));
+        // 低位补一个1，避免剩下的位全是0时算出太大的rank
+        long w = (hash << P) | (1L << (P - 1));
+        byte rank = (byte) (Long.numberOfLeadingZeros(w) + 1);
+        if (rank > registers[index])
+            registers[index] = rank;
+    }
+
+    public long cardinality() {
+        double sum = 0;
+        int zeros = 0;
+        for (byte r : registers) {
+            sum += 1.0 / (1L << r);
+            if (r == 0)
+                zeros++;
+        }
+        double e = ALPHA * M * M / sum;
+        // 值比较少时用线性计数更准确
+        if (e <= 2.5 * M && zeros > 0)
+            e = M * Math.log((double) M / zeros);
+        return Math.round(e);
+    }
+
+    // 跟MurmurHash3的fmix64一样打散
+    public static long mix(long h) {
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
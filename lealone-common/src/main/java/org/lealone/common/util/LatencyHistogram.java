@@ -0,0 +1,69 @@
+/*
+ * Copyright Lealone Database Group.
+ * Licensed under the Server Side Public License, v 1.
+ * Initial Developer: zhh
+ */
+package org.lealone.common.util;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+// 按2的幂分桶的延迟直方图，桶i记录小于2^i微秒并且不小于2^(i-1)微秒的次数，桶0记录不到1微秒的次数。
+// 最后一个桶包含所有更大的值，可以被多个线程并发更新。
+public class LatencyHistogram {
+
+    private static final int BUCKET_COUNT = 32;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKET_COUNT);
+    private final AtomicLong totalNanos = new AtomicLong();
+
+    public void record(long nanos) {
+        long micros = nanos / 1000;
+        int bucket = micros <= 0 ? 0 : 64 - Long.numberOfLeadingZeros(micros);
+        counts.incrementAndGet(Math.min(bucket, BUCKET_COUNT - 1));
+        totalNanos.addAndGet(nanos);
+    }
+
+    public int getBucketCount() {
+        return BUCKET_COUNT;
+    }
+
+    // 桶的上界(不包含)，单位微秒
+    public long getUpperBoundMicros(int bucket) {
+        return bucket == BUCKET_COUNT - 1 ? Long.MAX_VALUE : 1L << bucket;
+    }
+
+    public long getCount(int bucket) {
+        return counts.get(bucket);
+    }
+
+    public long getTotalCount() {
+        long count = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++)
+            count += counts.get(i);
+        return count;
+    }
+
+    public long getTotalNanos() {
+        return totalNanos.get();
+    }
+
+    /**
+     * 返回百分位数所在的桶的上界，单位微秒，没有记录时返回0。
+     *
+     * @param percentile 0到100之间
+     */
+    public long getPercentileMicros(double percentile) {
+        long total = getTotalCount();
+        if (total == 0)
+            return 0;
+        long n = (long) Math.ceil(total * percentile / 100);
+        long count = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            count += counts.get(i);
+            if (count >= n)
+                return getUpperBoundMicros(i);
+        }
+        return getUpperBoundMicros(BUCKET_COUNT - 1);
+    }
+}
@@ -15,6 +15,7 @@ public enum DbSetting {
 
     ALIAS_COLUMN_NAME,
     ANALYZE_AUTO,
+    ANALYZE_AUTO_RATIO,
     ANALYZE_SAMPLE,
     DATABASE_TO_UPPER,
     DB_CLOSE_ON_EXIT,
@@ -33,6 +34,8 @@ public enum DbSetting {
     OPTIMIZE_OR,
     OPTIMIZE_TWO_EQUALS,
     QUERY_CACHE_SIZE,
+    PLAN_CACHE_SIZE,
+    RESULT_CACHE_SIZE,
     RECOMPILE_ALWAYS,
     ROWID,
     DEFAULT_STORAGE_ENGINE,
@@ -5,11 +5,14 @@
  */
 package org.lealone.sql;
 
+import java.util.List;
+
 import org.lealone.db.ManualCloseable;
 import org.lealone.db.async.AsyncHandler;
 import org.lealone.db.async.AsyncResult;
 import org.lealone.db.result.Result;
 import org.lealone.db.session.Session;
+import org.lealone.db.value.Value;
 
 public interface PreparedSQLStatement extends SQLStatement, ManualCloseable {
 
@@ -39,6 +42,15 @@ public interface PreparedSQLStatement extends SQLStatement, ManualCloseable {
         return false;
     }
 
+    // 能否放到数据库级的执行计划缓存中给其他session使用
+    default boolean isPlanCacheable() {
+        return false;
+    }
+
+    // 把执行计划缓存中的语句绑定到当前session，literals是从原始sql中提取出来的常量
+    default void bind(Session session, String sql, List<Value> literals) {
+    }
+
     default boolean isDDL() {
         return false;
     }
@@ -5,6 +5,10 @@
  */
 package org.lealone.sql;
 
+import java.util.List;
+
+import org.lealone.db.value.Value;
+
 public interface SQLParser {
 
     void setRightsChecked(boolean rightsChecked);
@@ -15,4 +19,12 @@ public interface SQLParser {
 
     Object parseColumnForTable(String columnSql);
 
+    /**
+     * 把sql中的常量替换成参数，得到执行计划缓存用的sql，被替换的常量按顺序放到literals中。
+     * 不支持的语句返回null。
+     */
+    default String parameterize(String sql, List<Value> literals) {
+        return null;
+    }
+
 }
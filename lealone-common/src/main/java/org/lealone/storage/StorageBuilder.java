@@ -123,6 +123,27 @@ public abstract class StorageBuilder {
         return set(DbSetting.COMPRESS.name(), 2);
     }
 
+    /**
+     * Compress data before writing using the LZ4 algorithm. It is a bit
+     * slower than LZF when writing, but is faster when reading.
+     *
+     * @return this
+     */
+    public StorageBuilder compressLZ4() {
+        return set(DbSetting.COMPRESS.name(), "LZ4");
+    }
+
+    /**
+     * Train a dictionary from the first pages written and use it to compress
+     * the small pages with the Deflate algorithm. Only used together with
+     * compressHigh and ignored if the storage is encrypted.
+     *
+     * @return this
+     */
+    public StorageBuilder compressDictionary() {
+        return set(StorageSetting.COMPRESS_DICTIONARY.name(), true);
+    }
+
     /**
      * Set the amount of memory a page should contain at most, in bytes,
      * before it is split. The default is 16 KB for persistent stores and 4
@@ -137,6 +158,38 @@ public abstract class StorageBuilder {
         return set(DbSetting.PAGE_SIZE.name(), pageSize);
     }
 
+    /**
+     * Set the size of the page cache shared by all maps of the storage, in MB.
+     * Use 0 to disable the shared page cache.
+     * 
+     * @param mb the cache size in megabytes
+     * @return this
+     */
+    public StorageBuilder pageCacheSize(int mb) {
+        return set(StorageSetting.PAGE_CACHE_SIZE.name(), mb * 1024L * 1024);
+    }
+
+    /**
+     * Read pages of the chunk files that are not written any more through memory mapped buffers.
+     * This has no effect for encrypted files.
+     * 
+     * @return this
+     */
+    public StorageBuilder mmapRead() {
+        return set(StorageSetting.MMAP_READ.name(), true);
+    }
+
+    /**
+     * Set the maximum number of bytes per second that background chunk compaction may rewrite.
+     * The default is 32 MB per second, 0 disables the limit.
+     * 
+     * @param mb the rate limit in MB per second
+     * @return this
+     */
+    public StorageBuilder compactRateLimit(int mb) {
+        return set(StorageSetting.COMPACT_RATE_LIMIT.name(), mb * 1024L * 1024L);
+    }
+
     public StorageBuilder minFillRate(int minFillRate) {
         return set(StorageSetting.MIN_FILL_RATE.name(), minFillRate);
     }
@@ -5,6 +5,8 @@
  */
 package org.lealone.storage;
 
+import java.util.Iterator;
+import java.util.Map;
 import java.util.concurrent.atomic.AtomicLong;
 
 import org.lealone.db.async.AsyncHandler;
@@ -232,9 +234,32 @@ public interface StorageMap<K, V> {
     default void save(long dirtyMemory) {
     }
 
+    /**
+     * 调用save时实际写到磁盘的总字节数，checkpoint用它计算每秒写入的字节数
+     */
+    default long getSavedBytes() {
+        return 0;
+    }
+
     default void repair() {
     }
 
+    /**
+     * 把按key从小到大排好序的记录一次性加入一个空的map，key不能重复。
+     * 默认实现是一条条调用put，存储引擎可以直接用这些记录构建page。
+     * 如果map不是空的，或者加载期间有其他写操作，存储引擎可以放弃加载，此时调用者要改用put。
+     *
+     * @param entries the entries sorted by key
+     * @return true if the entries were loaded
+     */
+    default boolean bulkLoad(Iterator<? extends Map.Entry<K, V>> entries) {
+        while (entries.hasNext()) {
+            Map.Entry<K, V> e = entries.next();
+            put(e.getKey(), e.getValue());
+        }
+        return true;
+    }
+
     default long getDiskSpaceUsed() {
         return 0;
     }
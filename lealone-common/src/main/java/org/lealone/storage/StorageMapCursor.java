@@ -7,7 +7,10 @@ package org.lealone.storage;
 
 import java.util.Objects;
 import java.util.function.Consumer;
+import java.util.function.Predicate;
 
+import org.lealone.storage.page.ColumnBatch;
+import org.lealone.storage.page.ColumnStatsFilter;
 import org.lealone.storage.page.IPage;
 
 public interface StorageMapCursor<K, V> {
@@ -32,6 +35,35 @@ public interface StorageMapCursor<K, V> {
 
     boolean next();
 
+    /**
+     * 如果下一条记录在列存储的leaf page中，并且这个page中剩下的记录都满足filter，
+     * 那么跳过这些记录，一次返回它们的列向量，否则返回null，此时还可以继续调用next()
+     *
+     * @param filter the filter for the raw values in the page
+     * @return the column batch or null
+     */
+    default ColumnBatch nextBatch(Predicate<? super V> filter) {
+        return nextBatch(filter, null);
+    }
+
+    /**
+     * 跟nextBatch(filter)一样，但是page的统计信息不满足statsFilter时，返回一个没有列向量的批次，
+     * 表示这些记录都可以跳过
+     *
+     * @param filter the filter for the raw values in the page
+     * @param statsFilter the filter for the column statistics of the page, or null
+     * @return the column batch or null
+     */
+    default ColumnBatch nextBatch(Predicate<? super V> filter, ColumnStatsFilter statsFilter) {
+        return null;
+    }
+
+    /**
+     * 提前结束遍历，释放游标占用的资源，遍历完之后不用再调用
+     */
+    default void close() {
+    }
+
     default void forEachRemaining(Consumer<? super K> action) {
         Objects.requireNonNull(action);
         while (next())
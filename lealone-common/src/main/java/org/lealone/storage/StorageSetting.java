@@ -15,6 +15,11 @@ public enum StorageSetting {
     POH_FACTORY,
     USE_TABLE_LOB_STORAGE,
     MAX_CHUNK_SIZE,
+    PAGE_CACHE_SIZE,
+    MMAP_READ,
+    COMPACT_RATE_LIMIT,
+    COMPRESS_DICTIONARY,
+    MAX_PARTITION_SIZE,
 
     RUN_MODE
 }
@@ -10,6 +10,7 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.lang.ref.Reference;
 import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
 import java.nio.channels.FileChannel;
 import java.nio.channels.FileLock;
 import java.nio.channels.OverlappingFileLockException;
@@ -440,6 +441,18 @@ public class FileStorage {
         }
     }
 
+    /**
+     * Flush the file content only, the metadata (e.g. last modified time) may not be written.
+     */
+    public void syncData() {
+        try {
+            file.force(false);
+        } catch (IOException e) {
+            closeFileSilently();
+            throw newISE(DataUtils.ERROR_WRITING_FAILED, "Could not sync file {0}", fileName, e);
+        }
+    }
+
     /**
      * Re-open the file. The file pointer will be reset to the previous
      * location.
@@ -474,6 +487,29 @@ public class FileStorage {
         return dst;
     }
 
+    /**
+     * Map a region of the file into memory for reading.
+     * <p>
+     * Only makes sense for regions that are not modified any more.
+     *
+     * @param pos the start position
+     * @param len the number of bytes to map
+     * @return the mapped buffer, or null if the file can not be mapped (for example if it is encrypted)
+     */
+    public MappedByteBuffer map(long pos, long len) {
+        if (encryptedFile != null || len <= 0 || len > Integer.MAX_VALUE)
+            return null;
+        try {
+            MappedByteBuffer buff = file.map(FileChannel.MapMode.READ_ONLY, pos, len);
+            readCount++;
+            return buff;
+        } catch (UnsupportedOperationException e) {
+            return null;
+        } catch (IOException e) {
+            throw newISE(DataUtils.ERROR_READING_FAILED, "Could not map file {0}", fileName, e);
+        }
+    }
+
     /**
      * Write to the file.
      *
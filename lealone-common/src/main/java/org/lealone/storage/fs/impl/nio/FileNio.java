@@ -8,6 +8,7 @@ package org.lealone.storage.fs.impl.nio;
 import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
 import java.nio.channels.FileChannel;
 import java.nio.channels.FileLock;
 import java.nio.channels.NonWritableChannelException;
@@ -106,6 +107,11 @@ class FileNio extends FileBase {
         return channel.tryLock(position, size, shared);
     }
 
+    @Override
+    public MappedByteBuffer map(MapMode mode, long position, long size) throws IOException {
+        return channel.map(mode, position, size);
+    }
+
     @Override
     public String toString() {
         return "nio:" + fileName;
@@ -0,0 +1,65 @@
+/*
+ * Copyright Lealone Database Group.
+ * Licensed under the Server Side Public License, v 1.
+ * Initial Developer: zhh
+ */
+package org.lealone.storage.page;
+
+/**
+ * 一个列存储的leaf page中从start到end(不包含)的记录，每一列的值都以列向量的方式读取。
+ */
+public class ColumnBatch {
+
+    private final IPage page;
+    private final int start;
+    private final int end;
+    private final ColumnVector[] vectors; // 下标是列的索引，没有读取的列是null，跳过的记录没有列向量
+
+    public ColumnBatch(IPage page, int start, int end, ColumnVector[] vectors) {
+        this.page = page;
+        this.start = start;
+        this.end = end;
+        this.vectors = vectors;
+    }
+
+    /**
+     * 根据page的统计信息知道这些记录都不满足查询条件时，不读列page，直接跳过。
+     */
+    public static ColumnBatch skip(IPage page, int start, int end) {
+        return new ColumnBatch(page, start, end, null);
+    }
+
+    public boolean isSkipped() {
+        return vectors == null;
+    }
+
+    public IPage getPage() {
+        return page;
+    }
+
+    public int getStart() {
+        return start;
+    }
+
+    public int getEnd() {
+        return end;
+    }
+
+    public int getRowCount() {
+        return end - start;
+    }
+
+    /**
+     * Get the column vector, the index of a row in the vector is the index in the page.
+     *
+     * @param columnIndex the column index
+     * @return the column vector
+     */
+    public ColumnVector getVector(int columnIndex) {
+        return vectors[columnIndex];
+    }
+
+    public ColumnBatch copy(int end) {
+        return new ColumnBatch(page, start, end, vectors);
+    }
+}
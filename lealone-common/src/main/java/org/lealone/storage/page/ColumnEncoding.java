@@ -0,0 +1,318 @@
+/*
+ * Copyright Lealone Database Group.
+ * Licensed under the Server Side Public License, v 1.
+ * Initial Developer: zhh
+ */
+package org.lealone.storage.page;
+
+import java.nio.ByteBuffer;
+
+import org.lealone.common.util.DataUtils;
+import org.lealone.db.DataBuffer;
+import org.lealone.db.value.Value;
+
+/**
+ * 列page中一列值的编码方式。
+ *
+ * <p>
+ * 先用StorageDataType.writeColumn一个接一个写入，再看能不能换成更小的编码:
+ * 基数低的字符串用字典编码，有连续相同值的INT、LONG用RLE编码，
+ * 差值比较小的INT、LONG(比如有序的)用delta + bit-packing编码。
+ * 其他类型的列或者编码后没有变小就保持原样。
+ *
+ * <p>
+ * 格式: 编码方式(1字节) 值类型(1字节) null个数(varint) [null位图] 编码后的数据
+ */
+public class ColumnEncoding {
+
+    public static final int DICTIONARY = 1;
+    public static final int RLE = 2;
+    public static final int DELTA = 3;
+
+    private ColumnEncoding() {
+    }
+
+    /**
+     * 尝试重新编码buff中从start开始用writeColumn写入的值，编码后更小时替换原来的数据。
+     *
+     * @param buff the buffer
+     * @param start the start position of the values
+     * @param v the values read from the buffer by ColumnVector.read
+     * @return the encoding, or 0 if the values are not changed
+     */
+    public static int encode(DataBuffer buff, int start, ColumnVector v) {
+        int rowCount = v.size();
+        if (rowCount <= 1)
+            return 0;
+        int end = buff.position();
+        DataBuffer best = null;
+        int bestEncoding = 0;
+        int bestLength = end - start;
+        switch (v.getType()) {
+        case Value.STRING: {
+            DataBuffer b = encodeDictionary(v);
+            if (b.position() < bestLength) {
+                best = b;
+                bestEncoding = DICTIONARY;
+            }
+            break;
+        }
+        case Value.INT:
+        case Value.LONG: {
+            long[] longs = new long[rowCount];
+            long last = 0;
+            for (int i = 0; i < rowCount; i++) {
+                // null的位置用前一个值，不影响RLE和delta
+                if (!v.isNull(i))
+                    last = v.getType() == Value.INT ? v.getInt(i) : v.getLong(i);
+                longs[i] = last;
+            }
+            DataBuffer b = encodeRLE(v, longs);
+            if (b.position() < bestLength) {
+                best = b;
+                bestEncoding = RLE;
+                bestLength = b.position();
+            }
+            b = encodeDelta(v, longs);
+            if (b != null && b.position() < bestLength) {
+                best = b;
+                bestEncoding = DELTA;
+            }
+            break;
+        }
+        default:
+            return 0;
+        }
+        if (best == null)
+            return 0;
+        buff.position(start);
+        ByteBuffer encoded = best.getBuffer();
+        encoded.flip();
+        buff.put(encoded);
+        return bestEncoding;
+    }
+
+    private static DataBuffer createBuffer(ColumnVector v, int encoding) {
+        DataBuffer b = DataBuffer.create(v.size() * 2 + 16);
+        b.put((byte) encoding).put((byte) v.getType());
+        b.putVarInt(v.getNullCount());
+        if (v.getNullCount() > 0) {
+            int size = v.size();
+            for (int i = 0; i < size; i += 8) {
+                int bits = 0;
+                for (int j = i; j < i + 8 && j < size; j++) {
+                    if (v.isNull(j))
+                        bits |= 1 << (j - i);
+                }
+                b.put((byte) bits);
+            }
+        }
+        return b;
+    }
+
+    private static DataBuffer encodeDictionary(ColumnVector v) {
+        DataBuffer b = createBuffer(v, DICTIONARY);
+        int dictionarySize = v.getDictionarySize();
+        b.putVarInt(dictionarySize);
+        for (int id = 0; id < dictionarySize; id++) {
+            String s = v.getDictionaryValue(id).getString();
+            b.putVarInt(s.length()).putStringData(s, s.length());
+        }
+        int size = v.size();
+        long[] ids = new long[size];
+        for (int i = 0; i < size; i++) {
+            if (!v.isNull(i))
+                ids[i] = v.getDictionaryId(i);
+        }
+        int bits = bitsNeeded(Math.max(0, dictionarySize - 1));
+        b.put((byte) bits);
+        pack(b, ids, bits);
+        return b;
+    }
+
+    private static DataBuffer encodeRLE(ColumnVector v, long[] longs) {
+        DataBuffer b = createBuffer(v, RLE);
+        int size = longs.length;
+        int runCount = 1;
+        for (int i = 1; i < size; i++) {
+            if (longs[i] != longs[i - 1])
+                runCount++;
+        }
+        b.putVarInt(runCount);
+        int runStart = 0;
+        for (int i = 1; i <= size; i++) {
+            if (i == size || longs[i] != longs[runStart]) {
+                b.putVarLong(zigZag(longs[runStart])).putVarInt(i - runStart);
+                runStart = i;
+            }
+        }
+        return b;
+    }
+
+    private static DataBuffer encodeDelta(ColumnVector v, long[] longs) {
+        int size = longs.length;
+        long[] deltas = new long[size - 1];
+        long minDelta = Long.MAX_VALUE;
+        long maxDelta = Long.MIN_VALUE;
+        try {
+            for (int i = 1; i < size; i++) {
+                long d = Math.subtractExact(longs[i], longs[i - 1]);
+                deltas[i - 1] = d;
+                minDelta = Math.min(minDelta, d);
+                maxDelta = Math.max(maxDelta, d);
+            }
+            Math.subtractExact(maxDelta, minDelta);
+        } catch (ArithmeticException e) {
+            return null; // 差值超出了long的范围
+        }
+        for (int i = 0; i < deltas.length; i++) {
+            deltas[i] -= minDelta;
+        }
+        DataBuffer b = createBuffer(v, DELTA);
+        b.putVarLong(zigZag(longs[0])).putVarLong(zigZag(minDelta));
+        int bits = bitsNeeded(maxDelta - minDelta);
+        b.put((byte) bits);
+        pack(b, deltas, bits);
+        return b;
+    }
+
+    /**
+     * 解码encode写入的rowCount个值。
+     *
+     * @param buff the buffer
+     * @param rowCount the number of values
+     * @return the column vector, or null if the buffer does not contain exactly rowCount values
+     */
+    public static ColumnVector decode(ByteBuffer buff, int rowCount) {
+        int encoding = buff.get();
+        int type = buff.get();
+        ColumnVector v = ColumnVector.create(rowCount, type);
+        int nullCount = DataUtils.readVarInt(buff);
+        if (nullCount > 0) {
+            for (int i = 0; i < rowCount; i += 8) {
+                int bits = buff.get() & 255;
+                for (int j = i; j < i + 8 && j < rowCount; j++) {
+                    if ((bits & (1 << (j - i))) != 0)
+                        v.setNull(j);
+                }
+            }
+        }
+        switch (encoding) {
+        case DICTIONARY: {
+            int dictionarySize = DataUtils.readVarInt(buff);
+            for (int id = 0; id < dictionarySize; id++) {
+                int len = DataUtils.readVarInt(buff);
+                v.addDictionaryValue(DataUtils.readString(buff, len));
+            }
+            int bits = buff.get();
+            long[] ids = unpack(buff, rowCount, bits);
+            for (int i = 0; i < rowCount; i++) {
+                v.setDictionaryId(i, (int) ids[i]);
+            }
+            break;
+        }
+        case RLE: {
+            int runCount = DataUtils.readVarInt(buff);
+            int row = 0;
+            for (int r = 0; r < runCount; r++) {
+                long x = unZigZag(DataUtils.readVarLong(buff));
+                int len = DataUtils.readVarInt(buff);
+                if (row + len > rowCount)
+                    return null;
+                for (int end = row + len; row < end; row++) {
+                    set(v, type, row, x);
+                }
+            }
+            if (row != rowCount)
+                return null;
+            break;
+        }
+        case DELTA: {
+            long x = unZigZag(DataUtils.readVarLong(buff));
+            long minDelta = unZigZag(DataUtils.readVarLong(buff));
+            int bits = buff.get();
+            long[] deltas = unpack(buff, rowCount - 1, bits);
+            set(v, type, 0, x);
+            for (int i = 1; i < rowCount; i++) {
+                x += deltas[i - 1] + minDelta;
+                set(v, type, i, x);
+            }
+            break;
+        }
+        default:
+            return null;
+        }
+        return buff.hasRemaining() ? null : v;
+    }
+
+    private static void set(ColumnVector v, int type, int row, long x) {
+        if (type == Value.INT)
+            v.setInt(row, (int) x);
+        else
+            v.setLong(row, x);
+    }
+
+    private static long zigZag(long x) {
+        return (x << 1) ^ (x >> 63);
+    }
+
+    private static long unZigZag(long x) {
+        return (x >>> 1) ^ -(x & 1);
+    }
+
+    private static int bitsNeeded(long max) {
+        return 64 - Long.numberOfLeadingZeros(max);
+    }
+
+    // 每个值用bits位，从低位开始放到字节里
+    private static void pack(DataBuffer b, long[] values, int bits) {
+        if (bits == 0)
+            return;
+        long acc = 0;
+        int accBits = 0;
+        for (int i = 0; i < values.length; i++) {
+            long x = values[i];
+            int remaining = bits;
+            while (remaining > 0) {
+                int n = Math.min(remaining, 64 - accBits);
+                long part = n == 64 ? x : x & ((1L << n) - 1);
+                acc |= part << accBits;
+                accBits += n;
+                x = n == 64 ? 0 : x >>> n;
+                remaining -= n;
+                while (accBits >= 8) {
+                    b.put((byte) acc);
+                    acc >>>= 8;
+                    accBits -= 8;
+                }
+            }
+        }
+        if (accBits > 0)
+            b.put((byte) acc);
+    }
+
+    private static long[] unpack(ByteBuffer buff, int count, int bits) {
+        long[] values = new long[count];
+        if (bits == 0)
+            return values;
+        long acc = 0;
+        int accBits = 0;
+        for (int i = 0; i < count; i++) {
+            long x = 0;
+            int got = 0;
+            while (got < bits) {
+                if (accBits == 0) {
+                    acc = buff.get() & 255;
+                    accBits = 8;
+                }
+                int n = Math.min(bits - got, accBits);
+                x |= (acc & ((1L << n) - 1)) << got;
+                acc >>>= n;
+                accBits -= n;
+                got += n;
+            }
+            values[i] = x;
+        }
+        return values;
+    }
+}
@@ -0,0 +1,283 @@
+/*
+ * Copyright Lealone Database Group.
+ * Licensed under the Server Side Public License, v 1.
+ * Initial Developer: zhh
+ */
+package org.lealone.storage.page;
+
+import java.nio.ByteBuffer;
+import java.util.HashSet;
+
+import org.lealone.common.util.DataUtils;
+import org.lealone.db.DataBuffer;
+import org.lealone.db.value.Value;
+import org.lealone.db.value.ValueDouble;
+import org.lealone.db.value.ValueInt;
+import org.lealone.db.value.ValueLong;
+import org.lealone.db.value.ValueString;
+
+/**
+ * 一个列存储page中某一列的统计信息，包括最小值、最大值、null的个数，
+ * 不同值不多时还有一个bloom filter，查询时用来跳过不可能有满足条件的记录的page。
+ *
+ * <p>
+ * 只统计INT、LONG、DOUBLE、STRING类型的列，字符串的大小按String.compareTo比较。
+ */
+public class ColumnStats {
+
+    private static final int MAX_STRING_LENGTH = 128; // 太长的字符串不记录最小值和最大值
+    private static final int MAX_BLOOM_FILTER_VALUES = 1024;
+    private static final int BLOOM_FILTER_HASHES = 3;
+
+    private final int type; // 所有值都是null时是Value.NULL
+    private final int rowCount;
+    private final int nullCount;
+    private final Value min;
+    private final Value max;
+    private final long[] bloomFilter; // 没有bloom filter时是null
+
+    private ColumnStats(int type, int rowCount, int nullCount, Value min, Value max,
+            long[] bloomFilter) {
+        this.type = type;
+        this.rowCount = rowCount;
+        this.nullCount = nullCount;
+        this.min = min;
+        this.max = max;
+        this.bloomFilter = bloomFilter;
+    }
+
+    public int getType() {
+        return type;
+    }
+
+    public int getRowCount() {
+        return rowCount;
+    }
+
+    public int getNullCount() {
+        return nullCount;
+    }
+
+    /**
+     * Get the minimum value, the type is the same as getType().
+     *
+     * @return the minimum value, or null if all values are null
+     */
+    public Value getMin() {
+        return min;
+    }
+
+    public Value getMax() {
+        return max;
+    }
+
+    /**
+     * 用bloom filter判断这一列是否可能有跟v相等的值，v的类型要跟getType()一样。
+     *
+     * @param v the value
+     * @return false if no value equals v
+     */
+    public boolean mightContain(Value v) {
+        if (bloomFilter == null)
+            return true;
+        long hash = hash(v);
+        int bits = bloomFilter.length * 64;
+        for (int i = 0; i < BLOOM_FILTER_HASHES; i++) {
+            int bit = getBit(hash, i, bits);
+            if ((bloomFilter[bit >>> 6] & (1L << bit)) == 0)
+                return false;
+        }
+        return true;
+    }
+
+    // 把64位的hash值分成3段，每一段当成一个hash函数的结果
+    private static int getBit(long hash, int i, int bits) {
+        return (int) ((hash >>> (i * 21)) & 0x1FFFFF) % bits;
+    }
+
+    private static long hash(Value v) {
+        long h;
+        switch (v.getType()) {
+        case Value.INT:
+            h = v.getInt();
+            break;
+        case Value.LONG:
+            h = v.getLong();
+            break;
+        default:
+            h = v.getString().hashCode();
+        }
+        // 跟MurmurHash3的fmix64一样打散
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    private static long[] createBloomFilter(HashSet<Value> values) {
+        // 每个值大概用8位，误判率在3%左右
+        int bits = Math.max(64, Integer.highestOneBit(values.size() * 8 - 1) * 2);
+        long[] bloomFilter = new long[bits / 64];
+        for (Value v : values) {
+            long hash = hash(v);
+            for (int i = 0; i < BLOOM_FILTER_HASHES; i++) {
+                int bit = getBit(hash, i, bits);
+                bloomFilter[bit >>> 6] |= 1L << bit;
+            }
+        }
+        return bloomFilter;
+    }
+
+    /**
+     * 统计列向量中的值。
+     *
+     * @param v the column vector
+     * @return the statistics, or null if the type of the values is not supported
+     */
+    public static ColumnStats create(ColumnVector v) {
+        int type = v.getType();
+        int size = v.size();
+        if (type == Value.NULL)
+            return new ColumnStats(type, size, v.getNullCount(), null, null, null);
+        HashSet<Value> distinct = new HashSet<>();
+        Value min = null;
+        Value max = null;
+        switch (type) {
+        case Value.INT:
+        case Value.LONG: {
+            long minLong = Long.MAX_VALUE;
+            long maxLong = Long.MIN_VALUE;
+            for (int i = 0; i < size; i++) {
+                if (v.isNull(i))
+                    continue;
+                long x = type == Value.INT ? v.getInt(i) : v.getLong(i);
+                minLong = Math.min(minLong, x);
+                maxLong = Math.max(maxLong, x);
+                if (distinct != null) {
+                    distinct.add(v.getValue(i));
+                    if (distinct.size() > MAX_BLOOM_FILTER_VALUES)
+                        distinct = null;
+                }
+            }
+            if (type == Value.INT) {
+                min = ValueInt.get((int) minLong);
+                max = ValueInt.get((int) maxLong);
+            } else {
+                min = ValueLong.get(minLong);
+                max = ValueLong.get(maxLong);
+            }
+            break;
+        }
+        case Value.DOUBLE: {
+            double minDouble = 0;
+            double maxDouble = 0;
+            boolean first = true;
+            for (int i = 0; i < size; i++) {
+                if (v.isNull(i))
+                    continue;
+                double x = v.getDouble(i);
+                if (first || Double.compare(x, minDouble) < 0)
+                    minDouble = x;
+                if (first || Double.compare(x, maxDouble) > 0)
+                    maxDouble = x;
+                first = false;
+            }
+            min = ValueDouble.get(minDouble);
+            max = ValueDouble.get(maxDouble);
+            distinct = null;
+            break;
+        }
+        case Value.STRING: {
+            // 字典中的值都是不同的
+            int dictionarySize = v.getDictionarySize();
+            for (int id = 0; id < dictionarySize; id++) {
+                Value s = v.getDictionaryValue(id);
+                if (s.getString().length() > MAX_STRING_LENGTH)
+                    return null;
+                if (min == null || s.getString().compareTo(min.getString()) < 0)
+                    min = s;
+                if (max == null || s.getString().compareTo(max.getString()) > 0)
+                    max = s;
+                if (distinct != null) {
+                    distinct.add(s);
+                    if (distinct.size() > MAX_BLOOM_FILTER_VALUES)
+                        distinct = null;
+                }
+            }
+            if (min == null) // 字符串的长度为0时当成null，所以可能所有的值都是null
+                return new ColumnStats(Value.NULL, size, v.getNullCount(), null, null, null);
+            break;
+        }
+        default:
+            return null;
+        }
+        // 每个值都不一样时bloom filter没有用，用最小值和最大值就够了
+        long[] bloomFilter = null;
+        if (distinct != null && distinct.size() < (size - v.getNullCount()) / 2)
+            bloomFilter = createBloomFilter(distinct);
+        return new ColumnStats(type, size, v.getNullCount(), min, max, bloomFilter);
+    }
+
+    public void write(DataBuffer buff) {
+        buff.put((byte) type).putVarInt(rowCount).putVarInt(nullCount);
+        if (type == Value.NULL)
+            return;
+        switch (type) {
+        case Value.INT:
+        case Value.LONG:
+            buff.putLong(min.getLong()).putLong(max.getLong());
+            break;
+        case Value.DOUBLE:
+            buff.putDouble(min.getDouble()).putDouble(max.getDouble());
+            break;
+        default:
+            String s = min.getString();
+            buff.putVarInt(s.length()).putStringData(s, s.length());
+            s = max.getString();
+            buff.putVarInt(s.length()).putStringData(s, s.length());
+        }
+        if (bloomFilter == null) {
+            buff.putVarInt(0);
+        } else {
+            buff.putVarInt(bloomFilter.length);
+            for (long x : bloomFilter)
+                buff.putLong(x);
+        }
+    }
+
+    public static ColumnStats read(ByteBuffer buff) {
+        int type = buff.get();
+        int rowCount = DataUtils.readVarInt(buff);
+        int nullCount = DataUtils.readVarInt(buff);
+        if (type == Value.NULL)
+            return new ColumnStats(type, rowCount, nullCount, null, null, null);
+        Value min, max;
+        switch (type) {
+        case Value.INT:
+            min = ValueInt.get((int) buff.getLong());
+            max = ValueInt.get((int) buff.getLong());
+            break;
+        case Value.LONG:
+            min = ValueLong.get(buff.getLong());
+            max = ValueLong.get(buff.getLong());
+            break;
+        case Value.DOUBLE:
+            min = ValueDouble.get(buff.getDouble());
+            max = ValueDouble.get(buff.getDouble());
+            break;
+        default:
+            min = ValueString.get(DataUtils.readString(buff, DataUtils.readVarInt(buff)));
+            max = ValueString.get(DataUtils.readString(buff, DataUtils.readVarInt(buff)));
+        }
+        long[] bloomFilter = null;
+        int len = DataUtils.readVarInt(buff);
+        if (len > 0) {
+            bloomFilter = new long[len];
+            for (int i = 0; i < len; i++)
+                bloomFilter[i] = buff.getLong();
+        }
+        return new ColumnStats(type, rowCount, nullCount, min, max, bloomFilter);
+    }
+}
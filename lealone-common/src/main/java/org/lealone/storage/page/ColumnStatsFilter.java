@@ -0,0 +1,27 @@
+/*
+ * Copyright Lealone Database Group.
+ * Licensed under the Server Side Public License, v 1.
+ * Initial Developer: zhh
+ */
+package org.lealone.storage.page;
+
+/**
+ * 根据列存储page中每一列的统计信息判断page中是否可能有满足查询条件的记录。
+ */
+public interface ColumnStatsFilter {
+
+    /**
+     * @param stats the statistics of each column, an element is null if the column has no statistics
+     * @return false if no row in the page can match
+     */
+    boolean mightMatch(ColumnStats[] stats);
+
+    /**
+     * 返回false时只用统计信息跳过page，可能有满足条件的记录时不读列page，调用者继续逐行读取。
+     *
+     * @return true if the column vectors of a matching page should be read
+     */
+    default boolean isVectorRequired() {
+        return true;
+    }
+}
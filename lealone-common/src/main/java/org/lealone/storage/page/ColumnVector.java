@@ -0,0 +1,309 @@
+/*
+ * Copyright Lealone Database Group.
+ * Licensed under the Server Side Public License, v 1.
+ * Initial Developer: zhh
+ */
+package org.lealone.storage.page;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+import org.lealone.common.util.DataUtils;
+import org.lealone.db.DataBuffer;
+import org.lealone.db.value.Value;
+import org.lealone.db.value.ValueDouble;
+import org.lealone.db.value.ValueInt;
+import org.lealone.db.value.ValueLong;
+import org.lealone.db.value.ValueNull;
+import org.lealone.db.value.ValueString;
+import org.lealone.storage.type.StorageDataType;
+
+/**
+ * 一个列存储page中某一列的所有值。
+ *
+ * <p>
+ * INT、LONG、DOUBLE类型的值直接解码成基本类型的数组，字符串解码成字典id，
+ * 如果同一列中出现了其他类型的值，就退化成Value数组。
+ */
+public class ColumnVector {
+
+    private final int size;
+    private int type = Value.NULL; // 所有值都是null时是Value.NULL，退化成Value数组时是Value.UNKNOWN
+    private boolean[] nulls;
+    private int nullCount;
+
+    private int[] ints;
+    private long[] longs;
+    private double[] doubles;
+    private int[] ids;
+    private ArrayList<String> dictionary;
+    private Value[] dictionaryValues;
+    private Value[] values;
+
+    private ColumnVector(int size) {
+        this.size = size;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public int getType() {
+        return type;
+    }
+
+    public int getNullCount() {
+        return nullCount;
+    }
+
+    public boolean isNull(int index) {
+        return nulls != null && nulls[index];
+    }
+
+    public int getInt(int index) {
+        return ints[index];
+    }
+
+    public long getLong(int index) {
+        return longs[index];
+    }
+
+    public double getDouble(int index) {
+        return doubles[index];
+    }
+
+    public int getDictionaryId(int index) {
+        return ids[index];
+    }
+
+    public int getDictionarySize() {
+        return dictionary.size();
+    }
+
+    public Value getDictionaryValue(int id) {
+        if (dictionaryValues == null)
+            dictionaryValues = new Value[dictionary.size()];
+        Value v = dictionaryValues[id];
+        if (v == null) {
+            v = ValueString.get(dictionary.get(id));
+            dictionaryValues[id] = v;
+        }
+        return v;
+    }
+
+    public Value getValue(int index) {
+        if (isNull(index))
+            return ValueNull.INSTANCE;
+        switch (type) {
+        case Value.INT:
+            return ValueInt.get(ints[index]);
+        case Value.LONG:
+            return ValueLong.get(longs[index]);
+        case Value.DOUBLE:
+            return ValueDouble.get(doubles[index]);
+        case Value.STRING:
+            return getDictionaryValue(ids[index]);
+        case Value.UNKNOWN:
+            return values[index];
+        default:
+            return ValueNull.INSTANCE;
+        }
+    }
+
+    // 给ColumnEncoding解码时用
+    static ColumnVector create(int size, int type) {
+        ColumnVector v = new ColumnVector(size);
+        v.setType(type);
+        return v;
+    }
+
+    void setInt(int index, int x) {
+        ints[index] = x;
+    }
+
+    void setLong(int index, long x) {
+        longs[index] = x;
+    }
+
+    void setDictionaryId(int index, int id) {
+        ids[index] = id;
+    }
+
+    void addDictionaryValue(String s) {
+        dictionary.add(s);
+    }
+
+    void setNull(int index) {
+        if (nulls == null)
+            nulls = new boolean[size];
+        nulls[index] = true;
+        nullCount++;
+        if (type == Value.UNKNOWN)
+            values[index] = ValueNull.INSTANCE;
+    }
+
+    private void setType(int type) {
+        this.type = type;
+        switch (type) {
+        case Value.INT:
+            ints = new int[size];
+            break;
+        case Value.LONG:
+            longs = new long[size];
+            break;
+        case Value.DOUBLE:
+            doubles = new double[size];
+            break;
+        case Value.STRING:
+            ids = new int[size];
+            dictionary = new ArrayList<>();
+            break;
+        default:
+            this.type = Value.UNKNOWN;
+            values = new Value[size];
+        }
+    }
+
+    // 同一列中出现了不同类型的值，把已经解码的值转成Value
+    private void toValues(int count) {
+        Value[] values = new Value[size];
+        for (int i = 0; i < count; i++)
+            values[i] = getValue(i);
+        ints = null;
+        longs = null;
+        doubles = null;
+        ids = null;
+        dictionary = null;
+        dictionaryValues = null;
+        this.values = values;
+        type = Value.UNKNOWN;
+    }
+
+    private static int getTypeId(int tag) {
+        switch (tag) {
+        case Value.INT:
+        case StorageDataType.TAG_INTEGER_NEGATIVE:
+        case StorageDataType.TAG_INTEGER_FIXED:
+            return Value.INT;
+        case Value.LONG:
+        case StorageDataType.TAG_LONG_NEGATIVE:
+        case StorageDataType.TAG_LONG_FIXED:
+            return Value.LONG;
+        case Value.DOUBLE:
+        case StorageDataType.TAG_DOUBLE_0:
+        case StorageDataType.TAG_DOUBLE_1:
+        case StorageDataType.TAG_DOUBLE_FIXED:
+            return Value.DOUBLE;
+        case Value.STRING:
+            return Value.STRING;
+        default:
+            if (tag >= StorageDataType.TAG_INTEGER_0_15 && tag <= StorageDataType.TAG_INTEGER_0_15 + 15)
+                return Value.INT;
+            else if (tag >= StorageDataType.TAG_LONG_0_7 && tag <= StorageDataType.TAG_LONG_0_7 + 7)
+                return Value.LONG;
+            else if (tag >= StorageDataType.TAG_STRING_0_15 && tag <= StorageDataType.TAG_STRING_0_15 + 15)
+                return Value.STRING;
+            return Value.UNKNOWN;
+        }
+    }
+
+    /**
+     * 解码用DataBuffer.writeValue一个接一个写入的size个值，格式跟DataBuffer.readValue一样。
+     *
+     * @param buff the buffer
+     * @param size the number of values
+     * @return the column vector, or null if the buffer does not contain exactly size values
+     */
+    public static ColumnVector read(ByteBuffer buff, int size) {
+        ColumnVector v = new ColumnVector(size);
+        HashMap<String, Integer> dictionary = null;
+        for (int row = 0; row < size; row++) {
+            if (!buff.hasRemaining())
+                return null;
+            int tag = buff.get() & 255;
+            if (tag == Value.NULL) {
+                v.setNull(row);
+                continue;
+            }
+            int typeId = getTypeId(tag);
+            if (v.type == Value.NULL) {
+                v.setType(typeId);
+            } else if (v.type != typeId && v.type != Value.UNKNOWN) {
+                v.toValues(row);
+            }
+            switch (v.type) {
+            case Value.INT: {
+                int x;
+                if (tag == Value.INT)
+                    x = DataUtils.readVarInt(buff);
+                else if (tag == StorageDataType.TAG_INTEGER_NEGATIVE)
+                    x = -DataUtils.readVarInt(buff);
+                else if (tag == StorageDataType.TAG_INTEGER_FIXED)
+                    x = buff.getInt();
+                else
+                    x = tag - StorageDataType.TAG_INTEGER_0_15;
+                v.ints[row] = x;
+                break;
+            }
+            case Value.LONG: {
+                long x;
+                if (tag == Value.LONG)
+                    x = DataUtils.readVarLong(buff);
+                else if (tag == StorageDataType.TAG_LONG_NEGATIVE)
+                    x = -DataUtils.readVarLong(buff);
+                else if (tag == StorageDataType.TAG_LONG_FIXED)
+                    x = buff.getLong();
+                else
+                    x = tag - StorageDataType.TAG_LONG_0_7;
+                v.longs[row] = x;
+                break;
+            }
+            case Value.DOUBLE: {
+                double x;
+                if (tag == StorageDataType.TAG_DOUBLE_0)
+                    x = 0d;
+                else if (tag == StorageDataType.TAG_DOUBLE_1)
+                    x = 1d;
+                else if (tag == StorageDataType.TAG_DOUBLE_FIXED)
+                    x = buff.getDouble();
+                else
+                    x = Double.longBitsToDouble(Long.reverse(DataUtils.readVarLong(buff)));
+                v.doubles[row] = x;
+                break;
+            }
+            case Value.STRING: {
+                int len;
+                if (tag == Value.STRING) {
+                    len = DataUtils.readVarInt(buff);
+                    if (len == 0) { // 跟ValueString.type.readValue一样当成null
+                        v.setNull(row);
+                        break;
+                    }
+                } else {
+                    len = tag - StorageDataType.TAG_STRING_0_15;
+                }
+                String s = DataUtils.readString(buff, len);
+                if (dictionary == null)
+                    dictionary = new HashMap<>();
+                Integer id = dictionary.get(s);
+                if (id == null) {
+                    id = v.dictionary.size();
+                    v.dictionary.add(s);
+                    dictionary.put(s, id);
+                }
+                v.ids[row] = id;
+                break;
+            }
+            default:
+                buff.position(buff.position() - 1);
+                Value value = DataBuffer.readValue(buff);
+                if (value == ValueNull.INSTANCE)
+                    v.setNull(row);
+                else
+                    v.values[row] = value;
+            }
+        }
+        return buff.hasRemaining() ? null : v;
+    }
+}
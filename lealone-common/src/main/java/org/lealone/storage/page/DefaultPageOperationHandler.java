@@ -67,6 +67,8 @@ public class DefaultPageOperationHandler extends PageOperationHandlerBase
     }
 
     private void doAwait() {
+        if (!remoteTasks.isEmpty()) // 有让出执行权的页面操作
+            return;
         waiting = true;
         try {
             haveWork.tryAcquire(loopInterval, TimeUnit.MILLISECONDS);
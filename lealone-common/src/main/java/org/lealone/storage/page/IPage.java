@@ -6,5 +6,33 @@
 package org.lealone.storage.page;
 
 public interface IPage {
+
     void markDirtyBottomUp();
+
+    Object getKey(int index);
+
+    int getKeyCount();
+
+    Object getValue(int index);
+
+    Object getValue(int index, boolean allColumns);
+
+    /**
+     * 只有列存储的leaf page才能直接从列page中解码出列向量，其他page返回null
+     *
+     * @param columnIndex the column index
+     * @return the column vector of all the rows in this page, or null
+     */
+    default ColumnVector getColumnVector(int columnIndex) {
+        return null;
+    }
+
+    /**
+     * 从硬盘读出来并且没有被修改过的列存储leaf page才有每一列的统计信息，其他page返回null
+     *
+     * @return the statistics of each column (an element is null if the column has no statistics), or null
+     */
+    default ColumnStats[] getColumnStats() {
+        return null;
+    }
 }
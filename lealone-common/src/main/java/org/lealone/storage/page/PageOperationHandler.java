@@ -16,6 +16,15 @@ public interface PageOperationHandler {
 
     void handlePageOperation(PageOperation po);
 
+    /**
+     * 先执行其他任务，之后再执行po，一个耗时的页面操作可以用它拆成多次执行，只能在当前处理器的线程中调用
+     *
+     * @param po the page operation
+     */
+    default void yieldPageOperation(PageOperation po) {
+        handlePageOperation(po);
+    }
+
     void addWaitingHandler(PageOperationHandler handler);
 
     void wakeUpWaitingHandlers();
@@ -5,6 +5,7 @@
  */
 package org.lealone.storage.page;
 
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicReferenceArray;
 
@@ -25,6 +26,8 @@ public abstract class PageOperationHandlerBase extends Thread implements PageOpe
     }
 
     protected final LinkableList<LinkablePageOperation> lockedTasks = new LinkableList<>();
+    // 其他线程提交的页面操作先放到这里，由当前处理器在runPageOperationTasks中转到lockedTasks
+    protected final ConcurrentLinkedQueue<PageOperation> remoteTasks = new ConcurrentLinkedQueue<>();
 
     protected final int handlerId;
     protected final AtomicReferenceArray<PageOperationHandler> waitingHandlers;
@@ -51,7 +54,20 @@ public abstract class PageOperationHandlerBase extends Thread implements PageOpe
 
     @Override
     public void handlePageOperation(PageOperation po) {
-        lockedTasks.add(new LinkablePageOperation(po));
+        // lockedTasks不是线程安全的，只能由当前处理器自己修改
+        if (Thread.currentThread() == this) {
+            lockedTasks.add(new LinkablePageOperation(po));
+        } else {
+            remoteTasks.add(po);
+            wakeUp();
+        }
+    }
+
+    // 放到remoteTasks中，这一轮runPageOperationTasks不会再取出来，下一轮才执行
+    @Override
+    public void yieldPageOperation(PageOperation po) {
+        remoteTasks.add(po);
+        wakeUp();
     }
 
     @Override
@@ -77,6 +93,10 @@ public abstract class PageOperationHandlerBase extends Thread implements PageOpe
     }
 
     protected void runPageOperationTasks() {
+        PageOperation po;
+        while ((po = remoteTasks.poll()) != null) {
+            lockedTasks.add(new LinkablePageOperation(po));
+        }
         if (lockedTasks.isEmpty())
             return;
         while (lockedTasks.getHead() != null) {
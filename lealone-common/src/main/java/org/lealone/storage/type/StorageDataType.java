@@ -152,6 +152,11 @@ public interface StorageDataType {
         // do nothing
     }
 
+    // 列page用ColumnEncoding编码后，解码出来的值通过这个方法设置
+    default void setColumn(Object obj, Value value, int columnIndex) {
+        // do nothing
+    }
+
     default void setColumns(Object oldObj, Object newObj, int[] columnIndexes) {
         // do nothing
     }
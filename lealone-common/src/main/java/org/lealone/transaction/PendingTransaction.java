@@ -14,6 +14,7 @@ public class PendingTransaction extends LinkableBase<PendingTransaction> {
     private final Transaction transaction;
     private final Object redoLogRecord;
     private final long logId;
+    private final long createTime = System.nanoTime(); // 用来统计提交的延迟
     private CountDownLatch latch;
     private boolean synced;
     private boolean completed;
@@ -36,6 +37,10 @@ public class PendingTransaction extends LinkableBase<PendingTransaction> {
         return logId;
     }
 
+    public long getCreateTime() {
+        return createTime;
+    }
+
     public void setLatch(CountDownLatch latch) {
         this.latch = latch;
     }
@@ -5,8 +5,11 @@
  */
 package org.lealone.transaction;
 
+import java.util.Collections;
+import java.util.Map;
 import java.util.concurrent.ConcurrentSkipListMap;
 
+import org.lealone.common.util.LatencyHistogram;
 import org.lealone.db.Constants;
 import org.lealone.db.PluggableEngine;
 import org.lealone.db.PluginManager;
@@ -47,6 +50,11 @@ public interface TransactionEngine extends PluggableEngine {
         void executeCheckpoint();
 
         long getLoopInterval();
+
+        // 最近一次checkpoint的统计信息，key是指标的名称
+        default Map<String, Long> getStatistics() {
+            return Collections.emptyMap();
+        }
     }
 
     default boolean containsRepeatableReadTransactions() {
@@ -65,6 +73,11 @@ public interface TransactionEngine extends PluggableEngine {
         return null;
     }
 
+    // key是延迟的名称，比如事务提交等待redo log同步的时间
+    default Map<String, LatencyHistogram> getLatencyHistograms() {
+        return Collections.emptyMap();
+    }
+
     default void fullGc(int schedulerCount, int schedulerId) {
     }
 
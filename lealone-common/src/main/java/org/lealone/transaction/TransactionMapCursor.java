@@ -6,9 +6,23 @@
 package org.lealone.transaction;
 
 import org.lealone.storage.StorageMapCursor;
+import org.lealone.storage.page.ColumnBatch;
+import org.lealone.storage.page.ColumnStatsFilter;
 
 public interface TransactionMapCursor<K, V> extends StorageMapCursor<K, V> {
 
     ITransactionalValue getTValue();
 
+    /**
+     * 跟next()一样只返回当前事务能看到的记录，但是只有这个page中剩下的记录都是已经提交并且没有被锁住的，
+     * 才会一次返回它们的列向量，否则返回null，此时要继续调用next()。
+     * 如果page的统计信息不满足statsFilter，返回的批次没有列向量，这些记录都可以跳过
+     *
+     * @param statsFilter the filter for the column statistics of the page, or null
+     * @return the column batch or null
+     */
+    default ColumnBatch nextBatchWithStats(ColumnStatsFilter statsFilter) {
+        return null;
+    }
+
 }
@@ -43,11 +43,13 @@ import org.lealone.db.index.Index;
 import org.lealone.db.index.IndexColumn;
 import org.lealone.db.index.IndexType;
 import org.lealone.db.lock.DbObjectLock;
+import org.lealone.db.result.ResultCache;
 import org.lealone.db.result.Row;
 import org.lealone.db.schema.Schema;
 import org.lealone.db.schema.SchemaObject;
 import org.lealone.db.schema.Sequence;
 import org.lealone.db.schema.TriggerObject;
+import org.lealone.db.session.PlanCache;
 import org.lealone.db.session.ServerSession;
 import org.lealone.db.session.Session;
 import org.lealone.db.session.SessionStatus;
@@ -169,6 +171,8 @@ public class Database extends DbObjectBase implements DataHandler {
     private SourceCompiler compiler;
     private DatabaseEventListener eventListener;
     private QueryStatisticsData queryStatisticsData;
+    private PlanCache planCache;
+    private ResultCache resultCache;
 
     private final boolean persistent;
     private final Map<String, String> parameters;
@@ -1569,6 +1573,34 @@ public class Database extends DbObjectBase implements DataHandler {
         return queryStatisticsData;
     }
 
+    public PlanCache getPlanCache() {
+        if (dbSettings.planCacheSize <= 0) {
+            return null;
+        }
+        if (planCache == null) {
+            synchronized (this) {
+                if (planCache == null) {
+                    planCache = new PlanCache(this);
+                }
+            }
+        }
+        return planCache;
+    }
+
+    public ResultCache getResultCache() {
+        if (dbSettings.resultCacheSize <= 0) {
+            return null;
+        }
+        if (resultCache == null) {
+            synchronized (this) {
+                if (resultCache == null) {
+                    resultCache = new ResultCache(this);
+                }
+            }
+        }
+        return resultCache;
+    }
+
     /**
      * Check if the database is currently opening. This is true until all stored
      * SQL statements have been executed.
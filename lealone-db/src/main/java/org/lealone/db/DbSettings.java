@@ -89,6 +89,14 @@ public class DbSettings extends SettingsBase {
      */
     public final int analyzeAuto = get(DbSetting.ANALYZE_AUTO, 2000);
 
+    /**
+     * Database setting <code>ANALYZE_AUTO_RATIO</code> (default: 10).<br />
+     * ANALYZE is automatically run again for a table after this percentage of
+     * its rows changed, but not before ANALYZE_AUTO rows changed. If set to 0,
+     * the time between running ANALYZE doubles each time instead.
+     */
+    public final int analyzeAutoRatio = get(DbSetting.ANALYZE_AUTO_RATIO, 10);
+
     /**
      * Database setting <code>ANALYZE_SAMPLE</code> (default: 10000).<br />
      * The default sample size when analyzing a table.
@@ -226,6 +234,25 @@ public class DbSettings extends SettingsBase {
      */
     public final int queryCacheSize = get(DbSetting.QUERY_CACHE_SIZE, 8);
 
+    /**
+     * Database setting <code>PLAN_CACHE_SIZE</code> (default: 256).<br />
+     * The size of the plan cache, in number of distinct SQL statements. The
+     * cache is shared by all sessions of the database. Literals in simple
+     * SELECT, INSERT, UPDATE and DELETE statements are replaced with parameters,
+     * so statements that only differ in the literals use the same prepared
+     * statement. Set to 0 to disable the plan cache.
+     */
+    public final int planCacheSize = get(DbSetting.PLAN_CACHE_SIZE, 256);
+
+    /**
+     * Database setting <code>RESULT_CACHE_SIZE</code> (default: 16384).<br />
+     * The memory used by the result cache, in KB. The cache is shared by all
+     * sessions of the database. Results of deterministic queries on regular
+     * tables are kept until one of the tables is changed. Set to 0 to disable
+     * the result cache.
+     */
+    public final int resultCacheSize = get(DbSetting.RESULT_CACHE_SIZE, 16 * 1024);
+
     /**
      * Database setting <code>RECOMPILE_ALWAYS</code> (default: false).<br />
      * Always recompile prepared statements.
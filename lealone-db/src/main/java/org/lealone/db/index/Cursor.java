@@ -7,6 +7,8 @@ package org.lealone.db.index;
 
 import org.lealone.db.result.Row;
 import org.lealone.db.result.SearchRow;
+import org.lealone.storage.page.ColumnBatch;
+import org.lealone.storage.page.ColumnStatsFilter;
 
 /**
  * A cursor is a helper object to iterate through an index.
@@ -50,4 +52,26 @@ public interface Cursor {
      */
     boolean next();
 
+    /**
+     * Read the next complete rows into the array, so that the caller can process them batch by batch.
+     * If -1 is returned, call next() to read the rows one by one.
+     *
+     * @param rows the array to fill
+     * @return the number of rows read (0 if there are no more rows), or -1 if not supported
+     */
+    default int nextRows(Row[] rows) {
+        return -1;
+    }
+
+    /**
+     * Read the rest rows of a column storage page as column vectors if possible.
+     * If null is returned, call next() to read the next row.
+     * If the statistics of the page do not match statsFilter, the returned batch has no vectors.
+     *
+     * @param statsFilter the filter for the column statistics of the page, or null
+     * @return the column batch or null
+     */
+    default ColumnBatch nextBatch(ColumnStatsFilter statsFilter) {
+        return null;
+    }
 }
@@ -207,6 +207,21 @@ public interface Index extends SchemaObject {
      */
     double getCost(ServerSession session, int[] masks, SortOrder sortOrder);
 
+    /**
+     * Estimate the cost like {@link #getCost(ServerSession, int[], SortOrder)}, but use the
+     * fraction of rows each column's conditions select, as estimated from column statistics.
+     *
+     * @param session the session
+     * @param masks per-column comparison bit masks, null means 'always false'
+     * @param selectivities per-column fraction of matching rows, -1 if unknown
+     * @param sortOrder the sort order
+     * @return the estimated cost
+     */
+    default double getCost(ServerSession session, int[] masks, double[] selectivities,
+            SortOrder sortOrder) {
+        return getCost(session, masks, sortOrder);
+    }
+
     /**
      * Get the row count of this table, for the given session.
      *
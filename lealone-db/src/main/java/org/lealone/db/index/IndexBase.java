@@ -238,6 +238,12 @@ public abstract class IndexBase extends SchemaObjectBase implements Index {
      */
     // 代价的计算总体上是围绕行数进行的
     protected long getCostRangeIndex(int[] masks, long rowCount, SortOrder sortOrder) {
+        return getCostRangeIndex(masks, null, rowCount, sortOrder);
+    }
+
+    // selectivities是根据字段的统计信息估算出的每个字段上的条件过滤后剩下的记录比例，为-1的字段没有统计信息
+    protected long getCostRangeIndex(int[] masks, double[] selectivities, long rowCount,
+            SortOrder sortOrder) {
         rowCount += Constants.COST_ROW_OFFSET;
         long cost = rowCount;
         long rows = rowCount;
@@ -265,6 +271,16 @@ public abstract class IndexBase extends SchemaObjectBase implements Index {
                     cost = 3;
                     break;
                 }
+                if (selectivities != null) {
+                    // 有统计信息时按每个字段过滤后剩下的比例逐个相乘
+                    double s = selectivities[index];
+                    if (s < 0) {
+                        s = 1.0 / Math.max(rowCount * column.getSelectivity() / 100, 1);
+                    }
+                    rows = Math.max((long) (rows * Math.min(s, 1)), 1);
+                    cost = 2 + rows;
+                    continue;
+                }
                 totalSelectivity = 100
                         - ((100 - totalSelectivity) * (100 - column.getSelectivity()) / 100);
                 long distinctRows = rowCount * totalSelectivity / 100; // totalSelectivity变大时distinctRows变大
@@ -273,6 +289,11 @@ public abstract class IndexBase extends SchemaObjectBase implements Index {
                 }
                 rows = Math.max(rowCount / distinctRows, 1); // distinctRows变大，则rowCount / distinctRows变小，rows也变小
                 cost = 2 + rows; // rows也变小，所以cost也变小
+            } else if (selectivities != null && selectivities[index] >= 0
+                    && (mask & (IndexConditionType.START | IndexConditionType.END)) != 0) {
+                // 用直方图估算范围条件过滤后剩下的记录数
+                cost = 2 + Math.max((long) (rows * selectivities[index]), 1);
+                break;
             } else if ((mask & IndexConditionType.RANGE) == IndexConditionType.RANGE) { // 见TableFilter.getBestPlanItem中的注释
                 cost = 2 + rows / 4; // rows开始时加了1000，所以rows / 4总是大于1的
                 break;
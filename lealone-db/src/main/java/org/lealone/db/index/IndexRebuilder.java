@@ -10,6 +10,7 @@ import org.lealone.common.trace.TraceModuleType;
 import org.lealone.common.util.MathUtils;
 import org.lealone.db.Database;
 import org.lealone.db.api.DatabaseEventListener;
+import org.lealone.db.index.standard.StandardSecondaryIndex;
 import org.lealone.db.result.Row;
 import org.lealone.db.session.ServerSession;
 import org.lealone.db.table.Table;
@@ -40,10 +41,15 @@ public class IndexRebuilder implements Runnable {
         try {
             Index scan = table.getScanIndex(session);
             int rowCount = MathUtils.convertLongToInt(scan.getRowCount(session));
-            long i = 0;
             String n = table.getName() + ":" + index.getName();
             Database database = table.getSchema().getDatabase();
+            // 索引是空的，排序后直接构建btree，不用一条条add，构建期间有并发的写操作时再一条条add
+            if (index instanceof StandardSecondaryIndex && index.needRebuild()
+                    && bulkLoad((StandardSecondaryIndex) index, scan, database, n, rowCount)) {
+                return;
+            }
             Cursor cursor = scan.find(session, null, null);
+            long i = 0;
             while (cursor.next()) {
                 Row row = cursor.get();
                 index.add(session, row);
@@ -52,8 +58,11 @@ public class IndexRebuilder implements Runnable {
                             MathUtils.convertLongToInt(i), rowCount);
                 }
             }
-        } catch (DbException e) {
+        } catch (RuntimeException e) {
+            // 存储层抛出的不一定是DbException，也要删除建了一半的索引，
+            // 索引已经加到表中了，不删掉的话后续的写操作还会写这个索引
             table.getSchema().freeUniqueName(index.getName());
+            table.removeIndex(index);
             try {
                 index.remove(session);
             } catch (DbException e2) {
@@ -63,9 +72,33 @@ public class IndexRebuilder implements Runnable {
                 session.getTrace().setType(TraceModuleType.TABLE).error(e2, "could not remove index");
                 throw e2;
             }
-            throw e;
+            throw DbException.convert(e);
         } finally {
             session.setUndoLogEnabled(true);
         }
     }
+
+    private boolean bulkLoad(StandardSecondaryIndex index, Index scan, Database database, String n,
+            int rowCount) {
+        Cursor cursor = scan.find(session, null, null);
+        return index.bulkLoad(session, new Cursor() {
+            private long count;
+
+            @Override
+            public Row get() {
+                return cursor.get();
+            }
+
+            @Override
+            public boolean next() {
+                if (!cursor.next())
+                    return false;
+                if ((++count & 127) == 0) {
+                    database.setProgress(DatabaseEventListener.STATE_CREATE_INDEX, n,
+                            MathUtils.convertLongToInt(count), rowCount);
+                }
+                return true;
+            }
+        });
+    }
 }
@@ -0,0 +1,205 @@
+/*
+ * Copyright Lealone Database Group.
+ * Licensed under the Server Side Public License, v 1.
+ * Initial Developer: zhh
+ */
+package org.lealone.db.index.standard;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+
+import org.lealone.common.exceptions.DbException;
+import org.lealone.db.Constants;
+import org.lealone.db.DataBuffer;
+import org.lealone.db.Database;
+import org.lealone.db.SysProperties;
+import org.lealone.storage.fs.FileUtils;
+
+/**
+ * 给批量构建索引用的排序器。
+ *
+ * <p>
+ * 内存中的key超过maxMemoryRows个时先排好序写到一个临时文件，
+ * 最后对所有的临时文件和内存中剩下的key做多路归并。
+ */
+class IndexKeySorter {
+
+    private final Database database;
+    private final IndexKeyType keyType;
+    private final int maxMemoryRows;
+    private final ArrayList<IndexKey> keys = new ArrayList<>();
+    private final ArrayList<Run> runs = new ArrayList<>();
+
+    IndexKeySorter(Database database, IndexKeyType keyType) {
+        this.database = database;
+        this.keyType = keyType;
+        maxMemoryRows = Math.max(1, database.getMaxMemoryRows());
+    }
+
+    void add(IndexKey key) {
+        keys.add(key);
+        if (keys.size() >= maxMemoryRows)
+            spill();
+    }
+
+    private void spill() {
+        keys.sort(keyType::compare);
+        String fileName = createTempFile();
+        // 先加到runs中，出错时也能删除临时文件
+        FileRun run = new FileRun(fileName, keys.size());
+        runs.add(run);
+        DataBuffer buff = DataBuffer.create(database, 256, false);
+        byte[] bytes = new byte[256];
+        try (DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(FileUtils.newOutputStream(fileName, false)))) {
+            for (IndexKey key : keys) {
+                buff.clear();
+                keyType.write(buff, key);
+                ByteBuffer b = buff.getAndFlipBuffer();
+                int len = b.remaining();
+                if (len > bytes.length)
+                    bytes = new byte[Math.max(len, bytes.length * 2)];
+                b.get(bytes, 0, len);
+                out.writeInt(len);
+                out.write(bytes, 0, len);
+            }
+        } catch (IOException e) {
+            throw DbException.convertIOException(e, fileName);
+        }
+        keys.clear();
+    }
+
+    private String createTempFile() {
+        String path = database.getDatabasePath();
+        if (path == null || path.isEmpty()) {
+            path = SysProperties.PREFIX_TEMP_FILE;
+        }
+        try {
+            return FileUtils.createTempFile(path, Constants.SUFFIX_TEMP_FILE, true, true);
+        } catch (IOException e) {
+            throw DbException.convertIOException(e, path);
+        }
+    }
+
+    /**
+     * 返回按keyType排好序的所有key，只能调用一次。
+     *
+     * @return the sorted keys
+     */
+    Iterator<IndexKey> sort() {
+        keys.sort(keyType::compare);
+        if (runs.isEmpty())
+            return keys.iterator();
+        runs.add(new MemoryRun(keys.iterator()));
+        PriorityQueue<Run> queue = new PriorityQueue<>(runs.size(),
+                (a, b) -> keyType.compare(a.current, b.current));
+        for (Run run : runs) {
+            if (run.next())
+                queue.add(run);
+        }
+        return new Iterator<IndexKey>() {
+            @Override
+            public boolean hasNext() {
+                return !queue.isEmpty();
+            }
+
+            @Override
+            public IndexKey next() {
+                Run run = queue.poll();
+                if (run == null)
+                    throw new NoSuchElementException();
+                IndexKey key = run.current;
+                if (run.next())
+                    queue.add(run);
+                return key;
+            }
+        };
+    }
+
+    void close() {
+        for (Run run : runs)
+            run.close();
+        runs.clear();
+        keys.clear();
+    }
+
+    // 一段排好序的key
+    private static abstract class Run {
+
+        IndexKey current;
+
+        abstract boolean next();
+
+        void close() {
+        }
+    }
+
+    private static class MemoryRun extends Run {
+
+        private final Iterator<IndexKey> iterator;
+
+        MemoryRun(Iterator<IndexKey> iterator) {
+            this.iterator = iterator;
+        }
+
+        @Override
+        boolean next() {
+            if (!iterator.hasNext())
+                return false;
+            current = iterator.next();
+            return true;
+        }
+    }
+
+    private class FileRun extends Run {
+
+        private final String fileName;
+        private int remaining;
+        private DataInputStream in;
+        private byte[] bytes = new byte[256];
+
+        FileRun(String fileName, int rowCount) {
+            this.fileName = fileName;
+            this.remaining = rowCount;
+        }
+
+        @Override
+        boolean next() {
+            if (remaining <= 0) {
+                close();
+                return false;
+            }
+            try {
+                if (in == null)
+                    in = new DataInputStream(
+                            new BufferedInputStream(FileUtils.newInputStream(fileName)));
+                int len = in.readInt();
+                if (len > bytes.length)
+                    bytes = new byte[len];
+                in.readFully(bytes, 0, len);
+                current = (IndexKey) keyType.read(ByteBuffer.wrap(bytes, 0, len));
+            } catch (IOException e) {
+                throw DbException.convertIOException(e, fileName);
+            }
+            remaining--;
+            return true;
+        }
+
+        @Override
+        void close() {
+            if (in != null) {
+                FileUtils.closeQuietly(in);
+                in = null;
+            }
+            FileUtils.tryDelete(fileName);
+        }
+    }
+}
@@ -72,7 +72,14 @@ public class StandardDelegateIndex extends StandardIndex {
 
     @Override
     public double getCost(ServerSession session, int[] masks, SortOrder sortOrder) {
-        return 10 * getCostRangeIndex(masks, mainIndex.getRowCountApproximation(), sortOrder);
+        return getCost(session, masks, null, sortOrder);
+    }
+
+    @Override
+    public double getCost(ServerSession session, int[] masks, double[] selectivities,
+            SortOrder sortOrder) {
+        return 10 * getCostRangeIndex(masks, selectivities, mainIndex.getRowCountApproximation(),
+                sortOrder);
     }
 
     @Override
@@ -30,6 +30,8 @@ import org.lealone.db.value.ValueLong;
 import org.lealone.db.value.ValueNull;
 import org.lealone.storage.CursorParameters;
 import org.lealone.storage.Storage;
+import org.lealone.storage.page.ColumnBatch;
+import org.lealone.storage.page.ColumnStatsFilter;
 import org.lealone.storage.page.IPage;
 import org.lealone.transaction.ITransactionalValue;
 import org.lealone.transaction.Transaction;
@@ -480,6 +482,12 @@ public class StandardPrimaryIndex extends StandardIndex {
         private final TransactionMapCursor<Value, VersionedValue> tmCursor;
         private final ValueLong last;
         private Row row;
+        private boolean reachedLast; // nextBatch已经读到last了
+        private boolean pageAligned; // 用统计信息跳过page时，nextRows每批不能跨过page
+
+        // nextBatch读到的记录不能直接使用列向量时，放到这里由next()逐行返回
+        private ArrayList<Row> batchRows;
+        private int batchRowIndex;
 
         public StandardPrimaryIndexCursor(ServerSession session, StandardTable table,
                 StandardPrimaryIndex index, TransactionMapCursor<Value, VersionedValue> tmCursor,
@@ -498,27 +506,93 @@ public class StandardPrimaryIndex extends StandardIndex {
 
         @Override
         public boolean next() {
+            if (batchRows != null) {
+                if (batchRowIndex < batchRows.size()) {
+                    row = batchRows.get(batchRowIndex++);
+                    return true;
+                }
+                batchRows = null;
+            }
+            if (reachedLast) {
+                row = null;
+                return false;
+            }
             if (tmCursor.next()) {
                 if (last != null && tmCursor.getKey().getLong() > last.getLong()) {
                     row = null;
                     return false;
                 }
-                createRow();
+                row = createRow(tmCursor.getKey(), tmCursor.getTValue(), tmCursor.getValue(),
+                        tmCursor.getPage());
                 return true;
             }
             return false;
         }
 
-        private void createRow() {
-            ITransactionalValue tv = tmCursor.getTValue();
-            VersionedValue value = tmCursor.getValue();
+        // 主键索引的记录都是完整的，可以一次读一批，调用者不需要停在每一行上再取字段
+        @Override
+        public int nextRows(Row[] rows) {
+            int n = 0;
+            while (n < rows.length && next()) {
+                rows[n++] = row;
+                // 读到下一个page的第一条记录就停下，让调用者在剩下的记录上先调用nextBatch检查统计信息
+                if (pageAligned && row.getPage() != rows[0].getPage())
+                    break;
+            }
+            return n;
+        }
+
+        @Override
+        public ColumnBatch nextBatch(ColumnStatsFilter statsFilter) {
+            if (batchRows != null || reachedLast)
+                return null;
+            if (statsFilter != null && !statsFilter.isVectorRequired())
+                pageAligned = true;
+            ColumnBatch batch = tmCursor.nextBatchWithStats(statsFilter);
+            if (batch == null)
+                return null;
+            IPage page = batch.getPage();
+            int end = batch.getEnd();
+            if (last != null) {
+                for (int i = batch.getStart(); i < end; i++) {
+                    if (((Value) page.getKey(i)).getLong() > last.getLong()) {
+                        end = i;
+                        reachedLast = true;
+                        break;
+                    }
+                }
+                if (end != batch.getEnd())
+                    batch = batch.copy(end);
+            }
+            // 表结构修改前的记录需要转换，只能逐行处理，统计信息也是按修改前的列统计的，不能用来跳过记录
+            for (int i = batch.getStart(); i < end; i++) {
+                VersionedValue value = (VersionedValue) getTValue(page, i, false).getValue();
+                if (value.version != table.getVersion()) {
+                    batchRows = new ArrayList<>(end - batch.getStart());
+                    batchRowIndex = 0;
+                    for (int j = batch.getStart(); j < end; j++) {
+                        ITransactionalValue tv = getTValue(page, j, true);
+                        batchRows.add(createRow((Value) page.getKey(j), tv,
+                                (VersionedValue) tv.getValue(), page));
+                    }
+                    return null;
+                }
+            }
+            return batch;
+        }
+
+        private static ITransactionalValue getTValue(IPage page, int index, boolean allColumns) {
+            return (ITransactionalValue) page.getValue(index, allColumns);
+        }
+
+        private Row createRow(Value key, ITransactionalValue tv, VersionedValue value, IPage page) {
             Value[] data = value.columns;
             int version = value.version;
-            row = new Row(data, 0);
-            row.setKey(tmCursor.getKey().getLong());
+            Row row = new Row(data, 0);
+            row.setKey(key.getLong());
             row.setVersion(version);
             row.setTValue(tv);
-            row.setPage(tmCursor.getPage());
+            row.setPage(page);
 
             if (table.getVersion() != version) {
                 ArrayList<TableAlterHistoryRecord> records = table.getDatabase().getTableAlterHistory()
@@ -530,13 +604,14 @@ public class StandardPrimaryIndex extends StandardIndex {
                 if (newValues != data) {
                     index.remove(session, row, false);
                     row = new Row(newValues, 0);
-                    row.setKey(tmCursor.getKey().getLong());
+                    row.setKey(key.getLong());
                     row.setVersion(table.getVersion());
                     row.setTValue(tv);
-                    row.setPage(tmCursor.getPage());
+                    row.setPage(page);
                     index.add(session, row);
                 }
             }
+            return row;
         }
     }
 }
@@ -105,6 +105,14 @@ public class VersionedValueType extends ValueDataType {
         }
     }
 
+    @Override
+    public void setColumn(Object obj, Value value, int columnIndex) {
+        VersionedValue v = (VersionedValue) obj;
+        Value[] columns = v.columns;
+        if (columnIndex >= 0 && columnIndex < columns.length)
+            columns[columnIndex] = value;
+    }
+
     @Override
     public void setColumns(Object oldObj, Object newObj, int[] columnIndexes) {
         if (columnIndexes != null) {
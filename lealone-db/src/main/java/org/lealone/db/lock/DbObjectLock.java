@@ -6,12 +6,14 @@
 package org.lealone.db.lock;
 
 import java.util.ArrayList;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.lealone.db.DbObjectType;
 import org.lealone.db.async.AsyncHandler;
 import org.lealone.db.async.AsyncResult;
 import org.lealone.db.session.ServerSession;
 import org.lealone.db.session.Session;
+import org.lealone.transaction.Transaction;
 
 //数据库对象模型已经支持多版本，所以对象锁只需要像行锁一样实现即可
 public class DbObjectLock extends Lock {
@@ -20,6 +22,8 @@ public class DbObjectLock extends Lock {
 
     private final DbObjectType type;
     private ArrayList<AsyncHandler<AsyncResult<Boolean>>> handlers;
+    // 加了读锁的事务，读锁只跟排它锁冲突，不阻止DML和普通查询
+    private final ConcurrentHashMap<Transaction, Boolean> readers = new ConcurrentHashMap<>();
 
     public DbObjectLock(DbObjectType type) {
         this.type = type;
@@ -42,11 +46,59 @@ public class DbObjectLock extends Lock {
     }
 
     public boolean tryExclusiveLock(ServerSession session) {
-        return tryLock(session.getTransaction(), this, null);
+        Transaction t = session.getTransaction();
+        // 其他事务加了读锁时要等它们结束
+        if (!waitForReaders(session, t))
+            return false;
+        return tryLock(t, this, null);
+    }
+
+    // 流式查询在事务结束前都要读表，用读锁阻止其他事务删除或修改表，事务结束时才释放
+    public boolean tryReadLock(ServerSession session) {
+        Transaction t = session.getTransaction();
+        if (readers.containsKey(t) || isLockedExclusivelyBy(session))
+            return true;
+        // 其他事务加了排它锁时要等它结束
+        while (true) {
+            Transaction lockedBy = getTransaction();
+            if (lockedBy == null)
+                break;
+            if (addWaitingTransaction(this, lockedBy, session) == Transaction.OPERATION_NEED_WAIT)
+                return false;
+        }
+        readers.put(t, Boolean.TRUE);
+        session.addLock(this);
+        return true;
+    }
+
+    private boolean waitForReaders(ServerSession session, Transaction t) {
+        while (true) {
+            Transaction reader = null;
+            for (Transaction r : readers.keySet()) {
+                if (r != t) {
+                    reader = r;
+                    break;
+                }
+            }
+            if (reader == null)
+                return true;
+            if (addWaitingTransaction(this, reader, session) == Transaction.OPERATION_NEED_WAIT)
+                return false;
+        }
+    }
+
+    // 已经加了读锁的事务再加排它锁时，session中只记录一次，解锁时一起释放
+    @Override
+    protected void addLock(Session session, Transaction t) {
+        if (!readers.containsKey(t))
+            super.addLock(session, t);
     }
 
     @Override
     public void unlock(Session oldSession, boolean succeeded, Session newSession) {
+        Transaction t = oldSession.getTransaction();
+        if (readers.remove(t) != null && getTransaction() != t)
+            return; // 只加了读锁
         if (handlers != null) {
             handlers.forEach(h -> {
                 h.handle(new AsyncResult<>(succeeded));
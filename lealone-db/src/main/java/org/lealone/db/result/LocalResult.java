@@ -9,14 +9,17 @@ import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.PriorityQueue;
 
 import org.lealone.common.exceptions.DbException;
 import org.lealone.common.util.Utils;
+import org.lealone.db.Constants;
 import org.lealone.db.session.ServerSession;
 import org.lealone.db.util.ValueHashMap;
 import org.lealone.db.value.DataType;
 import org.lealone.db.value.Value;
 import org.lealone.db.value.ValueArray;
+import org.lealone.db.value.ValueLob;
 import org.lealone.sql.IExpression;
 
 /**
@@ -43,6 +46,8 @@ public class LocalResult implements Result, ResultTarget {
     private int diskOffset;
     private boolean distinct;
     private boolean closed;
+    private int topN; // 需要排序并且有limit时，只需保留排在前面的topN行
+    private PriorityQueue<Value[]> topRows; // 堆顶是保留的行中排在最后面的那一行
 
     /**
      * Construct a local result object.
@@ -115,6 +120,27 @@ public class LocalResult implements Result, ResultTarget {
         return copy;
     }
 
+    // 估算放在内存中的记录占用的内存，结果集已经转存到外部或者含有lob时返回-1
+    long getMemory() {
+        if (external != null || rows == null || rows.size() < rowCount) {
+            return -1;
+        }
+        long memory = Constants.MEMORY_OBJECT;
+        for (int i = 0, size = rows.size(); i < size; i++) {
+            Value[] row = rows.get(i);
+            memory += Constants.MEMORY_ROW + row.length * Constants.MEMORY_POINTER;
+            for (Value v : row) {
+                if (v instanceof ValueLob) {
+                    return -1;
+                }
+                if (v != null) {
+                    memory += v.getMemory();
+                }
+            }
+        }
+        return memory;
+    }
+
     /**
      * Set the sort order.
      *
@@ -124,6 +150,15 @@ public class LocalResult implements Result, ResultTarget {
         this.sort = sort;
     }
 
+    /**
+     * Only keep the first n rows in sort order, rows after them are discarded while adding.
+     *
+     * @param n the number of rows to keep, including the offset
+     */
+    public void setTopN(int n) {
+        this.topN = n;
+    }
+
     /**
      * Remove duplicate rows.
      */
@@ -238,17 +273,53 @@ public class LocalResult implements Result, ResultTarget {
             }
             return false;
         }
+        if (sort != null && topN > 0 && topN <= maxMemoryRows) {
+            addTopRow(values);
+            return false;
+        }
         rows.add(values);
         rowCount++;
         if (rows.size() > maxMemoryRows) {
             if (external == null) {
-                external = new ResultTempTable(session, expressions, false, sort);
+                external = createExternal();
             }
             addRowsToDisk();
         }
         return false;
     }
 
+    // 用一个大小为topN的堆保存排在前面的行，不需要把所有行都放到内存或临时表中再排序
+    private void addTopRow(Value[] values) {
+        if (topRows == null) {
+            topRows = new PriorityQueue<>(Math.min(topN, 1024) + 1, sort.reversed());
+        }
+        if (topRows.size() < topN) {
+            topRows.add(values);
+            rowCount++;
+        } else if (sort.compare(values, topRows.peek()) < 0) {
+            topRows.poll();
+            topRows.add(values);
+        }
+    }
+
+    // 需要排序时把排好序的多批记录写到临时文件中，最后再归并，LOB字段的值不能直接序列化，还是用临时表
+    private ResultExternal createExternal() {
+        if (sort != null) {
+            boolean containsLob = false;
+            for (IExpression e : expressions) {
+                int type = e.getType();
+                if (type == Value.CLOB || type == Value.BLOB) {
+                    containsLob = true;
+                    break;
+                }
+            }
+            if (!containsLob) {
+                return new ResultDiskBuffer(session, sort, expressions.length);
+            }
+        }
+        return new ResultTempTable(session, expressions, false, sort);
+    }
+
     private void addRowsToDisk() {
         rowCount = external.addRows(rows);
         rows.clear();
@@ -294,6 +365,10 @@ public class LocalResult implements Result, ResultTarget {
                 }
             }
         }
+        if (topRows != null) {
+            rows = new ArrayList<>(topRows);
+            topRows = null;
+        }
         if (external != null) {
             addRowsToDisk();
             external.done();
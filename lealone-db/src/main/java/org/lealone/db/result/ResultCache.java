@@ -0,0 +1,109 @@
+/*
+ * Copyright Lealone Database Group.
+ * Licensed under the Server Side Public License, v 1.
+ * Initial Developer: zhh
+ */
+package org.lealone.db.result;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+import org.lealone.db.Database;
+import org.lealone.db.session.ServerSession;
+import org.lealone.db.table.Table;
+
+// 数据库级的结果集缓存，所有session共用，按LRU的顺序淘汰，占用的内存不超过RESULT_CACHE_SIZE。
+// key由调用者决定(语句、参数和用到的表)，每个结果集记下执行查询之前用到的表的修改id，
+// 只要其中一个表的数据变了结果集就失效，其他表的修改不影响它。
+// 数据库的元数据变化之后(比如给表加字段)，缓存的所有结果集都作废。
+public class ResultCache {
+
+    private final Database database;
+    private final LinkedHashMap<Object, CachedResult> results = new LinkedHashMap<>(16, 0.75f, true);
+    private long modificationMetaId = -1;
+    private long memory;
+
+    public ResultCache(Database database) {
+        this.database = database;
+    }
+
+    /**
+     * 返回给session用的浅拷贝，没有或者已经失效时返回null。
+     */
+    public synchronized LocalResult get(Object key, ServerSession session) {
+        checkModificationMetaId();
+        CachedResult r = results.get(key);
+        if (r == null)
+            return null;
+        if (!r.isValid()) {
+            remove(key, r);
+            return null;
+        }
+        return r.result.createShallowCopy(session);
+    }
+
+    /**
+     * 放入缓存，modificationIds是执行查询之前各个表的修改id。
+     */
+    public synchronized void put(Object key, LocalResult result, Table[] tables,
+            long[] modificationIds) {
+        checkModificationMetaId();
+        long maxMemory = database.getSettings().resultCacheSize * 1024L;
+        long m = result.getMemory();
+        // 太大的结果集会把其他结果集都挤出去，不缓存
+        if (m < 0 || m > maxMemory / 4)
+            return;
+        LocalResult copy = result.createShallowCopy(null);
+        if (copy == null)
+            return;
+        CachedResult r = new CachedResult(copy, tables, modificationIds, m);
+        if (!r.isValid()) // 执行查询期间表已经被修改了
+            return;
+        CachedResult old = results.put(key, r);
+        if (old != null)
+            memory -= old.memory;
+        memory += m;
+        Iterator<CachedResult> it = results.values().iterator();
+        while (memory > maxMemory && it.hasNext()) {
+            memory -= it.next().memory;
+            it.remove();
+        }
+    }
+
+    private void remove(Object key, CachedResult r) {
+        results.remove(key);
+        memory -= r.memory;
+    }
+
+    private void checkModificationMetaId() {
+        long id = database.getModificationMetaId();
+        if (id != modificationMetaId) {
+            results.clear();
+            memory = 0;
+            modificationMetaId = id;
+        }
+    }
+
+    private static class CachedResult {
+
+        final LocalResult result;
+        final Table[] tables;
+        final long[] modificationIds;
+        final long memory;
+
+        CachedResult(LocalResult result, Table[] tables, long[] modificationIds, long memory) {
+            this.result = result;
+            this.tables = tables;
+            this.modificationIds = modificationIds;
+            this.memory = memory;
+        }
+
+        boolean isValid() {
+            for (int i = 0; i < tables.length; i++) {
+                if (tables[i].getMaxDataModificationId() != modificationIds[i])
+                    return false;
+            }
+            return true;
+        }
+    }
+}
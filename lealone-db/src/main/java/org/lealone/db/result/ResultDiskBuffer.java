@@ -0,0 +1,309 @@
+/*
+ * Copyright Lealone Database Group.
+ * Licensed under the Server Side Public License, v 1.
+ * Initial Developer: zhh
+ */
+package org.lealone.db.result;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.PriorityQueue;
+
+import org.lealone.common.exceptions.DbException;
+import org.lealone.db.Constants;
+import org.lealone.db.DataBuffer;
+import org.lealone.db.Database;
+import org.lealone.db.SysProperties;
+import org.lealone.db.session.ServerSession;
+import org.lealone.db.value.Value;
+import org.lealone.db.value.ValueNull;
+import org.lealone.storage.fs.FileStorage;
+import org.lealone.storage.fs.FileUtils;
+
+/**
+ * 需要排序的LocalResult超过maxMemoryRows时用的外部排序。
+ *
+ * 每次写入的一批记录先在内存中排好序，然后作为一个有序的run追加到临时文件中，
+ * 读取时再对所有run做k路归并，run太多时在done中先把它们合并成更少的run。
+ * 每条记录的格式是: 记录的字节数(int) + 每个字段的值(按DataBuffer.writeValue的格式)。
+ */
+// 单线程操作
+public class ResultDiskBuffer implements ResultExternal {
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final int READ_BLOCK_SIZE = 4 * 1024;
+    private static final int MAX_MERGE_RUNS = 64;
+
+    private final ServerSession session;
+    private final SortOrder sort;
+    private final int columnCount;
+    private final FileStorage file;
+    private final ArrayList<Run> runs;
+    private long filePos;
+    private int rowCount;
+
+    private final ResultDiskBuffer parent;
+    private boolean closed;
+    private int childCount;
+
+    private PriorityQueue<RunReader> readers;
+
+    public ResultDiskBuffer(ServerSession session, SortOrder sort, int columnCount) {
+        this.session = session;
+        this.sort = sort;
+        this.columnCount = columnCount;
+        Database db = session.getDatabase();
+        String path = db.getDatabasePath();
+        if (path == null || path.isEmpty()) { // 内存数据库没有路径
+            path = SysProperties.PREFIX_TEMP_FILE;
+        }
+        String fileName;
+        try {
+            fileName = FileUtils.createTempFile(path, Constants.SUFFIX_TEMP_FILE, true, true);
+        } catch (IOException e) {
+            throw DbException.convertIOException(e, path);
+        }
+        file = FileStorage.open(db, fileName, "rw");
+        file.autoDelete();
+        runs = new ArrayList<>();
+        parent = null;
+    }
+
+    private ResultDiskBuffer(ResultDiskBuffer parent) {
+        this.parent = parent;
+        this.session = parent.session;
+        this.sort = parent.sort;
+        this.columnCount = parent.columnCount;
+        this.file = parent.file;
+        this.runs = parent.runs;
+        this.filePos = parent.filePos;
+        this.rowCount = parent.rowCount;
+    }
+
+    @Override
+    public int addRow(Value[] values) {
+        ArrayList<Value[]> rows = new ArrayList<>(1);
+        rows.add(values);
+        return addRows(rows);
+    }
+
+    @Override
+    public int addRows(ArrayList<Value[]> rows) {
+        if (rows.isEmpty()) {
+            return rowCount;
+        }
+        sort.sort(rows);
+        long start = filePos;
+        DataBuffer buff = DataBuffer.create(null, BUFFER_SIZE, false);
+        for (Value[] row : rows) {
+            writeRow(buff, row);
+            if (buff.length() >= BUFFER_SIZE) {
+                flush(buff);
+            }
+        }
+        flush(buff);
+        runs.add(new Run(start, filePos));
+        rowCount += rows.size();
+        return rowCount;
+    }
+
+    private void writeRow(DataBuffer buff, Value[] row) {
+        int start = buff.length();
+        buff.putInt(0);
+        for (int i = 0; i < columnCount; i++) {
+            // 跟ResultTempTable一样，字段个数不够时补NULL
+            buff.writeValue(i < row.length ? row[i] : ValueNull.INSTANCE);
+        }
+        buff.putInt(start, buff.length() - start - 4);
+    }
+
+    private void flush(DataBuffer buff) {
+        ByteBuffer b = buff.getAndFlipBuffer();
+        int len = b.remaining();
+        if (len > 0) {
+            file.writeFully(filePos, b);
+            filePos += len;
+        }
+        buff.clear();
+    }
+
+    @Override
+    public void done() {
+        // 每个run读取时都要占用一个缓冲区，run太多时先把前面的run合并成一个更大的run
+        while (runs.size() > MAX_MERGE_RUNS) {
+            session.checkCanceled();
+            ArrayList<Run> list = new ArrayList<>(runs.subList(0, MAX_MERGE_RUNS));
+            runs.subList(0, MAX_MERGE_RUNS).clear();
+            PriorityQueue<RunReader> queue = createReaders(list);
+            long start = filePos;
+            DataBuffer buff = DataBuffer.create(null, BUFFER_SIZE, false);
+            Value[] row;
+            while ((row = nextRow(queue)) != null) {
+                writeRow(buff, row);
+                if (buff.length() >= BUFFER_SIZE) {
+                    flush(buff);
+                }
+            }
+            flush(buff);
+            runs.add(0, new Run(start, filePos));
+        }
+    }
+
+    private PriorityQueue<RunReader> createReaders(ArrayList<Run> list) {
+        PriorityQueue<RunReader> queue = new PriorityQueue<>(Math.max(list.size(), 1), (a, b) -> {
+            int comp = sort.compare(a.current, b.current);
+            // 值相同时先返回前面的run中的记录，保持跟内存排序一样的稳定性
+            return comp != 0 ? comp : Integer.compare(a.index, b.index);
+        });
+        for (int i = 0, size = list.size(); i < size; i++) {
+            RunReader reader = new RunReader(i, list.get(i));
+            if (reader.next()) {
+                queue.add(reader);
+            }
+        }
+        return queue;
+    }
+
+    private static Value[] nextRow(PriorityQueue<RunReader> queue) {
+        RunReader reader = queue.poll();
+        if (reader == null) {
+            return null;
+        }
+        Value[] row = reader.current;
+        if (reader.next()) {
+            queue.add(reader);
+        }
+        return row;
+    }
+
+    @Override
+    public Value[] next() {
+        if (readers == null) {
+            readers = createReaders(runs);
+        }
+        return nextRow(readers);
+    }
+
+    @Override
+    public void reset() {
+        readers = null;
+    }
+
+    @Override
+    public ResultExternal createShallowCopy() {
+        if (parent != null) {
+            return parent.createShallowCopy();
+        }
+        if (closed) {
+            return null;
+        }
+        childCount++;
+        return new ResultDiskBuffer(this);
+    }
+
+    private void closeChild() {
+        if (--childCount == 0 && closed) {
+            file.closeAndDeleteSilently();
+        }
+    }
+
+    @Override
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        readers = null;
+        if (parent != null) {
+            parent.closeChild();
+        } else if (childCount == 0) {
+            file.closeAndDeleteSilently();
+        }
+    }
+
+    @Override
+    public int removeRow(Value[] values) {
+        throw DbException.getUnsupportedException("removeRow");
+    }
+
+    // 没有索引，只能逐个run扫描
+    @Override
+    public boolean contains(Value[] values) {
+        Database db = session.getDatabase();
+        for (int i = 0, size = runs.size(); i < size; i++) {
+            RunReader reader = new RunReader(i, runs.get(i));
+            while (reader.next()) {
+                if (isEqual(db, reader.current, values)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private static boolean isEqual(Database db, Value[] row, Value[] values) {
+        for (int i = 0; i < values.length; i++) {
+            if (!db.areEqual(row[i], values[i])) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static class Run {
+
+        final long start;
+        final long end;
+
+        Run(long start, long end) {
+            this.start = start;
+            this.end = end;
+        }
+    }
+
+    // 按块读取一个run中的记录
+    private class RunReader {
+
+        final int index;
+        final long end;
+        long pos; // buff之后的文件位置
+        ByteBuffer buff;
+        Value[] current;
+
+        RunReader(int index, Run run) {
+            this.index = index;
+            this.pos = run.start;
+            this.end = run.end;
+        }
+
+        boolean next() {
+            int remaining = buff == null ? 0 : buff.remaining();
+            if (pos - remaining >= end) {
+                current = null;
+                return false;
+            }
+            int len = ensure(4).getInt();
+            ByteBuffer b = ensure(len);
+            Value[] row = new Value[columnCount];
+            for (int i = 0; i < columnCount; i++) {
+                row[i] = DataBuffer.readValue(b);
+            }
+            current = row;
+            return true;
+        }
+
+        // 确保buff中至少还有n个字节，一条记录跨越两个块时从记录的开始位置重新读
+        private ByteBuffer ensure(int n) {
+            int remaining = buff == null ? 0 : buff.remaining();
+            if (remaining >= n) {
+                return buff;
+            }
+            long p = pos - remaining;
+            int len = (int) Math.min(Math.max(n, READ_BLOCK_SIZE), end - p);
+            buff = file.readFully(p, len);
+            pos = p + len;
+            return buff;
+        }
+    }
+}
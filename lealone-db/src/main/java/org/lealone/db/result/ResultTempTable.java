@@ -44,7 +44,8 @@ public class ResultTempTable implements ResultExternal {
     private int childCount;
     private boolean containsLob;
 
-    ResultTempTable(ServerSession session, IExpression[] expressions, boolean distinct, SortOrder sort) {
+    public ResultTempTable(ServerSession session, IExpression[] expressions, boolean distinct,
+            SortOrder sort) {
         this.session = session;
         this.distinct = distinct;
         this.sort = sort;
@@ -144,8 +145,9 @@ public class ResultTempTable implements ResultExternal {
 
     @Override
     public int addRow(Value[] values) {
-        // 写入临时表的记录不写undoLog
+        // 写入临时表的记录不写undoLog，也不用记录脏页
         session.setUndoLogEnabled(false);
+        session.setDirtyPagesTracked(false);
         try {
             Row row = convertToRow(values);
             if (distinct) {
@@ -161,6 +163,7 @@ public class ResultTempTable implements ResultExternal {
             return rowCount;
         } finally {
             session.setUndoLogEnabled(true);
+            session.setDirtyPagesTracked(true);
         }
     }
 
@@ -255,6 +258,18 @@ public class ResultTempTable implements ResultExternal {
         resultCursor = null;
     }
 
+    /**
+     * 按排序字段的值查找记录，只能用于指定了sort的临时表，
+     * hash join的build端和group by的分组数超过maxMemoryRows时就用它来存放记录。
+     *
+     * @param values the row values, only the values of the sort columns are used
+     * @return the cursor that iterates over the rows with the same sort column values
+     */
+    public Cursor findBySortColumns(Value[] values) {
+        Row row = convertToRow(values);
+        return index.find(session, row, row);
+    }
+
     private Row convertToRow(Value[] values) {
         if (values.length < columnCount) {
             Value[] v2 = Arrays.copyOf(values, columnCount);
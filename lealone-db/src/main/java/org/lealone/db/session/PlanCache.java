@@ -0,0 +1,156 @@
+/*
+ * Copyright Lealone Database Group.
+ * Licensed under the Server Side Public License, v 1.
+ * Initial Developer: zhh
+ */
+package org.lealone.db.session;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+import org.lealone.db.Database;
+import org.lealone.sql.PreparedSQLStatement;
+
+// 数据库级的执行计划缓存，所有session共用。
+// key是用户名、当前schema和常量被替换成参数之后的sql，只要这三者一样就可以用同一个已经优化好的语句。
+// 语句在执行时有当前行等状态，不能被多个session同时使用，所以每个key下面缓存的是一组空闲的语句，
+// session要用时借走，session关闭时再把它用过的语句还回来。
+// 数据库的元数据变化之后(比如建索引、删表)，缓存的所有语句都作废。
+public class PlanCache {
+
+    private static final int MAX_IDLE_STATEMENTS = 16; // 每个key最多缓存的空闲语句个数
+
+    private final Database database;
+    private final LinkedHashMap<String, PlanEntry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long modificationMetaId = -1;
+    private long hitCount;
+    private long missCount;
+
+    public PlanCache(Database database) {
+        this.database = database;
+    }
+
+    /**
+     * 借一个空闲的语句，没有时返回null。
+     */
+    public synchronized PreparedSQLStatement get(String key, String sql) {
+        checkModificationMetaId();
+        PlanEntry entry = entries.get(key);
+        if (entry == null) {
+            entry = new PlanEntry(sql);
+            entries.put(key, entry);
+            removeEldestEntries();
+        } else if (entry.disabled) {
+            return null;
+        }
+        PreparedSQLStatement ps = entry.idleStatements.poll();
+        if (ps == null) {
+            entry.missCount++;
+            missCount++;
+        } else {
+            entry.hitCount++;
+            hitCount++;
+        }
+        return ps;
+    }
+
+    /**
+     * session自己的queryCache中已经有可以重用的语句时只记录一次命中。
+     */
+    public synchronized void hit(String key) {
+        PlanEntry entry = entries.get(key);
+        if (entry != null)
+            entry.hitCount++;
+        hitCount++;
+    }
+
+    /**
+     * 把语句还回缓存，modificationMetaId是语句准备好时数据库的元数据版本。
+     */
+    public synchronized void release(String key, PreparedSQLStatement ps, long modificationMetaId) {
+        checkModificationMetaId();
+        if (modificationMetaId != this.modificationMetaId)
+            return;
+        PlanEntry entry = entries.get(key);
+        if (entry != null && !entry.disabled && entry.idleStatements.size() < MAX_IDLE_STATEMENTS)
+            entry.idleStatements.add(ps);
+    }
+
+    /**
+     * 替换常量后的sql不能解析或者不能共享时，以后不再尝试。
+     */
+    public synchronized void disable(String key) {
+        PlanEntry entry = entries.get(key);
+        if (entry != null) {
+            entry.disabled = true;
+            entry.idleStatements.clear();
+        }
+    }
+
+    public synchronized boolean isDisabled(String key) {
+        PlanEntry entry = entries.get(key);
+        return entry != null && entry.disabled;
+    }
+
+    public synchronized long getHitCount() {
+        return hitCount;
+    }
+
+    public synchronized long getMissCount() {
+        return missCount;
+    }
+
+    // 返回副本，调用者不需要再同步
+    public synchronized List<PlanEntry> getEntries() {
+        checkModificationMetaId();
+        ArrayList<PlanEntry> list = new ArrayList<>(entries.size());
+        for (PlanEntry e : entries.values()) {
+            if (!e.disabled)
+                list.add(e.copy());
+        }
+        return list;
+    }
+
+    private void checkModificationMetaId() {
+        long id = database.getModificationMetaId();
+        if (id != modificationMetaId) {
+            entries.clear();
+            modificationMetaId = id;
+        }
+    }
+
+    private void removeEldestEntries() {
+        int maxSize = database.getSettings().planCacheSize;
+        Iterator<PlanEntry> it = entries.values().iterator();
+        while (entries.size() > maxSize && it.hasNext()) {
+            it.next();
+            it.remove();
+        }
+    }
+
+    public static class PlanEntry {
+
+        public final String sql;
+        public long hitCount;
+        public long missCount;
+        public int idleCount;
+
+        private final ArrayDeque<PreparedSQLStatement> idleStatements = new ArrayDeque<>();
+        private boolean disabled;
+
+        PlanEntry(String sql) {
+            this.sql = sql;
+        }
+
+        private PlanEntry copy() {
+            PlanEntry e = new PlanEntry(sql);
+            e.hitCount = hitCount;
+            e.missCount = missCount;
+            e.idleCount = idleStatements.size();
+            return e;
+        }
+    }
+}
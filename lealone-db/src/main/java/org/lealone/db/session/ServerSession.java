@@ -42,6 +42,7 @@ import org.lealone.db.index.Index;
 import org.lealone.db.lock.Lock;
 import org.lealone.db.result.Result;
 import org.lealone.db.schema.Schema;
+import org.lealone.db.table.StandardTable;
 import org.lealone.db.table.Table;
 import org.lealone.db.value.Value;
 import org.lealone.db.value.ValueLob;
@@ -471,10 +472,13 @@ public class ServerSession extends SessionBase {
             }
         }
         SQLParser parser = database.createParser(this);
-        ps = parser.parse(sql).prepare();
-        if (queryCache != null) {
-            if (ps.isCacheable()) {
-                queryCache.put(sql, ps);
+        ps = preparePlanCachedStatement(parser, sql);
+        if (ps == null) {
+            ps = parser.parse(sql).prepare();
+            if (queryCache != null) {
+                if (ps.isCacheable()) {
+                    queryCache.put(sql, ps);
+                }
             }
         }
         if (fetchSize != -1)
@@ -482,6 +486,80 @@ public class ServerSession extends SessionBase {
         return ps;
     }
 
+    // 先从session自己的queryCache中找，再从数据库级的执行计划缓存中借，都没有时再解析替换常量后的sql，
+    // 放到queryCache中的key跟执行计划缓存的key一样，session关闭时再还给执行计划缓存
+    private PreparedSQLStatement preparePlanCachedStatement(SQLParser parser, String sql) {
+        PlanCache planCache = database.getPlanCache();
+        if (planCache == null)
+            return null;
+        ArrayList<Value> literals = new ArrayList<>();
+        String planSql = parser.parameterize(sql, literals);
+        if (planSql == null)
+            return null;
+        String key = getPlanCacheKey(planSql, literals.size());
+        PreparedSQLStatement ps;
+        if (queryCache != null) {
+            ps = queryCache.get(key);
+            if (ps != null && ps.canReuse()) {
+                planCache.hit(key);
+                ps.reuse();
+                ps.bind(this, sql, literals);
+                return ps;
+            }
+        }
+        ps = planCache.get(key, planSql);
+        if (ps == null) {
+            if (planCache.isDisabled(key))
+                return null;
+            try {
+                ps = parser.parse(planSql).prepare();
+            } catch (DbException e) {
+                // 替换常量之后不能解析的sql交给调用者按原来的sql再解析一次，出错时也能给出原始的sql
+                planCache.disable(key);
+                return null;
+            }
+            if (!ps.isPlanCacheable()) {
+                planCache.disable(key);
+                return null;
+            }
+        } else {
+            ps.reuse();
+        }
+        ps.bind(this, sql, literals);
+        if (queryCache != null)
+            queryCache.put(key, ps);
+        return ps;
+    }
+
+    // 常量换成的参数对客户端不可见，跟客户端自己的参数不能共用同一个语句，所以key中也要有常量的个数
+    private String getPlanCacheKey(String planSql, int literalCount) {
+        StringBuilder buff = new StringBuilder();
+        buff.append(user.getName()).append(PLAN_CACHE_KEY_SEPARATOR).append(currentSchemaName);
+        if (schemaSearchPath != null) {
+            for (String s : schemaSearchPath)
+                buff.append(',').append(s);
+        }
+        buff.append(PLAN_CACHE_KEY_SEPARATOR).append(literalCount);
+        return buff.append(PLAN_CACHE_KEY_SEPARATOR).append(planSql).toString();
+    }
+
+    private static final char PLAN_CACHE_KEY_SEPARATOR = '\u0000';
+
+    // 把queryCache中可以共享的语句还给执行计划缓存，还没执行完的语句(canReuse为false)不能还
+    private void releasePlanCachedStatements() {
+        PlanCache planCache = database.getPlanCache();
+        if (planCache == null || queryCache == null)
+            return;
+        for (Map.Entry<String, PreparedSQLStatement> e : queryCache.entrySet()) {
+            PreparedSQLStatement ps = e.getValue();
+            if (e.getKey().indexOf(PLAN_CACHE_KEY_SEPARATOR) >= 0 && ps.canReuse()
+                    && ps.isPlanCacheable()) {
+                planCache.release(e.getKey(), ps, modificationMetaID);
+            }
+        }
+        queryCache.clear();
+    }
+
     private short executingStatements;
     private boolean isForUpdate; // 记录当前事务执行过的语句是否带有更新语句(含select for update)
 
@@ -614,6 +692,22 @@ public class ServerSession extends SessionBase {
         }
     }
 
+    private StandardTable lastModifiedTable;
+    private HashSet<StandardTable> modifiedTables; // 当前事务修改过的表
+
+    public void addModifiedTable(StandardTable table) {
+        if (table == lastModifiedTable)
+            return;
+        lastModifiedTable = table;
+        if (modifiedTables == null)
+            modifiedTables = new HashSet<>();
+        modifiedTables.add(table);
+    }
+
+    public boolean hasModifiedTables() {
+        return modifiedTables != null;
+    }
+
     private void checkDataModification() {
         // 手动提交时，如果更新了数据，让缓存失效，这样其他还没结束的事务就算开启了缓存也能读到新数据
         if (!isAutoCommit() && transaction.getSavepointId() > 0)
@@ -621,6 +715,12 @@ public class ServerSession extends SessionBase {
     }
 
     private void endTransaction() {
+        if (modifiedTables != null) {
+            for (StandardTable table : modifiedTables)
+                table.updateModificationId();
+            modifiedTables = null;
+            lastModifiedTable = null;
+        }
         containsDDL = false;
         containsDatabaseStatement = false;
         isForUpdate = false;
@@ -756,6 +856,7 @@ public class ServerSession extends SessionBase {
             try {
                 database.checkPowerOff();
                 closeAllCache();
+                releasePlanCachedStatements();
                 cleanTempTables(true);
                 database.removeSession(this);
                 if (getTransactionListener() != null)
@@ -1596,6 +1697,16 @@ public class ServerSession extends SessionBase {
         this.olapBatchSize = olapBatchSize;
     }
 
+    private boolean streamingResult;
+
+    public boolean isStreamingResult() {
+        return streamingResult;
+    }
+
+    public void setStreamingResult(boolean streamingResult) {
+        this.streamingResult = streamingResult;
+    }
+
     public Map<String, String> getSettings() {
         Map<String, String> settings = new LinkedHashMap<>(SessionSetting.values().length);
         for (SessionSetting setting : SessionSetting.values()) {
@@ -1636,6 +1747,9 @@ public class ServerSession extends SessionBase {
             case OLAP_BATCH_SIZE:
                 v = olapBatchSize;
                 break;
+            case STREAMING_RESULT:
+                v = streamingResult;
+                break;
             }
             settings.put(setting.name(), v == null ? "null" : v.toString());
         }
@@ -1707,6 +1821,13 @@ public class ServerSession extends SessionBase {
         undoLogEnabled = enabled;
     }
 
+    private boolean dirtyPagesTracked = true;
+
+    // 临时结果表在语句结束时就删除了，写入它的page不需要在提交事务时再标记为脏页
+    public void setDirtyPagesTracked(boolean tracked) {
+        dirtyPagesTracked = tracked;
+    }
+
     @Override
     public void addPageReference(Object ref) {
         pageRefs.put(ref, ref);
@@ -1727,6 +1848,8 @@ public class ServerSession extends SessionBase {
 
     @Override
     public void addDirtyPage(IPage page) {
+        if (!dirtyPagesTracked)
+            return;
         if (dirtyPages == null)
             dirtyPages = new HashSet<>();
         dirtyPages.add(page);
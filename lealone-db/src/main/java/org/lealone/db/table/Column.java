@@ -86,6 +86,7 @@ public class Column {
     private IExpression.Evaluator defaultExpressionEvaluator;
     private IExpression.Evaluator checkConstraintEvaluator;
     private int selectivity;
+    private ColumnStatistics statistics;
     private String comment;
     private boolean primaryKey;
 
@@ -450,6 +451,9 @@ public class Column {
         if (selectivity != 0) {
             buff.append(" SELECTIVITY ").append(selectivity);
         }
+        if (statistics != null) {
+            buff.append(" STATISTICS ").append(StringUtils.quoteStringSQL(statistics.encode()));
+        }
         if (comment != null) {
             buff.append(" COMMENT ").append(StringUtils.quoteStringSQL(comment));
         }
@@ -538,6 +542,19 @@ public class Column {
         this.selectivity = selectivity;
     }
 
+    /**
+     * Get the statistics collected by ANALYZE, or null if not analyzed yet.
+     *
+     * @return the statistics
+     */
+    public ColumnStatistics getStatistics() {
+        return statistics;
+    }
+
+    public void setStatistics(ColumnStatistics statistics) {
+        this.statistics = statistics;
+    }
+
     /**
      * Add a check constraint expression to this column. An existing check
      * constraint constraint is added using AND.
@@ -729,6 +746,7 @@ public class Column {
         comment = source.comment;
         isComputed = source.isComputed;
         selectivity = source.selectivity;
+        statistics = source.statistics;
         primaryKey = source.primaryKey;
     }
 
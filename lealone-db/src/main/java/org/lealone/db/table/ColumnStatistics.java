@@ -0,0 +1,278 @@
+/*
+ * Copyright Lealone Database Group.
+ * Licensed under the Server Side Public License, v 1.
+ * Initial Developer: zhh
+ */
+package org.lealone.db.table;
+
+import java.util.ArrayList;
+
+import org.lealone.common.util.HyperLogLog;
+import org.lealone.common.util.StringUtils;
+import org.lealone.db.value.CompareMode;
+import org.lealone.db.value.DataType;
+import org.lealone.db.value.Value;
+import org.lealone.db.value.ValueNull;
+import org.lealone.db.value.ValueString;
+
+// ANALYZE时为每个字段采样得到的统计信息: 不重复值的个数、NULL所占的比例和等深直方图。
+// 直方图的边界值把非NULL的值分成记录数相同的若干个桶，同一个值占了多个边界时说明它是高频值。
+// 统计信息放在字段的定义中(STATISTICS '...')，跟SELECTIVITY一样随表的元数据一起保存。
+public class ColumnStatistics {
+
+    public static final int HISTOGRAM_BUCKETS = 32;
+    private static final int MAX_BOUND_LENGTH = 64; // 太长的字符串只保留前缀，不影响大致的顺序
+
+    private final long rowCount;
+    private final double nullFraction;
+    private final long distinctCount;
+    private final Value[] histogram; // 没有时为null
+
+    public ColumnStatistics(long rowCount, double nullFraction, long distinctCount, Value[] histogram) {
+        this.rowCount = rowCount;
+        this.nullFraction = nullFraction;
+        this.distinctCount = Math.max(distinctCount, 1);
+        this.histogram = histogram != null && histogram.length > 1 ? histogram : null;
+    }
+
+    public long getRowCount() {
+        return rowCount;
+    }
+
+    public double getNullFraction() {
+        return nullFraction;
+    }
+
+    public long getDistinctCount() {
+        return distinctCount;
+    }
+
+    public Value[] getHistogram() {
+        return histogram;
+    }
+
+    /**
+     * 直方图中有相同的边界值说明有高频值，此时等值条件的比例跟值有关。
+     */
+    public boolean hasFrequentValues(CompareMode mode) {
+        if (histogram == null)
+            return false;
+        for (int i = 1; i < histogram.length; i++) {
+            if (histogram[i].compareTo(histogram[i - 1], mode) == 0)
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * 估算"字段 = v"的记录所占的比例，v为null表示还不知道值(比如参数或连接条件)。
+     */
+    public double getEqualSelectivity(Value v, CompareMode mode) {
+        if (v == ValueNull.INSTANCE)
+            return 0;
+        double s = (1 - nullFraction) / distinctCount;
+        if (v != null && histogram != null) {
+            int buckets = histogram.length - 1;
+            int count = 0;
+            for (Value b : histogram) {
+                if (b.compareTo(v, mode) == 0)
+                    count++;
+            }
+            if (count > 1) // 高频值
+                s = Math.max(s, (count - 1) * (1 - nullFraction) / buckets);
+            else if (v.compareTo(histogram[0], mode) < 0 || v.compareTo(histogram[buckets], mode) > 0)
+                s = Math.min(s, 1.0 / Math.max(rowCount, 1));
+        }
+        return s;
+    }
+
+    /**
+     * 估算min和max之间的记录所占的比例，min或max为null表示没有下界或上界。
+     * 没有直方图时返回-1。
+     */
+    public double getRangeSelectivity(Value min, boolean minInclusive, Value max, boolean maxInclusive,
+            CompareMode mode) {
+        if (histogram == null || min == ValueNull.INSTANCE || max == ValueNull.INSTANCE)
+            return -1;
+        double high = max == null ? 1 : getFraction(max, maxInclusive, mode);
+        double low = min == null ? 0 : getFraction(min, !minInclusive, mode);
+        double s = (high - low) * (1 - nullFraction);
+        return s < 0 ? 0 : s;
+    }
+
+    // 小于v(inclusive为true时是小于等于v)的非NULL值所占的比例
+    private double getFraction(Value v, boolean inclusive, CompareMode mode) {
+        int buckets = histogram.length - 1;
+        // 找第一个大于v(inclusive为false时是大于等于v)的边界
+        int lo = 0, hi = histogram.length;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            int c = histogram[mid].compareTo(v, mode);
+            if (c < 0 || inclusive && c == 0)
+                lo = mid + 1;
+            else
+                hi = mid;
+        }
+        if (lo == 0)
+            return 0;
+        if (lo > buckets)
+            return 1;
+        return (lo - 1 + interpolate(histogram[lo - 1], histogram[lo], v)) / buckets;
+    }
+
+    // v在桶里的大致位置，只对数值类型做线性插值
+    private static double interpolate(Value low, Value high, Value v) {
+        if (isNumeric(low.getType())) {
+            double l = low.getDouble(), h = high.getDouble();
+            if (h > l) {
+                double d = (v.getDouble() - l) / (h - l);
+                return d < 0 ? 0 : (d > 1 ? 1 : d);
+            }
+        }
+        return 0.5;
+    }
+
+    private static boolean isNumeric(int type) {
+        switch (type) {
+        case Value.BYTE:
+        case Value.SHORT:
+        case Value.INT:
+        case Value.LONG:
+        case Value.DECIMAL:
+        case Value.DOUBLE:
+        case Value.FLOAT:
+            return true;
+        default:
+            return false;
+        }
+    }
+
+    /**
+     * 转成能放在字段定义中的字符串，格式是: 记录数,NULL比例,不重复值个数[,直方图边界值...]
+     */
+    public String encode() {
+        StringBuilder buff = new StringBuilder();
+        buff.append(rowCount).append(',').append(nullFraction).append(',').append(distinctCount);
+        if (histogram != null) {
+            for (Value v : histogram) {
+                buff.append(',').append(StringUtils.urlEncode(v.getString()));
+            }
+        }
+        return buff.toString();
+    }
+
+    public static ColumnStatistics decode(String s, int type) {
+        String[] a = StringUtils.arraySplit(s, ',', false);
+        long rowCount = Long.parseLong(a[0]);
+        double nullFraction = Double.parseDouble(a[1]);
+        long distinctCount = Long.parseLong(a[2]);
+        Value[] histogram = null;
+        if (a.length > 3) {
+            histogram = new Value[a.length - 3];
+            for (int i = 3; i < a.length; i++) {
+                histogram[i - 3] = ValueString.get(StringUtils.urlDecode(a[i])).convertTo(type);
+            }
+        }
+        return new ColumnStatistics(rowCount, nullFraction, distinctCount, histogram);
+    }
+
+    /**
+     * 是否能为这种类型的字段建直方图，边界值要能转成字符串再无损地转回来。
+     */
+    public static boolean isHistogramSupported(int type) {
+        switch (type) {
+        case Value.BYTE:
+        case Value.SHORT:
+        case Value.INT:
+        case Value.LONG:
+        case Value.DECIMAL:
+        case Value.DOUBLE:
+        case Value.FLOAT:
+        case Value.DATE:
+        case Value.TIME:
+        case Value.TIMESTAMP:
+        case Value.STRING:
+        case Value.STRING_IGNORECASE:
+        case Value.STRING_FIXED:
+            return true;
+        default:
+            return false;
+        }
+    }
+
+    /**
+     * 逐行收集采样到的值
+     */
+    public static class Collector {
+
+        private final Column column;
+        private final HyperLogLog hll = new HyperLogLog();
+        private final ArrayList<Value> values;
+        private long count;
+        private long nullCount;
+
+        public Collector(Column column) {
+            this.column = column;
+            values = isHistogramSupported(column.getType()) ? new ArrayList<>() : null;
+        }
+
+        public void add(Value v) {
+            count++;
+            if (v == null || v == ValueNull.INSTANCE) {
+                nullCount++;
+                return;
+            }
+            hll.add(HyperLogLog.mix(hash(v)));
+            if (values != null)
+                values.add(v);
+        }
+
+        private static long hash(Value v) {
+            switch (v.getType()) {
+            case Value.INT:
+                return v.getInt();
+            case Value.LONG:
+                return v.getLong();
+            default:
+                return v.hashCode();
+            }
+        }
+
+        /**
+         * @param rowCount 表的总记录数
+         */
+        public ColumnStatistics build(long rowCount, CompareMode mode) {
+            if (count == 0)
+                return null;
+            long nonNull = count - nullCount;
+            long distinct = Math.min(hll.cardinality(), nonNull);
+            // 只采样了一部分记录时，不重复值占比高的字段按比例放大，占比低的字段通常已经采到了大多数值
+            if (rowCount > count && nonNull > 0) {
+                double ratio = (double) distinct / nonNull;
+                if (ratio > 0.1)
+                    distinct = (long) (ratio * nonNull * rowCount / count);
+            }
+            return new ColumnStatistics(Math.max(rowCount, count), (double) nullCount / count, distinct,
+                    buildHistogram(mode));
+        }
+
+        private Value[] buildHistogram(CompareMode mode) {
+            if (values == null || values.size() < 2)
+                return null;
+            values.sort((v1, v2) -> v1.compareTo(v2, mode));
+            int size = values.size();
+            int buckets = Math.min(HISTOGRAM_BUCKETS, size - 1);
+            Value[] histogram = new Value[buckets + 1];
+            for (int i = 0; i <= buckets; i++) {
+                Value v = values.get((int) ((long) i * (size - 1) / buckets));
+                if (DataType.isStringType(v.getType())) {
+                    String s = v.getString();
+                    if (s.length() > MAX_BOUND_LENGTH)
+                        v = ValueString.get(s.substring(0, MAX_BOUND_LENGTH)).convertTo(column.getType());
+                }
+                histogram[i] = v;
+            }
+            return histogram;
+        }
+    }
+}
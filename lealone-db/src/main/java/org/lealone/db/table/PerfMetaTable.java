@@ -6,14 +6,19 @@
 package org.lealone.db.table;
 
 import java.util.ArrayList;
+import java.util.Map;
+import java.util.Map.Entry;
 
 import org.lealone.common.exceptions.DbException;
+import org.lealone.common.util.LatencyHistogram;
 import org.lealone.common.util.Utils;
 import org.lealone.db.result.Row;
 import org.lealone.db.result.SearchRow;
 import org.lealone.db.schema.Schema;
+import org.lealone.db.session.PlanCache;
 import org.lealone.db.session.ServerSession;
 import org.lealone.db.stat.QueryStatisticsData;
+import org.lealone.transaction.TransactionEngine.CheckpointService;
 
 /**
  * This class is responsible to build the database performance meta data pseudo tables.
@@ -21,15 +26,24 @@ import org.lealone.db.stat.QueryStatisticsData;
 public class PerfMetaTable extends MetaTable {
 
     private static final int QUERY_STATISTICS = 0;
+    private static final int PLAN_CACHE = QUERY_STATISTICS + 1;
+    private static final int LATENCY_HISTOGRAM = PLAN_CACHE + 1;
+    private static final int CHECKPOINT_STATISTICS = LATENCY_HISTOGRAM + 1;
 
     public static int getMetaTableTypeCount() {
-        return QUERY_STATISTICS + 1;
+        return CHECKPOINT_STATISTICS + 1;
     }
 
     public PerfMetaTable(Schema schema, int id, int type) {
         super(schema, id, type);
     }
 
+    // 统计信息随时在变，而数据库的修改id不一定变，所以不能缓存查询结果
+    @Override
+    public boolean isDeterministic() {
+        return false;
+    }
+
     @Override
     public String createColumns() {
         Column[] cols;
@@ -44,6 +58,22 @@ public class PerfMetaTable extends MetaTable {
                     "AVERAGE_ROW_COUNT DOUBLE", "STD_DEV_ROW_COUNT DOUBLE");
             break;
         }
+        case PLAN_CACHE: {
+            setObjectName("PLAN_CACHE");
+            cols = createColumns("SQL_STATEMENT", "HIT_COUNT LONG", "MISS_COUNT LONG",
+                    "IDLE_COUNT INT");
+            break;
+        }
+        case LATENCY_HISTOGRAM: {
+            setObjectName("LATENCY_HISTOGRAM");
+            cols = createColumns("NAME", "UPPER_BOUND_MICROS LONG", "COUNT LONG");
+            break;
+        }
+        case CHECKPOINT_STATISTICS: {
+            setObjectName("CHECKPOINT_STATISTICS");
+            cols = createColumns("NAME", "VALUE LONG");
+            break;
+        }
         default:
             throw DbException.getInternalError("type=" + type);
         }
@@ -88,6 +118,58 @@ public class PerfMetaTable extends MetaTable {
             }
             break;
         }
+        case PLAN_CACHE: {
+            PlanCache planCache = database.getPlanCache();
+            if (planCache != null) {
+                for (PlanCache.PlanEntry entry : planCache.getEntries()) {
+                    add(rows,
+                            // SQL_STATEMENT
+                            entry.sql,
+                            // HIT_COUNT
+                            "" + entry.hitCount,
+                            // MISS_COUNT
+                            "" + entry.missCount,
+                            // IDLE_COUNT
+                            "" + entry.idleCount);
+                }
+            }
+            break;
+        }
+        case LATENCY_HISTOGRAM: {
+            // 只列出有记录的桶，每个桶的上界是2的幂，单位微秒
+            Map<String, LatencyHistogram> histograms = database.getTransactionEngine()
+                    .getLatencyHistograms();
+            for (Entry<String, LatencyHistogram> e : histograms.entrySet()) {
+                LatencyHistogram histogram = e.getValue();
+                for (int i = 0, count = histogram.getBucketCount(); i < count; i++) {
+                    long n = histogram.getCount(i);
+                    if (n == 0)
+                        continue;
+                    add(rows,
+                            // NAME
+                            e.getKey(),
+                            // UPPER_BOUND_MICROS
+                            "" + histogram.getUpperBoundMicros(i),
+                            // COUNT
+                            "" + n);
+                }
+            }
+            break;
+        }
+        case CHECKPOINT_STATISTICS: {
+            CheckpointService checkpointService = database.getTransactionEngine()
+                    .getCheckpointService();
+            if (checkpointService != null) {
+                for (Entry<String, Long> e : checkpointService.getStatistics().entrySet()) {
+                    add(rows,
+                            // NAME
+                            e.getKey(),
+                            // VALUE
+                            "" + e.getValue());
+                }
+            }
+            break;
+        }
         default:
             throw DbException.getInternalError("type=" + type);
         }
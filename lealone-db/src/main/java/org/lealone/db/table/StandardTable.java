@@ -383,7 +383,7 @@ public class StandardTable extends Table {
     @Override
     public Future<Integer> addRow(ServerSession session, Row row) {
         row.setVersion(getVersion());
-        lastModificationId = database.getNextModificationDataId();
+        setDataModified(session);
         AsyncCallback<Integer> ac = createAsyncCallbackForAddRow(session, row);
         int size = indexesExcludeDelegate.size();
         AtomicInteger count = new AtomicInteger(size);
@@ -420,7 +420,7 @@ public class StandardTable extends Table {
     public Future<Integer> updateRow(ServerSession session, Row oldRow, Row newRow, int[] updateColumns,
             boolean isLockedBySelf) {
         newRow.setVersion(getVersion());
-        lastModificationId = database.getNextModificationDataId();
+        setDataModified(session);
         AsyncCallback<Integer> ac = session.createCallback();
         int size = indexesExcludeDelegate.size();
         AtomicInteger count = new AtomicInteger(size);
@@ -437,7 +437,7 @@ public class StandardTable extends Table {
 
     @Override
     public Future<Integer> removeRow(ServerSession session, Row row, boolean isLockedBySelf) {
-        lastModificationId = database.getNextModificationDataId();
+        setDataModified(session);
         AsyncCallback<Integer> ac = session.createCallback();
         int size = indexesExcludeDelegate.size();
         AtomicInteger count = new AtomicInteger(size);
@@ -459,7 +459,7 @@ public class StandardTable extends Table {
 
     @Override
     public void truncate(ServerSession session) {
-        lastModificationId = database.getNextModificationDataId();
+        setDataModified(session);
         for (int i = indexes.size() - 1; i >= 0; i--) {
             Index index = indexes.get(i);
             index.truncate(session);
@@ -506,6 +506,17 @@ public class StandardTable extends Table {
         return lastModificationId;
     }
 
+    private void setDataModified(ServerSession session) {
+        lastModificationId = database.getNextModificationDataId();
+        if (session != null)
+            session.addModifiedTable(this);
+    }
+
+    // 事务结束时再更新一次，在事务提交之前读到旧数据的结果集缓存也要失效
+    public void updateModificationId() {
+        lastModificationId = database.getNextModificationDataId();
+    }
+
     @Override
     public boolean containsLargeObject() {
         return largeObjectColumns != null;
@@ -166,6 +166,10 @@ public abstract class Table extends SchemaObjectBase {
         return dbObjectLock.tryExclusiveLock(session);
     }
 
+    public boolean tryReadLock(ServerSession session) {
+        return dbObjectLock.tryReadLock(session);
+    }
+
     /**
      * Create an index for this table
      *
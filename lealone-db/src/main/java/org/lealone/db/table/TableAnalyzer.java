@@ -5,29 +5,31 @@
  */
 package org.lealone.db.table;
 
-import java.util.List;
 import java.util.concurrent.atomic.AtomicBoolean;
 
-import org.lealone.common.util.StatementBuilder;
-import org.lealone.db.CommandParameter;
 import org.lealone.db.Database;
+import org.lealone.db.DbSettings;
 import org.lealone.db.auth.Right;
-import org.lealone.db.result.Result;
+import org.lealone.db.index.Cursor;
+import org.lealone.db.index.Index;
+import org.lealone.db.result.Row;
+import org.lealone.db.result.SearchRow;
 import org.lealone.db.session.ServerSession;
 import org.lealone.db.value.Value;
-import org.lealone.db.value.ValueInt;
-import org.lealone.db.value.ValueNull;
-import org.lealone.sql.PreparedSQLStatement;
 
 public class TableAnalyzer {
 
+    private static final int SAMPLE_BLOCKS = 16;
+
     private final Table table;
     private final AtomicBoolean analyzing = new AtomicBoolean();
+    private final int minAnalyze;
     private int nextAnalyze;
     private int changesSinceAnalyze;
 
     public TableAnalyzer(Table table, int nextAnalyze) {
         this.table = table;
+        this.minAnalyze = nextAnalyze;
         this.nextAnalyze = nextAnalyze;
     }
 
@@ -42,16 +44,23 @@ public class TableAnalyzer {
         }
         if (analyzing.compareAndSet(false, true)) {
             changesSinceAnalyze = 0;
-            int n = 2 * nextAnalyze;
-            if (n > 0) {
-                nextAnalyze = n;
-            }
-            int rows = session.getDatabase().getSettings().analyzeSample / 10;
+            DbSettings settings = session.getDatabase().getSettings();
+            int rows = settings.analyzeSample / 10;
             try {
                 analyzeTable(session, table, rows, false);
             } finally {
                 analyzing.set(false);
             }
+            // 按表的记录数的比例决定下一次什么时候再ANALYZE，比例为0时跟以前一样每次加倍
+            if (settings.analyzeAutoRatio > 0) {
+                long n = table.getRowCountApproximation() * settings.analyzeAutoRatio / 100;
+                nextAnalyze = (int) Math.min(Integer.MAX_VALUE, Math.max(minAnalyze, n));
+            } else {
+                int n = 2 * nextAnalyze;
+                if (n > 0) {
+                    nextAnalyze = n;
+                }
+            }
         }
     }
 
@@ -98,38 +107,67 @@ public class TableAnalyzer {
             return;
         }
         Database db = session.getDatabase();
-        StatementBuilder buff = new StatementBuilder("SELECT ");
-        for (Column col : columns) {
-            buff.appendExceptFirst(", ");
-            int type = col.getType();
-            if (type == Value.BLOB || type == Value.CLOB) {
-                // can not index LOB columns, so calculating
-                // the selectivity is not required
-                buff.append("MAX(NULL)");
-            } else {
-                buff.append("SELECTIVITY(").append(col.getSQL()).append(')');
+        ColumnStatistics.Collector[] collectors = new ColumnStatistics.Collector[columns.length];
+        for (int j = 0; j < columns.length; j++) {
+            int type = columns[j].getType();
+            // can not index LOB columns, so calculating
+            // the selectivity is not required
+            if (type != Value.BLOB && type != Value.CLOB) {
+                collectors[j] = new ColumnStatistics.Collector(columns[j]);
             }
         }
-        buff.append(" FROM ").append(table.getSQL());
-        if (sample > 0) {
-            buff.append(" LIMIT ? SAMPLE_SIZE ? ");
-        }
-        String sql = buff.toString();
-        PreparedSQLStatement command = session.prepareStatement(sql);
-        if (sample > 0) {
-            List<? extends CommandParameter> params = command.getParameters();
-            params.get(0).setValue(ValueInt.get(1));
-            params.get(1).setValue(ValueInt.get(sample));
-        }
-        Result result = command.query(0);
-        result.next();
+        Index scan = table.getScanIndex(session);
+        long rowCount = scan.getRowCountApproximation();
+        sample(session, table, scan, rowCount, sample, collectors);
         for (int j = 0; j < columns.length; j++) {
-            Value v = result.currentRow()[j];
-            if (v != ValueNull.INSTANCE) {
-                int selectivity = v.getInt();
-                columns[j].setSelectivity(selectivity);
+            if (collectors[j] == null)
+                continue;
+            ColumnStatistics statistics = collectors[j].build(rowCount, db.getCompareMode());
+            if (statistics != null) {
+                columns[j].setStatistics(statistics);
+                long s = 100 * statistics.getDistinctCount() / statistics.getRowCount();
+                columns[j].setSelectivity(s <= 0 ? 1 : (int) Math.min(s, 100));
             }
         }
         db.updateMeta(session, table);
     }
+
+    // 记录数不超过sample时读全表，否则把rowid的范围分成多段，每段从不同的位置读一些连续的记录，
+    // 这样不用遍历整个BTreeMap，采到的记录也比只读前面的记录更有代表性
+    private static void sample(ServerSession session, Table table, Index scan, long rowCount, int sample,
+            ColumnStatistics.Collector[] collectors) {
+        if (sample <= 0 || rowCount <= sample) {
+            readRows(scan.find(session, null, null), Integer.MAX_VALUE, collectors);
+            return;
+        }
+        SearchRow first = scan.findFirstOrLast(session, true);
+        SearchRow last = scan.findFirstOrLast(session, false);
+        if (first == null || last == null) {
+            return;
+        }
+        int blocks = Math.min(SAMPLE_BLOCKS, sample);
+        int rowsPerBlock = sample / blocks;
+        long firstKey = first.getKey();
+        double step = (double) (last.getKey() - firstKey + 1) / blocks;
+        long nextKey = firstKey;
+        for (int i = 0; i < blocks; i++) {
+            SearchRow from = table.getTemplateRow();
+            from.setKey(Math.max(nextKey, firstKey + (long) (i * step)));
+            nextKey = readRows(scan.find(session, from, null), rowsPerBlock, collectors) + 1;
+        }
+    }
+
+    // 返回最后读到的记录的key
+    private static long readRows(Cursor cursor, int maxRows, ColumnStatistics.Collector[] collectors) {
+        long key = Long.MIN_VALUE;
+        for (int n = 0; n < maxRows && cursor.next(); n++) {
+            Row row = cursor.get();
+            for (int j = 0; j < collectors.length; j++) {
+                if (collectors[j] != null)
+                    collectors[j].add(row.getValue(j));
+            }
+            key = row.getKey();
+        }
+        return key;
+    }
 }
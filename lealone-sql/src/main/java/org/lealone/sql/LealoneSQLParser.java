@@ -10,7 +10,9 @@ import java.math.BigInteger;
 import java.nio.charset.Charset;
 import java.text.Collator;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashSet;
+import java.util.List;
 
 import org.lealone.common.exceptions.DbException;
 import org.lealone.common.exceptions.UnsupportedSchemaException;
@@ -45,6 +47,7 @@ import org.lealone.db.service.Service;
 import org.lealone.db.session.ServerSession;
 import org.lealone.db.session.SessionSetting;
 import org.lealone.db.table.Column;
+import org.lealone.db.table.ColumnStatistics;
 import org.lealone.db.table.Column.ListColumn;
 import org.lealone.db.table.Column.MapColumn;
 import org.lealone.db.table.Column.SetColumn;
@@ -304,6 +307,88 @@ public class LealoneSQLParser implements SQLParser {
         return s;
     }
 
+    private static final HashSet<String> LITERAL_FOLLOWERS = new HashSet<>(Arrays.asList("AND", "OR",
+            "ORDER", "GROUP", "HAVING", "LIMIT", "OFFSET", "WHERE", "UNION", "EXCEPT", "INTERSECT",
+            "MINUS", "FOR", "FETCH", ","));
+
+    /**
+     * 只处理SELECT、INSERT、UPDATE、DELETE，并且只替换两种位置的常量:
+     * 比较运算符右边并且后面紧跟着条件结束的常量(例如 a = 1 AND b > 'x')，
+     * 以及INSERT的VALUES中单独作为一个值的常量(例如 VALUES(1, 'x'))。
+     * 其他地方的常量(ORDER BY 1、IN列表、LIKE、LIMIT、负数、带类型的常量等)都保持不变，
+     * 因为它们会影响执行计划，或者换成参数后语义会变。sql中已经有参数时不替换常量。
+     */
+    @Override
+    public String parameterize(String sql, List<Value> literals) {
+        ArrayList<String> tokens = new ArrayList<>();
+        ArrayList<Integer> types = new ArrayList<>();
+        ArrayList<Value> values = new ArrayList<>();
+        boolean hasParameter = false;
+        try {
+            initialize(sql);
+            expectedList = null;
+            do {
+                read();
+                tokens.add(currentTokenType == END ? ""
+                        : sqlCommand.substring(lastParseIndex, parseIndex).trim());
+                types.add(currentTokenType);
+                values.add(currentTokenType == VALUE ? currentValue : null);
+                if (currentTokenType == PARAMETER)
+                    hasParameter = true;
+            } while (currentTokenType != END);
+        } catch (DbException e) {
+            return null;
+        }
+        String first = StringUtils.toUpperEnglish(tokens.get(0));
+        boolean isInsert = first.equals("INSERT");
+        if (!isInsert && !first.equals("SELECT") && !first.equals("UPDATE")
+                && !first.equals("DELETE"))
+            return null;
+        int size = tokens.size();
+        StatementBuilder buff = new StatementBuilder();
+        int depth = 0;
+        boolean inValues = false;
+        for (int i = 0; i < size - 1; i++) { // 最后一个是END
+            String token = tokens.get(i);
+            int type = types.get(i);
+            if (type == OPEN) {
+                depth++;
+            } else if (type == CLOSE) {
+                depth--;
+            } else if (token.equals(";") && i != size - 2) {
+                return null; // 多条语句
+            } else if (isInsert && depth == 0 && !inValues) {
+                inValues = StringUtils.toUpperEnglish(token).equals("VALUES");
+            }
+            if (type == VALUE && !hasParameter && isLiteralParameter(tokens, types, i, depth,
+                    isInsert && inValues)) {
+                literals.add(values.get(i));
+                token = "?";
+            }
+            buff.appendExceptFirst(" ");
+            buff.append(token);
+        }
+        return buff.toString();
+    }
+
+    private static boolean isLiteralParameter(ArrayList<String> tokens, ArrayList<Integer> types,
+            int i, int depth, boolean inValues) {
+        if (i == 0)
+            return false;
+        int prevType = types.get(i - 1);
+        int nextType = types.get(i + 1);
+        String next = tokens.get(i + 1);
+        if (inValues) {
+            String prev = tokens.get(i - 1);
+            return depth == 1 && (prevType == OPEN || prev.equals(","))
+                    && (nextType == CLOSE || next.equals(","));
+        }
+        if (prevType < EQUAL || prevType > NOT_EQUAL)
+            return false;
+        return nextType == END || nextType == CLOSE || next.equals(";")
+                || LITERAL_FOLLOWERS.contains(StringUtils.toUpperEnglish(next));
+    }
+
     private StatementBase parse(String sql, boolean withExpectedList) {
         initialize(sql);
         if (withExpectedList) {
@@ -3836,6 +3921,9 @@ public class LealoneSQLParser implements SQLParser {
             int value = readPositiveInt();
             column.setSelectivity(value);
         }
+        if (readIf("STATISTICS")) {
+            column.setStatistics(ColumnStatistics.decode(readString(), column.getType()));
+        }
         String comment = readCommentIf();
         if (comment != null) {
             column.setComment(comment);
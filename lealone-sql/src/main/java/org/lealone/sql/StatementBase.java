@@ -6,10 +6,12 @@
 package org.lealone.sql;
 
 import java.util.ArrayList;
+import java.util.List;
 
 import org.lealone.common.exceptions.DbException;
 import org.lealone.common.trace.Trace;
 import org.lealone.common.util.StatementBuilder;
+import org.lealone.common.util.Utils;
 import org.lealone.db.CommandParameter;
 import org.lealone.db.Database;
 import org.lealone.db.SysProperties;
@@ -22,7 +24,10 @@ import org.lealone.db.async.Future;
 import org.lealone.db.result.Result;
 import org.lealone.db.session.ServerSession;
 import org.lealone.db.session.ServerSession.YieldableCommand;
+import org.lealone.db.session.Session;
 import org.lealone.db.session.SessionStatus;
+import org.lealone.db.table.Table;
+import org.lealone.db.table.TableType;
 import org.lealone.db.value.Value;
 import org.lealone.sql.executor.YieldableBase;
 import org.lealone.sql.executor.YieldableLocalUpdate;
@@ -53,6 +58,11 @@ public abstract class StatementBase implements PreparedSQLStatement, ParsedSQLSt
      */
     protected ArrayList<Parameter> parameters;
 
+    /**
+     * 执行计划缓存中的语句，sql里的常量被替换成了这些参数，它们不对客户端可见。
+     */
+    protected ArrayList<Parameter> literalParameters;
+
     /**
      * If the query should be prepared before each execution. This is set for
      * queries with LIKE ?, because the query plan depends on the parameter value.
@@ -217,6 +227,30 @@ public abstract class StatementBase implements PreparedSQLStatement, ParsedSQLSt
         this.parameters = parameters;
     }
 
+    public ArrayList<Parameter> getLiteralParameters() {
+        return literalParameters;
+    }
+
+    @Override
+    public void bind(Session session, String sql, List<Value> literals) {
+        this.session = (ServerSession) session;
+        this.sql = sql;
+        if (!literals.isEmpty()) {
+            if (literalParameters == null) {
+                literalParameters = parameters;
+                parameters = Utils.newSmallArrayList();
+            }
+            for (int i = 0, size = literals.size(); i < size; i++) {
+                literalParameters.get(i).setValue(literals.get(i));
+            }
+        }
+    }
+
+    // 本地临时表是每个session自己的，只有普通表才能放到执行计划缓存中
+    protected static boolean isPlanCacheable(Table table) {
+        return table.getTableType() == TableType.STANDARD_TABLE && !table.isTemporary();
+    }
+
     /**
      * Check if all parameters have been set.
      *
@@ -389,8 +423,15 @@ public abstract class StatementBase implements PreparedSQLStatement, ParsedSQLSt
     }
 
     public boolean setCurrentRowNumber(int rowNumber, boolean yieldEnabled) {
+        return setCurrentRowNumber(rowNumber, 1, yieldEnabled);
+    }
+
+    // 一次处理了rows行，每跨过128行检查一次
+    public boolean setCurrentRowNumber(int rowNumber, int rows, boolean yieldEnabled) {
         this.currentRowNumber = rowNumber;
-        if ((++rowScanCount & 127) == 0) {
+        int old = rowScanCount;
+        rowScanCount += rows;
+        if ((old >>> 7) != (rowScanCount >>> 7)) {
             checkCanceled();
             setProgress();
             if (yieldEnabled && executor != null)
@@ -14,6 +14,8 @@ import org.lealone.db.result.Row;
 import org.lealone.db.session.ServerSession;
 import org.lealone.db.table.Column;
 import org.lealone.sql.SQLStatement;
+import org.lealone.sql.expression.Expression;
+import org.lealone.sql.expression.visitor.ExpressionVisitorFactory;
 
 /**
  * This class represents the statement
@@ -33,6 +35,19 @@ public class Insert extends MerSert {
         return SQLStatement.INSERT;
     }
 
+    @Override
+    public boolean isPlanCacheable() {
+        if (query != null || !isPlanCacheable(table))
+            return false;
+        for (Expression[] expr : list) {
+            for (Expression e : expr) {
+                if (e != null && !e.accept(ExpressionVisitorFactory.getPlanCacheableVisitor()))
+                    return false;
+            }
+        }
+        return true;
+    }
+
     @Override
     public String getPlanSQL() {
         StatementBuilder buff = new StatementBuilder("INSERT INTO ");
@@ -21,7 +21,8 @@ import org.lealone.sql.executor.YieldableLoopUpdateBase;
 import org.lealone.sql.expression.Expression;
 import org.lealone.sql.expression.evaluator.AlwaysTrueEvaluator;
 import org.lealone.sql.expression.evaluator.ExpressionEvaluator;
-import org.lealone.sql.expression.evaluator.ExpressionInterpreter;
+import org.lealone.sql.expression.evaluator.ExpressionCompiler;
+import org.lealone.sql.expression.visitor.ExpressionVisitorFactory;
 import org.lealone.sql.optimizer.TableFilter;
 import org.lealone.sql.optimizer.TableIterator;
 
@@ -36,6 +37,8 @@ public abstract class UpDel extends ManipulationStatement {
      */
     protected Expression limitExpr;
 
+    private ExpressionCompiler conditionCompiler;
+
     public UpDel(ServerSession session) {
         super(session);
     }
@@ -45,6 +48,17 @@ public abstract class UpDel extends ManipulationStatement {
         return true;
     }
 
+    @Override
+    public boolean isPlanCacheable() {
+        return isPlanCacheable(tableFilter.getTable()) && tableFilter.isPlanCacheable()
+                && (condition == null || isPlanCacheable(condition))
+                && (limitExpr == null || isPlanCacheable(limitExpr));
+    }
+
+    protected static boolean isPlanCacheable(Expression e) {
+        return e.accept(ExpressionVisitorFactory.getPlanCacheableVisitor());
+    }
+
     public void setTableFilter(TableFilter tableFilter) {
         this.tableFilter = tableFilter;
     }
@@ -57,6 +71,12 @@ public abstract class UpDel extends ManipulationStatement {
         this.limitExpr = limit;
     }
 
+    private ExpressionEvaluator createConditionEvaluator(Expression c) {
+        if (conditionCompiler == null || conditionCompiler.getExpression() != c)
+            conditionCompiler = new ExpressionCompiler(c);
+        return conditionCompiler.createEvaluator(session);
+    }
+
     @Override
     public int getPriority() {
         if (getCurrentRowNumber() > 0)
@@ -114,7 +134,7 @@ public abstract class UpDel extends ManipulationStatement {
             if (condition == null)
                 conditionEvaluator = new AlwaysTrueEvaluator();
             else
-                conditionEvaluator = new ExpressionInterpreter(session, condition);
+                conditionEvaluator = ((UpDel) statement).createConditionEvaluator(condition);
         }
 
         protected abstract int getRightMask();
@@ -64,6 +64,17 @@ public class Update extends UpDel {
         }
     }
 
+    @Override
+    public boolean isPlanCacheable() {
+        if (!super.isPlanCacheable())
+            return false;
+        for (Expression e : expressionMap.values()) {
+            if (!isPlanCacheable(e))
+                return false;
+        }
+        return true;
+    }
+
     @Override
     public String getPlanSQL() {
         StatementBuilder buff = new StatementBuilder("UPDATE ");
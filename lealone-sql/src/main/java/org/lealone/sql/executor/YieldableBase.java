@@ -222,7 +222,12 @@ public abstract class YieldableBase<T> implements Yieldable<T> {
     }
 
     public boolean yieldIfNeeded(int rowNumber) {
-        if (statement.setCurrentRowNumber(rowNumber, yieldEnabled)) {
+        return yieldIfNeeded(rowNumber, 1);
+    }
+
+    // 批量处理了rows行之后调用
+    public boolean yieldIfNeeded(int rowNumber, int rows) {
+        if (statement.setCurrentRowNumber(rowNumber, rows, yieldEnabled)) {
             session.setStatus(SessionStatus.STATEMENT_YIELDED);
             return true;
         }
@@ -12,6 +12,7 @@ import org.lealone.db.value.ValueLong;
 import org.lealone.db.value.ValueNull;
 import org.lealone.sql.expression.Expression;
 import org.lealone.sql.query.Select;
+import org.lealone.storage.page.ColumnVector;
 
 // COUNT(x)
 public class ACount extends BuiltInAggregate {
@@ -79,6 +80,22 @@ public class ACount extends BuiltInAggregate {
             }
         }
 
+        @Override
+        public void add(ServerSession session, ColumnVector vector, int[] selection, int size) {
+            if (distinct) {
+                super.add(session, vector, selection, size);
+                return;
+            }
+            if (vector.getNullCount() == 0) {
+                count += size;
+                return;
+            }
+            for (int i = 0; i < size; i++) {
+                if (!vector.isNull(selection[i]))
+                    count++;
+            }
+        }
+
         @Override
         Value getValue(ServerSession session) {
             if (distinct) {
@@ -11,6 +11,7 @@ import org.lealone.db.value.Value;
 import org.lealone.db.value.ValueLong;
 import org.lealone.sql.expression.Expression;
 import org.lealone.sql.query.Select;
+import org.lealone.storage.page.ColumnVector;
 
 // COUNT(*)
 public class ACountAll extends BuiltInAggregate {
@@ -64,6 +65,11 @@ public class ACountAll extends BuiltInAggregate {
             count++;
         }
 
+        @Override
+        public void add(ServerSession session, ColumnVector vector, int[] selection, int size) {
+            count += size;
+        }
+
         @Override
         Value getValue(ServerSession session) {
             return ValueLong.get(count);
@@ -17,6 +17,7 @@ import org.lealone.db.value.ValueLong;
 import org.lealone.db.value.ValueNull;
 import org.lealone.sql.expression.Expression;
 import org.lealone.sql.query.Select;
+import org.lealone.storage.page.ColumnVector;
 
 public class ADefault extends BuiltInAggregate {
 
@@ -217,6 +218,155 @@ public class ADefault extends BuiltInAggregate {
             }
         }
 
+        @Override
+        public void add(ServerSession session, ColumnVector vector, int[] selection, int size) {
+            if (distinct) {
+                super.add(session, vector, selection, size);
+                return;
+            }
+            boolean done;
+            switch (type) {
+            case Aggregate.SUM:
+            case Aggregate.AVG:
+                done = addSum(vector, selection, size);
+                break;
+            case Aggregate.MIN:
+            case Aggregate.MAX:
+                done = addMinMax(session, vector, selection, size);
+                break;
+            default:
+                done = false;
+            }
+            if (!done)
+                super.add(session, vector, selection, size);
+        }
+
+        // 先在基本类型上求和，再按add(session, v)的方式合并到value中，溢出时返回false按单个值处理
+        private boolean addSum(ColumnVector vector, int[] selection, int size) {
+            int sumType = type == Aggregate.SUM ? dataType : DataType.getAddProofType(dataType);
+            int n = 0;
+            Value sum;
+            switch (vector.getType()) {
+            case Value.INT:
+            case Value.LONG: {
+                boolean isInt = vector.getType() == Value.INT;
+                long s = 0;
+                try {
+                    for (int i = 0; i < size; i++) {
+                        int row = selection[i];
+                        if (vector.isNull(row))
+                            continue;
+                        s = Math.addExact(s, isInt ? vector.getInt(row) : vector.getLong(row));
+                        n++;
+                    }
+                } catch (ArithmeticException e) {
+                    return false;
+                }
+                sum = ValueLong.get(s);
+                break;
+            }
+            case Value.DOUBLE: {
+                if (sumType != Value.DOUBLE)
+                    return false;
+                // 跟逐个相加的顺序一样，结果不会有差别
+                double s = value == null ? 0 : value.getDouble();
+                boolean first = value == null;
+                for (int i = 0; i < size; i++) {
+                    int row = selection[i];
+                    if (vector.isNull(row))
+                        continue;
+                    s = first ? vector.getDouble(row) : s + vector.getDouble(row);
+                    first = false;
+                    n++;
+                }
+                if (n > 0) {
+                    count += n;
+                    value = ValueDouble.get(s);
+                }
+                return true;
+            }
+            default:
+                return false;
+            }
+            if (n == 0)
+                return true;
+            count += n;
+            if (value == null) {
+                value = sum.convertTo(sumType);
+            } else {
+                value = value.add(sum.convertTo(value.getType()));
+            }
+            return true;
+        }
+
+        private boolean addMinMax(ServerSession session, ColumnVector vector, int[] selection,
+                int size) {
+            int sign = type == Aggregate.MIN ? -1 : 1;
+            int best = -1; // vector中的行
+            switch (vector.getType()) {
+            case Value.INT:
+                for (int i = 0; i < size; i++) {
+                    int row = selection[i];
+                    if (vector.isNull(row))
+                        continue;
+                    if (best < 0 || Integer.compare(vector.getInt(row), vector.getInt(best)) * sign > 0)
+                        best = row;
+                    count++;
+                }
+                break;
+            case Value.LONG:
+                for (int i = 0; i < size; i++) {
+                    int row = selection[i];
+                    if (vector.isNull(row))
+                        continue;
+                    if (best < 0 || Long.compare(vector.getLong(row), vector.getLong(best)) * sign > 0)
+                        best = row;
+                    count++;
+                }
+                break;
+            case Value.DOUBLE:
+                for (int i = 0; i < size; i++) {
+                    int row = selection[i];
+                    if (vector.isNull(row))
+                        continue;
+                    if (best < 0 || Double.compare(vector.getDouble(row), vector.getDouble(best)) * sign > 0)
+                        best = row;
+                    count++;
+                }
+                break;
+            case Value.STRING: {
+                // 字符串的比较跟CompareMode有关，每个不同的字符串只比较一次
+                boolean[] seen = new boolean[vector.getDictionarySize()];
+                Value bestValue = null;
+                for (int i = 0; i < size; i++) {
+                    int row = selection[i];
+                    if (vector.isNull(row))
+                        continue;
+                    count++;
+                    int id = vector.getDictionaryId(row);
+                    if (seen[id])
+                        continue;
+                    seen[id] = true;
+                    Value v = vector.getDictionaryValue(id);
+                    if (bestValue == null || session.getDatabase().compare(v, bestValue) * sign > 0)
+                        bestValue = v;
+                }
+                if (bestValue != null && (value == null
+                        || session.getDatabase().compare(bestValue, value) * sign > 0))
+                    value = bestValue;
+                return true;
+            }
+            default:
+                return false;
+            }
+            if (best >= 0) {
+                Value v = vector.getValue(best);
+                if (value == null || session.getDatabase().compare(v, value) * sign > 0)
+                    value = v;
+            }
+            return true;
+        }
+
         public void addOther(ServerSession session, Value v) {
             switch (type) {
             case Aggregate.STDDEV_POP:
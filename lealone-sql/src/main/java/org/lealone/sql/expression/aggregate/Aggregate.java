@@ -177,6 +177,10 @@ public abstract class Aggregate extends Expression {
         this.select = select;
     }
 
+    public Select getSelect() {
+        return select;
+    }
+
     @Override
     public int getType() {
         return dataType;
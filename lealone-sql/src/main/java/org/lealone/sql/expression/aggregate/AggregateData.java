@@ -7,6 +7,7 @@ package org.lealone.sql.expression.aggregate;
 
 import org.lealone.db.session.ServerSession;
 import org.lealone.db.value.Value;
+import org.lealone.storage.page.ColumnVector;
 
 /**
  * Abstract class for the computation of an aggregate.
@@ -24,6 +25,20 @@ public abstract class AggregateData {
      */
     public abstract void add(ServerSession session, Value v);
 
+    /**
+     * Add the values of the selected rows in a column vector to this aggregate.
+     *
+     * @param session the session
+     * @param vector the column vector, null for COUNT(*)
+     * @param selection the indexes of the selected rows in the vector
+     * @param size the number of selected rows
+     */
+    public void add(ServerSession session, ColumnVector vector, int[] selection, int size) {
+        for (int i = 0; i < size; i++) {
+            add(session, vector.getValue(selection[i]));
+        }
+    }
+
     /**
      * Get the aggregate result.
      *
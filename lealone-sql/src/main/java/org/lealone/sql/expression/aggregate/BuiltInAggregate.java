@@ -24,6 +24,7 @@ import org.lealone.sql.expression.ExpressionColumn;
 import org.lealone.sql.expression.visitor.ExpressionVisitor;
 import org.lealone.sql.optimizer.TableFilter;
 import org.lealone.sql.query.Select;
+import org.lealone.storage.page.ColumnVector;
 
 /**
  * Implements the integrated aggregate functions, such as COUNT, MAX, SUM.
@@ -60,6 +61,10 @@ public abstract class BuiltInAggregate extends Aggregate {
         return type;
     }
 
+    public boolean isDistinct() {
+        return distinct;
+    }
+
     @Override
     public Expression getOn() {
         return on;
@@ -131,6 +136,23 @@ public abstract class BuiltInAggregate extends Aggregate {
         data.add(session, v);
     }
 
+    /**
+     * Update the aggregate with the selected rows of a column vector.
+     *
+     * @param session the session
+     * @param vector the column vector of the aggregated column, null for COUNT(*)
+     * @param selection the indexes of the selected rows in the vector
+     * @param size the number of selected rows
+     */
+    public void updateAggregate(ServerSession session, ColumnVector vector, int[] selection,
+            int size) {
+        AggregateData data = getAggregateData();
+        if (data == null) {
+            return;
+        }
+        data.add(session, vector, selection, size);
+    }
+
     @Override
     public Value getValue(ServerSession session) {
         if (select.isQuickAggregateQuery()) {
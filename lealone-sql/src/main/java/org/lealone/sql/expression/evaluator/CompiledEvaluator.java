@@ -0,0 +1,71 @@
+/*
+ * Copyright Lealone Database Group.
+ * Licensed under the Server Side Public License, v 1.
+ * Initial Developer: zhh
+ */
+package org.lealone.sql.expression.evaluator;
+
+import org.lealone.db.session.ServerSession;
+import org.lealone.db.value.Value;
+import org.lealone.db.value.ValueNull;
+import org.lealone.sql.expression.Expression;
+import org.lealone.sql.expression.ExpressionColumn;
+import org.lealone.sql.optimizer.TableFilter;
+
+//由ExpressionCompiler生成的子类的基类
+//生成的类由单独的ClassLoader加载，跟当前包不在同一个运行时包中，所以这里的字段和方法只能是public或protected的
+public abstract class CompiledEvaluator implements ExpressionEvaluator {
+
+    // 对常量和参数进行类型检查之后的状态
+    protected static final int FAST = 0; // 可以用原生类型比较
+    protected static final int NULL = 1; // 跟NULL比较，结果总是false
+    protected static final int SLOW = 2; // 类型不匹配，回退到解释执行
+
+    protected final ServerSession session;
+    protected final Expression[] e;
+
+    protected CompiledEvaluator(ServerSession session, Expression[] e) {
+        this.session = session;
+        this.e = e;
+    }
+
+    protected static TableFilter getTableFilter(Expression e) {
+        return ((ExpressionColumn) e).getTableFilter();
+    }
+
+    protected static int getColumnId(Expression e) {
+        return ((ExpressionColumn) e).getColumn().getColumnId();
+    }
+
+    // 整数列只跟整数常量按long比较，其他类型按Value.getHigherOrder转换后的结果可能不同
+    protected static int getLongState(Value v) {
+        if (v == ValueNull.INSTANCE)
+            return NULL;
+        return isIntegral(v.getType()) ? FAST : SLOW;
+    }
+
+    protected static int getDoubleState(Value v) {
+        if (v == ValueNull.INSTANCE)
+            return NULL;
+        int type = v.getType();
+        return isIntegral(type) || type == Value.DOUBLE ? FAST : SLOW;
+    }
+
+    protected static int getStringState(Value v) {
+        if (v == ValueNull.INSTANCE)
+            return NULL;
+        return v.getType() == Value.STRING ? FAST : SLOW;
+    }
+
+    public static boolean isIntegral(int type) {
+        switch (type) {
+        case Value.BYTE:
+        case Value.SHORT:
+        case Value.INT:
+        case Value.LONG:
+            return true;
+        default:
+            return false;
+        }
+    }
+}
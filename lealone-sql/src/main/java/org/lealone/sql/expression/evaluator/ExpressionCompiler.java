@@ -0,0 +1,272 @@
+/*
+ * Copyright Lealone Database Group.
+ * Licensed under the Server Side Public License, v 1.
+ * Initial Developer: zhh
+ */
+package org.lealone.sql.expression.evaluator;
+
+import java.lang.reflect.Constructor;
+import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.lealone.common.logging.Logger;
+import org.lealone.common.logging.LoggerFactory;
+import org.lealone.common.util.SmallLRUCache;
+import org.lealone.db.session.ServerSession;
+import org.lealone.db.util.SourceCompiler;
+import org.lealone.db.value.CompareMode;
+import org.lealone.db.value.Value;
+import org.lealone.sql.expression.Expression;
+import org.lealone.sql.expression.ExpressionColumn;
+import org.lealone.sql.expression.Parameter;
+import org.lealone.sql.expression.ValueExpression;
+import org.lealone.sql.expression.condition.Comparison;
+import org.lealone.sql.expression.condition.ConditionAndOr;
+import org.lealone.sql.optimizer.TableFilter;
+
+//把查询条件编译成java类，避免逐行解释执行时的虚方法调用和Value对象比较
+//只编译AND、OR以及字段跟常量或参数的比较，其他表达式在生成的代码里依然调用Expression.getBooleanValue
+//
+//每个prepared statement有一个ExpressionCompiler，执行次数达到阈值之后才编译，
+//生成的源代码不包含常量和参数的值，所以结构相同的查询条件可以共用同一个类
+public class ExpressionCompiler {
+
+    private static final Logger logger = LoggerFactory.getLogger(ExpressionCompiler.class);
+
+    private static final String PACKAGE_NAME = ExpressionCompiler.class.getPackage().getName();
+    private static final AtomicInteger nextClassId = new AtomicInteger();
+    // 每个生成的类都有自己的ClassLoader，从缓存中淘汰之后，不再被使用时就能被回收
+    private static final int CLASS_CACHE_SIZE = 1024;
+    private static final SmallLRUCache<String, Constructor<?>> classCache = SmallLRUCache
+            .newInstance(CLASS_CACHE_SIZE);
+    private static volatile boolean compilerAvailable = true;
+
+    private final Expression expression;
+    private int executionCount;
+    private boolean compiled;
+    private Constructor<?> constructor;
+    private Expression[] expressions;
+
+    public ExpressionCompiler(Expression expression) {
+        this.expression = expression;
+    }
+
+    public Expression getExpression() {
+        return expression;
+    }
+
+    public ExpressionEvaluator createEvaluator(ServerSession session) {
+        if (!compiled) {
+            int threshold = session.getExpressionCompileThreshold();
+            if (threshold > 0 && compilerAvailable && ++executionCount >= threshold) {
+                compiled = true;
+                compile(session);
+            }
+        }
+        if (constructor != null) {
+            try {
+                return (ExpressionEvaluator) constructor.newInstance(session, expressions);
+            } catch (Throwable t) {
+                logger.warn("Failed to create compiled evaluator for: " + expression.getSQL(), t);
+                constructor = null;
+            }
+        }
+        return new ExpressionInterpreter(session, expression);
+    }
+
+    private void compile(ServerSession session) {
+        CompareMode compareMode = session.getDatabase().getCompareMode();
+        Generator g = new Generator(CompareMode.OFF.equals(compareMode.getName()));
+        String body = g.generate(expression);
+        // 全部都要回退到解释执行时没有必要编译
+        if (g.fastLeafCount == 0)
+            return;
+        try {
+            Constructor<?> c;
+            synchronized (classCache) {
+                c = classCache.get(body);
+            }
+            if (c == null) {
+                String simpleName = "CompiledEvaluator" + nextClassId.incrementAndGet();
+                String source = "package " + PACKAGE_NAME + ";\n\n" //
+                        + "import org.lealone.db.session.ServerSession;\n" //
+                        + "import org.lealone.db.value.Value;\n" //
+                        + "import org.lealone.db.value.ValueNull;\n" //
+                        + "import org.lealone.sql.expression.Expression;\n" //
+                        + "import org.lealone.sql.optimizer.TableFilter;\n\n" //
+                        + "public class " + simpleName + " extends CompiledEvaluator {\n" //
+                        + body.replace("$CLASS_NAME", simpleName) + "}\n";
+                Class<?> clz = SourceCompiler.compileAsClass(PACKAGE_NAME + "." + simpleName, source);
+                c = clz.getConstructor(ServerSession.class, Expression[].class);
+                // 编译时不持有锁，并发编译了相同的类时用先放入缓存的那个
+                synchronized (classCache) {
+                    Constructor<?> old = classCache.putIfAbsent(body, c);
+                    if (old != null)
+                        c = old;
+                }
+            }
+            expressions = g.expressions.toArray(new Expression[0]);
+            constructor = c;
+        } catch (Throwable t) {
+            // 只有jre时没有java编译器，以后都不再尝试了
+            if (t.getMessage() != null && t.getMessage().contains("compiler not available"))
+                compilerAvailable = false;
+            logger.warn("Failed to compile expression: " + expression.getSQL(), t);
+        }
+    }
+
+    private static class Generator {
+
+        private final boolean binaryStringCompare;
+        private final ArrayList<Expression> expressions = new ArrayList<>();
+        private final StringBuilder fields = new StringBuilder();
+        private final StringBuilder init = new StringBuilder();
+        private final StringBuilder methods = new StringBuilder();
+        private int fastLeafCount;
+
+        Generator(boolean binaryStringCompare) {
+            this.binaryStringCompare = binaryStringCompare;
+        }
+
+        String generate(Expression e) {
+            String condition = gen(e);
+            StringBuilder buff = new StringBuilder();
+            buff.append(fields).append('\n');
+            buff.append("    public $CLASS_NAME(ServerSession session, Expression[] e) {\n");
+            buff.append("        super(session, e);\n");
+            buff.append(init);
+            buff.append("    }\n\n");
+            buff.append("    @Override\n");
+            buff.append("    public boolean getBooleanValue() {\n");
+            buff.append("        return ").append(condition).append(";\n");
+            buff.append("    }\n");
+            buff.append(methods);
+            return buff.toString();
+        }
+
+        private int add(Expression e) {
+            expressions.add(e);
+            return expressions.size() - 1;
+        }
+
+        private String gen(Expression e) {
+            if (e instanceof ConditionAndOr) {
+                ConditionAndOr c = (ConditionAndOr) e;
+                String left = gen(c.getExpression(true));
+                String right = gen(c.getExpression(false));
+                String op = c.getAndOrType() == ConditionAndOr.AND ? " && " : " || ";
+                return "(" + left + op + right + ")";
+            } else if (e instanceof Comparison) {
+                String s = genComparison((Comparison) e);
+                if (s != null)
+                    return s;
+            }
+            return "e[" + add(e) + "].getBooleanValue(session)";
+        }
+
+        private static boolean isFastColumn(Expression e) {
+            if (!(e instanceof ExpressionColumn))
+                return false;
+            ExpressionColumn c = (ExpressionColumn) e;
+            // SelectListColumnResolver这类ColumnResolver不能直接从当前行取值
+            return c.getColumnResolver() instanceof TableFilter && c.getColumn() != null;
+        }
+
+        private String genComparison(Comparison c) {
+            Expression left = c.getLeft();
+            Expression right = c.getRight();
+            int compareType = c.getCompareType();
+            if (!isFastColumn(left))
+                return null;
+            if (right == null) {
+                if (compareType != Comparison.IS_NULL && compareType != Comparison.IS_NOT_NULL)
+                    return null;
+                String op = compareType == Comparison.IS_NULL ? "==" : "!=";
+                return genLeaf(c, left, "v " + op + " ValueNull.INSTANCE");
+            }
+            if (!(right instanceof ValueExpression || right instanceof Parameter))
+                return null;
+            String op;
+            switch (compareType) {
+            case Comparison.EQUAL:
+                op = "==";
+                break;
+            case Comparison.NOT_EQUAL:
+                op = "!=";
+                break;
+            case Comparison.BIGGER:
+                op = ">";
+                break;
+            case Comparison.BIGGER_EQUAL:
+                op = ">=";
+                break;
+            case Comparison.SMALLER:
+                op = "<";
+                break;
+            case Comparison.SMALLER_EQUAL:
+                op = "<=";
+                break;
+            default: // NULL_SAFE
+                return null;
+            }
+            int type = left.getType();
+            if (CompiledEvaluator.isIntegral(type)) {
+                return genLeaf(c, left, right, "long", "getLong", "0", "v.getLong() " + op + " c%1$d");
+            } else if (type == Value.DOUBLE) {
+                return genLeaf(c, left, right, "double", "getDouble", "0",
+                        "Double.compare(v.getDouble(), c%1$d) " + op + " 0");
+            } else if (type == Value.STRING && binaryStringCompare
+                    && (compareType == Comparison.EQUAL || compareType == Comparison.NOT_EQUAL)) {
+                String not = compareType == Comparison.EQUAL ? "" : "!";
+                return genLeaf(c, left, right, "String", "getString", "null",
+                        not + "v.getString().equals(c%1$d)");
+            }
+            return null;
+        }
+
+        // 每个比较生成一个方法，字段值为null时(没有当前行)交给解释器处理，保持跟原来一样的异常
+        private String genLeaf(Comparison c, Expression column, String test) {
+            return genLeaf(c, column, null, null, null, null, test);
+        }
+
+        private String genLeaf(Comparison c, Expression column, Expression value, String javaType,
+                String getter, String defaultValue, String test) {
+            int id = fastLeafCount++;
+            int ce = add(c);
+            int cc = add(column);
+            String fieldsFormat = "    private final TableFilter f%1$d;\n" //
+                    + "    private final int id%1$d;\n";
+            String initFormat = "        f%1$d = getTableFilter(e[" + cc + "]);\n" //
+                    + "        id%1$d = getColumnId(e[" + cc + "]);\n";
+            String body;
+            if (value == null) {
+                body = "        Value v = f%1$d.getValue(id%1$d);\n" //
+                        + "        if (v == null)\n" //
+                        + "            return e[" + ce + "].getBooleanValue(session);\n" //
+                        + "        return " + test + ";\n";
+            } else {
+                int cv = add(value);
+                String state = "get" + Character.toUpperCase(javaType.charAt(0)) + javaType.substring(1)
+                        + "State";
+                // 常量和参数在一次执行中不会变，只需在构造函数里取一次值
+                fieldsFormat += "    private final int s%1$d;\n" //
+                        + "    private final " + javaType + " c%1$d;\n";
+                initFormat += "        Value v%1$d = e[" + cv + "].getValue(session);\n" //
+                        + "        s%1$d = " + state + "(v%1$d);\n" //
+                        + "        c%1$d = s%1$d == FAST ? v%1$d." + getter + "() : " + defaultValue + ";\n";
+                body = "        if (s%1$d != FAST)\n" //
+                        + "            return s%1$d == SLOW && e[" + ce + "].getBooleanValue(session);\n" //
+                        + "        Value v = f%1$d.getValue(id%1$d);\n" //
+                        + "        if (v == null)\n" //
+                        + "            return e[" + ce + "].getBooleanValue(session);\n" //
+                        + "        return v != ValueNull.INSTANCE && " + test + ";\n";
+            }
+            fields.append(String.format(fieldsFormat, id));
+            init.append(String.format(initFormat, id));
+            methods.append(String.format("\n    private boolean b%1$d() {\n", id));
+            methods.append(String.format(body, id));
+            methods.append("    }\n");
+            return "b" + id + "()";
+        }
+    }
+}
@@ -101,6 +101,18 @@ public class ExpressionVisitorFactory {
         return INDEPENDENT_VISITOR;
     }
 
+    /**
+     * The visitor singleton for the plan cache.
+     */
+    private static final PlanCacheableVisitor PLAN_CACHEABLE_VISITOR = new PlanCacheableVisitor();
+
+    /**
+     * Can the statement be shared by other sessions (that means it has no sub query)?
+     */
+    public static PlanCacheableVisitor getPlanCacheableVisitor() {
+        return PLAN_CACHEABLE_VISITOR;
+    }
+
     /**
      * Create a new visitor to check if all aggregates are for the given table.
      *
@@ -0,0 +1,17 @@
+/*
+ * Copyright Lealone Database Group.
+ * Licensed under the Server Side Public License, v 1.
+ * Initial Developer: zhh
+ */
+package org.lealone.sql.expression.visitor;
+
+import org.lealone.sql.query.Query;
+
+// 子查询有自己的session和TableFilter，含有子查询的语句不能放到执行计划缓存中给其他session用
+public class PlanCacheableVisitor extends BooleanExpressionVisitor {
+
+    @Override
+    protected Boolean visitQuery(Query query) {
+        return false;
+    }
+}
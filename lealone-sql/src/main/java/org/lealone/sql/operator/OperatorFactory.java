@@ -11,6 +11,7 @@ import org.lealone.sql.query.Select;
 
 public interface OperatorFactory extends Plugin {
 
+    // 返回null表示不支持这个查询
     Operator createOperator(Select select);
 
     default Operator createOperator(Select select, LocalResult localResult) {
@@ -0,0 +1,322 @@
+/*
+ * Copyright Lealone Database Group.
+ * Licensed under the Server Side Public License, v 1.
+ * Initial Developer: zhh
+ */
+package org.lealone.sql.optimizer;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+
+import org.lealone.db.Database;
+import org.lealone.db.index.Cursor;
+import org.lealone.db.result.ResultTempTable;
+import org.lealone.db.result.Row;
+import org.lealone.db.result.SortOrder;
+import org.lealone.db.session.ServerSession;
+import org.lealone.db.table.Column;
+import org.lealone.db.table.Table;
+import org.lealone.db.table.TableType;
+import org.lealone.db.value.CompareMode;
+import org.lealone.db.value.Value;
+import org.lealone.db.value.ValueLong;
+import org.lealone.db.value.ValueNull;
+import org.lealone.sql.IExpression;
+import org.lealone.sql.expression.Expression;
+import org.lealone.sql.expression.ExpressionColumn;
+import org.lealone.sql.expression.ValueExpression;
+import org.lealone.sql.expression.condition.Comparison;
+import org.lealone.sql.executor.YieldableBase;
+
+/**
+ * 内表只能全表扫描时，用等值连接条件的字段值为内表的记录构建一个哈希表(build)，
+ * 外表的每一行只需按连接字段的值查找哈希表(probe)，不用每次都扫描一遍内表。
+ *
+ * build端的记录数超过maxMemoryRows时，所有记录都转存到按连接字段建了索引的临时表中。
+ * 连接条件本身依然会在TableFilter和Select中计算，所以这里只需要找出可能匹配的记录。
+ */
+class HashJoin {
+
+    private final TableFilter filter;
+    private final Column column; // 内表的连接字段
+    private final Expression expression; // 跟内表的连接字段比较的外表的表达式
+    private final int keyType;
+
+    private boolean built;
+    private IndexCursor buildCursor; // 构建哈希表的过程中让出执行权后，下次从这里继续
+    private int buildCount;
+    private HashMap<Value, Object> map; // 一个key只对应一条记录时是Row，否则是ArrayList<Row>
+    private int rowCount;
+    private ResultTempTable tempTable;
+    private int columnCount;
+
+    // 当前要遍历的记录
+    private Row row;
+    private ArrayList<Row> rows;
+    private int rowIndex;
+    private Cursor tempCursor;
+
+    HashJoin(TableFilter filter, IndexCondition condition) {
+        this.filter = filter;
+        this.column = condition.getColumn();
+        this.expression = condition.getExpression();
+        this.keyType = getKeyType(column.getType(), expression.getType());
+    }
+
+    String getPlanSQL() {
+        return filter.getTableAlias() + "." + column.getName() + " = " + expression.getSQL();
+    }
+
+    /**
+     * 检查内表的index condition能否用于hash join，只支持内表字段跟外表字段的等值比较，
+     * 并且两边的值相等时它们的equals和hashCode也要一致。
+     */
+    static boolean isHashJoinCondition(ServerSession session, TableFilter filter,
+            IndexCondition condition) {
+        if (condition.getCompareType() != Comparison.EQUAL || !condition.isEvaluatable())
+            return false;
+        Column column = condition.getColumn();
+        Expression e = condition.getExpression();
+        if (column == null || column.getColumnId() < 0 || !(e instanceof ExpressionColumn))
+            return false;
+        TableFilter f = ((ExpressionColumn) e).getTableFilter();
+        if (f == null || f == filter)
+            return false;
+        Table table = filter.getTable();
+        if (table.getTableType() != TableType.STANDARD_TABLE)
+            return false;
+        int keyType = getKeyType(column.getType(), e.getType());
+        if (keyType == Value.STRING) {
+            CompareMode mode = session.getDatabase().getCompareMode();
+            return CompareMode.OFF.equals(mode.getName());
+        }
+        return keyType != Value.UNKNOWN;
+    }
+
+    private static int getKeyType(int t1, int t2) {
+        if (isIntegral(t1) && isIntegral(t2))
+            return Value.LONG;
+        if (t1 != t2)
+            return Value.UNKNOWN;
+        switch (t1) {
+        case Value.STRING:
+        case Value.DATE:
+        case Value.TIME:
+        case Value.TIMESTAMP:
+        case Value.UUID:
+            return t1;
+        default:
+            return Value.UNKNOWN;
+        }
+    }
+
+    private static boolean isIntegral(int type) {
+        switch (type) {
+        case Value.BYTE:
+        case Value.SHORT:
+        case Value.INT:
+        case Value.LONG:
+            return true;
+        default:
+            return false;
+        }
+    }
+
+    /**
+     * 外表的每一行查找哈希表的代价，跟按索引查找一样用字段的选择度估算匹配的行数
+     */
+    static double getProbeCost(Table table, Column column) {
+        long rowCount = table.getRowCountApproximation();
+        int selectivity = column.getSelectivity();
+        long distinctRows = rowCount * selectivity / 100;
+        if (distinctRows <= 0) {
+            distinctRows = 1;
+        }
+        return 2 + Math.max(rowCount / distinctRows, 1);
+    }
+
+    /**
+     * 定位到跟外表当前行匹配的记录，第一次调用时才构建哈希表
+     */
+    void find(ServerSession session) {
+        if (!built) {
+            build(session, null);
+        }
+        row = null;
+        rows = null;
+        tempCursor = null;
+        Value key = expression.getValue(session);
+        if (key == ValueNull.INSTANCE) {
+            return;
+        }
+        key = key.convertTo(keyType);
+        if (tempTable != null) {
+            Value[] values = new Value[columnCount + 2];
+            values[columnCount + 1] = key;
+            tempCursor = tempTable.findBySortColumns(values);
+        } else {
+            Object v = map.get(key);
+            if (v instanceof Row) {
+                row = (Row) v;
+            } else if (v != null) {
+                @SuppressWarnings("unchecked")
+                ArrayList<Row> list = (ArrayList<Row>) v;
+                rows = list;
+                rowIndex = 0;
+            }
+        }
+    }
+
+    /**
+     * 返回下一条可能匹配的记录，没有时返回null
+     */
+    Row next() {
+        if (row != null) {
+            Row r = row;
+            row = null;
+            return r;
+        }
+        if (rows != null) {
+            if (rowIndex < rows.size()) {
+                return rows.get(rowIndex++);
+            }
+            rows = null;
+            return null;
+        }
+        if (tempCursor != null) {
+            if (tempCursor.next()) {
+                Value[] values = tempCursor.get().getValueList();
+                Row r = new Row(Arrays.copyOf(values, columnCount), Row.MEMORY_CALCULATE);
+                r.setKey(values[columnCount].getLong());
+                return r;
+            }
+            tempCursor = null;
+        }
+        return null;
+    }
+
+    /**
+     * 构建哈希表，yieldable不为null时每处理一批记录检查一次是否需要让出执行权，
+     * 让出执行权时返回false，下次调用时接着构建
+     */
+    boolean build(ServerSession session, YieldableBase<?> yieldable) {
+        if (built)
+            return true;
+        int maxMemoryRows = session.getDatabase().getMaxMemoryRows();
+        int columnId = column.getColumnId();
+        IndexCursor cursor = buildCursor;
+        if (cursor == null) {
+            map = new HashMap<>();
+            rowCount = 0;
+            buildCount = 0;
+            cursor = filter.getCursor();
+            cursor.find(session, filter.getIndexConditions());
+            if (cursor.isAlwaysFalse()) {
+                built = true;
+                return true;
+            }
+            buildCursor = cursor;
+        }
+        int[] columnIndexes = filter.getColumnIndexes();
+        while (cursor.next()) {
+            Row r = cursor.get(columnIndexes);
+            Value key = r.getValue(columnId);
+            if (key != null && key != ValueNull.INSTANCE) { // 连接字段是NULL的记录不会匹配任何外表的行
+                key = key.convertTo(keyType);
+                if (tempTable != null) {
+                    addToTempTable(key, r);
+                } else {
+                    add(key, r);
+                    if (rowCount > maxMemoryRows) {
+                        spill(session);
+                    }
+                }
+            }
+            if (yieldable != null) {
+                if (yieldable.yieldIfNeeded(++buildCount))
+                    return false;
+            } else if ((++buildCount & 4095) == 0) {
+                session.checkCanceled();
+            }
+        }
+        buildCursor = null;
+        built = true;
+        return true;
+    }
+
+    private void add(Value key, Row r) {
+        rowCount++;
+        Object old = map.putIfAbsent(key, r);
+        if (old == null) {
+            return;
+        }
+        if (old instanceof Row) {
+            ArrayList<Row> list = new ArrayList<>(2);
+            list.add((Row) old);
+            list.add(r);
+            map.put(key, list);
+        } else {
+            @SuppressWarnings("unchecked")
+            ArrayList<Row> list = (ArrayList<Row>) old;
+            list.add(r);
+        }
+    }
+
+    // 临时表的字段是内表的所有字段，再加上记录的key和连接字段的值，按连接字段的值建索引
+    private void spill(ServerSession session) {
+        Database db = session.getDatabase();
+        Column[] columns = filter.getTable().getColumns();
+        columnCount = columns.length;
+        IExpression[] expressions = new IExpression[columnCount + 2];
+        for (int i = 0; i < columnCount; i++) {
+            expressions[i] = new ExpressionColumn(db, columns[i]);
+        }
+        expressions[columnCount] = ValueExpression.get(ValueLong.get(0));
+        expressions[columnCount + 1] = new ExpressionColumn(db,
+                new Column("HASH_JOIN_KEY", keyType));
+        SortOrder sort = new SortOrder(db, new int[] { columnCount + 1 },
+                new int[] { SortOrder.ASCENDING }, null);
+        tempTable = new ResultTempTable(session, expressions, false, sort);
+        for (Object v : map.values()) {
+            if (v instanceof Row) {
+                Row r = (Row) v;
+                addToTempTable(r.getValue(column.getColumnId()).convertTo(keyType), r);
+            } else {
+                @SuppressWarnings("unchecked")
+                ArrayList<Row> list = (ArrayList<Row>) v;
+                for (Row r : list) {
+                    addToTempTable(r.getValue(column.getColumnId()).convertTo(keyType), r);
+                }
+            }
+        }
+        map = null;
+    }
+
+    private void addToTempTable(Value key, Row r) {
+        Value[] values = new Value[columnCount + 2];
+        for (int i = 0; i < columnCount; i++) {
+            Value v = r.getValue(i);
+            values[i] = v == null ? ValueNull.INSTANCE : v; // 没有读取的字段
+        }
+        values[columnCount] = ValueLong.get(r.getKey());
+        values[columnCount + 1] = key;
+        tempTable.addRow(values);
+    }
+
+    /**
+     * 释放哈希表和临时表，下一次执行查询时重新构建
+     */
+    void close() {
+        built = false;
+        buildCursor = null;
+        map = null;
+        row = null;
+        rows = null;
+        tempCursor = null;
+        if (tempTable != null) {
+            tempTable.close();
+            tempTable = null;
+        }
+    }
+}
@@ -17,11 +17,14 @@ import org.lealone.db.index.IndexConditionType;
 import org.lealone.db.result.Result;
 import org.lealone.db.session.ServerSession;
 import org.lealone.db.table.Column;
+import org.lealone.db.table.ColumnStatistics;
 import org.lealone.db.table.TableType;
 import org.lealone.db.value.CompareMode;
 import org.lealone.db.value.Value;
+import org.lealone.db.value.ValueNull;
 import org.lealone.sql.expression.Expression;
 import org.lealone.sql.expression.ExpressionColumn;
+import org.lealone.sql.expression.Parameter;
 import org.lealone.sql.expression.condition.Comparison;
 import org.lealone.sql.expression.visitor.ExpressionVisitorFactory;
 import org.lealone.sql.query.Query;
@@ -231,6 +234,110 @@ public class IndexCondition {
         }
     }
 
+    /**
+     * 根据字段的统计信息估算满足条件的记录所占的比例，没有统计信息或者无法估算时返回-1。
+     * 同一个字段上既有下界又有上界时合起来算，比如id > 10 and id < 20。
+     *
+     * @param session the session
+     * @param indexConditions all index conditions
+     * @return the selectivity
+     */
+    public double getSelectivity(ServerSession session, ArrayList<IndexCondition> indexConditions) {
+        ColumnStatistics statistics = column == null ? null : column.getStatistics();
+        if (statistics == null)
+            return -1;
+        CompareMode mode = session.getDatabase().getCompareMode();
+        switch (compareType) {
+        case Comparison.EQUAL:
+        case Comparison.EQUAL_NULL_SAFE: {
+            Value v = getConstantValue(session, expression);
+            if (v == ValueNull.INSTANCE && compareType == Comparison.EQUAL_NULL_SAFE)
+                return statistics.getNullFraction();
+            return statistics.getEqualSelectivity(v, mode);
+        }
+        case Comparison.IN_LIST: {
+            double s = 0;
+            for (Expression e : expressionList) {
+                s += statistics.getEqualSelectivity(getConstantValue(session, e), mode);
+            }
+            return Math.min(s, 1);
+        }
+        case Comparison.BIGGER_EQUAL:
+        case Comparison.BIGGER:
+        case Comparison.SMALLER_EQUAL:
+        case Comparison.SMALLER: {
+            IndexCondition start = null, end = null;
+            for (IndexCondition c : indexConditions) {
+                if (c.column != column || c.compareType == Comparison.EQUAL
+                        || c.compareType == Comparison.EQUAL_NULL_SAFE || !c.isEvaluatable())
+                    continue;
+                if (c.isStart() && (start == null || c == this))
+                    start = c;
+                else if (c.isEnd() && (end == null || c == this))
+                    end = c;
+            }
+            Value min = start == null ? null : getConstantValue(session, start.expression);
+            Value max = end == null ? null : getConstantValue(session, end.expression);
+            if (min == null && max == null)
+                return -1;
+            boolean minInclusive = start != null && start.compareType == Comparison.BIGGER_EQUAL;
+            boolean maxInclusive = end != null && end.compareType == Comparison.SMALLER_EQUAL;
+            return statistics.getRangeSelectivity(min, minInclusive, max, maxInclusive, mode);
+        }
+        default:
+            return -1;
+        }
+    }
+
+    /**
+     * 执行计划缓存会把常量替换成参数，如果字段的统计信息会因为常量值不同而估算出不同的比例，
+     * 比如范围条件和高频值的等值条件，语句就不能放到执行计划缓存中，否则用不上直方图。
+     *
+     * @param mode the compare mode
+     * @return true if the plan does not depend on the parameter values
+     */
+    public boolean isPlanCacheable(CompareMode mode) {
+        ColumnStatistics statistics = column == null ? null : column.getStatistics();
+        if (statistics == null || !hasParameter())
+            return true;
+        switch (compareType) {
+        case Comparison.EQUAL:
+        case Comparison.EQUAL_NULL_SAFE:
+        case Comparison.IN_LIST:
+            return !statistics.hasFrequentValues(mode);
+        case Comparison.BIGGER_EQUAL:
+        case Comparison.BIGGER:
+        case Comparison.SMALLER_EQUAL:
+        case Comparison.SMALLER:
+            return statistics.getHistogram() == null;
+        default:
+            return true;
+        }
+    }
+
+    private boolean hasParameter() {
+        if (expression instanceof Parameter)
+            return true;
+        if (expressionList != null) {
+            for (Expression e : expressionList) {
+                if (e instanceof Parameter)
+                    return true;
+            }
+        }
+        return false;
+    }
+
+    // 只有常量才能在优化时知道值，参数和连接条件返回null
+    private Value getConstantValue(ServerSession session, Expression e) {
+        if (e == null || !e.isConstant())
+            return null;
+        try {
+            return column.convert(e.getValue(session));
+        } catch (DbException ex) {
+            return null;
+        }
+    }
+
     /**
      * Check if the result is always false.
      *
@@ -289,6 +396,15 @@ public class IndexCondition {
         return column;
     }
 
+    /**
+     * Get the expression compared with the column.
+     *
+     * @return the expression, or null for IN(..) and IN(SELECT ...) conditions
+     */
+    public Expression getExpression() {
+        return expression;
+    }
+
     /**
      * Check if the expression can be evaluated.
      *
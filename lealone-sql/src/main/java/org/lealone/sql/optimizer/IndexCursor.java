@@ -23,6 +23,8 @@ import org.lealone.db.value.ValueNull;
 import org.lealone.sql.expression.condition.Comparison;
 import org.lealone.sql.query.Select;
 import org.lealone.storage.CursorParameters;
+import org.lealone.storage.page.ColumnBatch;
+import org.lealone.storage.page.ColumnStatsFilter;
 
 /**
  * The filter used to walk through an index. This class supports IN(..)
@@ -266,6 +268,20 @@ public class IndexCursor implements Cursor {
         }
     }
 
+    @Override
+    public int nextRows(Row[] rows) {
+        if (inColumn != null || cursor == null)
+            return -1;
+        return cursor.nextRows(rows);
+    }
+
+    @Override
+    public ColumnBatch nextBatch(ColumnStatsFilter statsFilter) {
+        if (inColumn != null || cursor == null)
+            return null;
+        return cursor.nextBatch(statsFilter);
+    }
+
     private void nextCursor() {
         if (inList != null) {
             while (inListIndex < inList.length) {
@@ -261,6 +261,21 @@ public class Optimizer {
     */
     public static PlanItem getBestPlanItem(ServerSession session, int[] masks, Table table,
             SortOrder sortOrder) {
+        return getBestPlanItem(session, masks, null, table, sortOrder);
+    }
+
+    /**
+    * Get the best plan for the given search mask and the per-column selectivities
+    * estimated from column statistics.
+    *
+    * @param session the session
+    * @param masks per-column comparison bit masks, null means 'always false'
+    * @param selectivities per-column fraction of matching rows, -1 if unknown, null if no statistics
+    * @param sortOrder the sort order
+    * @return the plan item 
+    */
+    public static PlanItem getBestPlanItem(ServerSession session, int[] masks, double[] selectivities,
+            Table table, SortOrder sortOrder) {
         PlanItem item = new PlanItem();
         item.setIndex(table.getScanIndex(session));
         item.cost = item.getIndex().getCost(session, null, null);
@@ -269,7 +284,8 @@ public class Optimizer {
             // indexes[0]是ScanIndex，所以可以跳过，从1开始
             for (int i = 1, size = indexes.size(); i < size; i++) {
                 Index index = indexes.get(i);
-                double cost = index.getCost(session, masks, sortOrder);
+                double cost = selectivities == null ? index.getCost(session, masks, sortOrder)
+                        : index.getCost(session, masks, selectivities, sortOrder);
                 if (cost < item.cost) {
                     item.cost = cost;
                     item.setIndex(index);
@@ -87,12 +87,16 @@ public class Plan {
      */
     public double calculateCost(ServerSession session) {
         double cost = 1;
+        // 前面的表过滤后输出的记录数(跟cost的单位一样)，后面的表按它计算连接代价，没有统计信息时等于cost
+        double rows = 1;
         boolean invalidPlan = false;
         int level = 1;
         for (TableFilter tableFilter : allFilters) {
             PlanItem item = tableFilter.getBestPlanItem(session, level++);
             planItems.put(tableFilter, item);
-            cost += cost * item.cost;
+            double joinCost = item.getJoinCost(rows);
+            cost += joinCost;
+            rows += joinCost * item.getFilterFactor();
             setEvaluatable(tableFilter, true);
             Expression on = tableFilter.getJoinCondition();
             if (on != null && !on.isEvaluatable()) {
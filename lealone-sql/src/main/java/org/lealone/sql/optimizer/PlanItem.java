@@ -23,6 +23,9 @@ public class PlanItem {
     private Index index;
     private PlanItem joinPlan;
     private PlanItem nestedJoinPlan;
+    private IndexCondition hashJoinCondition;
+    private double hashJoinProbeCost;
+    private double filterFactor = 1; // 索引没有用到的条件能过滤掉的记录比例，根据统计信息估算
 
     public double getCost() {
         return cost;
@@ -51,4 +54,44 @@ public class PlanItem {
     PlanItem getNestedJoinPlan() {
         return nestedJoinPlan;
     }
+
+    void setHashJoinCondition(IndexCondition hashJoinCondition, double probeCost) {
+        this.hashJoinCondition = hashJoinCondition;
+        this.hashJoinProbeCost = probeCost;
+    }
+
+    IndexCondition getHashJoinCondition() {
+        return hashJoinCondition;
+    }
+
+    void setFilterFactor(double filterFactor) {
+        this.filterFactor = filterFactor;
+    }
+
+    /**
+     * 跟这个表连接的下一个表要按多少行来计算代价，没有统计信息时是1
+     */
+    double getFilterFactor() {
+        return filterFactor;
+    }
+
+    /**
+     * Calculate the cost of joining this table with the rows of the previous
+     * tables, and decide whether a hash join should be used.
+     *
+     * @param outerCost the cost of the previous tables
+     * @return the cost of the join
+     */
+    double getJoinCost(double outerCost) {
+        double nestedLoopCost = outerCost * cost;
+        if (hashJoinCondition != null) {
+            // 只扫描一次内表来构建哈希表，外表的每一行只需查找一次哈希表
+            double hashJoinCost = cost + outerCost * hashJoinProbeCost;
+            if (hashJoinCost < nestedLoopCost) {
+                return hashJoinCost;
+            }
+            hashJoinCondition = null;
+        }
+        return nestedLoopCost;
+    }
 }
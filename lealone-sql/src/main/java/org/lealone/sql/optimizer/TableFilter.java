@@ -24,6 +24,7 @@ import org.lealone.db.session.ServerSession;
 import org.lealone.db.session.Session;
 import org.lealone.db.table.Column;
 import org.lealone.db.table.Table;
+import org.lealone.db.value.CompareMode;
 import org.lealone.db.value.Value;
 import org.lealone.db.value.ValueLong;
 import org.lealone.db.value.ValueNull;
@@ -31,7 +32,10 @@ import org.lealone.sql.IExpression;
 import org.lealone.sql.expression.Expression;
 import org.lealone.sql.expression.condition.Comparison;
 import org.lealone.sql.expression.condition.ConditionAndOr;
+import org.lealone.sql.executor.YieldableBase;
 import org.lealone.sql.query.Select;
+import org.lealone.storage.page.ColumnBatch;
+import org.lealone.storage.page.ColumnStatsFilter;
 
 /**
  * A table filter represents a table that is used in a query. There is one such
@@ -111,6 +115,12 @@ public class TableFilter extends ColumnResolverBase {
 
     private int[] columnIndexes;
 
+    /**
+     * The hash join used instead of scanning this table for each row of the
+     * previous tables (if there is one).
+     */
+    private HashJoin hashJoin;
+
     /**
      * Create a new table filter object.
      *
@@ -167,6 +177,10 @@ public class TableFilter extends ColumnResolverBase {
      * @return the best plan item
      */
     public PlanItem getBestPlanItem(ServerSession s, int level) {
+        return getBestPlanItem(s, level, level > 1);
+    }
+
+    private PlanItem getBestPlanItem(ServerSession s, int level, boolean isJoin) {
         PlanItem item;
         if (indexConditions.isEmpty()) {
             item = new PlanItem();
@@ -175,6 +189,7 @@ public class TableFilter extends ColumnResolverBase {
         } else {
             int len = table.getColumns().length;
             int[] masks = new int[len];
+            double[] selectivities = getSelectivities(s, len);
             for (int i = 0, size = indexConditions.size(); i < size; i++) {
                 IndexCondition condition = indexConditions.get(i);
                 if (condition.isEvaluatable()) {
@@ -194,11 +209,23 @@ public class TableFilter extends ColumnResolverBase {
             if (select != null) {
                 sortOrder = select.getSortOrder();
             }
-            item = Optimizer.getBestPlanItem(s, masks, table, sortOrder);
+            item = Optimizer.getBestPlanItem(s, masks, selectivities, table, sortOrder);
+            if (selectivities != null)
+                item.setFilterFactor(getFilterFactor(item.getIndex(), selectivities));
             // The more index conditions, the earlier the table.
             // This is to ensure joins without indexes run quickly:
             // x (x.a=10); y (x.b=y.b) - see issue 113
             item.cost -= item.cost * indexConditions.size() / 100 / level;
+            if (isJoin && nestedJoin == null && item.getIndex().getIndexType().isScan()) {
+                // 作为内表只能全表扫描时，看看有没有能用于hash join的等值连接条件
+                for (IndexCondition condition : indexConditions) {
+                    if (HashJoin.isHashJoinCondition(s, this, condition)) {
+                        double probeCost = HashJoin.getProbeCost(table, condition.getColumn());
+                        item.setHashJoinCondition(condition, probeCost);
+                        break;
+                    }
+                }
+            }
         }
         if (nestedJoin != null) {
             setEvaluatable(true);
@@ -209,14 +236,60 @@ public class TableFilter extends ColumnResolverBase {
         }
         if (join != null) {
             setEvaluatable(true);
-            item.setJoinPlan(join.getBestPlanItem(s, level));
+            item.setJoinPlan(join.getBestPlanItem(s, level, true));
             // TODO optimizer: calculate cost of a join: should use separate
             // expected row number and lookup cost
-            item.cost += item.cost * item.getJoinPlan().cost;
+            item.cost += item.getJoinPlan().getJoinCost(item.cost);
         }
         return item;
     }
 
+    // 根据字段的统计信息估算每个字段上的条件过滤后剩下的记录比例，都没有统计信息时返回null
+    private double[] getSelectivities(ServerSession s, int len) {
+        double[] selectivities = null;
+        for (IndexCondition condition : indexConditions) {
+            Column column = condition.getColumn();
+            if (column == null || column.getStatistics() == null || !condition.isEvaluatable())
+                continue;
+            int id = column.getColumnId();
+            if (id < 0)
+                continue;
+            double selectivity = condition.getSelectivity(s, indexConditions);
+            if (selectivity < 0)
+                continue;
+            if (selectivities == null) {
+                selectivities = new double[len];
+                Arrays.fill(selectivities, -1);
+            }
+            // 同一个字段上有多个条件时取最小的
+            if (selectivities[id] < 0 || selectivity < selectivities[id])
+                selectivities[id] = selectivity;
+        }
+        return selectivities;
+    }
+
+    // 索引用不到的字段上的条件还能再过滤掉一部分记录
+    private static double getFilterFactor(Index index, double[] selectivities) {
+        double factor = 1;
+        Column[] columns = index.getIndexType().isScan() ? null : index.getColumns();
+        for (int i = 0; i < selectivities.length; i++) {
+            if (selectivities[i] < 0)
+                continue;
+            boolean indexed = false;
+            if (columns != null) {
+                for (Column c : columns) {
+                    if (c.getColumnId() == i) {
+                        indexed = true;
+                        break;
+                    }
+                }
+            }
+            if (!indexed)
+                factor *= selectivities[i];
+        }
+        return factor;
+    }
+
     /**
      * Set what plan item (index, cost) to use use.
      *
@@ -229,6 +302,8 @@ public class TableFilter extends ColumnResolverBase {
             return;
         }
         setIndex(item.getIndex());
+        IndexCondition hashJoinCondition = item.getHashJoinCondition();
+        hashJoin = hashJoinCondition == null ? null : new HashJoin(this, hashJoinCondition);
         if (nestedJoin != null && item.getNestedJoinPlan() != null) {
             nestedJoin.setPlanItem(item.getNestedJoinPlan());
         }
@@ -256,6 +331,10 @@ public class TableFilter extends ColumnResolverBase {
                 }
             }
         }
+        // 构建哈希表时只扫描一次，剩下的index condition不能依赖外表的字段
+        if (hashJoin != null && !indexConditions.isEmpty()) {
+            hashJoin = null;
+        }
         if (nestedJoin != null) {
             if (SysProperties.CHECK && nestedJoin == this) {
                 DbException.throwInternalError("self join");
@@ -292,6 +371,9 @@ public class TableFilter extends ColumnResolverBase {
     public void startQuery(ServerSession s) {
         session = s;
         scanCount = 0;
+        if (hashJoin != null) {
+            hashJoin.close();
+        }
         if (nestedJoin != null) {
             nestedJoin.startQuery(s);
         }
@@ -323,7 +405,11 @@ public class TableFilter extends ColumnResolverBase {
         if (state == AFTER_LAST) {
             return false;
         } else if (state == BEFORE_FIRST) {
-            cursor.find(session, indexConditions);
+            if (hashJoin != null) {
+                hashJoin.find(session);
+            } else {
+                cursor.find(session, indexConditions);
+            }
             if (!cursor.isAlwaysFalse()) {
                 if (nestedJoin != null) {
                     nestedJoin.reset();
@@ -354,7 +440,15 @@ public class TableFilter extends ColumnResolverBase {
                 if ((++scanCount & 4095) == 0) {
                     checkTimeout();
                 }
-                if (cursor.next()) {
+                if (hashJoin != null) {
+                    Row r = hashJoin.next();
+                    if (r != null) {
+                        currentSearchRow = current = r;
+                        state = FOUND;
+                    } else {
+                        state = AFTER_LAST;
+                    }
+                } else if (cursor.next()) {
                     currentSearchRow = cursor.getSearchRow();
                     current = null;
                     state = FOUND;
@@ -406,6 +500,70 @@ public class TableFilter extends ColumnResolverBase {
         return false;
     }
 
+    /**
+     * 批量读取下一批完整的记录，只用于没有join并且所有条件都由调用者处理的单表查询。
+     * 调用者用set(Row)把批次中的记录逐个设为当前行，每批只检查一次是否超时。
+     *
+     * @param rows the array to fill
+     * @return the number of rows read (0 if there are no more rows),
+     *         or -1 if the rows have to be read with next()
+     */
+    public int nextRows(Row[] rows) {
+        if (state == AFTER_LAST)
+            return 0;
+        if (join != null || nestedJoin != null || hashJoin != null || filterCondition != null
+                || joinCondition != null)
+            return -1;
+        if (state == BEFORE_FIRST) {
+            cursor.find(session, indexConditions);
+            if (cursor.isAlwaysFalse()) {
+                state = AFTER_LAST;
+                return 0;
+            }
+            state = FOUND;
+        }
+        int n = cursor.nextRows(rows);
+        if (n > 0) {
+            int old = scanCount;
+            scanCount += n;
+            if ((old >>> 12) != (scanCount >>> 12)) {
+                checkTimeout();
+            }
+        } else if (n == 0) {
+            state = AFTER_LAST;
+        }
+        return n;
+    }
+
+    /**
+     * 批量读取列存储page中的下一批记录，只用于没有join并且所有条件都由调用者处理的单表查询。
+     * page的统计信息不满足statsFilter时，返回的批次没有列向量，调用者直接跳过这些记录。
+     *
+     * @param statsFilter the filter for the column statistics of the page, or null
+     * @return the next batch, or null if the next row has to be read with next()
+     */
+    public ColumnBatch nextBatch(ColumnStatsFilter statsFilter) {
+        if (state == AFTER_LAST || join != null || nestedJoin != null || filterCondition != null
+                || joinCondition != null)
+            return null;
+        if (state == BEFORE_FIRST) {
+            cursor.find(session, indexConditions);
+            if (cursor.isAlwaysFalse()) {
+                state = AFTER_LAST;
+                return null;
+            }
+            state = FOUND;
+        }
+        ColumnBatch batch = cursor.nextBatch(statsFilter);
+        if (batch != null) {
+            scanCount += batch.getRowCount();
+            checkTimeout();
+            currentSearchRow = null;
+            current = null;
+        }
+        return batch;
+    }
+
     /**
      * Set the state of this and all nested tables to the NULL row.
      */
@@ -462,6 +620,52 @@ public class TableFilter extends ColumnResolverBase {
         return table.getName();
     }
 
+    // 常量被替换成参数后，索引条件中的参数值会影响执行计划时就不能放到执行计划缓存中
+    public boolean isPlanCacheable() {
+        CompareMode mode = session.getDatabase().getCompareMode();
+        for (IndexCondition c : indexConditions) {
+            if (!c.isPlanCacheable(mode))
+                return false;
+        }
+        return true;
+    }
+
+    ArrayList<IndexCondition> getIndexConditions() {
+        return indexConditions;
+    }
+
+    /**
+     * Build the hash tables for the hash joins of this and all joined tables
+     * before the rows are scanned. If the statement has to yield, false is
+     * returned and the next call continues where the last one stopped.
+     *
+     * @param yieldable the statement to check whether it should yield
+     * @return true if all hash tables are built
+     */
+    public boolean buildHashJoins(YieldableBase<?> yieldable) {
+        for (TableFilter f = this; f != null; f = f.join) {
+            if (f.hashJoin != null && !f.hashJoin.build(session, yieldable)) {
+                return false;
+            }
+            if (f.nestedJoin != null && !f.nestedJoin.buildHashJoins(yieldable)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Release the hash tables built for the hash joins of this and all joined
+     * tables, called when the query is finished.
+     */
+    public void closeHashJoin() {
+        visit(f -> {
+            if (f.hashJoin != null) {
+                f.hashJoin.close();
+            }
+        });
+    }
+
     /**
      * Add an index condition.
      *
@@ -643,6 +847,10 @@ public class TableFilter extends ColumnResolverBase {
                 plan += "\n";
             }
             buff.append(StringUtils.indent("/* " + plan + " */", 4, false));
+            if (hashJoin != null) {
+                String hashJoinSQL = StringUtils.quoteRemarkSQL(hashJoin.getPlanSQL());
+                buff.append("\n    /* hash join: ").append(hashJoinSQL).append(" */");
+            }
         }
         if (isJoin) {
             buff.append("\n    ON ");
@@ -10,14 +10,22 @@ import org.lealone.db.result.Row;
 import org.lealone.db.result.SearchRow;
 import org.lealone.db.session.ServerSession;
 import org.lealone.db.table.Table;
+import org.lealone.storage.page.ColumnBatch;
+import org.lealone.storage.page.ColumnStatsFilter;
 
 public class TableIterator {
 
+    // 批量读取时每批的记录数，跟StatementBase每128行检查一次是否需要让出执行权保持一致
+    private static final int BATCH_SIZE = 128;
+
     private final ServerSession session;
     private final TableFilter tableFilter;
     private final Table table;
     private Row oldRow;
     private Cursor cursor;
+    private Row[] batchRows;
+    private boolean batchDisabled;
+    private ColumnStatsFilter statsFilter;
 
     public TableIterator(ServerSession session, TableFilter tableFilter) {
         this.session = session;
@@ -29,9 +37,19 @@ public class TableIterator {
         this.cursor = cursor;
     }
 
+    /**
+     * 列存储的表上逐批读取时，先用statsFilter跳过没有满足条件的记录的page。
+     *
+     * @param statsFilter the filter for the column statistics of the page, or null
+     */
+    public void setStatsFilter(ColumnStatsFilter statsFilter) {
+        this.statsFilter = statsFilter;
+    }
+
     public void start() {
         tableFilter.startQuery(session);
         reset();
+        batchDisabled = cursor != null;
     }
 
     public void reset() {
@@ -53,6 +71,33 @@ public class TableIterator {
         }
     }
 
+    /**
+     * 读取下一批记录，读到的记录用setBatchRow逐个设为当前行。
+     * 返回-1表示只能用next()逐行读取(比如有join、用的是二级索引或者指定了cursor)。
+     *
+     * @return the number of rows read, 0 if there are no more rows, or -1
+     */
+    public int nextBatch() {
+        if (batchDisabled)
+            return -1;
+        if (batchRows == null)
+            batchRows = new Row[BATCH_SIZE];
+        // 只用统计信息检查page，返回的批次都是要跳过的，没有列向量
+        if (statsFilter != null) {
+            ColumnBatch batch = tableFilter.nextBatch(statsFilter);
+            while (batch != null)
+                batch = tableFilter.nextBatch(statsFilter);
+        }
+        int n = tableFilter.nextRows(batchRows);
+        if (n < 0)
+            batchDisabled = true;
+        return n;
+    }
+
+    public void setBatchRow(int index) {
+        tableFilter.set(batchRows[index]);
+    }
+
     public Row getRow() {
         if (cursor == null) {
             return tableFilter.get();
@@ -0,0 +1,147 @@
+/*
+ * Copyright Lealone Database Group.
+ * Licensed under the Server Side Public License, v 1.
+ * Initial Developer: zhh
+ */
+package org.lealone.sql.query;
+
+import java.util.ArrayList;
+import java.util.Map;
+
+import org.lealone.db.session.ServerSession;
+import org.lealone.sql.expression.Expression;
+import org.lealone.sql.expression.ExpressionColumn;
+import org.lealone.sql.expression.Parameter;
+import org.lealone.sql.expression.condition.Comparison;
+import org.lealone.sql.expression.condition.ConditionAndOr;
+import org.lealone.sql.optimizer.TableFilter;
+import org.lealone.storage.StorageSetting;
+import org.lealone.storage.page.ColumnStats;
+import org.lealone.storage.page.ColumnStatsFilter;
+
+// 列存储的表上的普通扫描，用查询条件中能根据统计信息判断的比较运算跳过没有满足条件的记录的page，
+// 其他page中的记录还是逐行读取并用完整的查询条件过滤，所以不需要读列page
+class ColumnStatsCondition implements ColumnStatsFilter {
+
+    private final Comparison[] comparisons;
+    private final int[] comparisonColumns;
+    private VectorFilter[] filters;
+
+    private ColumnStatsCondition(Comparison[] comparisons, int[] comparisonColumns) {
+        this.comparisons = comparisons;
+        this.comparisonColumns = comparisonColumns;
+    }
+
+    /**
+     * 查询条件中没有能用统计信息判断的比较运算时返回null。
+     */
+    static ColumnStatsCondition create(TableFilter filter, Expression condition) {
+        if (condition == null || !isColumnStorage(filter))
+            return null;
+        ArrayList<Comparison> comparisons = new ArrayList<>();
+        // 用AND连接的其他条件不影响跳过page，忽略就可以了
+        addComparisons(filter, condition, comparisons, false);
+        if (comparisons.isEmpty())
+            return null;
+        return new ColumnStatsCondition(comparisons.toArray(new Comparison[0]),
+                getColumnIds(filter, comparisons));
+    }
+
+    // 参数的值在执行时才知道
+    void start(ServerSession session) {
+        filters = createFilters(session, comparisons);
+    }
+
+    @Override
+    public boolean mightMatch(ColumnStats[] stats) {
+        return mightMatch(filters, comparisonColumns, stats);
+    }
+
+    @Override
+    public boolean isVectorRequired() {
+        return false;
+    }
+
+    static boolean isColumnStorage(TableFilter filter) {
+        Map<String, String> parameters = filter.getTable().getParameters();
+        if (parameters == null)
+            return false;
+        String mode = parameters.get(StorageSetting.PAGE_STORAGE_MODE.name());
+        return "COLUMN_STORAGE".equalsIgnoreCase(mode);
+    }
+
+    static int getColumnId(TableFilter filter, Expression e) {
+        if (e instanceof ExpressionColumn) {
+            ExpressionColumn col = (ExpressionColumn) e;
+            if (col.getTableFilter() == filter)
+                return col.getColumn().getColumnId();
+        }
+        return -1;
+    }
+
+    static int[] getColumnIds(TableFilter filter, ArrayList<Comparison> comparisons) {
+        int[] columnIds = new int[comparisons.size()];
+        for (int i = 0; i < columnIds.length; i++) {
+            columnIds[i] = getColumnId(filter, comparisons.get(i).getLeft());
+        }
+        return columnIds;
+    }
+
+    // 只支持用AND连接起来的“列 比较运算符 常量或参数”以及IS [NOT] NULL，
+    // strict为true时遇到其他条件返回false，否则只是忽略它们
+    static boolean addComparisons(TableFilter filter, Expression e, ArrayList<Comparison> comparisons,
+            boolean strict) {
+        if (e instanceof ConditionAndOr) {
+            ConditionAndOr c = (ConditionAndOr) e;
+            if (c.getAndOrType() != ConditionAndOr.AND)
+                return false;
+            boolean left = addComparisons(filter, c.getExpression(true), comparisons, strict);
+            if (!left && strict)
+                return false;
+            boolean right = addComparisons(filter, c.getExpression(false), comparisons, strict);
+            return left && right;
+        }
+        if (!(e instanceof Comparison))
+            return false;
+        Comparison c = (Comparison) e;
+        if (getColumnId(filter, c.getLeft()) < 0)
+            return false;
+        switch (c.getCompareType()) {
+        case Comparison.IS_NULL:
+        case Comparison.IS_NOT_NULL:
+            break;
+        case Comparison.EQUAL:
+        case Comparison.BIGGER_EQUAL:
+        case Comparison.BIGGER:
+        case Comparison.SMALLER_EQUAL:
+        case Comparison.SMALLER:
+        case Comparison.NOT_EQUAL:
+            Expression right = c.getRight();
+            if (!right.isConstant() && !(right instanceof Parameter))
+                return false;
+            break;
+        default:
+            return false;
+        }
+        comparisons.add(c);
+        return true;
+    }
+
+    static VectorFilter[] createFilters(ServerSession session, Comparison[] comparisons) {
+        VectorFilter[] filters = new VectorFilter[comparisons.length];
+        for (int i = 0; i < comparisons.length; i++) {
+            filters[i] = new VectorFilter(session, comparisons[i]);
+        }
+        return filters;
+    }
+
+    static boolean mightMatch(VectorFilter[] filters, int[] columns, ColumnStats[] stats) {
+        for (int i = 0; i < filters.length; i++) {
+            int col = columns[i];
+            // 增加字段前写入的page没有新字段的统计信息
+            if (col < stats.length && !filters[i].mightMatch(stats[col]))
+                return false;
+        }
+        return true;
+    }
+}
@@ -0,0 +1,29 @@
+/*
+ * Copyright Lealone Database Group.
+ * Licensed under the Server Side Public License, v 1.
+ * Initial Developer: zhh
+ */
+package org.lealone.sql.query;
+
+import org.lealone.db.result.LocalResult;
+import org.lealone.sql.operator.Operator;
+import org.lealone.sql.operator.OperatorFactoryBase;
+
+// 内置的olap OperatorFactory，查询处理的记录数超过OLAP_THRESHOLD之后切换到多线程并行扫描，
+// 不能并行执行的查询返回null，继续用原来的operator
+public class ParallelOperatorFactory extends OperatorFactoryBase {
+
+    public ParallelOperatorFactory() {
+        super("olap");
+    }
+
+    @Override
+    public Operator createOperator(Select select) {
+        return QParallel.create(select);
+    }
+
+    @Override
+    public Operator createOperator(Select select, LocalResult localResult) {
+        return QParallel.create(select);
+    }
+}
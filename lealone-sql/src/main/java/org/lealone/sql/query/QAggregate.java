@@ -20,26 +20,28 @@ class QAggregate extends QOperator {
 
     @Override
     public void run() {
-        while (next()) {
-            boolean yield = yieldIfNeeded(++loopCount);
-            if (conditionEvaluator.getBooleanValue()) {
-                if (select.isForUpdate && !tryLockRow()) {
-                    return; // 锁记录失败
-                }
-                rowCount++;
-                select.currentGroupRowId++;
-                for (int i = 0; i < columnCount; i++) {
-                    Expression expr = select.expressions.get(i);
-                    expr.updateAggregate(session);
-                }
-                if (sampleSize > 0 && rowCount >= sampleSize) {
-                    break;
-                }
-            }
-            if (yield)
-                return;
+        if (scan())
+            return;
+        addResultRow();
+    }
+
+    @Override
+    boolean processRow() {
+        updateAggregate();
+        return sampleSize > 0 && rowCount >= sampleSize;
+    }
+
+    void updateAggregate() {
+        rowCount++;
+        select.currentGroupRowId++;
+        for (int i = 0; i < columnCount; i++) {
+            Expression expr = select.expressions.get(i);
+            expr.updateAggregate(session);
         }
-        // 最后把聚合后的结果增加到结果集中
+    }
+
+    // 最后把聚合后的结果增加到结果集中
+    void addResultRow() {
         Value[] row = createRow();
         row = QGroup.toResultRow(row, columnCount, select.resultColumnCount);
         result.addRow(row);
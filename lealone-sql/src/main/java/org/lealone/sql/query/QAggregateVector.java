@@ -0,0 +1,166 @@
+/*
+ * Copyright Lealone Database Group.
+ * Licensed under the Server Side Public License, v 1.
+ * Initial Developer: zhh
+ */
+package org.lealone.sql.query;
+
+import java.util.ArrayList;
+
+import org.lealone.sql.expression.Expression;
+import org.lealone.sql.expression.ValueExpression;
+import org.lealone.sql.expression.aggregate.ACount;
+import org.lealone.sql.expression.aggregate.ACountAll;
+import org.lealone.sql.expression.aggregate.ADefault;
+import org.lealone.sql.expression.aggregate.Aggregate;
+import org.lealone.sql.expression.aggregate.BuiltInAggregate;
+import org.lealone.sql.expression.condition.Comparison;
+import org.lealone.sql.optimizer.TableFilter;
+import org.lealone.storage.page.ColumnBatch;
+import org.lealone.storage.page.ColumnStats;
+import org.lealone.storage.page.ColumnStatsFilter;
+import org.lealone.storage.page.ColumnVector;
+
+// 列存储的表上没有group by的聚合查询，没有被修改过的page直接在列向量上过滤和聚合，其他记录还是逐行处理，
+// 根据page中每一列的统计信息能确定没有满足条件的记录时，连列page都不用读
+class QAggregateVector extends QAggregate implements ColumnStatsFilter {
+
+    private final TableFilter tableFilter;
+    private final BuiltInAggregate[] aggregates;
+    private final int[] aggregateColumns; // COUNT(*)是-1
+    private final Comparison[] comparisons;
+    private final int[] comparisonColumns;
+    private VectorFilter[] filters;
+    private int[] selection;
+
+    private QAggregateVector(Select select, BuiltInAggregate[] aggregates, int[] aggregateColumns,
+            Comparison[] comparisons, int[] comparisonColumns) {
+        super(select);
+        tableFilter = select.getTopTableFilter();
+        this.aggregates = aggregates;
+        this.aggregateColumns = aggregateColumns;
+        this.comparisons = comparisons;
+        this.comparisonColumns = comparisonColumns;
+    }
+
+    /**
+     * 查询条件和聚合函数都能在列向量上计算时才创建，否则返回null。
+     */
+    static QAggregateVector create(Select select) {
+        TableFilter filter = select.getTopTableFilter();
+        if (select.isForUpdate || select.havingIndex >= 0 || filter.getJoin() != null
+                || filter.getNestedJoin() != null || filter.getFilterCondition() != null
+                || filter.getJoinCondition() != null
+                || !ColumnStatsCondition.isColumnStorage(filter))
+            return null;
+
+        int size = select.expressions.size();
+        BuiltInAggregate[] aggregates = new BuiltInAggregate[size];
+        int[] aggregateColumns = new int[size];
+        for (int i = 0; i < size; i++) {
+            Expression expr = select.expressions.get(i).getNonAliasExpression();
+            if (expr instanceof ACountAll) {
+                aggregateColumns[i] = -1;
+            } else if (expr instanceof ACount || expr instanceof ADefault) {
+                BuiltInAggregate a = (BuiltInAggregate) expr;
+                if (a.isDistinct())
+                    return null;
+                if (expr instanceof ADefault) {
+                    switch (a.getAType()) {
+                    case Aggregate.SUM:
+                    case Aggregate.AVG:
+                    case Aggregate.MIN:
+                    case Aggregate.MAX:
+                        break;
+                    default:
+                        return null;
+                    }
+                }
+                int columnId = ColumnStatsCondition.getColumnId(filter, a.getOn());
+                if (columnId < 0)
+                    return null;
+                aggregateColumns[i] = columnId;
+            } else {
+                return null;
+            }
+            aggregates[i] = (BuiltInAggregate) expr;
+        }
+
+        ArrayList<Comparison> comparisons = new ArrayList<>();
+        Expression c = select.condition;
+        if (c instanceof ValueExpression) {
+            if (!c.getValue(select.getSession()).getBoolean())
+                return null;
+        } else if (c != null && !ColumnStatsCondition.addComparisons(filter, c, comparisons, true)) {
+            return null;
+        }
+        int[] comparisonColumns = ColumnStatsCondition.getColumnIds(filter, comparisons);
+        return new QAggregateVector(select, aggregates, aggregateColumns,
+                comparisons.toArray(new Comparison[0]), comparisonColumns);
+    }
+
+    @Override
+    public void start() {
+        super.start();
+        // 参数的值在执行时才知道
+        filters = ColumnStatsCondition.createFilters(session, comparisons);
+    }
+
+    @Override
+    public void run() {
+        if (sampleSize > 0) {
+            super.run();
+            return;
+        }
+        while (true) {
+            ColumnBatch batch = tableFilter.nextBatch(filters.length > 0 ? this : null);
+            if (batch != null) {
+                int rows = batch.getRowCount();
+                boolean yield = yieldIfNeeded(loopCount += rows, rows);
+                updateAggregate(batch);
+                if (yield)
+                    return;
+                continue;
+            }
+            if (!next())
+                break;
+            boolean yield = yieldIfNeeded(++loopCount);
+            if (conditionEvaluator.getBooleanValue()) {
+                updateAggregate();
+            }
+            if (yield)
+                return;
+        }
+        addResultRow();
+    }
+
+    @Override
+    public boolean mightMatch(ColumnStats[] stats) {
+        return ColumnStatsCondition.mightMatch(filters, comparisonColumns, stats);
+    }
+
+    private void updateAggregate(ColumnBatch batch) {
+        if (batch.isSkipped())
+            return;
+        int start = batch.getStart();
+        int end = batch.getEnd();
+        if (selection == null || selection.length < end - start)
+            selection = new int[end - start];
+        int size = 0;
+        for (int i = start; i < end; i++) {
+            selection[size++] = i;
+        }
+        for (int i = 0; i < filters.length && size > 0; i++) {
+            size = filters[i].filter(batch.getVector(comparisonColumns[i]), selection, size);
+        }
+        if (size == 0)
+            return;
+        rowCount += size;
+        select.currentGroupRowId++;
+        for (int i = 0; i < aggregates.length; i++) {
+            int col = aggregateColumns[i];
+            ColumnVector vector = col < 0 ? null : batch.getVector(col);
+            aggregates[i].updateAggregate(session, vector, selection, size);
+        }
+    }
+}
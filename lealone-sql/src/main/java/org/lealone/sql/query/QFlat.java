@@ -16,22 +16,16 @@ class QFlat extends QOperator {
 
     @Override
     public void run() {
-        while (next()) {
-            boolean yield = yieldIfNeeded(++loopCount);
-            if (conditionEvaluator.getBooleanValue()) {
-                if (select.isForUpdate && !tryLockRow()) {
-                    return; // 锁记录失败
-                }
-                Value[] row = createRow();
-                result.addRow(row);
-                rowCount++;
-                if (canBreakLoop()) {
-                    break;
-                }
-            }
-            if (yield)
-                return;
-        }
+        if (scan())
+            return;
         loopEnd = true;
     }
+
+    @Override
+    boolean processRow() {
+        Value[] row = createRow();
+        result.addRow(row);
+        rowCount++;
+        return canBreakLoop();
+    }
 }
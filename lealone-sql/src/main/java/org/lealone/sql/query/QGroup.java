@@ -32,29 +32,23 @@ class QGroup extends QOperator {
 
     @Override
     public void run() {
-        while (next()) {
-            boolean yield = yieldIfNeeded(++loopCount);
-            if (conditionEvaluator.getBooleanValue()) {
-                if (select.isForUpdate && !tryLockRow()) {
-                    return; // 锁记录失败
-                }
-                rowCount++;
-                Value key = getKey(select);
-                select.currentGroup = getOrCreateGroup(groups, key);
-                select.currentGroupRowId++;
-                updateAggregate(select, columnCount);
-                if (sampleSize > 0 && rowCount >= sampleSize) {
-                    break;
-                }
-            }
-            if (yield)
-                return;
-        }
+        if (scan())
+            return;
         // 把分组后的记录放到result中
         addGroupRows(groups, select, columnCount, result);
         loopEnd = true;
     }
 
+    @Override
+    boolean processRow() {
+        rowCount++;
+        Value key = getKey(select);
+        select.currentGroup = getOrCreateGroup(groups, key);
+        select.currentGroupRowId++;
+        updateAggregate(select, columnCount);
+        return sampleSize > 0 && rowCount >= sampleSize;
+    }
+
     static Value getKey(Select select) {
         // 避免在ExpressionColumn.getValue中取到旧值
         // 例如SELECT id/3 AS A, COUNT(*) FROM mytable GROUP BY A HAVING A>=0
@@ -0,0 +1,642 @@
+/*
+ * Copyright Lealone Database Group.
+ * Licensed under the Server Side Public License, v 1.
+ * Initial Developer: zhh
+ */
+package org.lealone.sql.query;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+
+import org.lealone.db.Database;
+import org.lealone.db.index.Cursor;
+import org.lealone.db.result.ResultTempTable;
+import org.lealone.db.result.SortOrder;
+import org.lealone.db.session.ServerSession;
+import org.lealone.db.table.Column;
+import org.lealone.db.value.Value;
+import org.lealone.db.value.ValueArray;
+import org.lealone.db.value.ValueDouble;
+import org.lealone.db.value.ValueInt;
+import org.lealone.db.value.ValueLong;
+import org.lealone.db.value.ValueNull;
+import org.lealone.sql.IExpression;
+import org.lealone.sql.expression.Expression;
+import org.lealone.sql.expression.ExpressionColumn;
+import org.lealone.sql.expression.aggregate.ACount;
+import org.lealone.sql.expression.aggregate.ACountAll;
+import org.lealone.sql.expression.aggregate.ADefault;
+import org.lealone.sql.expression.aggregate.AGroupConcat;
+import org.lealone.sql.expression.aggregate.Aggregate;
+import org.lealone.sql.expression.aggregate.AggregateData;
+import org.lealone.sql.expression.aggregate.BuiltInAggregate;
+import org.lealone.sql.expression.aggregate.JavaAggregate;
+import org.lealone.sql.expression.condition.ConditionExists;
+import org.lealone.sql.expression.condition.ConditionInSelect;
+import org.lealone.sql.expression.subquery.SubQuery;
+import org.lealone.sql.expression.visitor.VoidExpressionVisitor;
+
+// 只处理group by，且group by的字段没有索引，
+// QParallel也用它在每个key范围上做部分聚合，这时也可能没有group by，所有记录都在同一个分组中
+// 跟QGroup不同的是，每个分组只对应一个int类型的分组号，聚合函数的中间状态按分组号放在long[]、double[]这样的数组中，
+// 不用为每个分组创建一个HashMap和多个AggregateData对象。
+//
+// 分组数超过maxMemoryRows时，把所有分组的中间状态按分组key的哈希值分区写到临时表中，
+// 最后再逐个分区读回来合并，内存中只需要存放一个分区的分组。
+// 只支持不带distinct的COUNT、SUM、AVG、MIN、MAX，有其他聚合函数或子查询时还是用QGroup
+class QGroupHash extends QOperator {
+
+    private static final int PARTITION_COUNT = 16;
+    private static final int INITIAL_CAPACITY = 16;
+
+    // 聚合状态的存放方式
+    private static final int COUNT = 0; // COUNT(*)和COUNT只需要counts
+    private static final int LONG_SUM = 1; // 整数的SUM和AVG
+    private static final int DOUBLE_SUM = 2;
+    private static final int LONG_MIN_MAX = 3;
+    private static final int VALUE = 4; // 其他类型的SUM、AVG、MIN、MAX，借助AggregateDataDefault计算
+    private static final int FIRST_VALUE = 5; // 表达式中引用的字段，跟ExpressionColumn.updateAggregate一样只取第一条
+
+    private final AggregateState[] states;
+    private final int keyLength;
+    private final int maxMemoryRows;
+
+    // 分组key到分组号的开放地址哈希表，存放的是分组号+1，0表示空位
+    private int[] table;
+    private int mask;
+    private int groupCount;
+    private Value[] keys; // 只有一个分组字段时直接存放字段值，否则是ValueArray
+    private int[] hashes;
+
+    private ResultTempTable tempTable;
+
+    private QGroupHash(Select select, AggregateState[] states) {
+        super(select);
+        select.currentGroup = null;
+        this.states = states;
+        keyLength = select.groupIndex == null ? 0 : select.groupIndex.length;
+        maxMemoryRows = Math.max(session.getDatabase().getMaxMemoryRows(), 1);
+        init(INITIAL_CAPACITY);
+    }
+
+    /**
+     * 非分组表达式中的聚合函数都能用数组存放中间状态时才创建，否则返回null。
+     */
+    static QGroupHash create(Select select) {
+        StateCollector collector = new StateCollector(select);
+        for (int i = 0; i < select.expressions.size(); i++) {
+            if (select.groupByExpression == null || !select.groupByExpression[i]) {
+                select.expressions.get(i).accept(collector);
+                if (!collector.supported)
+                    return null;
+            }
+        }
+        return new QGroupHash(select, collector.states.toArray(new AggregateState[0]));
+    }
+
+    @Override
+    public void run() {
+        if (scan())
+            return;
+        finish();
+    }
+
+    @Override
+    boolean processRow() {
+        updateGroup();
+        if (groupCount > maxMemoryRows) {
+            spill();
+        }
+        return sampleSize > 0 && rowCount >= sampleSize;
+    }
+
+    // 用当前记录更新它所在分组的聚合状态
+    void updateGroup() {
+        rowCount++;
+        int groupId = getGroupId(getKey());
+        for (AggregateState s : states) {
+            s.update(groupId);
+        }
+    }
+
+    int getGroupCount() {
+        return groupCount;
+    }
+
+    // 把分组后的记录放到result中
+    void finish() {
+        try {
+            if (tempTable == null) {
+                // 跟QAggregate一样，没有group by时即使没有记录也要返回一行
+                if (keyLength == 0 && groupCount == 0)
+                    getGroupId(ValueNull.INSTANCE);
+                addGroupRows();
+            } else {
+                spill();
+                mergePartitions();
+            }
+        } finally {
+            closeTempTable();
+        }
+        loopEnd = true;
+    }
+
+    @Override
+    public void stop() {
+        closeTempTable();
+        super.stop();
+    }
+
+    private Value getKey() {
+        // 避免在ExpressionColumn.getValue中取到旧值
+        select.currentGroup = null;
+        if (keyLength == 0) {
+            return ValueNull.INSTANCE;
+        } else if (keyLength == 1) {
+            return select.expressions.get(select.groupIndex[0]).getValue(session);
+        }
+        return ValueArray.get(QGroup.getKeyValues(select));
+    }
+
+    private void init(int capacity) {
+        table = new int[capacity * 2];
+        mask = table.length - 1;
+        keys = new Value[capacity];
+        hashes = new int[capacity];
+        groupCount = 0;
+        for (AggregateState s : states) {
+            s.init(capacity);
+        }
+    }
+
+    private static int hash(Value key) {
+        int h = key.hashCode();
+        return h ^ (h >>> 16);
+    }
+
+    private int getGroupId(Value key) {
+        int h = hash(key);
+        int i = h & mask;
+        while (true) {
+            int id = table[i] - 1;
+            if (id < 0) {
+                break;
+            }
+            if (hashes[id] == h && keys[id].equals(key)) {
+                return id;
+            }
+            i = (i + 1) & mask;
+        }
+        int id = groupCount++;
+        if (id == keys.length) {
+            grow(id);
+            i = h & mask;
+            while (table[i] != 0) {
+                i = (i + 1) & mask;
+            }
+        }
+        keys[id] = key;
+        hashes[id] = h;
+        table[i] = id + 1;
+        return id;
+    }
+
+    // 分组号是连续分配的，只需扩大数组，再重建哈希表
+    private void grow(int size) {
+        int capacity = keys.length * 2;
+        keys = Arrays.copyOf(keys, capacity);
+        hashes = Arrays.copyOf(hashes, capacity);
+        for (AggregateState s : states) {
+            s.grow(capacity);
+        }
+        table = new int[capacity * 2];
+        mask = table.length - 1;
+        for (int id = 0; id < size; id++) {
+            int i = hashes[id] & mask;
+            while (table[i] != 0) {
+                i = (i + 1) & mask;
+            }
+            table[i] = id + 1;
+        }
+    }
+
+    private void addGroupRows() {
+        HashMap<Expression, Object> group = new HashMap<>(states.length * 2);
+        select.currentGroup = group;
+        for (int id = 0; id < groupCount; id++) {
+            for (AggregateState s : states) {
+                group.put(s.expression, s.getAggregateData(id));
+            }
+            Value[] keyValues = keyLength == 0 ? new Value[0]
+                    : keyLength == 1 ? new Value[] { keys[id] } : ((ValueArray) keys[id]).getList();
+            QGroup.addGroupRow(select, keyValues, columnCount, result);
+        }
+    }
+
+    // 分区号跟哈希表的位置用的是哈希值的不同位，合并同一个分区时分组不会集中在哈希表的一小段中
+    private static int getPartition(int hash) {
+        return (hash * 0x9E3779B9) >>> 28;
+    }
+
+    // 临时表的字段是分区号、分组key、每个聚合状态的行数和值，按分区号建索引
+    private void createTempTable() {
+        Database db = session.getDatabase();
+        IExpression[] expressions = new IExpression[1 + keyLength + states.length * 2];
+        int index = 0;
+        expressions[index++] = newColumn(db, index, Value.INT);
+        for (int i = 0; i < keyLength; i++) {
+            Expression e = select.expressions.get(select.groupIndex[i]);
+            expressions[index++] = newColumn(db, index, e.getType());
+        }
+        for (AggregateState s : states) {
+            expressions[index++] = newColumn(db, index, Value.LONG);
+            expressions[index++] = newColumn(db, index, s.getValueType());
+        }
+        SortOrder sort = new SortOrder(db, new int[] { 0 }, new int[] { SortOrder.ASCENDING }, null);
+        tempTable = new ResultTempTable(session, expressions, false, sort);
+    }
+
+    private static ExpressionColumn newColumn(Database db, int index, int type) {
+        return new ExpressionColumn(db, new Column("GROUP_STATE" + index, type));
+    }
+
+    private void spill() {
+        if (tempTable == null) {
+            createTempTable();
+        }
+        for (int id = 0; id < groupCount; id++) {
+            tempTable.addRow(createStateRow(id));
+        }
+        session.checkCanceled();
+        clearGroups();
+    }
+
+    /**
+     * 把所有分组的中间状态按临时表的格式加到rows中，然后清空，用mergeStateRow合并回来。
+     */
+    void exportGroups(ArrayList<Value[]> rows) {
+        for (int id = 0; id < groupCount; id++) {
+            rows.add(createStateRow(id));
+        }
+        clearGroups();
+    }
+
+    private Value[] createStateRow(int id) {
+        Value[] row = new Value[1 + keyLength + states.length * 2];
+        int index = 0;
+        row[index++] = ValueInt.get(getPartition(hashes[id]));
+        if (keyLength == 1) {
+            row[index++] = keys[id];
+        } else if (keyLength > 1) {
+            Value[] keyValues = ((ValueArray) keys[id]).getList();
+            System.arraycopy(keyValues, 0, row, index, keyLength);
+            index += keyLength;
+        }
+        for (AggregateState s : states) {
+            row[index++] = ValueLong.get(s.getCount(id));
+            row[index++] = s.getValue(id);
+        }
+        return row;
+    }
+
+    // 合并createStateRow生成的一行中间状态
+    void mergeStateRow(Value[] row) {
+        int index = 1;
+        Value key;
+        if (keyLength == 0) {
+            key = ValueNull.INSTANCE;
+        } else if (keyLength == 1) {
+            key = row[index++];
+        } else {
+            key = ValueArray.get(Arrays.copyOfRange(row, index, index + keyLength));
+            index += keyLength;
+        }
+        int groupId = getGroupId(key);
+        for (AggregateState s : states) {
+            long count = row[index++].getLong();
+            s.merge(groupId, count, row[index++]);
+        }
+    }
+
+    // 合并其他线程导出的中间状态，分组数太多时跟run一样转存到临时表
+    void mergeStateRows(ArrayList<Value[]> rows) {
+        for (int i = 0, size = rows.size(); i < size; i++) {
+            mergeStateRow(rows.get(i));
+            if (groupCount > maxMemoryRows) {
+                spill();
+            }
+        }
+    }
+
+    // 数组的大小已经够用了，直接清空
+    private void clearGroups() {
+        Arrays.fill(table, 0);
+        Arrays.fill(keys, 0, groupCount, null);
+        for (AggregateState s : states) {
+            s.clear(groupCount);
+        }
+        groupCount = 0;
+    }
+
+    private void mergePartitions() {
+        Value[] searchRow = new Value[1];
+        for (int p = 0; p < PARTITION_COUNT; p++) {
+            searchRow[0] = ValueInt.get(p);
+            Cursor cursor = tempTable.findBySortColumns(searchRow);
+            while (cursor.next()) {
+                mergeStateRow(cursor.get().getValueList());
+            }
+            addGroupRows();
+            clearGroups();
+        }
+    }
+
+    void closeTempTable() {
+        if (tempTable != null) {
+            tempTable.close();
+            tempTable = null;
+        }
+    }
+
+    // 一个聚合函数或字段在所有分组上的中间状态
+    private static class AggregateState {
+
+        final ServerSession session;
+        final Expression expression; // BuiltInAggregate或ExpressionColumn
+        final Expression on;
+        final int kind;
+        final boolean isMin;
+        final AggregateData data; // 计算最终结果时重用，VALUE类型也用它计算中间状态
+
+        long[] counts;
+        long[] longs;
+        double[] doubles;
+        Value[] values;
+
+        AggregateState(ServerSession session, Expression expression, Expression on, int kind,
+                int aType) {
+            this.session = session;
+            this.expression = expression;
+            this.on = on;
+            this.kind = kind;
+            this.isMin = aType == Aggregate.MIN;
+            if (expression instanceof ACountAll) {
+                data = ((ACountAll) expression).new AggregateDataCountAll();
+            } else if (expression instanceof ACount) {
+                data = ((ACount) expression).new AggregateDataCount();
+            } else if (expression instanceof ADefault) {
+                data = ((ADefault) expression).new AggregateDataDefault();
+            } else {
+                data = null;
+            }
+        }
+
+        void init(int capacity) {
+            if (kind != FIRST_VALUE)
+                counts = new long[capacity];
+            if (kind == LONG_SUM || kind == LONG_MIN_MAX)
+                longs = new long[capacity];
+            else if (kind == DOUBLE_SUM)
+                doubles = new double[capacity];
+            else if (kind == VALUE || kind == FIRST_VALUE)
+                values = new Value[capacity];
+        }
+
+        void grow(int capacity) {
+            if (counts != null)
+                counts = Arrays.copyOf(counts, capacity);
+            if (longs != null)
+                longs = Arrays.copyOf(longs, capacity);
+            if (doubles != null)
+                doubles = Arrays.copyOf(doubles, capacity);
+            if (values != null)
+                values = Arrays.copyOf(values, capacity);
+        }
+
+        void clear(int size) {
+            if (counts != null)
+                Arrays.fill(counts, 0, size, 0);
+            if (longs != null)
+                Arrays.fill(longs, 0, size, 0);
+            if (doubles != null)
+                Arrays.fill(doubles, 0, size, 0);
+            if (values != null)
+                Arrays.fill(values, 0, size, null);
+        }
+
+        void update(int id) {
+            if (kind == FIRST_VALUE) {
+                if (values[id] == null)
+                    values[id] = expression.getValue(session);
+                return;
+            }
+            if (on == null) { // COUNT(*)
+                counts[id]++;
+                return;
+            }
+            Value v = on.getValue(session);
+            if (v != ValueNull.INSTANCE)
+                merge(id, 1, v);
+        }
+
+        // 合并另一个中间状态，count是它的行数，v是它的值
+        void merge(int id, long count, Value v) {
+            switch (kind) {
+            case FIRST_VALUE:
+                if (values[id] == null)
+                    values[id] = v;
+                return;
+            case COUNT:
+                counts[id] += count;
+                return;
+            }
+            if (count == 0)
+                return;
+            switch (kind) {
+            case LONG_SUM: {
+                long x = v.getLong();
+                long sum = longs[id] + x;
+                // 跟ValueLong.add一样，溢出时抛出异常
+                if (((longs[id] ^ sum) & (x ^ sum)) < 0)
+                    ValueLong.get(longs[id]).add(ValueLong.get(x));
+                longs[id] = sum;
+                break;
+            }
+            case DOUBLE_SUM: {
+                double x = v.getDouble();
+                doubles[id] = counts[id] == 0 ? x : doubles[id] + x;
+                break;
+            }
+            case LONG_MIN_MAX: {
+                long x = v.getLong();
+                if (counts[id] == 0 || (isMin ? x < longs[id] : x > longs[id]))
+                    longs[id] = x;
+                break;
+            }
+            default: {
+                ADefault.AggregateDataDefault d = (ADefault.AggregateDataDefault) data;
+                d.setCount(counts[id]);
+                d.setValue(values[id]);
+                d.add(session, v);
+                values[id] = d.getValue();
+            }
+            }
+            counts[id] += count;
+        }
+
+        long getCount(int id) {
+            return counts == null ? 0 : counts[id];
+        }
+
+        // 中间状态的值，没有值时返回ValueNull
+        Value getValue(int id) {
+            if (kind == FIRST_VALUE || kind == VALUE) {
+                Value v = values[id];
+                return v == null ? ValueNull.INSTANCE : v;
+            }
+            if (kind == COUNT || counts[id] == 0) {
+                return ValueNull.INSTANCE;
+            }
+            if (kind == DOUBLE_SUM) {
+                return ValueDouble.get(doubles[id]);
+            }
+            Value v = ValueLong.get(longs[id]);
+            return kind == LONG_MIN_MAX ? v.convertTo(on.getType()) : v;
+        }
+
+        int getValueType() {
+            switch (kind) {
+            case COUNT:
+            case LONG_SUM:
+            case LONG_MIN_MAX:
+                return Value.LONG;
+            case DOUBLE_SUM:
+                return Value.DOUBLE;
+            default:
+                return expression.getType();
+            }
+        }
+
+        Object getAggregateData(int id) {
+            if (kind == FIRST_VALUE) {
+                return values[id];
+            }
+            if (data instanceof ACountAll.AggregateDataCountAll) {
+                ((ACountAll.AggregateDataCountAll) data).setCount(counts[id]);
+            } else if (data instanceof ACount.AggregateDataCount) {
+                ((ACount.AggregateDataCount) data).setCount(counts[id]);
+            } else {
+                ADefault.AggregateDataDefault d = (ADefault.AggregateDataDefault) data;
+                d.setCount(counts[id]);
+                d.setValue(counts[id] == 0 ? null : getValue(id));
+            }
+            return data;
+        }
+    }
+
+    // 找出需要在每一行上更新的聚合函数和字段，跟UpdateAggregateVisitor访问的表达式一样
+    private static class StateCollector extends VoidExpressionVisitor {
+
+        private final Select select;
+        private final ArrayList<AggregateState> states = new ArrayList<>();
+        private final HashMap<Expression, Object> visited = new HashMap<>();
+        private boolean supported = true;
+
+        StateCollector(Select select) {
+            this.select = select;
+        }
+
+        @Override
+        public Void visitExpressionColumn(ExpressionColumn e) {
+            if (e.getColumnResolver().getSelect() != select) {
+                supported = false;
+            } else if (visited.put(e, e) == null) {
+                add(e, null, FIRST_VALUE, -1);
+            }
+            return null;
+        }
+
+        @Override
+        public Void visitAggregate(Aggregate e) {
+            if (!(e instanceof BuiltInAggregate) || e.getSelect() != select) {
+                supported = false;
+                return null;
+            }
+            BuiltInAggregate a = (BuiltInAggregate) e;
+            if (visited.put(a, a) != null)
+                return null;
+            int kind;
+            int onType = a.getOn() == null ? Value.UNKNOWN : a.getOn().getType();
+            if (a.isDistinct()) {
+                supported = false;
+                return null;
+            } else if (a instanceof ACountAll || a instanceof ACount) {
+                kind = COUNT;
+            } else if (!(a instanceof ADefault)) {
+                supported = false;
+                return null;
+            } else {
+                switch (a.getAType()) {
+                case Aggregate.SUM:
+                case Aggregate.AVG:
+                    if (onType == Value.BYTE || onType == Value.SHORT || onType == Value.INT)
+                        kind = LONG_SUM;
+                    else if (onType == Value.DOUBLE)
+                        kind = DOUBLE_SUM;
+                    else
+                        kind = VALUE;
+                    break;
+                case Aggregate.MIN:
+                case Aggregate.MAX:
+                    if (onType == Value.BYTE || onType == Value.SHORT || onType == Value.INT
+                            || onType == Value.LONG)
+                        kind = LONG_MIN_MAX;
+                    else
+                        kind = VALUE;
+                    break;
+                default:
+                    supported = false;
+                    return null;
+                }
+            }
+            add(a, a.getOn(), kind, a.getAType());
+            return null;
+        }
+
+        private void add(Expression e, Expression on, int kind, int aType) {
+            states.add(new AggregateState(select.getSession(), e, on, kind, aType));
+        }
+
+        @Override
+        public Void visitAGroupConcat(AGroupConcat e) {
+            supported = false;
+            return null;
+        }
+
+        @Override
+        public Void visitJavaAggregate(JavaAggregate e) {
+            supported = false;
+            return null;
+        }
+
+        // 子查询可能引用当前分组的字段，还是交给QGroup处理
+        @Override
+        public Void visitSubQuery(SubQuery e) {
+            supported = false;
+            return null;
+        }
+
+        @Override
+        public Void visitConditionExists(ConditionExists e) {
+            supported = false;
+            return null;
+        }
+
+        @Override
+        public Void visitConditionInSelect(ConditionInSelect e) {
+            supported = false;
+            return null;
+        }
+    }
+}
@@ -13,7 +13,6 @@ import org.lealone.sql.expression.Expression;
 import org.lealone.sql.expression.ValueExpression;
 import org.lealone.sql.expression.evaluator.AlwaysTrueEvaluator;
 import org.lealone.sql.expression.evaluator.ExpressionEvaluator;
-import org.lealone.sql.expression.evaluator.ExpressionInterpreter;
 import org.lealone.sql.operator.Operator;
 import org.lealone.sql.optimizer.TableIterator;
 
@@ -24,6 +23,7 @@ abstract class QOperator implements Operator {
     protected final ServerSession session;
     protected final ExpressionEvaluator conditionEvaluator;
     protected final TableIterator tableIterator;
+    private final ColumnStatsCondition statsCondition; // 列存储的表上用来跳过page，可能是null
 
     int columnCount;
     ResultTarget target;
@@ -49,17 +49,67 @@ abstract class QOperator implements Operator {
         } else {
             conditionEvaluator = createConditionEvaluator(c);
         }
+        // select for update要逐行锁记录，不会批量读取
+        statsCondition = select.isForUpdate ? null
+                : ColumnStatsCondition.create(select.getTopTableFilter(), c);
     }
 
     // 允许子类覆盖
     ExpressionEvaluator createConditionEvaluator(Expression c) {
-        return new ExpressionInterpreter(session, c);
+        return select.createConditionEvaluator(c);
     }
 
     boolean yieldIfNeeded(int rowNumber) {
         return yieldableSelect.yieldIfNeeded(rowNumber);
     }
 
+    boolean yieldIfNeeded(int rowNumber, int rows) {
+        return yieldableSelect.yieldIfNeeded(rowNumber, rows);
+    }
+
+    // 处理一行满足查询条件的记录，返回true表示可以退出循环了，由子类覆盖
+    boolean processRow() {
+        return false;
+    }
+
+    // 读取记录并用满足条件的记录调用processRow，返回true表示让出执行权了(或者锁记录失败)，
+    // 返回false表示循环结束了。
+    // 能批量读取时每次从tableIterator读一批记录，每批只检查一次是否需要让出执行权和是否超时，
+    // 让出执行权时当前批次已经处理完了，下次继续执行时直接读下一批。
+    // select for update要逐行锁记录，有join或者用二级索引时也只能逐行读取。
+    boolean scan() {
+        if (!select.isForUpdate) {
+            int n;
+            while ((n = tableIterator.nextBatch()) > 0) {
+                for (int i = 0; i < n; i++) {
+                    tableIterator.setBatchRow(i);
+                    if (conditionEvaluator.getBooleanValue() && processRow()) {
+                        loopCount += i + 1;
+                        return false;
+                    }
+                }
+                loopCount += n;
+                if (yieldIfNeeded(loopCount, n))
+                    return true;
+            }
+            if (n == 0)
+                return false;
+        }
+        while (next()) {
+            boolean yield = yieldIfNeeded(++loopCount);
+            if (conditionEvaluator.getBooleanValue()) {
+                if (select.isForUpdate && !tryLockRow()) {
+                    return true; // 锁记录失败
+                }
+                if (processRow())
+                    return false;
+            }
+            if (yield)
+                return true;
+        }
+        return false;
+    }
+
     boolean canBreakLoop() {
         // 不需要排序时，如果超过行数限制了可以退出循环
         if ((select.sort == null || select.sortUsingIndex) && limitRows > 0 && rowCount >= limitRows) {
@@ -98,9 +148,17 @@ abstract class QOperator implements Operator {
                 limitRows = Long.MAX_VALUE;
             }
         }
+        // 需要排序时，LocalResult只需保留排在前面的limitRows行，limitRows已经加上了offset
+        if (localResult != null && limitRows > 0 && limitRows <= Integer.MAX_VALUE) {
+            localResult.setTopN((int) limitRows);
+        }
         rowCount = 0;
         select.setCurrentRowNumber(0);
         sampleSize = select.getSampleSizeValue(session);
+        if (statsCondition != null) {
+            statsCondition.start(session);
+            tableIterator.setStatsFilter(statsCondition);
+        }
         tableIterator.start();
     }
 
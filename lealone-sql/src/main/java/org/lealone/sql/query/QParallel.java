@@ -0,0 +1,419 @@
+/*
+ * Copyright Lealone Database Group.
+ * Licensed under the Server Side Public License, v 1.
+ * Initial Developer: zhh
+ */
+package org.lealone.sql.query;
+
+import java.util.ArrayList;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.lealone.common.exceptions.DbException;
+import org.lealone.db.index.Cursor;
+import org.lealone.db.index.Index;
+import org.lealone.db.result.Row;
+import org.lealone.db.result.SearchRow;
+import org.lealone.db.session.ServerSession;
+import org.lealone.db.session.Session;
+import org.lealone.db.session.SessionStatus;
+import org.lealone.db.table.StandardTable;
+import org.lealone.db.table.Table;
+import org.lealone.db.value.Value;
+import org.lealone.sql.StatementBase;
+import org.lealone.sql.expression.Parameter;
+import org.lealone.sql.expression.visitor.DeterministicVisitor;
+import org.lealone.sql.expression.visitor.ExpressionVisitorBase;
+import org.lealone.sql.operator.Operator;
+import org.lealone.sql.optimizer.TableFilter;
+import org.lealone.storage.CursorParameters;
+import org.lealone.storage.page.PageOperation;
+import org.lealone.storage.page.PageOperationHandler;
+import org.lealone.storage.page.PageOperationHandlerFactory;
+
+// 单表查询超过OLAP_THRESHOLD之后，把主索引上剩下的扫描按行key拆成多个范围，
+// 交给存储引擎的多个PageOperationHandler(服务器模式下就是Scheduler)并行扫描，当前线程也会领取范围来扫描。
+//
+// 表达式和TableFilter都有当前行的状态，所以每个线程用的是重新解析出来的Select副本，只共用session和事务。
+// 普通查询从原来的QFlat当前读到的记录之后继续扫描，每个范围的结果按key的顺序加到result中，跟串行扫描的顺序一样；
+// 聚合查询在每个范围上用QGroupHash做部分聚合，再在当前线程中合并中间状态，
+// 原来的operator已经积累的聚合状态没法跟这些中间状态合并，所以聚合查询从第一条记录开始重新扫描。
+//
+// 还没合并的记录都在内存中，所以只能同时扫描有限个范围，每个范围缓存的记录数也有上限，
+// 加起来不超过MAX_MEMORY_ROWS。范围缓存满了就先暂停，等轮到它合并时再由当前线程接着扫描。
+// 其他线程每次只扫描一个范围，然后重新排队，让出执行权。
+class QParallel extends QOperator {
+
+    private static final int ROWS_PER_SCAN = 10000;
+    private static final int MAX_SCAN_COUNT = 256;
+
+    private final Select copy; // 当前线程用的Select副本
+    private final QGroupHash groupHash; // 合并各个范围的中间状态，普通查询是null
+    private final long startKey;
+
+    private PartialScan[] scans;
+    private final AtomicInteger nextScan = new AtomicInteger();
+    private volatile int mergeIndex; // 下一个要合并的范围
+    private int maxActiveScans; // 最多同时扫描几个还没合并的范围
+    private int maxScanRows; // 每个范围最多缓存多少条记录
+    private Scanner scanner;
+    // 因为同时扫描的范围太多而退出的其他线程的Scanner，合并完一个范围后重新提交
+    private final ConcurrentLinkedQueue<Scanner> idleScanners = new ConcurrentLinkedQueue<>();
+    private volatile boolean canceled;
+
+    private QParallel(Select select, Select copy, QGroupHash groupHash, long startKey) {
+        super(select);
+        this.copy = copy;
+        this.groupHash = groupHash;
+        this.startKey = startKey;
+    }
+
+    /**
+     * 查询可以拆分成多个范围并行扫描时才创建，否则返回null。
+     */
+    static QParallel create(Select select) {
+        TableFilter filter = select.getTopTableFilter();
+        if (select.isForUpdate || select.isQuickAggregateQuery || select.isDistinctQuery
+                || select.isGroupSortedQuery || select.sampleSizeExpr != null
+                || (select.limitExpr != null && select.sort == null) || filter.getJoin() != null
+                || filter.getNestedJoin() != null || filter.getFilterCondition() != null
+                || filter.getJoinCondition() != null)
+            return null;
+        Table table = filter.getTable();
+        if (!(table instanceof StandardTable)
+                || filter.getIndex() != table.getScanIndex(select.getSession()))
+            return null;
+        // 子查询、序列、ROWNUM这些表达式在多个线程中计算时结果会不一样
+        if (!select.accept(new ParallelVisitor()))
+            return null;
+
+        long startKey = 0;
+        if (select.isGroupQuery) {
+            // QAggregate不处理having，保持一样的结果
+            if (select.groupIndex == null && select.havingIndex >= 0)
+                return null;
+        } else {
+            Row current = filter.get();
+            if (current == null)
+                return null;
+            startKey = current.getKey() + 1;
+        }
+        Select copy = copySelect(select);
+        if (copy == null)
+            return null;
+        QGroupHash groupHash = null;
+        if (select.isGroupQuery) {
+            // 先在副本上检查，不支持时不能改动原来的operator正在使用的select.currentGroup
+            if (QGroupHash.create(copy) == null)
+                return null;
+            groupHash = QGroupHash.create(select);
+        }
+        return new QParallel(select, copy, groupHash, startKey);
+    }
+
+    // 重新解析一次，得到有独立的TableFilter和表达式的副本，用的索引不一样时返回null
+    private static Select copySelect(Select select) {
+        String sql = select.getSQL();
+        if (sql == null)
+            return null;
+        ServerSession session = select.getSession();
+        StatementBase s = (StatementBase) session.parseStatement(sql);
+        if (!(s instanceof Select))
+            return null;
+        ArrayList<Parameter> oldParams = select.getParameters();
+        ArrayList<Parameter> newParams = s.getParameters();
+        if (oldParams.size() != newParams.size())
+            return null;
+        for (int i = 0, size = newParams.size(); i < size; i++) {
+            Parameter old = oldParams.get(i);
+            if (old.isValueSet())
+                newParams.get(i).setValue(old.getValue(session));
+        }
+        Select copy = (Select) s.prepare();
+        // SQL一样，只要选中的索引一样执行计划就一样，plan sql中有扫描次数，不能直接比较
+        if (copy.getTopTableFilter().getIndex() != select.getTopTableFilter().getIndex()
+                || copy.expressions.size() != select.expressions.size())
+            return null;
+        copy.getTopTableFilter().startQuery(session);
+        return copy;
+    }
+
+    // 状态在copyStatus中从原来的operator复制过来
+    @Override
+    public void start() {
+    }
+
+    @Override
+    public void copyStatus(Operator old) {
+        QOperator q = (QOperator) old;
+        columnCount = q.columnCount;
+        target = q.target;
+        result = q.result;
+        localResult = q.localResult;
+        maxRows = q.maxRows;
+        limitRows = q.limitRows;
+        yieldableSelect = q.yieldableSelect;
+        loopCount = q.loopCount;
+        if (groupHash == null) {
+            rowCount = q.rowCount;
+        } else {
+            groupHash.columnCount = columnCount;
+            groupHash.result = result;
+            if (q instanceof QGroupHash)
+                ((QGroupHash) q).closeTempTable();
+        }
+    }
+
+    @Override
+    public void run() {
+        if (scans == null) {
+            startScans();
+        }
+        while (true) {
+            if (!mergeScans() || mergeIndex == scans.length) {
+                if (groupHash != null)
+                    groupHash.finish();
+                loopEnd = true;
+                return;
+            }
+            // 当前线程也参与扫描，没有剩下的范围时让出执行权，等其他线程扫描完再来合并
+            if (!scanner.scanNext()) {
+                session.setStatus(SessionStatus.STATEMENT_YIELDED);
+                return;
+            }
+        }
+    }
+
+    private void startScans() {
+        Index index = select.getTopTableFilter().getIndex();
+        SearchRow first = index.findFirstOrLast(session, true);
+        SearchRow last = index.findFirstOrLast(session, false);
+        long from = groupHash == null ? startKey : (first == null ? 0 : first.getKey());
+        long to = last == null ? -1 : last.getKey();
+        if (first == null || from > to) {
+            scans = new PartialScan[0];
+            return;
+        }
+        long rows = index.getRowCountApproximation();
+        if (first.getKey() < from) // 只估计剩下的行数
+            rows = (long) ((double) rows * (to - from + 1) / (to - first.getKey() + 1));
+        int rowsPerScan = session.getOlapBatchSize() > 0 ? session.getOlapBatchSize() : ROWS_PER_SCAN;
+        int scanCount = (int) Math.max(1, Math.min(MAX_SCAN_COUNT, rows / rowsPerScan));
+        int maxMemoryRows = session.getDatabase().getMaxMemoryRows();
+        maxActiveScans = Math.max(2, Math.min(scanCount, maxMemoryRows / rowsPerScan));
+        maxScanRows = Math.max(1, maxMemoryRows / maxActiveScans);
+        long step = (to - from) / scanCount + 1;
+        Table table = index.getTable();
+        int[] columnIndexes = copy.getTopTableFilter()
+                .createColumnIndexes(copy.getReferencedColumns());
+        scans = new PartialScan[scanCount];
+        for (int i = 0; i < scanCount; i++) {
+            long end = i == scanCount - 1 ? to : from + step - 1;
+            // 游标在当前线程中创建，其他线程只读取
+            Row r1 = table.getTemplateRow();
+            Row r2 = table.getTemplateRow();
+            r1.setKey(from);
+            r2.setKey(end);
+            scans[i] = new PartialScan(
+                    index.find(session, CursorParameters.create(r1, r2, columnIndexes)));
+            from = end + 1;
+        }
+        scanner = new Scanner(copy, null);
+
+        PageOperationHandlerFactory factory = ((StandardTable) table).getStorageEngine()
+                .getPageOperationHandlerFactory();
+        PageOperationHandler[] handlers = factory == null ? null : factory.getPageOperationHandlers();
+        if (handlers == null)
+            return;
+        for (int i = 0, count = 0; i < handlers.length && count < scanCount - 1; i++) {
+            if (handlers[i] == Thread.currentThread())
+                continue;
+            Select s = copySelect(select);
+            if (s == null)
+                break;
+            handlers[i].handlePageOperation(new Scanner(s, handlers[i]));
+            count++;
+        }
+    }
+
+    // 按范围的顺序合并已经扫描完的范围，返回false表示可以提前结束。
+    // 暂停的范围轮到它合并时，先合并已经缓存的记录，再由当前线程接着扫描
+    private boolean mergeScans() {
+        while (mergeIndex < scans.length) {
+            PartialScan scan = scans[mergeIndex];
+            int state = scan.state;
+            if (state != PartialScan.PAUSED && state != PartialScan.DONE)
+                return true;
+            if (scan.error != null) {
+                canceled = true;
+                throw DbException.convert(scan.error);
+            }
+            if (!mergeRows(scan.rows)) {
+                canceled = true;
+                return false;
+            }
+            if (state == PartialScan.PAUSED) {
+                scanner.scan(scan);
+                continue;
+            }
+            scans[mergeIndex] = null; // 合并后就不需要了
+            mergeIndex++;
+            Scanner s;
+            while ((s = idleScanners.poll()) != null)
+                s.handler.handlePageOperation(s);
+        }
+        return true;
+    }
+
+    private boolean mergeRows(ArrayList<Value[]> rows) {
+        try {
+            if (groupHash != null) {
+                groupHash.mergeStateRows(rows);
+                return true;
+            }
+            for (int i = 0, size = rows.size(); i < size; i++) {
+                result.addRow(rows.get(i));
+                rowCount++;
+                if (canBreakLoop())
+                    return false;
+            }
+            return true;
+        } finally {
+            rows.clear();
+        }
+    }
+
+    @Override
+    public void stop() {
+        canceled = true;
+        if (groupHash != null)
+            groupHash.closeTempTable();
+        super.stop();
+    }
+
+    // 一个key范围，由领取到它的线程扫描，暂停之后由当前线程接着扫描
+    private static class PartialScan {
+
+        static final int NEW = 0;
+        static final int RUNNING = 1;
+        static final int PAUSED = 2; // rows满了
+        static final int DONE = 3;
+
+        final Cursor cursor;
+        final ArrayList<Value[]> rows = new ArrayList<>();
+        Throwable error;
+        volatile int state = NEW;
+
+        PartialScan(Cursor cursor) {
+            this.cursor = cursor;
+        }
+    }
+
+    // 每个线程一个，用自己的Select副本逐个领取范围来扫描
+    private class Scanner implements PageOperation {
+
+        private final Select s;
+        private final PageOperationHandler handler; // 当前线程的Scanner是null
+        private final TableFilter filter;
+        private final QOperator op; // 只用它的conditionEvaluator、createRow或部分聚合
+
+        Scanner(Select s, PageOperationHandler handler) {
+            this.s = s;
+            this.handler = handler;
+            filter = s.getTopTableFilter();
+            op = groupHash == null ? new QFlat(s) : QGroupHash.create(s);
+            op.columnCount = s.expressions.size();
+        }
+
+        // 每次只扫描一个范围，然后重新排队，让处理器先执行其他任务
+        @Override
+        public PageOperationResult run(PageOperationHandler currentHandler, boolean waitingIfLocked) {
+            if (scanNext())
+                currentHandler.yieldPageOperation(this);
+            else if (!canceled && nextScan.get() < scans.length)
+                idleScanners.add(this);
+            return PageOperationResult.SUCCEEDED;
+        }
+
+        @Override
+        public Session getSession() {
+            return session;
+        }
+
+        // 领取下一个范围来扫描，同时扫描的范围已经够多了就返回false
+        boolean scanNext() {
+            while (!canceled) {
+                int i = nextScan.get();
+                if (i >= scans.length || i - mergeIndex >= maxActiveScans)
+                    return false;
+                if (nextScan.compareAndSet(i, i + 1)) {
+                    scan(scans[i]);
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        // 扫描到范围结束或者缓存的记录数达到maxScanRows为止
+        void scan(PartialScan scan) {
+            scan.state = PartialScan.RUNNING;
+            boolean done = true;
+            try {
+                Cursor cursor = scan.cursor;
+                int count = 0;
+                while (true) {
+                    if (scan.rows.size() >= maxScanRows) {
+                        done = false;
+                        break;
+                    }
+                    if (!cursor.next())
+                        break;
+                    if ((++count & 4095) == 0) {
+                        if (canceled)
+                            break;
+                        session.checkCanceled();
+                    }
+                    filter.set(cursor.get());
+                    if (op.conditionEvaluator.getBooleanValue()) {
+                        if (groupHash == null) {
+                            scan.rows.add(op.createRow());
+                        } else {
+                            QGroupHash gh = (QGroupHash) op;
+                            gh.updateGroup();
+                            // 分组太多时先导出中间状态，由当前线程合并时再转存到临时表
+                            if (gh.getGroupCount() >= maxScanRows)
+                                gh.exportGroups(scan.rows);
+                        }
+                    }
+                }
+                // 暂停之后可能由其他Scanner接着扫描，部分聚合的状态也要导出
+                if (groupHash != null)
+                    ((QGroupHash) op).exportGroups(scan.rows);
+            } catch (Throwable t) {
+                scan.error = t;
+                done = true;
+            } finally {
+                scan.state = done ? PartialScan.DONE : PartialScan.PAUSED;
+            }
+        }
+
+        @Override
+        public String toString() {
+            return "ParallelScan: " + s.getSQL();
+        }
+    }
+
+    // 在DeterministicVisitor的基础上再排除子查询
+    private static class ParallelVisitor extends DeterministicVisitor {
+
+        @Override
+        protected Boolean visitQuery(Query query) {
+            return false;
+        }
+
+        @Override
+        protected ExpressionVisitorBase<Boolean> copy() {
+            return new ParallelVisitor();
+        }
+    }
+}
@@ -5,19 +5,24 @@
  */
 package org.lealone.sql.query;
 
+import java.sql.Connection;
 import java.util.ArrayList;
 
 import org.lealone.db.Database;
 import org.lealone.db.result.LocalResult;
+import org.lealone.db.result.ResultCache;
 import org.lealone.db.session.ServerSession;
+import org.lealone.db.table.Table;
+import org.lealone.db.table.TableType;
 import org.lealone.db.value.Value;
 import org.lealone.sql.expression.Parameter;
 import org.lealone.sql.expression.visitor.ExpressionVisitorFactory;
+import org.lealone.sql.optimizer.TableFilter;
 
 class QueryResultCache {
 
     private final Select select;
-    private final ServerSession session;
+    private ServerSession session;
 
     private boolean noCache;
     private int lastLimit;
@@ -26,11 +31,27 @@ class QueryResultCache {
     private LocalResult lastResult;
     private boolean cacheableChecked;
 
+    private Table[] sharedTables;
+    private Object sharedKey; // 这次执行的结果要放到数据库级的结果集缓存中时才不为null
+    private long[] sharedModificationIds;
+
     QueryResultCache(Select select) {
         this.select = select;
         session = select.getSession();
     }
 
+    // 语句被执行计划缓存绑定到其他session时调用
+    void clear() {
+        session = select.getSession();
+        if (lastResult != null) {
+            lastResult.close();
+            lastResult = null;
+        }
+        lastParameters = null;
+        lastEvaluated = 0;
+        sharedKey = null;
+    }
+
     void disable() {
         noCache = true;
     }
@@ -42,10 +63,17 @@ class QueryResultCache {
     void setResult(LocalResult r) {
         if (isNotCachable())
             return;
-        if (!isDeterministic())
+        if (!isDeterministic()) {
             disable();
-        else
+        } else {
             lastResult = r;
+            if (sharedKey != null) {
+                ResultCache cache = session.getDatabase().getResultCache();
+                if (cache != null)
+                    cache.put(sharedKey, r, sharedTables, sharedModificationIds);
+                sharedKey = null;
+            }
+        }
     }
 
     LocalResult getResult(int limit) {
@@ -72,8 +100,67 @@ class QueryResultCache {
                 lastResult.close();
                 lastResult = null;
             }
+            return getSharedResult(limit, params);
+        }
+    }
+
+    // 当前session没有可用的结果时再到数据库级的结果集缓存中找，
+    // 没找到时记下key和执行查询之前各个表的修改id，查询结束后在setResult中放入缓存
+    private LocalResult getSharedResult(int limit, Value[] params) {
+        sharedKey = null;
+        ResultCache cache = session.getDatabase().getResultCache();
+        if (cache == null || !canShare())
             return null;
+        ArrayList<Object> key = new ArrayList<>();
+        key.add(select.getSQL());
+        key.add(limit);
+        for (Table t : sharedTables) {
+            key.add(t.getId());
         }
+        if (params != null) {
+            for (Value v : params) {
+                key.add(v);
+            }
+        }
+        LocalResult r = cache.get(key, session);
+        if (r != null) {
+            r.reset();
+            return r;
+        }
+        long[] ids = new long[sharedTables.length];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = sharedTables[i].getMaxDataModificationId();
+        }
+        sharedKey = key;
+        sharedModificationIds = ids;
+        return null;
+    }
+
+    // 只读到已提交数据，并且当前事务没有修改过数据时才能跟其他session共用结果集
+    private boolean canShare() {
+        if (sharedTables == null) {
+            sharedTables = getSharedTables();
+        }
+        if (sharedTables.length == 0 || session.hasModifiedTables())
+            return false;
+        int level = session.getTransactionIsolationLevel();
+        return level != Connection.TRANSACTION_READ_UNCOMMITTED
+                && (session.isAutoCommit() || level == Connection.TRANSACTION_READ_COMMITTED);
+    }
+
+    // 不能共用时返回空数组，语句被执行计划缓存绑定到其他session时也不变
+    // 只有普通表的修改id会随着数据变化，系统表和视图等的结果集不能共用
+    private Table[] getSharedTables() {
+        if (select.getSQL() == null || !select.isPlanCacheable() || !isDeterministic())
+            return new Table[0];
+        ArrayList<TableFilter> filters = select.getFilters();
+        Table[] tables = new Table[filters.size()];
+        for (int i = 0; i < tables.length; i++) {
+            tables[i] = filters.get(i).getTable();
+            if (tables[i].getTableType() != TableType.STANDARD_TABLE)
+                return new Table[0];
+        }
+        return tables;
     }
 
     private boolean isDeterministic() {
@@ -82,14 +169,19 @@ class QueryResultCache {
 
     private Value[] getParameterValues() {
         ArrayList<Parameter> list = select.getParameters();
-        if (list == null || list.isEmpty()) {
+        ArrayList<Parameter> literals = select.getLiteralParameters(); // 常量换成的参数也要比较
+        int size = list == null ? 0 : list.size();
+        int literalSize = literals == null ? 0 : literals.size();
+        if (size + literalSize == 0) {
             return null;
         }
-        int size = list.size();
-        Value[] params = new Value[size];
+        Value[] params = new Value[size + literalSize];
         for (int i = 0; i < size; i++) {
             params[i] = list.get(i).getValue();
         }
+        for (int i = 0; i < literalSize; i++) {
+            params[size + i] = literals.get(i).getValue();
+        }
         return params;
     }
 
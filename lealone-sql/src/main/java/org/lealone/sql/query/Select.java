@@ -8,6 +8,7 @@ package org.lealone.sql.query;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
 
 import org.lealone.common.exceptions.DbException;
 import org.lealone.common.util.StatementBuilder;
@@ -28,6 +29,7 @@ import org.lealone.db.result.Result;
 import org.lealone.db.result.ResultTarget;
 import org.lealone.db.result.SortOrder;
 import org.lealone.db.session.ServerSession;
+import org.lealone.db.session.Session;
 import org.lealone.db.table.Column;
 import org.lealone.db.table.Table;
 import org.lealone.db.value.Value;
@@ -41,6 +43,8 @@ import org.lealone.sql.expression.Parameter;
 import org.lealone.sql.expression.SelectOrderBy;
 import org.lealone.sql.expression.condition.Comparison;
 import org.lealone.sql.expression.condition.ConditionAndOr;
+import org.lealone.sql.expression.evaluator.ExpressionCompiler;
+import org.lealone.sql.expression.evaluator.ExpressionEvaluator;
 import org.lealone.sql.expression.visitor.ExpressionVisitor;
 import org.lealone.sql.expression.visitor.ExpressionVisitorFactory;
 import org.lealone.sql.optimizer.ColumnResolver;
@@ -84,8 +88,10 @@ public class Select extends Query {
     boolean isDistinctQuery;
     boolean sortUsingIndex;
     private double cost;
+    private ExpressionCompiler conditionCompiler;
 
     final QueryResultCache resultCache = new QueryResultCache(this);
+    private StreamingResult streamingResult; // 还没有读完的流式结果集
 
     public Select(ServerSession session) {
         super(session);
@@ -101,6 +107,33 @@ public class Select extends Query {
         return !isForUpdate;
     }
 
+    @Override
+    public boolean isPlanCacheable() {
+        if (!isCacheable())
+            return false;
+        for (TableFilter f : filters) {
+            if (!isPlanCacheable(f.getTable()) || !f.isPlanCacheable())
+                return false;
+            if (f.getJoinCondition() != null
+                    && !f.getJoinCondition().accept(ExpressionVisitorFactory.getPlanCacheableVisitor()))
+                return false;
+        }
+        return accept(ExpressionVisitorFactory.getPlanCacheableVisitor());
+    }
+
+    @Override
+    public void bind(Session session, String sql, List<Value> literals) {
+        boolean sessionChanged = session != this.session;
+        super.bind(session, sql, literals);
+        if (sessionChanged) {
+            // 其他session缓存的结果不能用
+            resultCache.clear();
+            for (TableFilter f : topFilters) {
+                f.startQuery(this.session);
+            }
+        }
+    }
+
     public void setExpressions(ArrayList<Expression> expressions) {
         this.expressions = expressions;
     }
@@ -983,11 +1016,41 @@ public class Select extends Query {
         return condition;
     }
 
+    // 同一个Select多次执行时共用一个ExpressionCompiler，执行次数达到阈值后把查询条件编译成java类
+    ExpressionEvaluator createConditionEvaluator(Expression c) {
+        if (conditionCompiler == null || conditionCompiler.getExpression() != c)
+            conditionCompiler = new ExpressionCompiler(c);
+        return conditionCompiler.createEvaluator(session);
+    }
+
     @Override
     public void disableCache() {
         resultCache.disable();
     }
 
+    StreamingResult getStreamingResult() {
+        return streamingResult;
+    }
+
+    void setStreamingResult(StreamingResult streamingResult) {
+        this.streamingResult = streamingResult;
+    }
+
+    void closeStreamingResult() {
+        StreamingResult r = streamingResult;
+        if (r != null) {
+            streamingResult = null;
+            r.close();
+        }
+    }
+
+    @Override
+    public void close() {
+        // 流式结果集读完或关闭后语句才能重用
+        if (streamingResult == null)
+            super.close();
+    }
+
     @Override
     public Result query(int maxRows, ResultTarget target) {
         YieldableSelect yieldable = new YieldableSelect(this, maxRows, false, null, target);
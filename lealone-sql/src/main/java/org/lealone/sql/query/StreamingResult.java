@@ -0,0 +1,103 @@
+/*
+ * Copyright Lealone Database Group.
+ * Licensed under the Server Side Public License, v 1.
+ * Initial Developer: zhh
+ */
+package org.lealone.sql.query;
+
+import java.util.ArrayDeque;
+
+import org.lealone.common.exceptions.DbException;
+import org.lealone.db.result.DelegatedResult;
+import org.lealone.db.result.LocalResult;
+import org.lealone.db.result.ResultTarget;
+import org.lealone.db.value.Value;
+
+// 流式结果集，只缓存一批记录，客户端取记录时才继续执行查询产生下一批记录，
+// 所以不管查询返回多少条记录，服务器端占用的内存都是固定的。
+// 列的元数据由一个不放记录的LocalResult提供，行数事先不知道，总是返回-1。
+class StreamingResult extends DelegatedResult implements ResultTarget {
+
+    private final YieldableSelect yieldableSelect;
+    private final int batchSize;
+    private final ArrayDeque<Value[]> rows;
+    private Value[] currentRow;
+    private int rowId = -1;
+    private boolean ended; // 查询已经执行完，rows中的记录就是最后一批了
+    private boolean closed;
+
+    StreamingResult(YieldableSelect yieldableSelect, LocalResult columns, int batchSize) {
+        this.yieldableSelect = yieldableSelect;
+        this.batchSize = batchSize;
+        rows = new ArrayDeque<>(batchSize + 1);
+        result = columns;
+    }
+
+    // 攒够一批之后查询就可以暂停了
+    boolean isFull() {
+        return rows.size() >= batchSize;
+    }
+
+    boolean isEnded() {
+        return ended;
+    }
+
+    void end() {
+        ended = true;
+    }
+
+    @Override
+    public boolean addRow(Value[] values) {
+        rows.add(values);
+        return true;
+    }
+
+    @Override
+    public boolean next() {
+        while (rows.isEmpty()) {
+            if (ended || closed) {
+                currentRow = null;
+                return false;
+            }
+            yieldableSelect.fetchStreamingRows();
+        }
+        currentRow = rows.poll();
+        rowId++;
+        return true;
+    }
+
+    @Override
+    public Value[] currentRow() {
+        return currentRow;
+    }
+
+    @Override
+    public int getRowId() {
+        return rowId;
+    }
+
+    @Override
+    public int getRowCount() {
+        return -1;
+    }
+
+    @Override
+    public void reset() {
+        throw DbException.getUnsupportedException("reset streaming result");
+    }
+
+    @Override
+    public boolean needToClose() {
+        return true;
+    }
+
+    @Override
+    public void close() {
+        if (closed)
+            return;
+        closed = true;
+        rows.clear();
+        currentRow = null;
+        yieldableSelect.stopStreaming();
+    }
+}
@@ -0,0 +1,158 @@
+/*
+ * Copyright Lealone Database Group.
+ * Licensed under the Server Side Public License, v 1.
+ * Initial Developer: zhh
+ */
+package org.lealone.sql.query;
+
+import org.lealone.db.Database;
+import org.lealone.db.session.ServerSession;
+import org.lealone.db.value.CompareMode;
+import org.lealone.db.value.Value;
+import org.lealone.db.value.ValueNull;
+import org.lealone.sql.expression.condition.Comparison;
+import org.lealone.storage.page.ColumnStats;
+import org.lealone.storage.page.ColumnVector;
+
+// 在列向量或列的统计信息上计算“列 比较运算符 常量或参数”以及IS [NOT] NULL
+class VectorFilter {
+
+    private final Database database;
+    private final int compareType;
+    private final int dataType;
+    private final Value right; // 已经转成dataType了，null表示比较结果总是null
+    // 统计信息中字符串的最小值和最大值是按String.compareTo比较的，使用其他排序规则时不能用
+    private final boolean binaryStringCompare;
+
+    VectorFilter(ServerSession session, Comparison c) {
+        database = session.getDatabase();
+        binaryStringCompare = database.getCompareMode().getClass() == CompareMode.class;
+        compareType = c.getCompareType();
+        if (compareType == Comparison.IS_NULL || compareType == Comparison.IS_NOT_NULL) {
+            dataType = Value.UNKNOWN;
+            right = null;
+        } else {
+            // 跟Comparison.getValue一样用两边的类型确定怎么比较
+            dataType = Value.getHigherOrder(c.getLeft().getType(), c.getRight().getType());
+            Value r = c.getRight().getValue(session);
+            right = r == ValueNull.INSTANCE ? null : r.convertTo(dataType);
+        }
+    }
+
+    // 根据page中这一列的统计信息判断是否可能有满足条件的记录
+    boolean mightMatch(ColumnStats s) {
+        if (s == null)
+            return true;
+        switch (compareType) {
+        case Comparison.IS_NULL:
+            return s.getNullCount() > 0;
+        case Comparison.IS_NOT_NULL:
+            return s.getNullCount() < s.getRowCount();
+        }
+        if (right == null || s.getType() == Value.NULL)
+            return false;
+        if (s.getType() != dataType || (dataType == Value.STRING && !binaryStringCompare))
+            return true;
+        int min = database.compare(s.getMin(), right);
+        int max = database.compare(s.getMax(), right);
+        switch (compareType) {
+        case Comparison.EQUAL:
+            return min <= 0 && max >= 0 && s.mightContain(right);
+        case Comparison.BIGGER_EQUAL:
+            return max >= 0;
+        case Comparison.BIGGER:
+            return max > 0;
+        case Comparison.SMALLER_EQUAL:
+            return min <= 0;
+        case Comparison.SMALLER:
+            return min < 0;
+        default: // NOT_EQUAL
+            return min != 0 || max != 0;
+        }
+    }
+
+    // 把不满足条件的记录从selection中去掉，返回剩下的记录数
+    int filter(ColumnVector v, int[] selection, int size) {
+        int n = 0;
+        switch (compareType) {
+        case Comparison.IS_NULL:
+            for (int i = 0; i < size; i++) {
+                if (v.isNull(selection[i]))
+                    selection[n++] = selection[i];
+            }
+            return n;
+        case Comparison.IS_NOT_NULL:
+            for (int i = 0; i < size; i++) {
+                if (!v.isNull(selection[i]))
+                    selection[n++] = selection[i];
+            }
+            return n;
+        }
+        if (right == null)
+            return 0;
+        int type = v.getType();
+        if (type == Value.INT && dataType == Value.INT) {
+            int r = right.getInt();
+            for (int i = 0; i < size; i++) {
+                int row = selection[i];
+                if (!v.isNull(row) && test(Integer.compare(v.getInt(row), r)))
+                    selection[n++] = row;
+            }
+        } else if (type == Value.LONG && dataType == Value.LONG) {
+            long r = right.getLong();
+            for (int i = 0; i < size; i++) {
+                int row = selection[i];
+                if (!v.isNull(row) && test(Long.compare(v.getLong(row), r)))
+                    selection[n++] = row;
+            }
+        } else if (type == Value.DOUBLE && dataType == Value.DOUBLE) {
+            double r = right.getDouble();
+            for (int i = 0; i < size; i++) {
+                int row = selection[i];
+                if (!v.isNull(row) && test(Double.compare(v.getDouble(row), r)))
+                    selection[n++] = row;
+            }
+        } else if (type == Value.STRING) {
+            // 每个不同的字符串只比较一次，0表示还没有比较过，1是true，2是false
+            byte[] results = new byte[v.getDictionarySize()];
+            for (int i = 0; i < size; i++) {
+                int row = selection[i];
+                if (v.isNull(row))
+                    continue;
+                int id = v.getDictionaryId(row);
+                if (results[id] == 0)
+                    results[id] = (byte) (compare(v.getDictionaryValue(id)) ? 1 : 2);
+                if (results[id] == 1)
+                    selection[n++] = row;
+            }
+        } else {
+            for (int i = 0; i < size; i++) {
+                int row = selection[i];
+                if (!v.isNull(row) && compare(v.getValue(row)))
+                    selection[n++] = row;
+            }
+        }
+        return n;
+    }
+
+    private boolean compare(Value l) {
+        return Comparison.compareNotNull(database, l.convertTo(dataType), right, compareType);
+    }
+
+    private boolean test(int result) {
+        switch (compareType) {
+        case Comparison.EQUAL:
+            return result == 0;
+        case Comparison.BIGGER_EQUAL:
+            return result >= 0;
+        case Comparison.BIGGER:
+            return result > 0;
+        case Comparison.SMALLER_EQUAL:
+            return result <= 0;
+        case Comparison.SMALLER:
+            return result < 0;
+        default: // NOT_EQUAL
+            return result != 0;
+        }
+    }
+}
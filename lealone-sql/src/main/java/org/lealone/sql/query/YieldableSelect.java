@@ -5,7 +5,10 @@
  */
 package org.lealone.sql.query;
 
+import org.lealone.common.exceptions.DbException;
 import org.lealone.db.PluginManager;
+import org.lealone.db.SysProperties;
+import org.lealone.db.api.ErrorCode;
 import org.lealone.db.async.AsyncHandler;
 import org.lealone.db.async.AsyncResult;
 import org.lealone.db.lock.DbObjectLock;
@@ -17,6 +20,8 @@ import org.lealone.db.value.Value;
 import org.lealone.db.value.ValueNull;
 import org.lealone.sql.operator.Operator;
 import org.lealone.sql.operator.OperatorFactory;
+import org.lealone.sql.optimizer.TableFilter;
+import org.lealone.transaction.Transaction;
 
 public class YieldableSelect extends YieldableQueryBase {
 
@@ -25,6 +30,10 @@ public class YieldableSelect extends YieldableQueryBase {
     private final int olapThreshold;
     private boolean olapDisabled;
     private Operator queryOperator;
+    private StreamingResult streamingResult;
+    private boolean streamingStopped;
+    private Transaction streamingTransaction; // 流式结果集只能在开始时的事务中继续读
+    private boolean buildingHashJoins;
 
     public YieldableSelect(Select select, int maxRows, boolean scrollable,
             AsyncHandler<AsyncResult<Result>> asyncHandler, ResultTarget target) {
@@ -35,10 +44,22 @@ public class YieldableSelect extends YieldableQueryBase {
     }
 
     @Override
-    public boolean yieldIfNeeded(int rowNumber) {
+    public boolean yieldIfNeeded(int rowNumber, int rows) {
+        // 构建hash join的哈希表时读的是内表的记录，不能按这个行数切换到OLAP算子
+        if (buildingHashJoins)
+            return super.yieldIfNeeded(rowNumber, rows);
+        if (streamingResult != null) {
+            // 语句执行完之后是在取记录时继续执行查询的，此时只检查是否取消了，不能让出执行权
+            if (isStopped()) {
+                statement.setCurrentRowNumber(rowNumber, rows, false);
+                return streamingResult.isFull();
+            }
+            if (streamingResult.isFull())
+                return true;
+        }
         if (!olapDisabled && olapThreshold > 0 && rowNumber > olapThreshold) {
             olapDisabled = true;
-            boolean yield = super.yieldIfNeeded(rowNumber);
+            boolean yield = super.yieldIfNeeded(rowNumber, rows);
             Operator olapOperator = createOlapOperator();
             if (olapOperator != null) {
                 queryOperator = olapOperator;
@@ -47,7 +68,7 @@ public class YieldableSelect extends YieldableQueryBase {
             }
             return yield;
         }
-        return super.yieldIfNeeded(rowNumber);
+        return super.yieldIfNeeded(rowNumber, rows);
     }
 
     // 一些像QDistinct这样的Operator无需从oltp转到olap，可以禁用olap
@@ -65,14 +86,26 @@ public class YieldableSelect extends YieldableQueryBase {
                 olapOperatorFactoryName);
         if (operatorFactory != null) {
             olapOperator = operatorFactory.createOperator(select, queryOperator.getLocalResult());
-            olapOperator.start();
-            olapOperator.copyStatus(queryOperator);
+            // 返回null表示这个查询不能用olap的方式执行
+            if (olapOperator != null) {
+                olapOperator.start();
+                olapOperator.copyStatus(queryOperator);
+            }
         }
         return olapOperator;
     }
 
     @Override
     protected boolean startInternal() {
+        // 同一个语句再次执行时，上一次还没有读完的流式结果集就不能再读了
+        select.closeStreamingResult();
+        // 流式查询在事务结束前都可能要读表，先加读锁，其他事务就不能删除或修改表了
+        if (isStreamingQuery(getLimitRows(maxRows))) {
+            for (TableFilter f : select.getFilters()) {
+                if (!f.getTable().tryReadLock(session))
+                    return true;
+            }
+        }
         // select.getTopTableFilter().lock(session, select.isForUpdate);
         select.fireBeforeSelectTriggers();
         queryOperator = createQueryOperator();
@@ -82,13 +115,37 @@ public class YieldableSelect extends YieldableQueryBase {
 
     @Override
     protected void stopInternal() {
+        if (streamingResult != null) {
+            // 流式结果集还没读完时，等读完或关闭时再停止
+            if (!streamingResult.isEnded() && pendingException == null) {
+                select.setStreamingResult(streamingResult);
+                return;
+            }
+            streamingStopped = true;
+        }
         // 执行startInternal抛异常时queryOperator可能为null
         if (queryOperator != null)
             queryOperator.stop();
+        // 释放hash join构建的哈希表和临时表
+        TableFilter topTableFilter = select.getTopTableFilter();
+        if (topTableFilter != null)
+            topTableFilter.closeHashJoin();
     }
 
     @Override
     protected void executeInternal() {
+        // 先构建hash join的哈希表，内表很大时构建过程中也要让出执行权，下次继续构建
+        TableFilter topTableFilter = select.getTopTableFilter();
+        if (topTableFilter != null) {
+            session.setStatus(SessionStatus.STATEMENT_RUNNING);
+            buildingHashJoins = true;
+            try {
+                if (!topTableFilter.buildHashJoins(this))
+                    return;
+            } finally {
+                buildingHashJoins = false;
+            }
+        }
         while (true) {
             session.setStatus(SessionStatus.STATEMENT_RUNNING);
             try {
@@ -100,6 +157,15 @@ public class YieldableSelect extends YieldableQueryBase {
                     throw e;
                 }
             }
+            if (streamingResult != null
+                    && (queryOperator.isStopped() || streamingResult.isFull())) {
+                // 第一批记录准备好就可以给客户端发送结果了，剩下的记录等客户端来取时再继续查询
+                if (queryOperator.isStopped())
+                    streamingResult.end();
+                setResult(streamingResult, ((QOperator) queryOperator).rowCount);
+                session.setStatus(SessionStatus.STATEMENT_COMPLETED);
+                break;
+            }
             if (queryOperator.isStopped()) {
                 // 查询结果已经增加到target了
                 if (target != null) {
@@ -119,6 +185,42 @@ public class YieldableSelect extends YieldableQueryBase {
         }
     }
 
+    // 客户端取记录时在当前线程中继续执行查询，直到攒够一批记录或者查询结束
+    void fetchStreamingRows() {
+        // 事务已经提交或回滚了，表上的读锁也释放了，不能再读
+        if (streamingTransaction.isClosed()) {
+            stopStreaming();
+            throw DbException.get(ErrorCode.OBJECT_CLOSED);
+        }
+        try {
+            queryOperator.run();
+        } catch (RuntimeException e) {
+            stopStreaming();
+            throw e;
+        }
+        if (queryOperator.isStopped()) {
+            streamingResult.end();
+            stopStreaming();
+        }
+    }
+
+    void stopStreaming() {
+        if (streamingStopped)
+            return;
+        streamingStopped = true;
+        streamingResult.end();
+        // 没有读完的结果集是在stopInternal中跳过的，这里补上
+        queryOperator.stop();
+        TableFilter topTableFilter = select.getTopTableFilter();
+        if (topTableFilter != null)
+            topTableFilter.closeHashJoin();
+        // 同一个语句再次执行时已经在startInternal中解除了关联，此时不能再把语句标记成可重用
+        if (select.getStreamingResult() == streamingResult) {
+            select.setStreamingResult(null);
+            select.close();
+        }
+    }
+
     private QOperator createQueryOperator() {
         LocalResult result;
         ResultTarget to;
@@ -129,6 +231,16 @@ public class YieldableSelect extends YieldableQueryBase {
             result = cachedResult;
             to = cachedResult;
             queryOperator = new QCache(select, cachedResult);
+        } else if (isStreamingQuery(limitRows)) {
+            int fetchSize = select.getFetchSize();
+            if (fetchSize <= 0)
+                fetchSize = SysProperties.SERVER_RESULT_SET_FETCH_SIZE;
+            streamingResult = new StreamingResult(this, createLocalResult(null), fetchSize);
+            streamingTransaction = session.getTransaction();
+            result = null;
+            to = streamingResult;
+            queryOperator = new QFlat(select);
+            disableOlap(); // 并行扫描要把每个范围的结果都放到内存中
         } else {
             result = createLocalResultIfNeeded(limitRows);
             to = result != null ? result : target;
@@ -140,9 +252,13 @@ public class YieldableSelect extends YieldableQueryBase {
                         queryOperator = new QGroupSorted(select);
                     } else {
                         if (select.groupIndex == null) { // 忽视select.havingIndex
-                            queryOperator = new QAggregate(select);
+                            queryOperator = QAggregateVector.create(select);
+                            if (queryOperator == null)
+                                queryOperator = new QAggregate(select);
                         } else {
-                            queryOperator = new QGroup(select);
+                            queryOperator = QGroupHash.create(select);
+                            if (queryOperator == null)
+                                queryOperator = new QGroup(select);
                         }
                     }
                 } else if (select.isDistinctQuery) {
@@ -163,6 +279,18 @@ public class YieldableSelect extends YieldableQueryBase {
         return queryOperator;
     }
 
+    // 只有不需要在服务器端缓存全部记录的普通查询才能用流式结果集，
+    // 客户端要能按顺序一批批地取记录，所以不支持可滚动的结果集。
+    // 自动提交模式下语句执行完事务就提交了，后面的记录就不是在同一个事务中读的，
+    // 所以只在手动提交的事务中使用流式结果集，事务结束时结果集也不能再读了
+    private boolean isStreamingQuery(int limitRows) {
+        return session.isStreamingResult() && !session.isAutoCommit() && asyncHandler != null
+                && target == null && !scrollable && limitRows < 0 && select.offsetExpr == null
+                && !select.isForUpdate
+                && !select.isGroupQuery && !select.distinct && !select.isDistinctQuery
+                && (select.sort == null || select.sortUsingIndex);
+    }
+
     private int getLimitRows(int maxRows) {
         // 按JDBC规范的要求，当调用java.sql.Statement.setMaxRows时，
         // 如果maxRows是0，表示不限制行数，相当于没有调用过setMaxRows一样，
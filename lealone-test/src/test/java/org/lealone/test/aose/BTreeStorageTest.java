@@ -5,7 +5,16 @@
  */
 package org.lealone.test.aose;
 
+import java.io.File;
+import java.util.ArrayList;
+
 import org.junit.Test;
+import org.lealone.common.compress.Compressor;
+import org.lealone.storage.aose.AOStorageBuilder;
+import org.lealone.storage.aose.btree.BTreeStorage;
+import org.lealone.storage.aose.btree.chunk.Chunk;
+import org.lealone.storage.aose.btree.chunk.ChunkManager;
+import org.lealone.storage.fs.FileUtils;
 
 public class BTreeStorageTest extends AoseTestBase {
     @Test
@@ -54,4 +63,145 @@ public class BTreeStorageTest extends AoseTestBase {
         openMap();
         assertNull(map.get(10));
     }
+
+    @Test
+    public void testMmapRead() {
+        AOStorageBuilder builder = new AOStorageBuilder();
+        builder.pageSize(pageSize).mmapRead();
+        // 同一个目录的AOStorage会被缓存，不使用单独的目录时mmapRead不会生效
+        storage = AOStorageTest.openStorage(builder, joinDirs("aose-mmap"));
+        String mapName = "testMmapRead";
+        map = storage.openBTreeMap(mapName);
+        map.clear();
+        // 不使用追加模式，每次保存都生成新的chunk
+        int count = 500;
+        for (int i = 0; i < 5; i++) {
+            for (int j = 1; j <= count / 5; j++) {
+                int key = i * count / 5 + j;
+                map.put(key, "value-" + key);
+            }
+            map.getBTreeStorage().executeSave(false);
+        }
+        map.close();
+
+        // 重新打开后除了最后一个chunk，其他chunk的page都是通过映射的内存读取的
+        map = storage.openBTreeMap(mapName);
+        BTreeStorage btreeStorage = map.getBTreeStorage();
+        ChunkManager chunkManager = btreeStorage.getChunkManager();
+        Chunk lastChunk = chunkManager.getLastChunk();
+        int sealedChunkCount = 0;
+        for (int id : new ArrayList<>(chunkManager.getAllChunkIds())) {
+            Chunk c = chunkManager.getChunk(id);
+            if (c == lastChunk)
+                continue;
+            sealedChunkCount++;
+            assertFalse(c.isMapped());
+            // 映射整个文件只算一次读操作，之后读page不再调用readFully
+            readPages(btreeStorage, c);
+            assertTrue(c.isMapped());
+
+            // 取消映射后再读会重新映射
+            c.unmap();
+            assertFalse(c.isMapped());
+            readPages(btreeStorage, c);
+            assertTrue(c.isMapped());
+        }
+        assertTrue(sealedChunkCount > 0);
+        for (int i = 1; i <= count; i++) {
+            assertEquals("value-" + i, map.get(i));
+        }
+
+        // 覆盖前面chunk中的大部分记录，由后台线程删除或重写这些chunk，被删除的chunk要取消映射
+        ArrayList<Chunk> oldChunks = new ArrayList<>();
+        for (int id : chunkManager.getAllChunkIds())
+            oldChunks.add(chunkManager.getChunk(id));
+        for (int i = 1; i <= count; i++) {
+            if (i % 10 != 0)
+                map.put(i, "new-value-" + i);
+        }
+        map.save();
+        for (int i = 0; i < 50 && countRemovedChunks(chunkManager, oldChunks) == 0; i++) {
+            try {
+                Thread.sleep(100);
+            } catch (InterruptedException e) {
+            }
+        }
+        assertTrue(countRemovedChunks(chunkManager, oldChunks) > 0);
+        for (Chunk c : oldChunks) {
+            if (isRemoved(chunkManager, c))
+                assertFalse(c.isMapped());
+        }
+        map.close();
+
+        // compaction之后重新打开，剩下的chunk仍然通过映射的内存读取
+        map = storage.openBTreeMap(mapName);
+        for (int i = 1; i <= count; i++) {
+            assertEquals(i % 10 != 0 ? "new-value-" + i : "value-" + i, map.get(i));
+        }
+        map.remove();
+    }
+
+    private static void readPages(BTreeStorage btreeStorage, Chunk c) {
+        long readCount = c.fileStorage.getReadCount();
+        for (long pos : c.pagePositionToLengthMap.keySet())
+            assertNotNull(btreeStorage.readPage(pos).page);
+        assertTrue(c.pagePositionToLengthMap.size() > 1);
+        assertEquals(readCount + 1, c.fileStorage.getReadCount());
+    }
+
+    private static int countRemovedChunks(ChunkManager chunkManager, ArrayList<Chunk> chunks) {
+        int removed = 0;
+        for (Chunk c : chunks) {
+            if (isRemoved(chunkManager, c))
+                removed++;
+        }
+        return removed;
+    }
+
+    // chunk id可能被复用了
+    private static boolean isRemoved(ChunkManager chunkManager, Chunk c) {
+        return !chunkManager.getAllChunkIds().contains(c.id) || chunkManager.getChunk(c.id) != c;
+    }
+
+    @Test
+    public void testCompressLZ4() {
+        AOStorageBuilder builder = new AOStorageBuilder();
+        // AOStorageTest.openStorage总是使用Deflate，并且同一个目录的AOStorage会被缓存，所以使用单独的目录
+        builder.storagePath(joinDirs("aose-lz4")).pageSize(pageSize).compressLZ4();
+        storage = builder.openStorage();
+        testCompress("testCompressLZ4", 2000, Compressor.LZ4);
+    }
+
+    @Test
+    public void testCompressDictionary() {
+        AOStorageBuilder builder = new AOStorageBuilder();
+        builder.storagePath(joinDirs("aose-dictionary")).pageSize(pageSize).compressHigh()
+                .compressDictionary();
+        storage = builder.openStorage();
+        // 写入足够多的page，字典训练好之后，后面的page都使用字典压缩
+        testCompress("testCompressDictionary", 20000, Compressor.DEFLATE);
+    }
+
+    private void testCompress(String mapName, int count, int compressionLevel) {
+        map = storage.openBTreeMap(mapName);
+        assertEquals(compressionLevel, map.getBTreeStorage().getCompressionLevel());
+        map.clear();
+        for (int i = 1; i <= count; i++) {
+            map.put(i, "value-" + i);
+            if (i % (count / 10) == 0)
+                map.save();
+        }
+        map.close();
+
+        map = storage.openBTreeMap(mapName);
+        if (compressionLevel == Compressor.DEFLATE) {
+            String dictionary = storage.getStoragePath() + File.separator + mapName + File.separator
+                    + "compress.dict";
+            assertTrue(FileUtils.exists(dictionary));
+        }
+        for (int i = 1; i <= count; i++) {
+            assertEquals("value-" + i, map.get(i));
+        }
+        map.remove();
+    }
 }
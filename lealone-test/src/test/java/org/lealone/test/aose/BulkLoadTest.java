@@ -0,0 +1,87 @@
+/*
+ * Copyright Lealone Database Group.
+ * Licensed under the Server Side Public License, v 1.
+ * Initial Developer: zhh
+ */
+package org.lealone.test.aose;
+
+import java.util.AbstractMap;
+import java.util.Iterator;
+import java.util.Map;
+
+import org.junit.Test;
+
+public class BulkLoadTest extends AoseTestBase {
+    @Test
+    public void run() {
+        init(true);
+        testBulkLoad();
+        testNotEmpty();
+        testWriteDuringBulkLoad();
+    }
+
+    private static Iterator<Map.Entry<Integer, String>> entries(int from, int to, Runnable r) {
+        return new Iterator<Map.Entry<Integer, String>>() {
+            int i = from;
+
+            @Override
+            public boolean hasNext() {
+                return i < to;
+            }
+
+            @Override
+            public Map.Entry<Integer, String> next() {
+                if (r != null && i == from)
+                    r.run();
+                int k = i++;
+                return new AbstractMap.SimpleImmutableEntry<>(k, "value" + k);
+            }
+        };
+    }
+
+    void testBulkLoad() {
+        map.clear();
+        int count = 10000; // pageSize很小，会有多层node page
+        assertTrue(map.bulkLoad(entries(0, count, null)));
+        assertEquals(count, map.size());
+        assertEquals(Integer.valueOf(0), map.firstKey());
+        assertEquals(Integer.valueOf(count - 1), map.lastKey());
+        for (int i = 0; i < count; i++)
+            assertEquals("value" + i, map.get(i));
+        assertEquals(map.cursor(), count);
+
+        // 能正常写入和重新打开，事务提交前会自下而上标记脏页，这里手工标记，
+        // 如果root page没有换成map的rootRef，就标记不到root page，新记录不会保存
+        map.put(count, "value" + count);
+        map.markDirty(count);
+        map.save();
+        map.close();
+        openMap();
+        assertEquals(count + 1, map.size());
+        assertEquals("value" + (count / 2), map.get(count / 2));
+        assertEquals("value" + count, map.get(count));
+    }
+
+    void testNotEmpty() {
+        map.clear();
+        map.put(-1, "a");
+        assertFalse(map.bulkLoad(entries(0, 100, null)));
+        assertEquals(1, map.size());
+    }
+
+    void testWriteDuringBulkLoad() {
+        map.clear();
+        // 装载期间有写操作就放弃，由调用者一条条put
+        Thread t = new Thread(() -> map.put(-1, "a"));
+        assertFalse(map.bulkLoad(entries(0, 1000, () -> {
+            t.start();
+            try {
+                t.join();
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+        })));
+        assertEquals(1, map.size());
+        assertEquals("a", map.get(-1));
+    }
+}
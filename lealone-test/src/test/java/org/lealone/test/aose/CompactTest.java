@@ -6,6 +6,7 @@
 package org.lealone.test.aose;
 
 import org.junit.Test;
+import org.lealone.storage.aose.btree.chunk.ChunkManager;
 
 public class CompactTest extends AoseTestBase {
     @Test
@@ -47,4 +48,37 @@ public class CompactTest extends AoseTestBase {
 
         assertEquals(200, map.size());
     }
+
+    @Test
+    public void testBackgroundCompaction() {
+        init("testBackgroundCompaction", true);
+        // 每次保存都生成新的chunk
+        for (int i = 0; i < 10; i++) {
+            for (int j = 1; j <= 100; j++)
+                map.put(i * 100 + j, "value" + j);
+            map.getBTreeStorage().executeSave(false);
+        }
+        ChunkManager chunkManager = map.getBTreeStorage().getChunkManager();
+        int chunkCount = chunkManager.getAllChunkIds().size();
+        assertTrue(chunkCount >= 10);
+
+        // 覆盖前面9个chunk中的大部分记录，由后台线程删除或重写这些chunk
+        for (int i = 1; i <= 900; i++) {
+            if (i % 10 != 0)
+                map.put(i, "new-value" + i);
+        }
+        map.save();
+        for (int i = 0; i < 50 && chunkManager.getAllChunkIds().size() >= chunkCount; i++) {
+            try {
+                Thread.sleep(100);
+            } catch (InterruptedException e) {
+            }
+        }
+        assertTrue(chunkManager.getAllChunkIds().size() < chunkCount);
+        assertEquals(1000, map.size());
+        for (int i = 1; i <= 900; i++)
+            assertEquals(i % 10 != 0 ? "new-value" + i : "value" + (i % 100 == 0 ? 100 : i % 100),
+                    map.get(i));
+        map.remove();
+    }
 }
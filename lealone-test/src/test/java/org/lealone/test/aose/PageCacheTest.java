@@ -0,0 +1,71 @@
+/*
+ * Copyright Lealone Database Group.
+ * Licensed under the Server Side Public License, v 1.
+ * Initial Developer: zhh
+ */
+package org.lealone.test.aose;
+
+import java.nio.ByteBuffer;
+
+import org.junit.Test;
+import org.lealone.storage.aose.btree.page.PageCache;
+import org.lealone.storage.aose.btree.page.PageUtils;
+
+public class PageCacheTest extends AoseTestBase {
+    @Test
+    public void run() {
+        testScanResistance();
+        testRemoveChunk();
+    }
+
+    private static long pos(int chunkId, int offset) {
+        return PageUtils.getPagePos(chunkId, offset, PageUtils.PAGE_TYPE_LEAF);
+    }
+
+    private void testScanResistance() {
+        int pageLength = 1024;
+        PageCache cache = new PageCache(16 * 64 * pageLength); // 每个segment最多64个page
+        PageCache.Stats hot = new PageCache.Stats();
+        PageCache.Stats scan = new PageCache.Stats();
+
+        // 热点page被淘汰后很快又被读取，会进入Am队列
+        int hotCount = 100;
+        int scanPos = 0;
+        for (int round = 0; round < 20; round++) {
+            for (int i = 1; i <= hotCount; i++) {
+                if (cache.get(hot, pos(1, i)) == null)
+                    cache.put(hot, pos(1, i), ByteBuffer.allocate(pageLength));
+            }
+            for (int i = 1; i <= hotCount * 2; i++)
+                cache.put(scan, pos(1, ++scanPos), ByteBuffer.allocate(pageLength));
+        }
+        // 全表扫描不能把热点page挤出去
+        for (int i = 1; i <= hotCount * 100; i++)
+            cache.put(scan, pos(2, i), ByteBuffer.allocate(pageLength));
+        int hits = 0;
+        for (int i = 1; i <= hotCount; i++) {
+            if (cache.get(hot, pos(1, i)) != null)
+                hits++;
+        }
+        assertTrue(hits > hotCount / 2);
+        assertTrue(cache.getUsedMemory() <= cache.getMaxMemory());
+        assertEquals(cache.getUsedMemory(), hot.getUsedMemory() + scan.getUsedMemory());
+        assertTrue(scan.getEvictions() > 0);
+    }
+
+    private void testRemoveChunk() {
+        PageCache cache = new PageCache(1024 * 1024);
+        PageCache.Stats stats = new PageCache.Stats();
+        for (int i = 1; i <= 10; i++) {
+            cache.put(stats, pos(1, i), ByteBuffer.allocate(100));
+            cache.put(stats, pos(2, i), ByteBuffer.allocate(100));
+        }
+        assertEquals(2000, stats.getUsedMemory());
+        cache.removeChunk(stats, 1);
+        assertNull(cache.get(stats, pos(1, 1)));
+        assertNotNull(cache.get(stats, pos(2, 1)));
+        assertEquals(1000, stats.getUsedMemory());
+        cache.removeMap(stats);
+        assertEquals(0, cache.getUsedMemory());
+    }
+}
@@ -27,6 +27,7 @@ public class PageStorageModeSqlTest extends SqlTestBase {
     public void run() throws Exception {
         testRowStorage();
         testColumnStorage();
+        testAggregate();
     }
 
     private void testRowStorage() {
@@ -52,6 +53,73 @@ public class PageStorageModeSqlTest extends SqlTestBase {
         assertEquals(500, count);
     }
 
+    // 列存储的表上的聚合查询在page没有修改过时会直接使用列向量，结果要跟行存储的表一样
+    private void testAggregate() throws Exception {
+        executeUpdate("SET OPTIMIZE_REUSE_RESULTS 0");
+        String[] tableNames = { "testAggregateRow", "testAggregateColumn" };
+        PageStorageMode[] modes = { PageStorageMode.ROW_STORAGE, PageStorageMode.COLUMN_STORAGE };
+        for (int t = 0; t < 2; t++) {
+            executeUpdate("drop table IF EXISTS " + tableNames[t]);
+            executeUpdate("create table IF NOT EXISTS " + tableNames[t]
+                    + "(pk int primary key, i int, l bigint, d double, s varchar) Engine "
+                    + AOStorageEngine.NAME + " PARAMETERS(page_storage_mode='" + modes[t].name()
+                    + "', page_size='4k')");
+            for (int row = 1; row <= rowCount; row++) {
+                String i = row % 10 == 0 ? "null" : Integer.toString(row % 97 - 40);
+                String l = row % 7 == 0 ? "null" : Long.toString(row * 100000000L);
+                String d = row % 11 == 0 ? "null" : Double.toString(row / 8.0);
+                String s = row % 13 == 0 ? "null" : "'s" + (row % 50) + "'";
+                executeUpdate("insert into " + tableNames[t] + " values(" + row + ", " + i + ", " + l
+                        + ", " + d + ", " + s + ")");
+            }
+            executeUpdate("checkpoint");
+        }
+        String[] queries = { "select count(*) from %s",
+                "select count(*), count(i), sum(i), min(i), max(i), avg(i) from %s",
+                "select count(l), sum(l), min(l), max(l), avg(l) from %s where i > 10",
+                "select count(d), sum(d), min(d), max(d), avg(d) from %s where l <= 50000000000",
+                "select count(s), min(s), max(s) from %s where s >= 's25' and d < 100.5",
+                "select count(*), sum(i) from %s where i is null or pk > 900",
+                "select count(*), max(pk) from %s where s is null and pk between 100 and 800",
+                "select count(*), sum(i) from %s where s = 's7' and i <> 3",
+                "select sum(i), min(s) from %s where pk > 2000" };
+        // 普通的扫描只用统计信息跳过page，其他记录逐行判断
+        String[] scans = { "select pk, i, s from %s where pk between 300 and 420 order by pk",
+                "select pk, l from %s where i > 50 and s like 's1%%' order by pk",
+                "select pk from %s where i is null or pk > 990 order by pk",
+                "select i, count(*) from %s where d >= 100 group by i order by i" };
+        assertSameResults(tableNames, queries);
+        assertSameResults(tableNames, scans);
+
+        // 修改过的page和列存储page中的值不一样，要逐行处理
+        for (String tableName : tableNames) {
+            executeUpdate("update " + tableName + " set i = i + 1000, s = 'updated' where pk % 3 = 0");
+            executeUpdate("delete from " + tableName + " where pk > 950");
+        }
+        assertSameResults(tableNames, queries);
+        assertSameResults(tableNames, scans);
+    }
+
+    private void assertSameResults(String[] tableNames, String[] queries) throws Exception {
+        for (String query : queries) {
+            String[] results = new String[2];
+            for (int t = 0; t < 2; t++) {
+                executeQuery(String.format(query, tableNames[t]));
+                StringBuilder buff = new StringBuilder();
+                int columnCount = rs.getMetaData().getColumnCount();
+                while (rs.next()) {
+                    for (int col = 1; col <= columnCount; col++) {
+                        buff.append(rs.getString(col)).append(',');
+                    }
+                    buff.append('\n');
+                }
+                closeResultSet();
+                results[t] = buff.toString();
+            }
+            assertEquals(query, results[0], results[1]);
+        }
+    }
+
     private void createTestTable(String tableName, String pageStorageMode) {
         executeUpdate("drop table IF EXISTS " + tableName);
         StringBuilder sql = new StringBuilder("create table IF NOT EXISTS ").append(tableName)
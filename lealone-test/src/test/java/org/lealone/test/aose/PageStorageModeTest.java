@@ -10,7 +10,9 @@ import org.lealone.db.index.standard.ValueDataType;
 import org.lealone.db.index.standard.VersionedValue;
 import org.lealone.db.index.standard.VersionedValueType;
 import org.lealone.db.value.Value;
+import org.lealone.db.value.ValueInt;
 import org.lealone.db.value.ValueLong;
+import org.lealone.db.value.ValueNull;
 import org.lealone.db.value.ValueString;
 import org.lealone.storage.CursorParameters;
 import org.lealone.storage.StorageMap;
@@ -18,6 +20,9 @@ import org.lealone.storage.StorageMapCursor;
 import org.lealone.storage.aose.AOStorage;
 import org.lealone.storage.aose.btree.BTreeMap;
 import org.lealone.storage.aose.btree.page.PageStorageMode;
+import org.lealone.storage.page.ColumnBatch;
+import org.lealone.storage.page.ColumnStats;
+import org.lealone.storage.page.ColumnVector;
 import org.lealone.transaction.aote.TransactionalValue;
 import org.lealone.transaction.aote.TransactionalValueType;
 
@@ -36,6 +41,9 @@ public class PageStorageModeTest extends AoseTestBase {
 
         testRowStorage(keyType, tvType);
         testColumnStorage(keyType, tvType);
+        testColumnBatch(keyType, tvType);
+        testColumnEncoding(keyType, tvType);
+        testColumnStats(keyType, tvType);
     }
 
     private void testRowStorage(ValueDataType keyType, TransactionalValueType tvType) {
@@ -46,6 +54,161 @@ public class PageStorageModeTest extends AoseTestBase {
         testStorage(keyType, tvType, PageStorageMode.COLUMN_STORAGE, "testColumnStorage");
     }
 
+    // 从硬盘读出来的列存储page可以直接解码成列向量
+    private void testColumnBatch(ValueDataType keyType, TransactionalValueType tvType) {
+        AOStorage storage = AOStorageTest.openStorage(pageSize, cacheSize);
+        BTreeMap<ValueLong, TransactionalValue> map = storage.openBTreeMap("testColumnStorage", keyType,
+                tvType, null);
+        map.setPageStorageMode(PageStorageMode.COLUMN_STORAGE);
+        putData(map);
+
+        int columnIndex = 2;
+        int rows = 0;
+        int batchRows = 0;
+        ValueLong from = ValueLong.get(2000);
+        StorageMapCursor<ValueLong, TransactionalValue> cursor = map
+                .cursor(CursorParameters.create(from, columnIndex));
+        while (true) {
+            ColumnBatch batch = cursor.nextBatch(tv -> true);
+            if (batch != null) {
+                ColumnVector vector = batch.getVector(columnIndex);
+                assertEquals(Value.STRING, vector.getType());
+                for (int i = batch.getStart(); i < batch.getEnd(); i++) {
+                    long key = ((ValueLong) batch.getPage().getKey(i)).getLong();
+                    assertEquals("value-row" + key + "-col3", vector.getValue(i).getString());
+                }
+                rows += batch.getRowCount();
+                batchRows += batch.getRowCount();
+            } else if (cursor.next()) {
+                rows++;
+            } else {
+                break;
+            }
+        }
+        assertEquals(rowCount - 2000 + 1, rows);
+        assertTrue(batchRows > 0);
+
+        // 修改过的page不能再使用列page
+        map.put(ValueLong.get(rowCount), map.get(ValueLong.get(1)));
+        cursor = map.cursor(CursorParameters.create(ValueLong.get(rowCount), columnIndex));
+        assertNull(cursor.nextBatch(tv -> true));
+        map.close();
+    }
+
+    // 低基数的字符串、有连续相同值的INT、有序的LONG会按列编码，从硬盘读出来后还是原来的值
+    private void testColumnEncoding(ValueDataType keyType, TransactionalValueType tvType) {
+        AOStorage storage = AOStorageTest.openStorage(pageSize, cacheSize);
+        BTreeMap<ValueLong, TransactionalValue> map = storage.openBTreeMap("testColumnEncoding",
+                keyType, tvType, null);
+        map.setPageStorageMode(PageStorageMode.COLUMN_STORAGE);
+        if (map.isEmpty()) {
+            for (int row = 1; row <= rowCount; row++) {
+                Value[] columns = new Value[columnCount];
+                for (int col = 0; col < columnCount; col++) {
+                    columns[col] = getEncodingValue(row, col);
+                }
+                VersionedValue vv = new VersionedValue(row, columns);
+                map.put(ValueLong.get(row), TransactionalValue.createCommitted(vv));
+            }
+            map.save();
+        }
+        map.close();
+
+        map = storage.openBTreeMap("testColumnEncoding", keyType, tvType, null);
+        for (int col = 0; col < 5; col++) {
+            for (int row = 1; row <= rowCount; row += 97) {
+                TransactionalValue tv = map.get(ValueLong.get(row), col);
+                VersionedValue vv = (VersionedValue) tv.getValue();
+                assertEquals(getEncodingValue(row, col), vv.columns[col]);
+            }
+        }
+
+        int[] types = { Value.STRING, Value.INT, Value.LONG, Value.INT, Value.STRING };
+        for (int col = 0; col < 5; col++) {
+            int rows = 0;
+            StorageMapCursor<ValueLong, TransactionalValue> cursor = map
+                    .cursor(CursorParameters.create(null, col));
+            while (true) {
+                ColumnBatch batch = cursor.nextBatch(tv -> true);
+                if (batch != null) {
+                    ColumnVector vector = batch.getVector(col);
+                    // 跟其他测试共用storage时page可能很小，所有值都是null时类型是Value.NULL
+                    if (vector.getNullCount() < vector.size())
+                        assertEquals(types[col], vector.getType());
+                    for (int i = batch.getStart(); i < batch.getEnd(); i++) {
+                        long key = ((ValueLong) batch.getPage().getKey(i)).getLong();
+                        assertEquals(getEncodingValue((int) key, col), vector.getValue(i));
+                    }
+                    rows += batch.getRowCount();
+                } else if (cursor.next()) {
+                    rows++;
+                } else {
+                    break;
+                }
+            }
+            assertEquals(rowCount, rows);
+        }
+        map.close();
+    }
+
+    // 根据leaf page中每一列的统计信息跳过不可能有满足条件的记录的page
+    private void testColumnStats(ValueDataType keyType, TransactionalValueType tvType) {
+        AOStorage storage = AOStorageTest.openStorage(pageSize, cacheSize);
+        BTreeMap<ValueLong, TransactionalValue> map = storage.openBTreeMap("testColumnEncoding",
+                keyType, tvType, null);
+        long threshold = getEncodingValue(rowCount - 100, 2).getLong();
+        int skipped = 0;
+        int matched = 0;
+        StorageMapCursor<ValueLong, TransactionalValue> cursor = map
+                .cursor(CursorParameters.create(null, 2));
+        while (true) {
+            ColumnBatch batch = cursor.nextBatch(tv -> true,
+                    stats -> stats[2].getMax().getLong() >= threshold);
+            if (batch != null) {
+                ColumnStats[] stats = batch.getPage().getColumnStats();
+                assertEquals(Value.STRING, stats[0].getType());
+                assertTrue(stats[0].mightContain(ValueString.get("city" + 1)));
+                assertTrue(stats[0].getMin().getString().compareTo("city0") >= 0);
+                assertTrue(stats[0].getMax().getString().compareTo("city4") <= 0);
+                assertTrue(stats[2].getMin().getLong() <= stats[2].getMax().getLong());
+                for (int i = batch.getStart(); i < batch.getEnd(); i++) {
+                    long key = ((ValueLong) batch.getPage().getKey(i)).getLong();
+                    long v = getEncodingValue((int) key, 2).getLong();
+                    if (batch.isSkipped())
+                        assertTrue(v < threshold);
+                    else if (batch.getVector(2).getLong(i) >= threshold)
+                        matched++;
+                }
+                if (batch.isSkipped())
+                    skipped += batch.getRowCount();
+            } else if (cursor.next()) {
+                VersionedValue vv = (VersionedValue) cursor.getValue().getValue();
+                if (vv.columns[2].getLong() >= threshold)
+                    matched++;
+            } else {
+                break;
+            }
+        }
+        assertEquals(101, matched);
+        assertTrue(skipped > 0);
+        map.close();
+    }
+
+    private static Value getEncodingValue(int row, int col) {
+        switch (col) {
+        case 0: // 字典编码
+            return ValueString.get("city" + row % 5);
+        case 1: // RLE
+            return ValueInt.get(row / 100);
+        case 2: // delta + bit-packing
+            return ValueLong.get(1_000_000_000_000L + row * 7L);
+        case 3: // 有null
+            return row % 3 == 0 ? ValueNull.INSTANCE : ValueInt.get(-row);
+        default:
+            return ValueString.get("value-row" + row + "-col" + (col + 1));
+        }
+    }
+
     private void putData(StorageMap<ValueLong, TransactionalValue> map) {
         if (!map.isEmpty())
             return;
@@ -0,0 +1,252 @@
+/*
+ * Copyright Lealone Database Group.
+ * Licensed under the Server Side Public License, v 1.
+ * Initial Developer: zhh
+ */
+package org.lealone.test.aose;
+
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.Test;
+import org.lealone.storage.CursorParameters;
+import org.lealone.storage.StorageMap;
+import org.lealone.storage.StorageMapCursor;
+import org.lealone.storage.StorageSetting;
+import org.lealone.storage.aose.btree.BTreeMap;
+import org.lealone.storage.aose.btree.PartitionedBTreeMap;
+
+public class PartitionedBTreeMapTest extends AoseTestBase {
+
+    private PartitionedBTreeMap<Integer, String> pmap;
+
+    private static final String MAP_NAME = "PartitionedMap";
+
+    @Test
+    public void run() {
+        // 不调用init()，它会用类名打开一个普通的BTreeMap
+        storage = AOStorageTest.openStorage(pageSize);
+        try {
+            testMapType();
+            testSplit();
+            testReopen();
+            testPartitionCursors();
+            testRetiredPartitionInUse();
+            testMerge();
+            testBulkLoad();
+            testConcurrentWrites();
+        } finally {
+            if (pmap != null)
+                pmap.remove();
+        }
+    }
+
+    private void openPartitionedMap() {
+        HashMap<String, String> parameters = new HashMap<>();
+        parameters.put(StorageSetting.MAP_TYPE.name(), PartitionedBTreeMap.MAP_TYPE);
+        parameters.put(StorageSetting.MAX_PARTITION_SIZE.name(), "200");
+        pmap = storage.openPartitionedBTreeMap(MAP_NAME, null, null, parameters);
+    }
+
+    private void testMapType() {
+        BTreeMap<Integer, String> map = storage.openBTreeMap("PartitionedMapTypeTest");
+        try {
+            storage.openPartitionedBTreeMap("PartitionedMapTypeTest", null, null, null);
+            fail();
+        } catch (IllegalArgumentException e) {
+            assertTrue(e.getMessage().contains("PartitionedMapTypeTest"));
+        } finally {
+            map.remove();
+        }
+    }
+
+    private void testSplit() {
+        openPartitionedMap();
+        pmap.clear();
+        pmap.save();
+        for (int i = 1; i <= 1000; i++)
+            pmap.put(i, "value" + i);
+        for (int round = 0; round < 5; round++)
+            pmap.save();
+        assertTrue(pmap.getPartitionCount() > 1);
+        assertEquals(1000, pmap.size());
+        assertEquals(1, pmap.firstKey().intValue());
+        assertEquals(1000, pmap.lastKey().intValue());
+        assertEquals("value500", pmap.get(500));
+        assertEquals(499, pmap.lowerKey(500).intValue());
+        assertEquals(501, pmap.higherKey(500).intValue());
+        assertEquals(1000, pmap.floorKey(2000).intValue());
+        assertNull(pmap.ceilingKey(2000));
+
+        // 游标要按顺序跨过所有分区
+        StorageMapCursor<Integer, String> cursor = pmap.cursor(300);
+        int expected = 300;
+        while (cursor.next()) {
+            assertEquals(expected++, cursor.getKey().intValue());
+        }
+        assertEquals(1001, expected);
+    }
+
+    private void testReopen() {
+        int count = pmap.getPartitionCount();
+        pmap.close();
+        // 不指定map类型也能按分区打开
+        StorageMap<Integer, String> map = storage.openMap(MAP_NAME, null, null, null);
+        assertTrue(map instanceof PartitionedBTreeMap);
+        map.close();
+        openPartitionedMap();
+        assertEquals(count, pmap.getPartitionCount());
+        assertEquals(1000, pmap.size());
+        assertEquals("value888", pmap.get(888));
+    }
+
+    private void testPartitionCursors() {
+        List<StorageMapCursor<Integer, String>> cursors = pmap
+                .partitionCursors(CursorParameters.create(Integer.valueOf(300), Integer.valueOf(700)));
+        assertTrue(cursors.size() > 1);
+        int count = 0;
+        Integer last = null;
+        for (StorageMapCursor<Integer, String> cursor : cursors) {
+            while (cursor.next()) {
+                int key = cursor.getKey();
+                if (key > 700)
+                    break;
+                if (key >= 300)
+                    count++;
+                assertTrue(last == null || last < key);
+                last = key;
+            }
+            cursor.close();
+        }
+        assertEquals(401, count);
+    }
+
+    // 游标还没有遍历完时，它所在的分区就算被切分了也不能删除
+    private void testRetiredPartitionInUse() {
+        int count = pmap.getPartitionCount();
+        for (int i = 1001; i <= 2000; i++)
+            pmap.put(i, "value" + i);
+        StorageMapCursor<Integer, String> cursor = pmap.cursor(990);
+        assertTrue(cursor.next());
+        for (int round = 0; round < 5; round++)
+            pmap.save(); // 最后一个分区被切分
+        assertTrue(pmap.getPartitionCount() > count);
+        int expected = 991;
+        while (cursor.next()) {
+            assertEquals(expected, cursor.getKey().intValue());
+            assertEquals("value" + expected, cursor.getValue());
+            expected++;
+        }
+        assertEquals(2001, expected);
+        for (int i = 1001; i <= 2000; i++)
+            pmap.remove(i);
+    }
+
+    private void testMerge() {
+        for (int i = 1; i <= 1000; i++)
+            pmap.remove(i);
+        for (int round = 0; round < 5; round++)
+            pmap.save();
+        assertEquals(1, pmap.getPartitionCount());
+        assertTrue(pmap.isEmpty());
+        pmap.put(1, "value1");
+        assertEquals("value1", pmap.get(1));
+        pmap.remove(1);
+    }
+
+    private void testBulkLoad() {
+        pmap.clear();
+        pmap.save();
+        ArrayList<Map.Entry<Integer, String>> entries = new ArrayList<>();
+        for (int i = 1; i <= 1000; i++)
+            entries.add(new AbstractMap.SimpleImmutableEntry<>(i, "value" + i));
+        pmap.bulkLoad(entries.iterator());
+        assertEquals(10, pmap.getPartitionCount());
+        assertEquals(1000, pmap.size());
+        assertEquals("value101", pmap.get(101));
+        assertEquals(1000, pmap.lastKey().intValue());
+
+        // 加载期间有写操作写到了老的分区，bulkLoad要放弃，不能丢掉写入的记录
+        pmap.clear(); // 不调用save，保留10个空的分区
+        int count = pmap.getPartitionCount();
+        Iterator<Map.Entry<Integer, String>> it = entries.iterator();
+        boolean loaded = pmap.bulkLoad(new Iterator<Map.Entry<Integer, String>>() {
+            @Override
+            public boolean hasNext() {
+                return it.hasNext();
+            }
+
+            @Override
+            public Map.Entry<Integer, String> next() {
+                Map.Entry<Integer, String> e = it.next();
+                if (e.getKey() == 500)
+                    runInThread(() -> pmap.put(2000, "value2000"));
+                return e;
+            }
+        });
+        assertTrue(count > 1);
+        assertFalse(loaded);
+        assertEquals(1, pmap.size());
+        assertEquals("value2000", pmap.get(2000));
+        pmap.remove(2000);
+    }
+
+    // 切分和合并期间其他线程一直在写
+    private void testConcurrentWrites() {
+        pmap.clear();
+        pmap.save();
+        AtomicBoolean stop = new AtomicBoolean();
+        ConcurrentHashMap<Integer, String> expected = new ConcurrentHashMap<>();
+        Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            int id = t;
+            threads[t] = new Thread(() -> {
+                Random random = new Random(id);
+                for (int n = 0; !stop.get() || n < 5000; n++) {
+                    int key = random.nextInt(2000) * threads.length + id;
+                    if (random.nextInt(4) == 0) {
+                        pmap.remove(key);
+                        expected.remove(key);
+                    } else {
+                        pmap.put(key, "value" + n);
+                        expected.put(key, "value" + n);
+                    }
+                }
+            });
+            threads[t].start();
+        }
+        try {
+            for (int round = 0; round < 50; round++) {
+                pmap.save();
+                Thread.sleep(2);
+            }
+            stop.set(true);
+            for (Thread t : threads)
+                t.join();
+        } catch (InterruptedException e) {
+            throw new RuntimeException(e);
+        }
+        pmap.save();
+        assertTrue(pmap.getPartitionCount() > 1);
+        assertEquals(expected.size(), pmap.size());
+        for (Map.Entry<Integer, String> e : expected.entrySet())
+            assertEquals(e.getValue(), pmap.get(e.getKey()));
+    }
+
+    private static void runInThread(Runnable r) {
+        Thread t = new Thread(r);
+        t.start();
+        try {
+            t.join();
+        } catch (InterruptedException e) {
+            throw new RuntimeException(e);
+        }
+    }
+}
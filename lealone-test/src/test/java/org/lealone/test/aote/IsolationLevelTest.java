@@ -17,6 +17,7 @@ public class IsolationLevelTest extends AoteTestBase {
     public void run() {
         test1();
         test2();
+        test3();
     }
 
     private void test1() {
@@ -99,4 +100,37 @@ public class IsolationLevelTest extends AoteTestBase {
         t2.rollback();
         t3.rollback();
     }
+
+    // 多个可重复读事务读同一条记录的不同版本
+    private void test3() {
+        Transaction t = te.beginTransaction(false);
+        TransactionMap<String, String> map = t.openMap(mapName + "_test3", storage);
+        map.clear();
+        map.put("1", "v0");
+        t.commit();
+
+        Transaction[] readers = new Transaction[5];
+        for (int i = 0; i < readers.length; i++) {
+            readers[i] = te.beginTransaction(false, Transaction.IL_REPEATABLE_READ);
+            assertEquals("v" + i, map.getInstance(readers[i]).get("1"));
+            t = te.beginTransaction(false);
+            map.getInstance(t).put("1", "v" + (i + 1));
+            t.commit();
+        }
+        for (int i = 0; i < readers.length; i++) {
+            assertEquals("v" + i, map.getInstance(readers[i]).get("1"));
+        }
+        // 最老的事务结束后，其他事务还能读到自己的版本
+        readers[0].commit();
+        t = te.beginTransaction(false);
+        map.getInstance(t).put("1", "v6");
+        t.commit();
+        for (int i = 1; i < readers.length; i++) {
+            assertEquals("v" + i, map.getInstance(readers[i]).get("1"));
+            readers[i].commit();
+        }
+        t = te.beginTransaction(false, Transaction.IL_REPEATABLE_READ);
+        assertEquals("v6", map.getInstance(t).get("1"));
+        t.commit();
+    }
 }
@@ -5,20 +5,29 @@
  */
 package org.lealone.test.aote;
 
+import java.io.File;
+import java.io.RandomAccessFile;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicReference;
 
 import org.junit.Before;
 import org.junit.Test;
+import org.lealone.common.util.LatencyHistogram;
 import org.lealone.db.Constants;
 import org.lealone.db.PluginManager;
+import org.lealone.db.link.LinkableList;
 import org.lealone.storage.Storage;
 import org.lealone.storage.StorageBuilder;
 import org.lealone.storage.StorageEngine;
+import org.lealone.storage.fs.FileUtils;
+import org.lealone.transaction.PendingTransaction;
 import org.lealone.transaction.Transaction;
 import org.lealone.transaction.TransactionEngine;
+import org.lealone.transaction.TransactionHandler;
 import org.lealone.transaction.TransactionMap;
 import org.lealone.transaction.aote.AOTransactionEngine;
+import org.lealone.transaction.aote.AOTransactionEngine.CheckpointServiceImpl;
 import org.lealone.transaction.aote.log.LogSyncService;
 
 public class TransactionEngineTest extends AoteTestBase {
@@ -135,6 +144,262 @@ public class TransactionEngineTest extends AoteTestBase {
         assertTrue(map.getDiskSpaceUsed() > 0);
     }
 
+    @Test
+    public void testParallelCheckpoint() {
+        Map<String, String> config = getDefaultConfig();
+        config.put("checkpoint_save_threads", "4");
+        AOTransactionEngine te = new AOTransactionEngine();
+        te.init(config);
+        this.te = te;
+        storage = getStorage();
+        CheckpointServiceImpl cs = (CheckpointServiceImpl) te.getCheckpointService();
+
+        int mapCount = 8;
+        Transaction t = te.beginTransaction(false);
+        @SuppressWarnings("unchecked")
+        TransactionMap<String, String>[] maps = new TransactionMap[mapCount];
+        for (int i = 0; i < mapCount; i++) {
+            maps[i] = t.openMap("testParallelCheckpoint" + i, storage);
+            for (int j = 1; j <= 1000; j++)
+                maps[i].put("key" + j, "value" + j);
+        }
+        t.commit();
+
+        long count = cs.getCheckpointCount();
+        te.checkpoint();
+        for (int i = 0; i < 20 && cs.getCheckpointCount() == count; i++)
+            sleep(500);
+        assertTrue(cs.getCheckpointCount() > count);
+        assertTrue(cs.getLastCheckpointMapCount() >= mapCount);
+        // 强制执行的checkpoint也要按实际写入的字节数统计
+        assertTrue(cs.getLastCheckpointSavedBytes() > 0);
+        assertTrue(cs.getLastCheckpointBytesPerSecond() > 0);
+        for (int i = 0; i < mapCount; i++) {
+            assertTrue(maps[i].getDiskSpaceUsed() > 0);
+            maps[i].remove();
+        }
+    }
+
+    @Test
+    public void testRedoLogStreams() {
+        Map<String, String> config = getDefaultConfig();
+        config.put("redo_log_dir", "redo_log_streams");
+        config.put("scheduler_count", "4");
+        config.put("redo_log_streams", "4");
+        // 每次都从空的redo log开始，不受上次运行留下的记录影响
+        FileUtils.deleteRecursive(joinDirs("aote", "redo_log_streams"), false);
+        TransactionHandler[] handlers = new TransactionHandler[4];
+        for (int i = 0; i < handlers.length; i++) {
+            int handlerId = i;
+            handlers[i] = new TransactionHandler.DefaultTransactionHandler() {
+                @Override
+                public int getHandlerId() {
+                    return handlerId;
+                }
+            };
+        }
+        // 重启之后新记录的logId要比之前的大，否则会被当成检查点之前的记录丢弃，或者合并时排在旧记录之前
+        for (int round = 0; round < 3; round++) {
+            writeRedoLogStreams(config, handlers, round * 400);
+        }
+
+        // 重新打开后按logId合并各个流的redo log
+        AOTransactionEngine te = new AOTransactionEngine();
+        te.init(config);
+        this.te = te;
+        storage = getStorage();
+        Transaction t = te.beginTransaction(false);
+        TransactionMap<String, String> map = t.openMap("testRedoLogStreams", storage);
+        for (int i = 0; i < 10; i++)
+            assertEquals("value" + (1190 + i), map.get("key" + i));
+        map.remove();
+        t.commit();
+    }
+
+    private void writeRedoLogStreams(Map<String, String> config, TransactionHandler[] handlers,
+            int start) {
+        AOTransactionEngine te = new AOTransactionEngine();
+        te.init(config);
+        this.te = te;
+        storage = getStorage();
+        CheckpointServiceImpl cs = (CheckpointServiceImpl) te.getCheckpointService();
+        // 同一个key的修改分散到不同的流中，中间等一次检查点完成，检查点前后都有同一个key的修改
+        for (int i = start; i < start + 400; i++) {
+            if (i == start + 200) {
+                long count = cs.getCheckpointCount();
+                te.checkpoint();
+                for (int j = 0; j < 20 && cs.getCheckpointCount() == count; j++)
+                    sleep(500);
+                assertTrue(cs.getCheckpointCount() > count);
+            }
+            Transaction t = te.beginTransaction(false);
+            t.setTransactionHandler(handlers[i % handlers.length]);
+            TransactionMap<String, String> map = t.openMap("testRedoLogStreams", storage);
+            if (i == start && start > 0)
+                assertEquals("value" + (start - 10), map.get("key0"));
+            map.put("key" + (i % 10), "value" + i);
+            t.commit();
+        }
+        te.close();
+        storage.close();
+    }
+
+    @Test
+    public void testGroupCommit() throws Exception {
+        int threadCount = 8;
+        int commitCount = 200;
+        long maxDelayMicros = 500;
+        Map<String, String> config = getDefaultConfig();
+        config.put("redo_log_dir", "redo_log_group_commit");
+        config.put("log_sync_type", LogSyncService.LOG_SYNC_TYPE_INSTANT);
+        config.put("group_commit_max_delay_micros", String.valueOf(maxDelayMicros));
+        config.put("scheduler_count", String.valueOf(threadCount));
+        // 所有事务都在同一个流中同步
+        config.put("redo_log_streams", "1");
+        AOTransactionEngine te = new AOTransactionEngine();
+        te.init(config);
+        this.te = te;
+        storage = getStorage();
+
+        GroupCommitHandler[] handlers = new GroupCommitHandler[threadCount];
+        Thread[] threads = new Thread[threadCount];
+        AtomicReference<Throwable> error = new AtomicReference<>();
+        for (int i = 0; i < threadCount; i++) {
+            GroupCommitHandler handler = handlers[i] = new GroupCommitHandler(i);
+            threads[i] = new Thread(() -> {
+                try {
+                    for (int j = 0; j < commitCount; j++) {
+                        Transaction t = te.beginTransaction(false);
+                        t.setTransactionHandler(handler);
+                        TransactionMap<String, String> map = t.openMap("testGroupCommit", storage);
+                        map.put("key" + handler.getHandlerId() + "_" + j, "value" + j);
+                        t.commit();
+                        handler.removeSyncedTransactions();
+                    }
+                } catch (Throwable e) {
+                    error.set(e);
+                }
+            });
+            threads[i].start();
+        }
+        for (Thread t : threads)
+            t.join();
+        assertNull(error.get());
+
+        Map<String, LatencyHistogram> histograms = te.getLatencyHistograms();
+        long commits = histograms.get("COMMIT").getTotalCount();
+        long syncs = histograms.get("LOG_SYNC").getTotalCount();
+        LatencyHistogram delay = histograms.get("GROUP_COMMIT_DELAY");
+        assertEquals(threadCount * commitCount, commits);
+        // 多个并发提交的事务合并在一次fsync中完成
+        assertTrue(syncs < commits);
+        // 每次最多等待的时间都不超过group_commit_max_delay_micros，桶的上界是2的幂
+        assertTrue(delay.getPercentileMicros(100) <= Long.highestOneBit(maxDelayMicros) * 2);
+
+        Transaction t = te.beginTransaction(false);
+        t.setTransactionHandler(handlers[0]);
+        TransactionMap<String, String> map = t.openMap("testGroupCommit", storage);
+        assertEquals(threadCount * commitCount, map.size());
+        map.remove();
+        t.commit();
+    }
+
+    // DefaultTransactionHandler取出的事务就从队列中删除了，instant sync需要链表形式的等待队列
+    private static class GroupCommitHandler extends TransactionHandler.DefaultTransactionHandler {
+
+        private final LinkableList<PendingTransaction> pendingTransactions = new LinkableList<>();
+        private final int handlerId;
+
+        GroupCommitHandler(int handlerId) {
+            this.handlerId = handlerId;
+        }
+
+        @Override
+        public int getHandlerId() {
+            return handlerId;
+        }
+
+        @Override
+        public synchronized void addTransaction(PendingTransaction pt) {
+            pendingTransactions.add(pt);
+        }
+
+        @Override
+        public synchronized PendingTransaction getTransaction() {
+            return pendingTransactions.getHead();
+        }
+
+        synchronized void removeSyncedTransactions() {
+            PendingTransaction pt = pendingTransactions.getHead();
+            while (pt != null && pt.isSynced()) {
+                pt = pt.getNext();
+                pendingTransactions.decrementSize();
+                pendingTransactions.setHead(pt);
+            }
+            if (pendingTransactions.getHead() == null)
+                pendingTransactions.setTail(null);
+        }
+    }
+
+    @Test
+    public void testRedoLogTornTail() throws Exception {
+        Map<String, String> config = getDefaultConfig();
+        config.put("redo_log_dir", "redo_log_torn_tail");
+        config.put("log_chunk_size", String.valueOf(64 * 1024)); // 每个chunk文件只能放16个块
+        AOTransactionEngine te = new AOTransactionEngine();
+        te.init(config);
+        storage = getStorage();
+        for (int i = 0; i < 100; i++) {
+            Transaction t = te.beginTransaction(false);
+            TransactionMap<String, String> map = t.openMap("testRedoLogTornTail", storage);
+            map.put("key" + (i % 10), "value" + i);
+            t.commit();
+        }
+        te.close();
+
+        // 在最后一个chunk文件的有效记录之后写一个校验和不对的帧，模拟写了一半时崩溃
+        String redoLogDir = joinDirs("aote", "redo_log_torn_tail");
+        int lastId = -1;
+        for (String f : new File(redoLogDir).list()) {
+            if (f.startsWith("redoLog_"))
+                lastId = Math.max(lastId, Integer.parseInt(f.substring("redoLog_".length())));
+        }
+        try (RandomAccessFile file = new RandomAccessFile(
+                redoLogDir + File.separator + "redoLog_" + lastId, "rw")) {
+            file.seek(8);
+            long generation = file.readLong();
+            long pos = 4096;
+            while (pos + 16 <= file.length()) {
+                file.seek(pos);
+                int length = file.readInt();
+                if (length <= 0)
+                    break;
+                pos = (pos + 16 + length + 4095) / 4096 * 4096;
+            }
+            file.seek(pos);
+            file.writeInt(100);
+            file.writeInt(123);
+            file.writeLong(generation);
+            file.write(new byte[100]);
+        }
+
+        this.te = te = new AOTransactionEngine();
+        te.init(config);
+        Transaction t = te.beginTransaction(false);
+        TransactionMap<String, String> map = t.openMap("testRedoLogTornTail", storage);
+        for (int i = 0; i < 10; i++)
+            assertEquals("value" + (90 + i), map.get("key" + i));
+        map.remove();
+        t.commit();
+    }
+
+    private static void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+        }
+    }
+
     private void executeCheckpoint() {
         te.checkpoint();
     }
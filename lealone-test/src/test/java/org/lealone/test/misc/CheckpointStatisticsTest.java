@@ -0,0 +1,37 @@
+/*
+ * Copyright Lealone Database Group.
+ * Licensed under the Server Side Public License, v 1.
+ * Initial Developer: zhh
+ */
+package org.lealone.test.misc;
+
+import org.junit.Test;
+import org.lealone.test.sql.SqlTestBase;
+
+public class CheckpointStatisticsTest extends SqlTestBase {
+
+    @Test
+    public void run() throws Exception {
+        executeUpdate("DROP TABLE IF EXISTS CheckpointStatisticsTest");
+        executeUpdate("CREATE TABLE IF NOT EXISTS CheckpointStatisticsTest(id int primary key, name varchar)");
+        for (int i = 0; i < 100; i++)
+            executeUpdate("INSERT INTO CheckpointStatisticsTest VALUES(" + i + ", 'name" + i + "')");
+
+        long count = getStatistic("CHECKPOINT_COUNT");
+        // CHECKPOINT语句是异步执行的，由调度线程按checkpoint_service_loop_interval分阶段完成
+        executeUpdate("CHECKPOINT");
+        for (int i = 0; i < 200 && getStatistic("CHECKPOINT_COUNT") == count; i++)
+            Thread.sleep(100);
+        assertTrue(getStatistic("CHECKPOINT_COUNT") > count);
+        assertTrue(getStatistic("LAST_SAVED_BYTES") > 0);
+        assertTrue(getStatistic("LAST_BYTES_PER_SECOND") > 0);
+
+        sql = "SELECT * FROM PERFORMANCE_SCHEMA.CHECKPOINT_STATISTICS";
+        assertEquals(6, printResultSet());
+    }
+
+    private long getStatistic(String name) throws Exception {
+        sql = "SELECT VALUE FROM PERFORMANCE_SCHEMA.CHECKPOINT_STATISTICS WHERE NAME = '" + name + "'";
+        return getLongValue(1, true);
+    }
+}
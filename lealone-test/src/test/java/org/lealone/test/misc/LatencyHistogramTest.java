@@ -0,0 +1,39 @@
+/*
+ * Copyright Lealone Database Group.
+ * Licensed under the Server Side Public License, v 1.
+ * Initial Developer: zhh
+ */
+package org.lealone.test.misc;
+
+import org.junit.Test;
+import org.lealone.common.util.LatencyHistogram;
+import org.lealone.test.TestBase;
+
+public class LatencyHistogramTest extends TestBase {
+
+    @Test
+    public void run() {
+        LatencyHistogram h = new LatencyHistogram();
+        assertEquals(0, h.getPercentileMicros(50));
+
+        h.record(500); // 不到1微秒
+        h.record(1000); // 1微秒
+        h.record(3 * 1000);
+        h.record(3 * 1000);
+        assertEquals(1, h.getCount(0));
+        assertEquals(1, h.getCount(1));
+        assertEquals(2, h.getCount(2));
+        assertEquals(4, h.getTotalCount());
+        assertEquals(7500, h.getTotalNanos());
+
+        assertEquals(1, h.getPercentileMicros(25));
+        assertEquals(2, h.getPercentileMicros(50));
+        assertEquals(4, h.getPercentileMicros(99));
+
+        // 太大的值都算在最后一个桶
+        h.record(Long.MAX_VALUE / 2);
+        int last = h.getBucketCount() - 1;
+        assertEquals(1, h.getCount(last));
+        assertEquals(Long.MAX_VALUE, h.getUpperBoundMicros(last));
+    }
+}
@@ -0,0 +1,98 @@
+/*
+ * Copyright Lealone Database Group.
+ * Licensed under the Server Side Public License, v 1.
+ * Initial Developer: zhh
+ */
+package org.lealone.test.sql.ddl;
+
+import java.sql.PreparedStatement;
+
+import org.junit.Test;
+import org.lealone.db.ConnectionInfo;
+import org.lealone.db.result.Result;
+import org.lealone.db.session.ServerSession;
+import org.lealone.db.session.ServerSessionFactory;
+import org.lealone.sql.PreparedSQLStatement;
+import org.lealone.sql.query.Select;
+import org.lealone.test.TestBase;
+import org.lealone.test.sql.SqlTestBase;
+
+public class AnalyzeTest extends SqlTestBase {
+
+    @Test
+    public void run() throws Exception {
+        executeUpdate("DROP TABLE IF EXISTS AnalyzeTest");
+        executeUpdate("CREATE TABLE IF NOT EXISTS AnalyzeTest(id int primary key, k int, v int, name varchar)");
+        executeUpdate("CREATE INDEX IF NOT EXISTS AnalyzeTest_k ON AnalyzeTest(k)");
+        executeUpdate("CREATE INDEX IF NOT EXISTS AnalyzeTest_v ON AnalyzeTest(v)");
+        PreparedStatement ps = conn.prepareStatement("INSERT INTO AnalyzeTest VALUES(?, ?, ?, ?)");
+        for (int i = 0; i < 20000; i++) {
+            ps.setInt(1, i);
+            ps.setInt(2, i % 10 == 0 ? i : 7); // 90%的记录k都是7
+            ps.setInt(3, i);
+            ps.setString(4, i % 5 == 0 ? null : "n" + i);
+            ps.executeUpdate();
+        }
+        ps.close();
+        executeUpdate("ANALYZE");
+
+        sql = "SELECT SELECTIVITY FROM INFORMATION_SCHEMA.COLUMNS"
+                + " WHERE TABLE_NAME = 'ANALYZETEST' AND COLUMN_NAME = 'K'";
+        assertTrue(getIntValue(1, true) <= 20);
+        sql = "SELECT SQL FROM INFORMATION_SCHEMA.TABLES WHERE TABLE_NAME = 'ANALYZETEST'";
+        assertTrue(getStringValue(1, true).contains("STATISTICS"));
+
+        // k = 7是高频值，用v上的索引更好
+        sql = "EXPLAIN SELECT * FROM AnalyzeTest WHERE k = 7 AND v < 100";
+        assertTrue(getStringValue(1, true).contains("ANALYZETEST_V"));
+        sql = "EXPLAIN SELECT * FROM AnalyzeTest WHERE k = 20 AND v < 15000";
+        assertTrue(getStringValue(1, true).contains("ANALYZETEST_K"));
+
+        sql = "SELECT count(*) FROM AnalyzeTest WHERE k = 7 AND v < 100";
+        assertEquals(90, getIntValue(1, true));
+
+        testPlanCache();
+    }
+
+    // 执行计划缓存会把常量替换成参数，检查实际执行的语句是否还能根据常量选择索引
+    private void testPlanCache() {
+        String url = new TestBase().setEmbedded(true).setInMemory(true).getURL("AnalyzeTestPlanCache");
+        ServerSession session = (ServerSession) ServerSessionFactory.getInstance()
+                .createSession(new ConnectionInfo(url)).get();
+        try {
+            executeUpdate(session, "CREATE TABLE IF NOT EXISTS AnalyzeTest"
+                    + "(id int primary key, k int, v int)");
+            executeUpdate(session, "CREATE INDEX IF NOT EXISTS AnalyzeTest_k ON AnalyzeTest(k)");
+            executeUpdate(session, "CREATE INDEX IF NOT EXISTS AnalyzeTest_v ON AnalyzeTest(v)");
+            for (int i = 0; i < 20000; i++) {
+                executeUpdate(session, "INSERT INTO AnalyzeTest VALUES(" + i + ", "
+                        + (i % 10 == 0 ? i : 7) + ", " + i + ")");
+            }
+            executeUpdate(session, "ANALYZE");
+            // 两种常量交替执行，第二次执行时语句可能来自缓存
+            for (int i = 0; i < 2; i++) {
+                assertQuery(session, "SELECT * FROM AnalyzeTest WHERE k = 7 AND v < 100", "ANALYZETEST_V",
+                        90);
+                assertQuery(session, "SELECT * FROM AnalyzeTest WHERE k = 20 AND v < 15000",
+                        "ANALYZETEST_K", 1);
+            }
+        } finally {
+            session.close();
+        }
+    }
+
+    private static void executeUpdate(ServerSession session, String sql) {
+        session.prepareStatement(sql, -1).executeUpdate().get();
+    }
+
+    private static void assertQuery(ServerSession session, String sql, String indexName, int rowCount) {
+        PreparedSQLStatement ps = session.prepareStatement(sql, -1);
+        assertTrue(((Select) ps).getPlanSQL().contains(indexName));
+        Result r = ps.executeQuery(-1, false).get();
+        int count = 0;
+        while (r.next())
+            count++;
+        r.close();
+        assertEquals(rowCount, count);
+    }
+}
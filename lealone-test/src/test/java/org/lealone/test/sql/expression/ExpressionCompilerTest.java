@@ -0,0 +1,100 @@
+/*
+ * Copyright Lealone Database Group.
+ * Licensed under the Server Side Public License, v 1.
+ * Initial Developer: zhh
+ */
+package org.lealone.test.sql.expression;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+
+import org.junit.Test;
+import org.lealone.test.sql.SqlTestBase;
+
+public class ExpressionCompilerTest extends SqlTestBase {
+
+    private static final String[] CONDITIONS = { //
+            "id > 5", //
+            "id >= 5 and id < 8", //
+            "id = 3 or id = 9", //
+            "d <= 4.5", //
+            "d > 2", //
+            "name = 'n4'", //
+            "name <> 'n4'", //
+            "name is null", //
+            "name is not null and id != 1", //
+            "id > 2.5", // 整数列跟小数比较时回退到解释执行
+            "id > 2 and name like 'n%'", //
+    };
+
+    @Test
+    public void run() throws Exception {
+        executeUpdate("drop table IF EXISTS ExpressionCompilerTest");
+        executeUpdate("create table IF NOT EXISTS ExpressionCompilerTest"
+                + "(id int primary key, d double, name varchar)");
+        for (int i = 1; i <= 10; i++) {
+            String name = i % 3 == 0 ? "null" : "'n" + i + "'";
+            executeUpdate("insert into ExpressionCompilerTest(id, d, name) values(" + i + ", " + i * 0.5
+                    + ", " + name + ")");
+        }
+        try {
+            testSelect();
+            testParameters();
+            testUpdateDelete();
+        } finally {
+            executeUpdate("SET EXPRESSION_COMPILE_THRESHOLD 0");
+        }
+    }
+
+    private int count(String condition) throws Exception {
+        sql = "select count(*) from ExpressionCompilerTest where " + condition;
+        return getIntValue(1, true);
+    }
+
+    private void testSelect() throws Exception {
+        executeUpdate("SET EXPRESSION_COMPILE_THRESHOLD 0");
+        int[] expected = new int[CONDITIONS.length];
+        for (int i = 0; i < CONDITIONS.length; i++)
+            expected[i] = count(CONDITIONS[i]);
+
+        // 编译后的结果要跟解释执行时一样
+        executeUpdate("SET EXPRESSION_COMPILE_THRESHOLD 1");
+        for (int round = 0; round < 2; round++) {
+            for (int i = 0; i < CONDITIONS.length; i++)
+                assertEquals(CONDITIONS[i], expected[i], count(CONDITIONS[i]));
+        }
+    }
+
+    private void testParameters() throws Exception {
+        executeUpdate("SET EXPRESSION_COMPILE_THRESHOLD 2");
+        PreparedStatement ps = conn
+                .prepareStatement("select count(*) from ExpressionCompilerTest where id > ? and d < ?");
+        assertEquals(4, count(ps, 3, 4.0));
+        assertEquals(4, count(ps, 3, 4.0));
+        assertEquals(2, count(ps, 6, 4.5));
+        // 参数是NULL时比较的结果总是false
+        assertEquals(0, count(ps, null, 4.5));
+        // 参数的类型跟字段类型不匹配时回退到解释执行
+        assertEquals(5, count(ps, "4", 5.0));
+        assertEquals(8, count(ps, 2.5, 100));
+        ps.close();
+    }
+
+    private int count(PreparedStatement ps, Object p1, Object p2) throws Exception {
+        ps.setObject(1, p1);
+        ps.setObject(2, p2);
+        ResultSet rs = ps.executeQuery();
+        assertTrue(rs.next());
+        int count = rs.getInt(1);
+        rs.close();
+        return count;
+    }
+
+    private void testUpdateDelete() throws Exception {
+        executeUpdate("SET EXPRESSION_COMPILE_THRESHOLD 1");
+        assertEquals(3, executeUpdate("update ExpressionCompilerTest set d = -1 where id >= 8"));
+        assertEquals(3, count("d < 0"));
+        assertEquals(3, executeUpdate("delete from ExpressionCompilerTest where name is null"));
+        assertEquals(7, count("id > 0"));
+    }
+}
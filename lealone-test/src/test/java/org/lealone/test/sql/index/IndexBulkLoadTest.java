@@ -0,0 +1,96 @@
+/*
+ * Copyright Lealone Database Group.
+ * Licensed under the Server Side Public License, v 1.
+ * Initial Developer: zhh
+ */
+package org.lealone.test.sql.index;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.Statement;
+
+import org.junit.Test;
+import org.lealone.db.api.ErrorCode;
+import org.lealone.test.sql.SqlTestBase;
+
+// CREATE INDEX时先排序再直接构建btree
+public class IndexBulkLoadTest extends SqlTestBase {
+
+    private static final int ROWS = 1000;
+
+    @Test
+    public void run() throws Exception {
+        executeUpdate("DROP TABLE IF EXISTS IndexBulkLoadTest");
+        executeUpdate("CREATE TABLE IF NOT EXISTS IndexBulkLoadTest (pk int PRIMARY KEY, f1 int, f2 int)");
+        for (int i = 0; i < ROWS; i++) {
+            // f1的值是乱序的，f2有重复值
+            executeUpdate("INSERT INTO IndexBulkLoadTest(pk, f1, f2) VALUES(" + i + ", "
+                    + ((i * 7919) % ROWS) + ", " + (i % 10) + ")");
+        }
+        testSpill();
+        testUniqueDuplicate();
+        testConcurrentInsert();
+    }
+
+    // key的个数超过MAX_MEMORY_ROWS时分段排序后写到临时文件再合并
+    void testSpill() throws Exception {
+        executeUpdate("SET MAX_MEMORY_ROWS 100");
+        executeUpdate("CREATE UNIQUE INDEX IF NOT EXISTS IndexBulkLoadTest_f1 ON IndexBulkLoadTest(f1)");
+        executeUpdate("CREATE INDEX IF NOT EXISTS IndexBulkLoadTest_f2 ON IndexBulkLoadTest(f2)");
+
+        sql = "SELECT f1 FROM IndexBulkLoadTest WHERE f1 >= 0 ORDER BY f1";
+        // executeQuery()会先调用一次rs.next()，这里要从第一行开始读
+        ResultSet rs = stmt.executeQuery(sql);
+        int count = 0;
+        while (rs.next()) {
+            assertEquals(count++, rs.getInt(1));
+        }
+        rs.close();
+        assertEquals(ROWS, count);
+
+        sql = "SELECT count(*) FROM IndexBulkLoadTest WHERE f2 = 3";
+        assertEquals(ROWS / 10, getIntValue(1, true));
+
+        executeUpdateThanAssertErrorCode(
+                "INSERT INTO IndexBulkLoadTest(pk, f1, f2) VALUES(" + ROWS + ", 10, 0)",
+                ErrorCode.DUPLICATE_KEY_1);
+        executeUpdate("DROP INDEX IndexBulkLoadTest_f1");
+        executeUpdate("DROP INDEX IndexBulkLoadTest_f2");
+    }
+
+    // 有重复值时建唯一索引失败，并且建了一半的索引要删除
+    void testUniqueDuplicate() throws Exception {
+        executeUpdate("SET MAX_MEMORY_ROWS 100");
+        executeUpdateThanAssertErrorCode(
+                "CREATE UNIQUE INDEX IndexBulkLoadTest_f2 ON IndexBulkLoadTest(f2)",
+                ErrorCode.DUPLICATE_KEY_1);
+        sql = "SELECT count(*) FROM INFORMATION_SCHEMA.INDEXES"
+                + " WHERE INDEX_NAME = 'INDEXBULKLOADTEST_F2'";
+        assertEquals(0, getIntValue(1, true));
+
+        // 同名的索引还能再建
+        executeUpdate("CREATE INDEX IndexBulkLoadTest_f2 ON IndexBulkLoadTest(f2)");
+        executeUpdate("DROP INDEX IndexBulkLoadTest_f2");
+    }
+
+    // 建索引期间并发插入的记录也要出现在索引中
+    void testConcurrentInsert() throws Exception {
+        int extra = 500;
+        Thread t = new Thread(() -> {
+            try (Connection conn = getConnection(); Statement stmt = conn.createStatement()) {
+                for (int i = ROWS; i < ROWS + extra; i++) {
+                    stmt.executeUpdate("INSERT INTO IndexBulkLoadTest(pk, f1, f2) VALUES(" + i + ", "
+                            + i + ", " + (i % 10) + ")");
+                }
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            }
+        });
+        t.start();
+        executeUpdate("CREATE INDEX IndexBulkLoadTest_f1 ON IndexBulkLoadTest(f1)");
+        t.join();
+
+        sql = "SELECT count(*) FROM IndexBulkLoadTest WHERE f1 >= 0";
+        assertEquals(ROWS + extra, getIntValue(1, true));
+    }
+}
@@ -0,0 +1,71 @@
+/*
+ * Copyright Lealone Database Group.
+ * Licensed under the Server Side Public License, v 1.
+ * Initial Developer: zhh
+ */
+package org.lealone.test.sql.query;
+
+import java.sql.ResultSet;
+
+import org.junit.Test;
+import org.lealone.test.sql.SqlTestBase;
+
+public class BatchScanTest extends SqlTestBase {
+
+    @Test
+    public void run() throws Exception {
+        executeUpdate("DROP TABLE IF EXISTS BatchScanTest");
+        executeUpdate("CREATE TABLE IF NOT EXISTS BatchScanTest(id int primary key, v int, name varchar)");
+        // 记录数不是批次大小的整数倍
+        for (int i = 1; i <= 1000; i++) {
+            executeUpdate("INSERT INTO BatchScanTest VALUES(" + i + ", " + (i % 10) + ", 'n" + i + "')");
+        }
+
+        sql = "SELECT count(*), sum(v) FROM BatchScanTest WHERE v > 4";
+        assertEquals(500, getIntValue(1));
+        assertEquals(3500, getIntValue(2, true));
+
+        sql = "SELECT v, count(*) FROM BatchScanTest GROUP BY v ORDER BY v";
+        ResultSet rs = stmt.executeQuery(sql);
+        int count = 0;
+        while (rs.next()) {
+            assertEquals(count++, rs.getInt(1));
+            assertEquals(100, rs.getInt(2));
+        }
+        rs.close();
+        assertEquals(10, count);
+
+        // 在批次中间满足了limit
+        sql = "SELECT id FROM BatchScanTest WHERE v = 3 LIMIT 20 OFFSET 5";
+        rs = stmt.executeQuery(sql);
+        count = 0;
+        while (rs.next()) {
+            assertEquals(53 + 10 * count++, rs.getInt(1));
+        }
+        rs.close();
+        assertEquals(20, count);
+
+        sql = "SELECT id FROM BatchScanTest WHERE id > 990";
+        rs = stmt.executeQuery(sql);
+        count = 0;
+        while (rs.next()) {
+            assertEquals(991 + count++, rs.getInt(1));
+        }
+        rs.close();
+        assertEquals(10, count);
+
+        // select for update只能逐行锁记录
+        sql = "SELECT id FROM BatchScanTest WHERE v = 1 FOR UPDATE";
+        rs = stmt.executeQuery(sql);
+        count = 0;
+        while (rs.next()) {
+            count++;
+        }
+        rs.close();
+        assertEquals(100, count);
+
+        executeUpdate("UPDATE BatchScanTest SET v = 100 WHERE v = 9");
+        sql = "SELECT count(*) FROM BatchScanTest WHERE v = 100";
+        assertEquals(100, getIntValue(1, true));
+    }
+}
@@ -0,0 +1,89 @@
+/*
+ * Copyright Lealone Database Group.
+ * Licensed under the Server Side Public License, v 1.
+ * Initial Developer: zhh
+ */
+package org.lealone.test.sql.query;
+
+import java.sql.ResultSet;
+import java.util.ArrayList;
+import java.util.Collections;
+
+import org.junit.Test;
+import org.lealone.test.sql.SqlTestBase;
+
+public class GroupByTest extends SqlTestBase {
+
+    private static final String[] QUERIES = { //
+            "g, count(*), count(x), sum(x), avg(x), min(x), max(x) FROM GroupByTest GROUP BY g",
+            "g, s, sum(l), avg(l), min(l), max(l), sum(d), min(d), max(d) FROM GroupByTest GROUP BY g, s",
+            "s, min(name), max(name), count(name), sum(x) + 1 FROM GroupByTest GROUP BY s",
+            "g + 1, count(*) FROM GroupByTest GROUP BY g HAVING count(*) > 20",
+            "g, sum(x) FROM GroupByTest WHERE x > 3 GROUP BY g HAVING min(x) >= 4",
+            "id, count(*), max(d) FROM GroupByTest GROUP BY id", //
+    };
+
+    @Test
+    public void run() throws Exception {
+        executeUpdate("DROP TABLE IF EXISTS GroupByTest");
+        executeUpdate("CREATE TABLE IF NOT EXISTS GroupByTest"
+                + "(id int, g int, s varchar, x int, l bigint, d double, name varchar)");
+        for (int i = 1; i <= 500; i++) {
+            String g = i % 37 == 0 ? "null" : String.valueOf(i % 23);
+            String x = i % 11 == 0 ? "null" : String.valueOf(i % 13);
+            String name = i % 9 == 0 ? "null" : "'n" + (i % 17) + "'";
+            executeUpdate("INSERT INTO GroupByTest VALUES(" + i + ", " + g + ", 's" + (i % 5) + "', " + x
+                    + ", " + (i * 1000000007L) + ", " + (i * 0.25) + ", " + name + ")");
+        }
+        testGroupBy();
+        testSpill();
+    }
+
+    private void testGroupBy() throws Exception {
+        sql = "SELECT count(*), sum(x), min(x), max(x) FROM GroupByTest WHERE g = 5 GROUP BY g";
+        assertEquals(21, getIntValue(1));
+        assertEquals(117, getIntValue(2));
+        assertEquals(0, getIntValue(3));
+        assertEquals(12, getIntValue(4, true));
+
+        sql = "SELECT count(*) FROM GroupByTest WHERE g IS NULL GROUP BY g";
+        assertEquals(13, getIntValue(1, true));
+        checkQueries();
+    }
+
+    private void testSpill() throws Exception {
+        // 分组数超过MAX_MEMORY_ROWS后把聚合状态分区转存到临时表，结果要跟不转存时一样
+        executeUpdate("SET MAX_MEMORY_ROWS 10");
+        try {
+            checkQueries();
+        } finally {
+            executeUpdate("SET MAX_MEMORY_ROWS 10000");
+        }
+    }
+
+    // 表达式中有子查询时用的是原来的QGroup，用它的结果作为对照
+    private void checkQueries() throws Exception {
+        for (String q : QUERIES) {
+            int columnCount = q.split(" FROM ")[0].split(",").length;
+            ArrayList<String> expected = getRows(
+                    "SELECT " + q.replaceFirst(" FROM ", ", (SELECT 1) FROM "), columnCount);
+            ArrayList<String> actual = getRows("SELECT " + q, columnCount);
+            assertEquals(q, expected, actual);
+        }
+    }
+
+    private ArrayList<String> getRows(String sql, int columnCount) throws Exception {
+        ArrayList<String> rows = new ArrayList<>();
+        ResultSet rs = stmt.executeQuery(sql);
+        while (rs.next()) {
+            StringBuilder buff = new StringBuilder();
+            for (int i = 1; i <= columnCount; i++) {
+                buff.append(rs.getString(i)).append(',');
+            }
+            rows.add(buff.toString());
+        }
+        rs.close();
+        Collections.sort(rows);
+        return rows;
+    }
+}
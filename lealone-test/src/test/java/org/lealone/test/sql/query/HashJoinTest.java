@@ -0,0 +1,107 @@
+/*
+ * Copyright Lealone Database Group.
+ * Licensed under the Server Side Public License, v 1.
+ * Initial Developer: zhh
+ */
+package org.lealone.test.sql.query;
+
+import org.junit.Test;
+import org.lealone.test.sql.SqlTestBase;
+
+public class HashJoinTest extends SqlTestBase {
+
+    private int innerCount;
+    private int leftCount;
+
+    @Test
+    public void run() throws Exception {
+        init();
+        testPlan();
+        testJoin();
+        testSpill();
+        testLargeBuild();
+    }
+
+    void init() throws Exception {
+        executeUpdate("DROP TABLE IF EXISTS HashJoinTest1");
+        executeUpdate("DROP TABLE IF EXISTS HashJoinTest2");
+        // 连接字段上都没有索引
+        executeUpdate("CREATE TABLE IF NOT EXISTS HashJoinTest1(id int, x int, s varchar)");
+        executeUpdate("CREATE TABLE IF NOT EXISTS HashJoinTest2(id int, y bigint, s varchar)");
+
+        int[] xs = new int[101];
+        Integer[] ys = new Integer[61];
+        for (int i = 1; i <= 100; i++) {
+            xs[i] = i % 30;
+            executeUpdate("insert into HashJoinTest1 values(" + i + ", " + xs[i] + ", 's" + (i % 7) + "')");
+        }
+        for (int i = 1; i <= 60; i++) {
+            ys[i] = i % 30 == 0 ? null : i % 27;
+            executeUpdate("insert into HashJoinTest2 values(" + i + ", " + ys[i] + ", 's" + (i % 5) + "')");
+        }
+        for (int i = 1; i <= 100; i++) {
+            int matched = 0;
+            for (int j = 1; j <= 60; j++) {
+                if (ys[j] != null && ys[j] == xs[i])
+                    matched++;
+            }
+            innerCount += matched;
+            leftCount += matched == 0 ? 1 : matched;
+        }
+    }
+
+    void testPlan() throws Exception {
+        sql = "EXPLAIN SELECT count(*) FROM HashJoinTest1 t1 LEFT JOIN HashJoinTest2 t2 ON t1.x = t2.y";
+        assertTrue(getStringValue(1, true).contains("hash join: T2.Y = T1.X"));
+    }
+
+    void testJoin() throws Exception {
+        sql = "SELECT count(*) FROM HashJoinTest1 t1, HashJoinTest2 t2 WHERE t1.x = t2.y";
+        assertEquals(innerCount, getIntValue(1, true));
+        sql = "SELECT count(*) FROM HashJoinTest1 t1 JOIN HashJoinTest2 t2 ON t1.x = t2.y";
+        assertEquals(innerCount, getIntValue(1, true));
+        // 外表中没有匹配的行也要返回
+        sql = "SELECT count(*) FROM HashJoinTest1 t1 LEFT JOIN HashJoinTest2 t2 ON t1.x = t2.y";
+        assertEquals(leftCount, getIntValue(1, true));
+        sql = "SELECT count(*) FROM HashJoinTest1 t1 LEFT JOIN HashJoinTest2 t2 ON t1.x = t2.y"
+                + " WHERE t2.id is null";
+        assertEquals(leftCount - innerCount, getIntValue(1, true));
+
+        // 字符串类型的连接字段: s0到s4在t1中有72行，每个值在t2中有12行
+        sql = "SELECT count(*) FROM HashJoinTest1 t1, HashJoinTest2 t2 WHERE t1.s = t2.s";
+        assertEquals(72 * 12, getIntValue(1, true));
+
+        sql = "SELECT t2.id FROM HashJoinTest1 t1, HashJoinTest2 t2"
+                + " WHERE t1.x = t2.y AND t1.id = 5 ORDER BY t2.id";
+        assertEquals(5, getIntValue(1, true));
+    }
+
+    void testSpill() throws Exception {
+        // build端的记录数超过MAX_MEMORY_ROWS后转存到临时表
+        executeUpdate("SET MAX_MEMORY_ROWS 10");
+        try {
+            sql = "SELECT count(*) FROM HashJoinTest1 t1, HashJoinTest2 t2 WHERE t1.x = t2.y";
+            assertEquals(innerCount, getIntValue(1, true));
+            sql = "SELECT count(*) FROM HashJoinTest1 t1 LEFT JOIN HashJoinTest2 t2 ON t1.x = t2.y";
+            assertEquals(leftCount, getIntValue(1, true));
+        } finally {
+            executeUpdate("SET MAX_MEMORY_ROWS 10000");
+        }
+    }
+
+    // build端的记录很多时，构建哈希表的过程中会让出执行权，下次接着构建
+    void testLargeBuild() throws Exception {
+        executeUpdate("DROP TABLE IF EXISTS HashJoinTest3");
+        executeUpdate("CREATE TABLE IF NOT EXISTS HashJoinTest3(id int, z int)");
+        executeUpdate("insert into HashJoinTest3 select x, mod(x, 100) from system_range(1, 20000)");
+        // HashJoinTest1中x的值是0到29，每个值在HashJoinTest3中有200行
+        sql = "SELECT count(*) FROM HashJoinTest1 t1, HashJoinTest3 t3 WHERE t1.x = t3.z";
+        assertEquals(100 * 200, getIntValue(1, true));
+        executeUpdate("SET MAX_MEMORY_ROWS 1000");
+        try {
+            assertEquals(100 * 200, getIntValue(1, true));
+        } finally {
+            executeUpdate("SET MAX_MEMORY_ROWS 10000");
+        }
+    }
+}
@@ -0,0 +1,106 @@
+/*
+ * Copyright Lealone Database Group.
+ * Licensed under the Server Side Public License, v 1.
+ * Initial Developer: zhh
+ */
+package org.lealone.test.sql.query;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.util.ArrayList;
+
+import org.junit.Test;
+import org.lealone.test.TestBase;
+import org.lealone.test.sql.SqlTestBase;
+
+public class OrderByTest extends SqlTestBase {
+
+    private static final String[] QUERIES = { //
+            "SELECT id, a FROM OrderByTest ORDER BY a, id",
+            "SELECT id, a FROM OrderByTest ORDER BY a DESC, id LIMIT 20 OFFSET 15",
+            "SELECT id, s FROM OrderByTest ORDER BY s, id DESC LIMIT 10",
+            "SELECT id FROM OrderByTest ORDER BY a, id LIMIT 3 OFFSET 990", //
+    };
+
+    @Test
+    public void run() throws Exception {
+        executeUpdate("DROP TABLE IF EXISTS OrderByTest");
+        executeUpdate("CREATE TABLE IF NOT EXISTS OrderByTest(id int, a int, s varchar)");
+        for (int i = 1; i <= 1000; i++) {
+            String a = i % 97 == 0 ? "null" : String.valueOf(i * 7919 % 100);
+            executeUpdate("INSERT INTO OrderByTest VALUES(" + i + ", " + a + ", 's" + (i * 31 % 57) + "')");
+        }
+        ArrayList<ArrayList<String>> expected = new ArrayList<>();
+        for (String q : QUERIES) {
+            expected.add(getRows(q));
+        }
+        testTopN();
+        // 超过MAX_MEMORY_ROWS后按批排序写到临时文件再归并，结果要跟在内存中排序时一样
+        executeUpdate("SET MAX_MEMORY_ROWS 10");
+        try {
+            for (int i = 0; i < QUERIES.length; i++) {
+                assertEquals(QUERIES[i], expected.get(i), getRows(QUERIES[i]));
+            }
+            testTopN();
+        } finally {
+            executeUpdate("SET MAX_MEMORY_ROWS 10000");
+        }
+        testInMemory();
+    }
+
+    // 内存数据库没有数据库路径，临时文件放在默认的临时目录
+    private void testInMemory() throws Exception {
+        TestBase test = new TestBase().setEmbedded(true).setInMemory(true);
+        try (Connection conn = test.getConnection("OrderByTestInMemory");
+                Statement stmt = conn.createStatement()) {
+            stmt.executeUpdate("CREATE TABLE IF NOT EXISTS OrderByTest(id int, v int)");
+            for (int i = 1; i <= 1000; i++) {
+                stmt.executeUpdate("INSERT INTO OrderByTest VALUES(" + i + ", " + (i * 7919 % 1000) + ")");
+            }
+            stmt.executeUpdate("SET MAX_MEMORY_ROWS 100");
+            ResultSet rs = stmt.executeQuery("SELECT v FROM OrderByTest ORDER BY v");
+            int count = 0;
+            int last = -1;
+            while (rs.next()) {
+                int v = rs.getInt(1);
+                assertTrue(v >= last);
+                last = v;
+                count++;
+            }
+            rs.close();
+            assertEquals(1000, count);
+        }
+    }
+
+    private void testTopN() throws Exception {
+        sql = "SELECT id FROM OrderByTest ORDER BY id DESC LIMIT 3";
+        ArrayList<String> rows = getRows(sql);
+        assertEquals(3, rows.size());
+        assertEquals("1000,", rows.get(0));
+        assertEquals("998,", rows.get(2));
+
+        sql = "SELECT id FROM OrderByTest ORDER BY id LIMIT 2 OFFSET 997";
+        rows = getRows(sql);
+        assertEquals(2, rows.size());
+        assertEquals("998,", rows.get(0));
+
+        sql = "SELECT id FROM OrderByTest ORDER BY id LIMIT 5 OFFSET 1000";
+        assertEquals(0, getRows(sql).size());
+    }
+
+    private ArrayList<String> getRows(String sql) throws Exception {
+        ArrayList<String> rows = new ArrayList<>();
+        ResultSet rs = stmt.executeQuery(sql);
+        int columnCount = rs.getMetaData().getColumnCount();
+        while (rs.next()) {
+            StringBuilder buff = new StringBuilder();
+            for (int i = 1; i <= columnCount; i++) {
+                buff.append(rs.getString(i)).append(',');
+            }
+            rows.add(buff.toString());
+        }
+        rs.close();
+        return rows;
+    }
+}
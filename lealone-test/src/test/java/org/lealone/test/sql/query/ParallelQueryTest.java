@@ -0,0 +1,132 @@
+/*
+ * Copyright Lealone Database Group.
+ * Licensed under the Server Side Public License, v 1.
+ * Initial Developer: zhh
+ */
+package org.lealone.test.sql.query;
+
+import java.sql.ResultSet;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+import org.lealone.db.PluginManager;
+import org.lealone.db.result.LocalResult;
+import org.lealone.sql.operator.Operator;
+import org.lealone.sql.operator.OperatorFactory;
+import org.lealone.sql.operator.OperatorFactoryBase;
+import org.lealone.sql.query.ParallelOperatorFactory;
+import org.lealone.sql.query.Select;
+import org.lealone.test.sql.SqlTestBase;
+
+public class ParallelQueryTest extends SqlTestBase {
+
+    // 记录ParallelOperatorFactory创建了多少个并行执行的operator
+    private static class CountingOperatorFactory extends OperatorFactoryBase {
+
+        private final ParallelOperatorFactory factory = new ParallelOperatorFactory();
+        private final AtomicInteger count = new AtomicInteger();
+
+        CountingOperatorFactory() {
+            super("parallel_test");
+        }
+
+        @Override
+        public Operator createOperator(Select select) {
+            return count(factory.createOperator(select));
+        }
+
+        @Override
+        public Operator createOperator(Select select, LocalResult localResult) {
+            return count(factory.createOperator(select, localResult));
+        }
+
+        private Operator count(Operator operator) {
+            if (operator != null)
+                count.incrementAndGet();
+            return operator;
+        }
+    }
+
+    private static final String[] QUERIES = { //
+            "SELECT id, x, s FROM ParallelQueryTest WHERE x > 5",
+            "SELECT id, x FROM ParallelQueryTest WHERE x > 5 ORDER BY x, id DESC",
+            "SELECT id FROM ParallelQueryTest ORDER BY l DESC LIMIT 10 OFFSET 3",
+            "SELECT count(*), sum(x), avg(x), min(s), max(d) FROM ParallelQueryTest WHERE x < 7",
+            "SELECT count(*), sum(x) FROM ParallelQueryTest WHERE x > 100",
+            "SELECT g, count(*), sum(x), avg(d), min(s), max(l) FROM ParallelQueryTest GROUP BY g",
+            "SELECT g, s, count(*) FROM ParallelQueryTest WHERE x <> 3 GROUP BY g, s", //
+    };
+
+    private final CountingOperatorFactory factory = new CountingOperatorFactory();
+
+    // factory是在测试所在的JVM里注册的，查询也必须在这个JVM里执行
+    public ParallelQueryTest() {
+        super("ParallelQueryTest");
+        setEmbedded(true);
+    }
+
+    @Test
+    public void run() throws Exception {
+        executeUpdate("DROP TABLE IF EXISTS ParallelQueryTest");
+        executeUpdate("CREATE TABLE IF NOT EXISTS ParallelQueryTest"
+                + "(id int, g int, x int, l bigint, d double, s varchar)");
+        for (int i = 1; i <= 3000; i++) {
+            String g = i % 37 == 0 ? "null" : String.valueOf(i % 23);
+            executeUpdate("INSERT INTO ParallelQueryTest VALUES(" + i + ", " + g + ", " + (i % 11) + ", "
+                    + (i * 1000000007L) + ", " + (i * 0.25) + ", 's" + (i % 17) + "')");
+        }
+        ArrayList<ArrayList<String>> expected = new ArrayList<>();
+        for (String q : QUERIES) {
+            expected.add(getRows(q));
+        }
+        // 处理的记录数超过OLAP_THRESHOLD后切换到并行扫描，每个范围大约OLAP_BATCH_SIZE行，结果要跟串行扫描一样
+        PluginManager.register(OperatorFactory.class, factory);
+        executeUpdate("SET OLAP_OPERATOR_FACTORY_NAME 'parallel_test'");
+        executeUpdate("SET OLAP_THRESHOLD 100");
+        executeUpdate("SET OLAP_BATCH_SIZE 200");
+        try {
+            checkQueries(expected);
+            // 部分聚合的中间状态在合并时转存到临时表
+            executeUpdate("SET MAX_MEMORY_ROWS 10");
+            try {
+                checkQueries(expected);
+            } finally {
+                executeUpdate("SET MAX_MEMORY_ROWS 10000");
+            }
+        } finally {
+            executeUpdate("SET OLAP_THRESHOLD 0");
+            executeUpdate("SET OLAP_BATCH_SIZE 0");
+            executeUpdate("SET OLAP_OPERATOR_FACTORY_NAME 'olap'");
+            PluginManager.deregister(OperatorFactory.class, factory);
+        }
+    }
+
+    private void checkQueries(ArrayList<ArrayList<String>> expected) throws Exception {
+        for (int i = 0; i < QUERIES.length; i++) {
+            int count = factory.count.get();
+            assertEquals(QUERIES[i], expected.get(i), getRows(QUERIES[i]));
+            // 确实切换到了并行扫描
+            assertTrue(QUERIES[i], factory.count.get() > count);
+        }
+    }
+
+    private ArrayList<String> getRows(String sql) throws Exception {
+        ArrayList<String> rows = new ArrayList<>();
+        ResultSet rs = stmt.executeQuery(sql);
+        int columnCount = rs.getMetaData().getColumnCount();
+        while (rs.next()) {
+            StringBuilder buff = new StringBuilder();
+            for (int i = 1; i <= columnCount; i++) {
+                buff.append(rs.getString(i)).append(',');
+            }
+            rows.add(buff.toString());
+        }
+        rs.close();
+        // 没有ORDER BY时不要求顺序一样
+        if (!sql.contains("ORDER BY"))
+            Collections.sort(rows);
+        return rows;
+    }
+}
@@ -0,0 +1,81 @@
+/*
+ * Copyright Lealone Database Group.
+ * Licensed under the Server Side Public License, v 1.
+ * Initial Developer: zhh
+ */
+package org.lealone.test.sql.query;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.Statement;
+
+import org.junit.Test;
+import org.lealone.test.sql.SqlTestBase;
+
+public class PlanCacheTest extends SqlTestBase {
+
+    @Test
+    public void run() throws Exception {
+        executeUpdate("DROP TABLE IF EXISTS PlanCacheTest");
+        executeUpdate("CREATE TABLE IF NOT EXISTS PlanCacheTest(id int primary key, name varchar, v int)");
+        for (int i = 0; i < 100; i++) {
+            executeUpdate("INSERT INTO PlanCacheTest VALUES(" + i + ", 'n" + i + "', " + (i % 7) + ")");
+        }
+        testLiterals(stmt);
+        // 另一个session也能用同样的语句
+        Connection conn2 = getConnection();
+        Statement stmt2 = conn2.createStatement();
+        testLiterals(stmt2);
+        stmt2.close();
+        conn2.close();
+
+        // 常量替换成的参数对客户端不可见
+        PreparedStatement ps = conn.prepareStatement("SELECT name FROM PlanCacheTest WHERE id = 5");
+        assertEquals(0, ps.getParameterMetaData().getParameterCount());
+        ResultSet rs = ps.executeQuery();
+        assertTrue(rs.next());
+        assertEquals("n5", rs.getString(1));
+        ps.close();
+        ps = conn.prepareStatement("SELECT name FROM PlanCacheTest WHERE id = ?");
+        assertEquals(1, ps.getParameterMetaData().getParameterCount());
+        ps.setInt(1, 6);
+        rs = ps.executeQuery();
+        assertTrue(rs.next());
+        assertEquals("n6", rs.getString(1));
+        ps.close();
+
+        // 这些常量不替换
+        sql = "SELECT name FROM PlanCacheTest ORDER BY 1 DESC";
+        assertEquals("n99", getStringValue(1, true));
+        sql = "SELECT count(*) FROM PlanCacheTest WHERE id IN(1, 2, 3)";
+        assertEquals(3, getIntValue(1, true));
+        sql = "SELECT count(*) FROM PlanCacheTest WHERE id > 10 LIMIT 1";
+        assertEquals(89, getIntValue(1, true));
+
+        sql = "SELECT sum(HIT_COUNT) FROM PERFORMANCE_SCHEMA.PLAN_CACHE"
+                + " WHERE SQL_STATEMENT = 'SELECT NAME FROM PLANCACHETEST WHERE ID = ?'";
+        assertTrue(getLongValue(1, true) > 0);
+
+        // 建索引后缓存的语句都作废
+        executeUpdate("CREATE INDEX IF NOT EXISTS PlanCacheTest_v ON PlanCacheTest(v)");
+        testLiterals(stmt);
+        executeUpdate("DROP INDEX IF EXISTS PlanCacheTest_v");
+    }
+
+    private void testLiterals(Statement stmt) throws Exception {
+        for (int i = 0; i < 100; i += 3) {
+            ResultSet rs = stmt.executeQuery("SELECT name FROM PlanCacheTest WHERE id = " + i);
+            assertTrue(rs.next());
+            assertEquals("n" + i, rs.getString(1));
+            rs.close();
+        }
+        for (int v = 0; v < 7; v++) {
+            ResultSet rs = stmt.executeQuery(
+                    "SELECT count(*) FROM PlanCacheTest WHERE v = " + v + " AND name <> 'n0'");
+            assertTrue(rs.next());
+            assertEquals(v == 0 ? 14 : (v == 1 ? 15 : 14), rs.getInt(1));
+            rs.close();
+        }
+    }
+}
@@ -0,0 +1,63 @@
+/*
+ * Copyright Lealone Database Group.
+ * Licensed under the Server Side Public License, v 1.
+ * Initial Developer: zhh
+ */
+package org.lealone.test.sql.query;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.Statement;
+
+import org.junit.Test;
+import org.lealone.test.sql.SqlTestBase;
+
+public class ResultCacheTest extends SqlTestBase {
+
+    @Test
+    public void run() throws Exception {
+        executeUpdate("DROP TABLE IF EXISTS ResultCacheTestA");
+        executeUpdate("DROP TABLE IF EXISTS ResultCacheTestB");
+        executeUpdate("CREATE TABLE IF NOT EXISTS ResultCacheTestA(id int primary key, v int)");
+        executeUpdate("CREATE TABLE IF NOT EXISTS ResultCacheTestB(id int primary key, v int)");
+        for (int i = 0; i < 100; i++) {
+            executeUpdate("INSERT INTO ResultCacheTestA VALUES(" + i + ", " + (i % 10) + ")");
+        }
+        String query = "SELECT sum(v) FROM ResultCacheTestA WHERE v > 2";
+
+        Connection conn2 = getConnection();
+        Statement stmt2 = conn2.createStatement();
+        assertEquals(420, getInt(stmt, query));
+        // 修改其他表不影响缓存的结果
+        executeUpdate("INSERT INTO ResultCacheTestB VALUES(1, 1)");
+        assertEquals(420, getInt(stmt2, query));
+
+        executeUpdate("UPDATE ResultCacheTestA SET v = 9 WHERE id = 0");
+        assertEquals(429, getInt(stmt2, query));
+
+        // 未提交的修改对其他session不可见，提交后缓存的结果失效
+        conn.setAutoCommit(false);
+        executeUpdate("UPDATE ResultCacheTestA SET v = 9 WHERE id = 1");
+        assertEquals(438, getInt(stmt, query));
+        assertEquals(429, getInt(stmt2, query));
+        conn.commit();
+        conn.setAutoCommit(true);
+        assertEquals(438, getInt(stmt2, query));
+
+        conn.setAutoCommit(false);
+        executeUpdate("UPDATE ResultCacheTestA SET v = 9 WHERE id = 2");
+        conn.rollback();
+        conn.setAutoCommit(true);
+        assertEquals(438, getInt(stmt2, query));
+        stmt2.close();
+        conn2.close();
+    }
+
+    private static int getInt(Statement stmt, String sql) throws Exception {
+        ResultSet rs = stmt.executeQuery(sql);
+        assertTrue(rs.next());
+        int v = rs.getInt(1);
+        rs.close();
+        return v;
+    }
+}
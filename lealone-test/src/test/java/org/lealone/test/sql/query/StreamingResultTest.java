@@ -0,0 +1,181 @@
+/*
+ * Copyright Lealone Database Group.
+ * Licensed under the Server Side Public License, v 1.
+ * Initial Developer: zhh
+ */
+package org.lealone.test.sql.query;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.Test;
+import org.lealone.db.api.ErrorCode;
+import org.lealone.test.sql.SqlTestBase;
+
+public class StreamingResultTest extends SqlTestBase {
+
+    private static final String[] QUERIES = { //
+            "SELECT * FROM StreamingResultTest", //
+            "SELECT id, name FROM StreamingResultTest WHERE v = 3",
+            "SELECT * FROM StreamingResultTest ORDER BY id",
+            "SELECT * FROM StreamingResultTest ORDER BY name",
+            "SELECT * FROM StreamingResultTest LIMIT 10",
+            "SELECT * FROM StreamingResultTest WHERE id < 0", //
+    };
+
+    @Test
+    public void run() throws Exception {
+        executeUpdate("DROP TABLE IF EXISTS StreamingResultTest");
+        executeUpdate("CREATE TABLE IF NOT EXISTS StreamingResultTest"
+                + "(id int primary key, name varchar, v int)");
+        for (int i = 0; i < 2000; i++) {
+            executeUpdate("INSERT INTO StreamingResultTest VALUES(" + i + ", 'n" + i + "', " + (i % 7)
+                    + ")");
+        }
+        ArrayList<ArrayList<String>> expected = new ArrayList<>();
+        for (String q : QUERIES) {
+            expected.add(getRows(q, 100));
+        }
+        executeUpdate("SET STREAMING_RESULT 1");
+        // 只有手动提交的事务才用流式结果集
+        conn.setAutoCommit(false);
+        try {
+            // 每次取的记录数不一样时，结果都要跟完整缓存结果集时一样
+            for (int i = 0; i < QUERIES.length; i++) {
+                assertEquals(QUERIES[i], expected.get(i), getRows(QUERIES[i], 100));
+                assertEquals(QUERIES[i], expected.get(i), getRows(QUERIES[i], 37));
+            }
+            testInterleavedResults();
+            testReexecute();
+            testCommit();
+            testConcurrentDdlAndDml();
+        } finally {
+            conn.setAutoCommit(true);
+            executeUpdate("SET STREAMING_RESULT 0");
+        }
+    }
+
+    // 事务结束后没有读完的流式结果集不能再读了
+    private void testCommit() throws Exception {
+        Statement s = conn.createStatement();
+        s.setFetchSize(10);
+        ResultSet rs = s.executeQuery("SELECT id FROM StreamingResultTest");
+        for (int i = 0; i < 10; i++) {
+            assertTrue(rs.next());
+        }
+        conn.commit();
+        // 事务结束前已经查出来的记录还能读完，之后再到服务器端取记录时才出错
+        int count = 10;
+        try {
+            while (rs.next()) {
+                count++;
+            }
+            fail();
+        } catch (SQLException e) {
+            assertErrorCode(e, ErrorCode.OBJECT_CLOSED);
+        }
+        assertTrue(count < 2000);
+        s.close();
+    }
+
+    // 流式结果集没读完时，其他事务可以执行DML，但是DROP TABLE要等事务结束
+    private void testConcurrentDdlAndDml() throws Exception {
+        Statement s = conn.createStatement();
+        s.setFetchSize(10);
+        ResultSet rs = s.executeQuery("SELECT id FROM StreamingResultTest");
+        for (int i = 0; i < 10; i++) {
+            assertTrue(rs.next());
+        }
+        Connection conn2 = getConnection();
+        Statement s2 = conn2.createStatement();
+        s2.executeUpdate("INSERT INTO StreamingResultTest VALUES(2000, 'n2000', 5)");
+        s2.executeUpdate("DELETE FROM StreamingResultTest WHERE id = 2000");
+
+        AtomicBoolean dropped = new AtomicBoolean();
+        Thread t = new Thread(() -> {
+            try {
+                s2.executeUpdate("DROP TABLE StreamingResultTest");
+                dropped.set(true);
+            } catch (SQLException e) {
+                throw new RuntimeException(e);
+            }
+        });
+        t.start();
+        t.join(500);
+        assertFalse(dropped.get());
+        int count = 10;
+        while (rs.next()) {
+            count++;
+        }
+        assertEquals(2000, count);
+        assertFalse(dropped.get());
+        conn.commit();
+        t.join();
+        assertTrue(dropped.get());
+        s.close();
+        conn2.close();
+    }
+
+    // 同一个session中的两个流式结果集交替读
+    private void testInterleavedResults() throws Exception {
+        Statement s1 = conn.createStatement();
+        Statement s2 = conn.createStatement();
+        s1.setFetchSize(10);
+        s2.setFetchSize(10);
+        ResultSet rs1 = s1.executeQuery("SELECT id FROM StreamingResultTest");
+        ResultSet rs2 = s2.executeQuery("SELECT id FROM StreamingResultTest");
+        int count = 0;
+        while (rs1.next()) {
+            assertTrue(rs2.next());
+            assertEquals(rs1.getInt(1), rs2.getInt(1));
+            count++;
+        }
+        assertFalse(rs2.next());
+        assertEquals(2000, count);
+        s1.close();
+        s2.close();
+    }
+
+    // 结果集还没读完时再次执行同一个预处理语句
+    private void testReexecute() throws Exception {
+        PreparedStatement ps = conn.prepareStatement("SELECT id FROM StreamingResultTest WHERE v = ?");
+        ps.setFetchSize(50);
+        ps.setInt(1, 2);
+        ResultSet rs = ps.executeQuery();
+        for (int i = 0; i < 120; i++) {
+            assertTrue(rs.next());
+        }
+        ps.setInt(1, 3);
+        rs = ps.executeQuery();
+        int count = 0;
+        while (rs.next()) {
+            assertEquals(3, rs.getInt(1) % 7);
+            count++;
+        }
+        assertEquals(286, count);
+        ps.close();
+    }
+
+    private ArrayList<String> getRows(String sql, int fetchSize) throws Exception {
+        ArrayList<String> rows = new ArrayList<>();
+        Statement s = conn.createStatement();
+        s.setFetchSize(fetchSize);
+        ResultSet rs = s.executeQuery(sql);
+        int columnCount = rs.getMetaData().getColumnCount();
+        while (rs.next()) {
+            StringBuilder buff = new StringBuilder();
+            for (int i = 1; i <= columnCount; i++) {
+                buff.append(rs.getString(i)).append(',');
+            }
+            rows.add(buff.toString());
+        }
+        rs.close();
+        s.close();
+        return rows;
+    }
+}